@@ -0,0 +1,40 @@
+@echo off
+REM Compila o servidor e os testes de carga/benchmarks (pasta bench) em bin.
+REM Rode build.bat antes se quiser tambem o cliente.
+if not exist bin mkdir bin
+set CP=.;lib/*
+
+javac -encoding UTF-8 -d bin -cp "%CP%" common/*.java server/*.java bench/*.java
+if %errorlevel% neq 0 (
+    echo.
+    echo ERRO NA COMPILACAO! Verifique as mensagens acima.
+    pause
+    exit /b %errorlevel%
+)
+
+echo.
+echo -------------------------------------------------------------------
+echo TESTE DE ESTRESSE DO ROTEAMENTO (usuarios, segundos por rodada):
+echo java -cp "bin;lib/*" bench.RoutingStressTest 10000 3
+echo.
+echo CODEC BINARIO x SERIALIZACAO JAVA (iteracoes):
+echo java -cp "bin;lib/*" bench.CodecBenchmark 200000
+echo.
+echo FAN-OUT DE GRUPO, 10/100/1000 MEMBROS (entregas por rodada):
+echo java -cp "bin;lib/*" bench.GroupFanoutBenchmark 2000000
+echo.
+echo RECUPERACAO DE GRUPOS NA PARTIDA (grupos, registros na cauda):
+echo java -Xms512m -cp "bin;lib/*" bench.GroupRecoveryBenchmark 100000 10000
+echo.
+echo PARTIDA DO SERVIDOR SEM JANELA ATE A PRIMEIRA CONEXAO (rodadas, modo):
+echo java -cp "bin;lib/*" bench.ServerStartupBenchmark 5 nio
+echo.
+echo CAMINHOS QUENTES, UM PROCESSO POR OPERACAO (ms por iteracao, arquivo de baseline):
+echo java -cp "bin;lib/*" bench.HotPathBenchmark 1000 bench-baseline.txt
+echo.
+echo GERADOR DE CARGA CONTRA UM SERVIDOR RODANDO (usuarios, segundos, msgs/s, mistura):
+echo java -cp "bin;lib/*" bench.LoadGenerator 1000 60 2000 PRIVATE=70,GROUP=20,FILE=1,MESSAGE_READ=9
+echo   (cluster: usuarios em rodizio entre os nos, ultimo argumento 127.0.0.1:54321,127.0.0.1:54331)
+echo -------------------------------------------------------------------
+echo.
+pause
@@ -0,0 +1,118 @@
+package bench;
+
+import common.Message;
+import common.MessageCodec;
+import common.MessageStatus;
+import common.MessageType;
+import common.WireProtocol;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Compara a serialização Java (payload atual dos quadros) com o MessageCodec binário:
+ * bytes por quadro e ns por codificação/decodificação, para mensagens típicas do chat.
+ * Antes de medir, confere que o codec binário devolve a mesma mensagem.
+ *
+ * Uso: java -cp bin bench.CodecBenchmark [iteracoes]
+ */
+public class CodecBenchmark {
+
+    private interface Codec {
+        byte[] encode(Message msg) throws Exception;
+        Message decode(byte[] payload) throws Exception;
+    }
+
+    private static final Codec JAVA = new Codec() {
+        @Override public byte[] encode(Message msg) throws Exception { return WireProtocol.encodeMessage(msg); }
+        @Override public Message decode(byte[] payload) throws Exception { return WireProtocol.decodeMessage(payload, 0, payload.length); }
+    };
+
+    private static final Codec BINARY = new Codec() {
+        @Override public byte[] encode(Message msg) { return MessageCodec.encode(msg); }
+        @Override public Message decode(byte[] payload) throws Exception { return MessageCodec.decode(payload, 0, payload.length); }
+    };
+
+    private static volatile Object sink; // Evita que o JIT elimine o trabalho medido
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        Map<String, Message> samples = samples();
+
+        for (Map.Entry<String, Message> sample : samples.entrySet()) {
+            Message msg = sample.getValue();
+            if (!sameMessage(msg, BINARY.decode(BINARY.encode(msg)))) {
+                throw new IllegalStateException("Ida e volta no codec binário alterou a mensagem: " + sample.getKey());
+            }
+        }
+
+        System.out.printf("%-14s %10s %10s %12s %12s %12s %12s%n", "mensagem", "java (B)", "bin (B)",
+                "java enc ns", "bin enc ns", "java dec ns", "bin dec ns");
+        for (Map.Entry<String, Message> sample : samples.entrySet()) {
+            Message msg = sample.getValue();
+            int scaled = msg.getFileData() != null ? Math.max(1_000, iterations / 50) : iterations;
+            byte[] javaPayload = JAVA.encode(msg);
+            byte[] binaryPayload = BINARY.encode(msg);
+            System.out.printf("%-14s %10d %10d %12.0f %12.0f %12.0f %12.0f%n", sample.getKey(),
+                    javaPayload.length, binaryPayload.length,
+                    encodeNanos(JAVA, msg, scaled), encodeNanos(BINARY, msg, scaled),
+                    decodeNanos(JAVA, javaPayload, scaled), decodeNanos(BINARY, binaryPayload, scaled));
+        }
+    }
+
+    private static Map<String, Message> samples() {
+        Map<String, Message> samples = new LinkedHashMap<>();
+        samples.put("PRIVATE", new Message("alice", "bob", "Oi Bob, tudo bem? Vamos almoçar às 12h?", MessageType.PRIVATE));
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 50; i++) names.add("usuario" + i);
+        samples.put("USER_LIST", new Message("Servidor", "alice", String.join(",", names), MessageType.USER_LIST));
+
+        Message status = new Message("Servidor", "alice", "7236b7d9-39ce-4aac-b5fd-ffb4495a27f8:bob", MessageType.STATUS_UPDATE);
+        status.setStatus(MessageStatus.DELIVERED);
+        status.setDeliveredTime(new Date());
+        samples.put("STATUS_UPDATE", status);
+
+        char[] text = new char[4096];
+        Arrays.fill(text, 'a');
+        samples.put("GROUP 4KB", new Message("alice", "👥 Turma", new String(text), MessageType.GROUP));
+
+        Message file = new Message("alice", "bob", "foto.jpg", MessageType.PRIVATE);
+        file.setFileName("foto.jpg");
+        file.setFileData(new byte[64 * 1024]);
+        samples.put("ARQUIVO 64KB", file);
+        return samples;
+    }
+
+    private static double encodeNanos(Codec codec, Message msg, int iterations) throws Exception {
+        for (int i = 0; i < iterations; i++) sink = codec.encode(msg); // Aquecimento
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink = codec.encode(msg);
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    private static double decodeNanos(Codec codec, byte[] payload, int iterations) throws Exception {
+        for (int i = 0; i < iterations; i++) sink = codec.decode(payload);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink = codec.decode(payload);
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    private static boolean sameMessage(Message a, Message b) {
+        return Objects.equals(a.getMessageId(), b.getMessageId())
+                && Objects.equals(a.getSender(), b.getSender())
+                && Objects.equals(a.getReceiver(), b.getReceiver())
+                && Objects.equals(a.getContent(), b.getContent())
+                && Objects.equals(a.getTimestamp(), b.getTimestamp())
+                && a.getType() == b.getType()
+                && Arrays.equals(a.getFileData(), b.getFileData())
+                && Objects.equals(a.getFileName(), b.getFileName())
+                && a.getStatus() == b.getStatus()
+                && Objects.equals(a.getDeliveredTime(), b.getDeliveredTime())
+                && Objects.equals(a.getReadTime(), b.getReadTime());
+    }
+}
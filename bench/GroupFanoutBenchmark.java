@@ -0,0 +1,127 @@
+package bench;
+
+import common.FrameCompressor;
+import common.Message;
+import common.MessageType;
+import common.WireProtocol;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import server.ChatRouter;
+import server.ClientConnection;
+import server.OutboundFrame;
+import server.ServerLog;
+import server.SpooledAttachment;
+
+/**
+ * Fan-out de mensagens de grupo com 10, 100 e 1000 membros: cada membro codificando a mensagem
+ * (como era antes do OutboundFrame) x a mensagem codificada uma vez e o quadro compartilhado.
+ *
+ * As conexões em memória fazem exatamente o que ClientHandler/NioConnection fazem antes de
+ * enfileirar (codificar e montar o quadro) e descartam o resultado, então a diferença medida é
+ * só o custo de codificação. Mede mensagens de grupo por segundo e bytes alocados por mensagem.
+ *
+ * Uso: java -cp bin bench.GroupFanoutBenchmark [membrosXmensagens]
+ *   membrosXmensagens: total de entregas por rodada (padrão 2000000)
+ */
+public class GroupFanoutBenchmark {
+
+    private static final ServerLog NO_OP_LOG = new ServerLog() {
+        @Override public void log(String level, String category, String message) {}
+        @Override public void logError(String category, String message, Throwable e) {}
+    };
+
+    private static final int[] GROUP_SIZES = {10, 100, 1000};
+    private static final FrameCompressor COMPRESSOR = new FrameCompressor();
+    private static volatile Object sink; // Evita que o JIT elimine o trabalho medido
+
+    public static void main(String[] args) {
+        long deliveriesPerRound = args.length > 0 ? Long.parseLong(args[0]) : 2_000_000L;
+
+        System.out.printf("%-8s %-18s %16s %16s %8s %14s %14s%n", "membros", "codec", "por membro (msg/s)",
+                "uma vez (msg/s)", "ganho", "aloc/msg antes", "aloc/msg depois");
+        for (int members : GROUP_SIZES) {
+            int messages = (int) Math.max(200, deliveriesPerRound / members);
+            for (int flags : new int[] {0, WireProtocol.FLAG_BINARY_CODEC}) {
+                String codec = flags == 0 ? "serialização Java" : "binário";
+                Result perMember = run(members, flags, messages, true);
+                Result shared = run(members, flags, messages, false);
+                System.out.printf("%-8d %-18s %16.0f %16.0f %7.1fx %12.1fKB %12.1fKB%n", members, codec,
+                        perMember.messagesPerSecond, shared.messagesPerSecond, shared.messagesPerSecond / perMember.messagesPerSecond,
+                        perMember.bytesPerMessage / 1024, shared.bytesPerMessage / 1024);
+            }
+        }
+    }
+
+    private record Result(double messagesPerSecond, double bytesPerMessage) { }
+
+    private static Result run(int members, int flags, int messages, boolean encodePerMember) {
+        ChatRouter router = new ChatRouter(NO_OP_LOG);
+        List<String> names = new ArrayList<>(members);
+        for (int i = 0; i < members; i++) {
+            names.add("membro" + i);
+            router.addClient(names.get(i), new EncodingConnection(names.get(i), flags, encodePerMember));
+        }
+        String group = ChatRouter.GROUP_ICON_PREFIX + "bench";
+        router.createGroup(group, names, names.get(0));
+
+        String content = "Mensagem de grupo com um tamanho típico de conversa, umas duas frases. Nada demais por aqui.";
+        for (int i = 0; i < Math.max(50, messages / 10); i++) { // Aquecimento do JIT
+            router.routeMessage(new Message("w" + i, names.get(0), group, content, MessageType.GROUP), names.get(0));
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long began = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            router.routeMessage(new Message("m" + i, names.get(0), group, content, MessageType.GROUP), names.get(0));
+        }
+        double elapsedSeconds = (System.nanoTime() - began) / 1e9;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        router.stop();
+        return new Result(messages / elapsedSeconds, (double) allocated / messages);
+    }
+
+    /** Conexão que codifica como as conexões reais e descarta os bytes. */
+    private static final class EncodingConnection implements ClientConnection {
+        private static final SocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 0);
+        private final String username;
+        private final int flags;
+        private final boolean encodePerMember;
+
+        EncodingConnection(String username, int flags, boolean encodePerMember) {
+            this.username = username;
+            this.flags = flags;
+            this.encodePerMember = encodePerMember;
+        }
+
+        @Override public String getUsername() { return username; }
+        @Override public SocketAddress getRemoteSocketAddress() { return ADDRESS; }
+        @Override public boolean isOpen() { return true; }
+        @Override public void sendMessage(Message msg) { sendFrame(new OutboundFrame(msg)); }
+
+        @Override
+        public void sendFrame(OutboundFrame frame) {
+            try {
+                sink = encodePerMember
+                        ? WireProtocol.frame(WireProtocol.encodeMessage(frame.message(), flags, COMPRESSOR))
+                        : frame.encode(true, flags, COMPRESSOR);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override public void sendAttachment(Message msg, SpooledAttachment attachment) {}
+        @Override public void closeClientSocket() {}
+        @Override public int getProtocolFlags() { return flags; }
+        @Override public int getOutboundDepth() { return 0; }
+        @Override public long getOutboundBytes() { return 0; }
+        @Override public void whenOutboundBelow(long bytes, Runnable callback) { callback.run(); }
+        @Override public long getOldestOutboundAgeMillis() { return 0; }
+        @Override public long getReceivedMessages() { return 0; }
+        @Override public long getSentBytes() { return 0; }
+    }
+}
@@ -0,0 +1,129 @@
+package bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import server.ChatRouter;
+import server.GroupJournal;
+import server.ServerLog;
+
+/**
+ * Tempo de partida do servidor com muitos grupos persistidos (GroupJournal).
+ *
+ * Grava N grupos (padrão 100 mil, de 2 a 8 membros cada, entre 20 mil usuários) e mede quanto
+ * ChatRouter.recoverGroups() leva para deixar os grupos prontos em três situações:
+ *   só WAL         todas as criações reaplicadas registro a registro (nunca houve snapshot)
+ *   snapshot       o snapshot gravado no desligamento, sem WAL para reaplicar
+ *   snapshot+WAL   o snapshot mais uma cauda de mutações posteriores (saídas de membros)
+ * A primeira medida de cada situação é a de uma partida real (JIT frio); as seguintes mostram
+ * o custo depois do aquecimento.
+ *
+ * Uso: java -cp bin bench.GroupRecoveryBenchmark [grupos] [registrosNaCauda]
+ */
+public class GroupRecoveryBenchmark {
+
+    private static final ServerLog NO_OP_LOG = new ServerLog() {
+        @Override public void log(String level, String category, String message) {}
+        @Override public void logError(String category, String message, Throwable e) {}
+    };
+
+    private static final int USERS = 20_000;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int groupCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int tailRecords = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        Path directory = Files.createTempDirectory("chat-grupos-bench");
+        try {
+            List<List<String>> members = writeGroups(directory, groupCount);
+            System.out.printf("%d grupos gravados no WAL (%d KB)%n", groupCount, directorySize(directory) / 1024);
+            report("só WAL", directory, groupCount);
+
+            GroupJournal journal = newJournal(directory);
+            ChatRouter router = new ChatRouter(NO_OP_LOG, journal);
+            router.recoverGroups();
+            router.compactGroupJournal(true); // Como no desligamento do servidor
+            router.stop();
+            journal.close(); // Solta a trava do diretório para a próxima partida
+            System.out.printf("snapshot gravado (%d KB)%n", directorySize(directory) / 1024);
+            report("snapshot", directory, groupCount);
+
+            appendTail(directory, members, tailRecords);
+            report("snapshot+WAL", directory, groupCount);
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static GroupJournal newJournal(Path directory) {
+        return new GroupJournal(directory, 0, Long.MAX_VALUE, NO_OP_LOG); // Sem snapshot automático
+    }
+
+    private static List<List<String>> writeGroups(Path directory, int groupCount) throws IOException {
+        Random random = new Random(42);
+        GroupJournal journal = newJournal(directory);
+        journal.recover(new HashMap<>());
+        List<List<String>> members = new ArrayList<>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            int size = 2 + random.nextInt(7);
+            List<String> groupMembers = new ArrayList<>(size);
+            for (int j = 0; j < size; j++) groupMembers.add("usuario" + random.nextInt(USERS));
+            members.add(groupMembers);
+            journal.logCreate(ChatRouter.GROUP_ICON_PREFIX + "grupo" + i, "grupo" + i, groupMembers);
+        }
+        journal.close();
+        return members;
+    }
+
+    /** Saídas de membros depois do snapshot: ficam no WAL da geração seguinte. */
+    private static void appendTail(Path directory, List<List<String>> members, int tailRecords) throws IOException {
+        Random random = new Random(7);
+        GroupJournal journal = newJournal(directory);
+        journal.recover(new HashMap<>());
+        for (int i = 0; i < tailRecords; i++) {
+            int group = random.nextInt(members.size());
+            journal.logRemoveMember(ChatRouter.GROUP_ICON_PREFIX + "grupo" + group, members.get(group).get(0));
+        }
+        journal.close();
+        System.out.printf("%d mutações acrescentadas depois do snapshot%n", tailRecords);
+    }
+
+    private static void report(String label, Path directory, int expectedGroups) throws IOException {
+        StringBuilder runs = new StringBuilder();
+        for (int run = 0; run < RUNS; run++) {
+            GroupJournal journal = newJournal(directory);
+            ChatRouter router = new ChatRouter(NO_OP_LOG, journal);
+            long began = System.nanoTime();
+            int recovered = router.recoverGroups();
+            long elapsedMillis = (System.nanoTime() - began) / 1_000_000;
+            router.stop();
+            journal.close();
+            if (recovered != expectedGroups || router.getGroupCount() != expectedGroups) {
+                throw new IllegalStateException("Recuperados " + recovered + " grupos, esperados " + expectedGroups);
+            }
+            runs.append(run == 0 ? "" : ", ").append(elapsedMillis).append(" ms");
+        }
+        System.out.printf("%-14s partida: %s%n", label, runs);
+    }
+
+    private static long directorySize(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.mapToLong(path -> {
+                try {
+                    return Files.size(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).sum();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package bench;
+
+import common.Message;
+import common.MessageStatus;
+import common.MessageType;
+import common.WireProtocol;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import server.ChatRouter;
+import server.ClientConnection;
+import server.OutboundFrame;
+import server.ServerLog;
+import server.SpooledAttachment;
+
+/**
+ * Baseline dos caminhos quentes de mensagens, medidos com o Microbench (no estilo do JMH, que o
+ * projeto não tem como dependência):
+ *
+ *   codec.*          Message pela serialização Java e pelo codec binário, com e sem fileData (64 KB)
+ *   usuarios.lista.* ChatRouter.getUserListString com 1.000 e 10.000 usuários conectados
+ *   rota.*           ChatRouter.routeMessage privada e de grupo (100 membros), com conexões em memória
+ *   status.*         conteúdo do STATUS_UPDATE: notifyMessageStatus monta, ClientGUI.handleMessage lê
+ *   id.*             UUID.randomUUID() x o id do servidor (UUID com ThreadLocalRandom)
+ *
+ * Cada operação roda num processo filho próprio (como o fork do JMH) com heap fixo, para os
+ * números não dependerem da ordem. Com um arquivo de baseline que já existe, compara ns/op com
+ * ele e termina com código 1 se alguma operação ficou mais lenta além do erro das duas medidas
+ * e de 5%; se o arquivo não existe, grava os resultados nele.
+ *
+ * Uso: java -cp bin bench.HotPathBenchmark [msPorIteracao] [arquivoBaseline] [prefixo]
+ *   prefixo: só as operações cujo nome começa com ele (por exemplo "rota.")
+ */
+public class HotPathBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 10;
+    private static final double REGRESSION_THRESHOLD = 0.05;
+    private static final String CHILD_FLAG = "--uma";
+    private static final String RESULT_PREFIX = "RESULTADO\t";
+
+    private static final ServerLog NO_OP_LOG = new ServerLog() {
+        @Override public void log(String level, String category, String message) {}
+        @Override public void logError(String category, String message, Throwable e) {}
+    };
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && args[0].equals(CHILD_FLAG)) {
+            runChild(args[1], Long.parseLong(args[2]));
+            return;
+        }
+        long iterationMillis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        Path baseline = args.length > 1 ? Paths.get(args[1]) : null;
+        String prefix = args.length > 2 ? args[2] : "";
+
+        List<Microbench.Result> results = new ArrayList<>();
+        System.out.printf("%d iterações de aquecimento + %d de %d ms por operação, um processo por operação%n%n",
+                WARMUP_ITERATIONS, ITERATIONS, iterationMillis);
+        System.out.printf("%-36s %14s %12s %12s%n", "operação", "ns/op", "± (99,9%)", "B/op");
+        for (String name : operations().keySet()) {
+            if (!name.startsWith(prefix)) continue;
+            Microbench.Result result = fork(name, iterationMillis);
+            results.add(result);
+            System.out.printf(Locale.ROOT, "%-36s %14.1f %12.1f %12.0f%n", name, result.nanosPerOp(), result.error(), result.bytesPerOp());
+        }
+
+        if (baseline == null) return;
+        if (!Files.exists(baseline)) {
+            List<String> lines = new ArrayList<>();
+            for (Microbench.Result result : results) lines.add(result.format());
+            Files.write(baseline, lines, StandardCharsets.UTF_8);
+            System.out.println("\nBaseline gravado em " + baseline);
+            return;
+        }
+        if (compare(results, baseline)) System.exit(1);
+    }
+
+    /**
+     * Operações por nome, em ordem de execução. Cada Callable monta o estado da operação (fora
+     * da medição) e devolve o que será medido.
+     */
+    private static Map<String, Callable<Microbench.Operation>> operations() {
+        Map<String, Callable<Microbench.Operation>> operations = new LinkedHashMap<>();
+        for (int flags : new int[] {0, WireProtocol.FLAG_BINARY_CODEC}) {
+            String codec = flags == 0 ? "codec.java." : "codec.binario.";
+            for (boolean withFile : new boolean[] {false, true}) {
+                String kind = withFile ? "arquivo64k" : "texto";
+                operations.put(codec + "codifica." + kind, () -> {
+                    Message msg = sample(withFile);
+                    return () -> WireProtocol.encodeMessage(msg, flags);
+                });
+                operations.put(codec + "decodifica." + kind, () -> {
+                    byte[] payload = WireProtocol.encodeMessage(sample(withFile), flags);
+                    return () -> WireProtocol.decodeMessage(payload, 0, payload.length, flags);
+                });
+            }
+        }
+        for (int users : new int[] {1_000, 10_000}) {
+            operations.put("usuarios.lista." + (users / 1000) + "k", () -> {
+                ChatRouter router = routerWithUsers(users);
+                return () -> router.getUserListString("usuario0");
+            });
+        }
+        operations.put("rota.privada", () -> {
+            ChatRouter router = routerWithUsers(1_000);
+            long[] sequence = {0};
+            return () -> {
+                router.routeMessage(new Message("p" + sequence[0]++, "usuario0", "usuario1", "Oi, tudo bem?", MessageType.PRIVATE), "usuario0");
+                return sequence;
+            };
+        });
+        operations.put("rota.grupo.100", () -> {
+            ChatRouter router = routerWithUsers(1_000);
+            List<String> members = new ArrayList<>();
+            for (int i = 0; i < 100; i++) members.add("usuario" + i);
+            String group = ChatRouter.GROUP_ICON_PREFIX + "bench";
+            router.createGroup(group, members, "usuario0");
+            long[] sequence = {0};
+            return () -> {
+                router.routeMessage(new Message("g" + sequence[0]++, "usuario0", group, "Oi, pessoal!", MessageType.GROUP), "usuario0");
+                return sequence;
+            };
+        });
+        operations.put("status.monta", () -> {
+            ChatRouter router = routerWithUsers(2);
+            Date now = new Date();
+            String messageId = UUID.randomUUID().toString();
+            return () -> {
+                router.notifyMessageStatus("usuario0", messageId, MessageStatus.DELIVERED, "usuario1", now);
+                return now;
+            };
+        });
+        operations.put("status.le", () -> {
+            String content = UUID.randomUUID() + ":" + MessageStatus.DELIVERED.name() + ":usuario1:" + System.currentTimeMillis();
+            return () -> parseStatusUpdate(content);
+        });
+        operations.put("id.uuidAleatorio", () -> () -> UUID.randomUUID().toString());
+        operations.put("id.servidor", () -> () -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current(); // Como ChatRouter.newServerMessageId
+            return new UUID(random.nextLong(), random.nextLong()).toString();
+        });
+        return operations;
+    }
+
+    private static Message sample(boolean withFile) {
+        Message msg = new Message("alice", "bob", "Oi Bob, tudo bem? Vamos almoçar às 12h?", MessageType.PRIVATE);
+        if (withFile) {
+            msg.setFileName("foto.jpg");
+            msg.setFileData(new byte[64 * 1024]);
+        }
+        return msg;
+    }
+
+    private static ChatRouter routerWithUsers(int users) {
+        ChatRouter router = new ChatRouter(NO_OP_LOG);
+        for (int i = 0; i < users; i++) router.addClient("usuario" + i, new DiscardingConnection("usuario" + i));
+        return router;
+    }
+
+    /** O que ClientGUI.handleMessage faz com o conteúdo de um STATUS_UPDATE antes de atualizar a tela. */
+    private static Object parseStatusUpdate(String content) {
+        String[] parts = content.split(":", 4);
+        MessageStatus status = MessageStatus.valueOf(parts[1]);
+        Date time = parts.length > 3 ? new Date(Long.parseLong(parts[3])) : new Date();
+        return parts[0].length() + status.ordinal() + time.getTime();
+    }
+
+    private static void runChild(String name, long iterationMillis) throws Exception {
+        Microbench.Operation operation = operations().get(name).call();
+        Microbench.Result result = Microbench.measure(name, operation, WARMUP_ITERATIONS, ITERATIONS, iterationMillis);
+        System.out.println(RESULT_PREFIX + result.format());
+    }
+
+    private static Microbench.Result fork(String name, long iterationMillis) throws Exception {
+        Process process = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xms1g", "-Xmx1g", // Heap fixo: o GC não muda de comportamento entre operações
+                "-cp", System.getProperty("java.class.path"),
+                HotPathBenchmark.class.getName(), CHILD_FLAG, name, Long.toString(iterationMillis))
+                .redirectErrorStream(true)
+                .start();
+        Microbench.Result result = null;
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) result = Microbench.Result.parse(line.substring(RESULT_PREFIX.length()));
+                else output.append(line).append('\n');
+            }
+        }
+        if (process.waitFor() != 0 || result == null) {
+            throw new IllegalStateException("A medição de " + name + " falhou:\n" + output);
+        }
+        return result;
+    }
+
+    /** Imprime a diferença para o baseline; retorna true se houve regressão. */
+    private static boolean compare(List<Microbench.Result> results, Path baseline) throws Exception {
+        Map<String, Microbench.Result> previous = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(baseline, StandardCharsets.UTF_8)) {
+            if (!line.isBlank()) {
+                Microbench.Result result = Microbench.Result.parse(line);
+                previous.put(result.name(), result);
+            }
+        }
+        System.out.printf("%nComparado com %s:%n", baseline);
+        System.out.printf("%-36s %14s %14s %9s%n", "operação", "baseline ns/op", "agora ns/op", "diferença");
+        boolean regression = false;
+        for (Microbench.Result now : results) {
+            Microbench.Result before = previous.get(now.name());
+            if (before == null) {
+                System.out.printf("%-36s %14s %14.1f%n", now.name(), "-", now.nanosPerOp());
+                continue;
+            }
+            double change = (now.nanosPerOp() - before.nanosPerOp()) / before.nanosPerOp();
+            double noise = now.error() + before.error(); // Os intervalos de 99,9% se sobrepõem: não dá para afirmar
+            String verdict = "";
+            if (Math.abs(now.nanosPerOp() - before.nanosPerOp()) > noise && Math.abs(change) > REGRESSION_THRESHOLD) {
+                verdict = change > 0 ? "  REGRESSÃO" : "  melhora";
+                regression |= change > 0;
+            }
+            System.out.printf(Locale.ROOT, "%-36s %14.1f %14.1f %+8.1f%%%s%n", now.name(), before.nanosPerOp(), now.nanosPerOp(), change * 100, verdict);
+        }
+        return regression;
+    }
+
+    /** Conexão em memória que só guarda a última mensagem/quadro recebido. */
+    private static final class DiscardingConnection implements ClientConnection {
+        private static final SocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 0);
+        private final String username;
+        private volatile Object last;
+
+        DiscardingConnection(String username) {
+            this.username = username;
+        }
+
+        @Override public String getUsername() { return username; }
+        @Override public SocketAddress getRemoteSocketAddress() { return ADDRESS; }
+        @Override public boolean isOpen() { return true; }
+        @Override public void sendMessage(Message msg) { last = msg; }
+        @Override public void sendFrame(OutboundFrame frame) { last = frame; }
+        @Override public void sendAttachment(Message msg, SpooledAttachment attachment) { last = msg; }
+        @Override public void closeClientSocket() {}
+        @Override public int getProtocolFlags() { return WireProtocol.FLAG_BINARY_CODEC; }
+        @Override public int getOutboundDepth() { return 0; }
+        @Override public long getOutboundBytes() { return 0; }
+        @Override public void whenOutboundBelow(long bytes, Runnable callback) { callback.run(); }
+        @Override public long getOldestOutboundAgeMillis() { return 0; }
+        @Override public long getReceivedMessages() { return 0; }
+        @Override public long getSentBytes() { return 0; }
+    }
+}
@@ -0,0 +1,492 @@
+package bench;
+
+import common.FileTransfer;
+import common.FrameCompressor;
+import common.Message;
+import common.MessageStatus;
+import common.MessageType;
+import common.WireProtocol;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import server.ChatRouter;
+import server.Histogram;
+
+/**
+ * Gerador de carga e teste de longa duração (soak) contra um server.Server já rodando, sem
+ * Swing: cada usuário simulado é um socket com o mesmo handshake do client.Client (MAGIC + flags,
+ * quadro com o username, depois quadros de Message) e uma thread de leitura.
+ *
+ * Depois de conectar todos os usuários, cria grupos de GROUP_SIZE membros e envia mensagens a uma
+ * taxa fixa, sorteando o tipo pela mistura:
+ *   PRIVATE       para outro usuário qualquer
+ *   GROUP         para um dos grupos do remetente
+ *   FILE          FILE_BYTES em partes (FILE_OFFER/FILE_CHUNK/FILE_COMPLETE) para outro usuário
+ *   MESSAGE_READ  confirma a última mensagem recebida pelo usuário sorteado
+ *
+ * A taxa é de malha aberta: cada envio tem um horário marcado e a latência conta a partir dele,
+ * não de quando o envio de fato saiu. Um servidor lento não reduz a carga nem esconde a fila
+ * (omissão coordenada). Medidas, todas em microssegundos:
+ *   entrega   horário do envio -> mensagem lida pelo destinatário (cada membro de grupo é uma
+ *             amostra; arquivo até o FILE_COMPLETE)
+ *   status    horário do envio -> STATUS_UPDATE DELIVERED de volta ao remetente
+ *   leitura   horário do MESSAGE_READ -> STATUS_UPDATE READ no remetente original
+ * Também conta erros (conexão, E/S, status FAILED, desconexões) e lê o heap do servidor do
+ * endpoint de métricas (-Dchat.server.metricas.porta no servidor, -Dcarga.metricas aqui).
+ *
+ * Como cada usuário tem uma thread de leitura, milhares de usuários pedem um limite de threads
+ * do sistema compatível (ulimit -u). O gerador usa as flags do client.Client, menos
+ * FLAG_FILE_STORE, para que os arquivos cheguem ao destinatário em vez de virarem FILE_REF.
+ *
+ * Uso: java -cp bin bench.LoadGenerator [usuarios] [segundos] [msgs/s] [mistura] [host:porta[,host:porta...]]
+ *   mistura: pesos por tipo, padrão PRIVATE=70,GROUP=20,FILE=1,MESSAGE_READ=9
+ *   Com vários endereços (nós de um cluster), os usuários são distribuídos entre eles em rodízio,
+ *   então cada grupo e boa parte das conversas privadas cruzam as ligações entre os nós.
+ */
+public class LoadGenerator {
+
+    private enum Kind { PRIVATE, GROUP, FILE, MESSAGE_READ }
+
+    private static final int GROUP_SIZE = 20;
+    private static final int FILE_BYTES = 4 * FileTransfer.CHUNK_SIZE;
+    private static final int REPORT_SECONDS = 5;
+    private static final int DRAIN_SECONDS = 5;
+    private static final int READER_STACK_BYTES = 256 * 1024;
+    private static final String MARK = "carga:"; // Prefixo do conteúdo: carga:<horário do envio em ns>
+    private static final int FLAGS = WireProtocol.SUPPORTED_FLAGS & ~WireProtocol.FLAG_FILE_STORE;
+
+    private final List<SimulatedUser> users = new ArrayList<>();
+    private final FrameCompressor compressor = new FrameCompressor();
+    private final String prefix = "c" + Long.toString(System.currentTimeMillis() % 1_000_000_000L, 36) + "-"; // Nomes novos a cada execução
+    private volatile boolean running = true;
+
+    // Envios aguardando resposta: id -> horário marcado do envio (System.nanoTime)
+    private final Map<String, Long> awaitingDelivered = new ConcurrentHashMap<>();
+    private final Map<String, Long> awaitingRead = new ConcurrentHashMap<>();
+    private final Map<String, Long> awaitingFile = new ConcurrentHashMap<>();
+    private final Map<String, Integer> groupSizes = new ConcurrentHashMap<>();
+
+    private final Histogram deliveryMicros = new Histogram();
+    private final Histogram statusMicros = new Histogram();
+    private final Histogram readMicros = new Histogram();
+    private final Map<Kind, LongAdder> sent = new EnumMap<>(Kind.class);
+    private final LongAdder expectedDeliveries = new LongAdder();
+    private final LongAdder deliveries = new LongAdder();
+    private final LongAdder connectErrors = new LongAdder();
+    private final LongAdder ioErrors = new LongAdder();
+    private final LongAdder failedStatus = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private CountDownLatch groupsCreated = new CountDownLatch(0);
+
+    private final byte[] fileChunk = new byte[FileTransfer.CHUNK_SIZE];
+    private final String fileSha256;
+
+    private LoadGenerator() {
+        for (Kind kind : Kind.values()) sent.put(kind, new LongAdder());
+        ThreadLocalRandom.current().nextBytes(fileChunk); // Aleatório: o FrameCompressor não reduz
+        MessageDigest digest = FileTransfer.newDigest();
+        for (int offset = 0; offset < FILE_BYTES; offset += fileChunk.length) digest.update(fileChunk);
+        fileSha256 = FileTransfer.toHex(digest.digest());
+    }
+
+    public static void main(String[] args) throws Exception {
+        int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 2_000;
+        Map<Kind, Integer> mix = parseMix(args.length > 3 ? args[3] : "PRIVATE=70,GROUP=20,FILE=1,MESSAGE_READ=9");
+        String[] addresses = (args.length > 4 ? args[4] : "127.0.0.1:54321").split(",");
+        String metricsUrl = System.getProperty("carga.metricas", "http://127.0.0.1:9464/metrics");
+
+        LoadGenerator generator = new LoadGenerator();
+        System.out.printf("%d usuários, %d s, %d msgs/s, mistura %s, servidor %s%n", userCount, seconds, rate, mix, String.join(", ", addresses));
+        generator.connect(addresses, userCount);
+        generator.createGroups();
+        generator.run(seconds, rate, mix, metricsUrl);
+    }
+
+    private static Map<Kind, Integer> parseMix(String text) {
+        Map<Kind, Integer> mix = new EnumMap<>(Kind.class);
+        for (String part : text.split(",")) {
+            String[] pair = part.split("=");
+            mix.put(Kind.valueOf(pair[0].trim()), Integer.parseInt(pair[1].trim()));
+        }
+        return mix;
+    }
+
+    private void connect(String[] addresses, int count) throws InterruptedException {
+        long began = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            SimulatedUser user = new SimulatedUser(prefix + i);
+            String[] address = addresses[i % addresses.length].trim().split(":");
+            try {
+                user.connect(address[0], Integer.parseInt(address[1]));
+                users.add(user);
+            } catch (IOException e) {
+                connectErrors.increment();
+                if (connectErrors.sum() == 1) System.out.println("Erro ao conectar " + user.name + ": " + e.getMessage());
+            }
+            if ((i + 1) % 1_000 == 0) System.out.printf("  %d conectados%n", users.size());
+        }
+        System.out.printf("%d usuários conectados em %d ms (%d falhas)%n", users.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - began), connectErrors.sum());
+        if (users.size() < 2) throw new IllegalStateException("Menos de 2 usuários conectados; o servidor está rodando?");
+        Thread.sleep(1_000); // Deixa passar a rajada de USER_LIST/ROSTER_DELTA dos logins
+    }
+
+    /** Divide os usuários em grupos de GROUP_SIZE; o primeiro de cada grupo manda o GROUP_CREATE. */
+    private void createGroups() throws IOException, InterruptedException {
+        List<List<SimulatedUser>> groups = new ArrayList<>();
+        for (int first = 0; first + 1 < users.size(); first += GROUP_SIZE) {
+            groups.add(users.subList(first, Math.min(users.size(), first + GROUP_SIZE)));
+        }
+        int notifications = 0;
+        for (List<SimulatedUser> members : groups) notifications += members.size();
+        groupsCreated = new CountDownLatch(notifications);
+        for (int g = 0; g < groups.size(); g++) {
+            List<SimulatedUser> members = groups.get(g);
+            String name = ChatRouter.GROUP_ICON_PREFIX + prefix + "grupo" + g;
+            List<String> names = new ArrayList<>();
+            groupSizes.put(name, members.size());
+            for (SimulatedUser member : members) {
+                names.add(member.name);
+                member.groups.add(name);
+            }
+            members.get(0).send(new Message(members.get(0).name, name, name + ";" + String.join(",", names), MessageType.GROUP_CREATE));
+        }
+        if (!groupsCreated.await(30, TimeUnit.SECONDS)) {
+            System.out.printf("Aviso: %d avisos de GROUP_CREATE não chegaram em 30 s%n", groupsCreated.getCount());
+        }
+        System.out.printf("%d grupos de até %d membros criados%n%n", groups.size(), GROUP_SIZE);
+    }
+
+    private void run(int seconds, int rate, Map<Kind, Integer> mix, String metricsUrl) throws InterruptedException {
+        Kind[] table = weightedTable(mix);
+        int senders = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) * senders / Math.max(1, rate);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> threads = new ArrayList<>();
+        for (int s = 0; s < senders; s++) {
+            long offset = periodNanos * s / senders; // Espalha os horários das threads dentro do período
+            Thread thread = new Thread(() -> sendLoop(start + offset, end, periodNanos, table), "carga-envio-" + s);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        System.out.printf("%6s %8s %9s %9s %28s %18s %18s %7s %10s%n", "t (s)", "conexões", "envios/s", "entregas/s",
+                "entrega p50/p99/p999 (ms)", "status p50/p99", "leitura p50/p99", "erros", "heap serv.");
+        Histogram.Snapshot lastDelivery = deliveryMicros.snapshot();
+        Histogram.Snapshot lastStatus = statusMicros.snapshot();
+        Histogram.Snapshot lastRead = readMicros.snapshot();
+        long lastSent = totalSent();
+        long lastDelivered = deliveries.sum();
+        long nextReport = start;
+        while (System.nanoTime() < end + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS)) {
+            nextReport += TimeUnit.SECONDS.toNanos(REPORT_SECONDS);
+            LockSupport.parkNanos(nextReport - System.nanoTime());
+            if (System.nanoTime() >= end) running = false; // Depois disso só esvazia as filas
+            Histogram.Snapshot delivery = deliveryMicros.snapshot();
+            Histogram.Snapshot status = statusMicros.snapshot();
+            Histogram.Snapshot read = readMicros.snapshot();
+            long sentNow = totalSent();
+            long deliveredNow = deliveries.sum();
+            Histogram.Snapshot d = delivery.minus(lastDelivery);
+            System.out.printf(Locale.ROOT, "%6d %8d %9.0f %9.0f %28s %18s %18s %7d %10s%n",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), openConnections(),
+                    (sentNow - lastSent) / (double) REPORT_SECONDS, (deliveredNow - lastDelivered) / (double) REPORT_SECONDS,
+                    d.count() == 0 ? "-" : millis(d.percentile(0.5)) + "/" + millis(d.percentile(0.99)) + "/" + millis(d.percentile(0.999)),
+                    percentiles(status.minus(lastStatus)), percentiles(read.minus(lastRead)), errors(), serverHeap(metricsUrl));
+            lastDelivery = delivery;
+            lastStatus = status;
+            lastRead = read;
+            lastSent = sentNow;
+            lastDelivered = deliveredNow;
+        }
+        running = false;
+        for (Thread thread : threads) thread.join(1_000);
+        summary(seconds);
+        for (SimulatedUser user : users) user.close();
+    }
+
+    private void summary(int seconds) {
+        System.out.println();
+        System.out.printf("Enviadas: %d em %d s (%s)%n", totalSent(), seconds, sent);
+        long expected = expectedDeliveries.sum();
+        long delivered = deliveries.sum();
+        System.out.printf("Entregas: %d de %d esperadas (%d sem chegar, %.3f%%)%n", delivered, expected,
+                Math.max(0, expected - delivered), expected == 0 ? 0 : 100.0 * Math.max(0, expected - delivered) / expected);
+        line("entrega", deliveryMicros.snapshot());
+        line("status DELIVERED", statusMicros.snapshot());
+        line("status READ", readMicros.snapshot());
+        System.out.printf("Sem resposta: %d DELIVERED, %d READ, %d arquivos%n", awaitingDelivered.size(), awaitingRead.size(), awaitingFile.size());
+        System.out.printf("Erros: %d conexão, %d E/S, %d status FAILED, %d desconexões pelo servidor%n",
+                connectErrors.sum(), ioErrors.sum(), failedStatus.sum(), disconnects.sum());
+    }
+
+    private static void line(String name, Histogram.Snapshot snapshot) {
+        System.out.printf(Locale.ROOT, "  %-17s %9d amostras  p50 %s  p90 %s  p99 %s  p999 %s  máx %s ms%n", name, snapshot.count(),
+                millis(snapshot.percentile(0.5)), millis(snapshot.percentile(0.9)), millis(snapshot.percentile(0.99)),
+                millis(snapshot.percentile(0.999)), millis(snapshot.max()));
+    }
+
+    private static Kind[] weightedTable(Map<Kind, Integer> mix) {
+        List<Kind> table = new ArrayList<>();
+        for (Map.Entry<Kind, Integer> entry : mix.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) table.add(entry.getKey());
+        }
+        if (table.isEmpty()) throw new IllegalArgumentException("Mistura sem nenhum tipo com peso positivo");
+        return table.toArray(new Kind[0]);
+    }
+
+    private void sendLoop(long first, long end, long periodNanos, Kind[] table) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (long scheduled = first; running && scheduled < end; scheduled += periodNanos) {
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait); // Atrasado: envia já, com o horário marcado original
+            SimulatedUser user = users.get(random.nextInt(users.size()));
+            if (!user.open) continue;
+            try {
+                send(user, table[random.nextInt(table.length)], scheduled, random);
+            } catch (IOException e) {
+                user.fail(e);
+            }
+        }
+    }
+
+    private void send(SimulatedUser user, Kind kind, long scheduled, ThreadLocalRandom random) throws IOException {
+        if (kind == Kind.GROUP && user.groups.isEmpty()) kind = Kind.PRIVATE;
+        if (kind == Kind.MESSAGE_READ) {
+            Message lastRead = user.unread.getAndSet(null);
+            if (lastRead == null) return; // Nada recebido desde a última confirmação
+            awaitingRead.put(lastRead.getMessageId(), scheduled);
+            user.send(new Message(lastRead.getMessageId(), user.name, lastRead.getSender(), "", MessageType.MESSAGE_READ));
+            sent.get(kind).increment();
+            return;
+        }
+        String id = new UUID(random.nextLong(), random.nextLong()).toString();
+        switch (kind) {
+            case PRIVATE -> {
+                String receiver = otherUser(user, random);
+                awaitingDelivered.put(id, scheduled);
+                expectedDeliveries.increment();
+                user.send(new Message(id, user.name, receiver, MARK + scheduled, MessageType.PRIVATE));
+            }
+            case GROUP -> {
+                String group = user.groups.get(random.nextInt(user.groups.size()));
+                awaitingDelivered.put(id, scheduled);
+                expectedDeliveries.add(groupSizes.get(group) - 1); // Todos os membros continuam conectados
+                user.send(new Message(id, user.name, group, MARK + scheduled, MessageType.GROUP));
+            }
+            case FILE -> {
+                String receiver = otherUser(user, random);
+                String fileName = "carga.bin";
+                awaitingFile.put(id, scheduled);
+                expectedDeliveries.increment();
+                user.send(FileTransfer.offer(id, user.name, receiver, fileName, FILE_BYTES));
+                for (long offset = 0; offset < FILE_BYTES; offset += fileChunk.length) {
+                    user.send(FileTransfer.chunk(id, user.name, receiver, fileName, offset, fileChunk));
+                }
+                user.send(FileTransfer.complete(id, user.name, receiver, fileName, fileSha256));
+            }
+            default -> throw new IllegalStateException(kind.name());
+        }
+        sent.get(kind).increment();
+    }
+
+    private String otherUser(SimulatedUser user, ThreadLocalRandom random) {
+        SimulatedUser other;
+        do {
+            other = users.get(random.nextInt(users.size()));
+        } while (other == user);
+        return other.name;
+    }
+
+    /** Chamado pela thread de leitura de cada usuário. */
+    private void onMessage(SimulatedUser user, Message msg) {
+        long now = System.nanoTime();
+        switch (msg.getType()) {
+            case PRIVATE, GROUP -> {
+                String content = msg.getContent();
+                if (content == null || !content.startsWith(MARK)) return;
+                deliveryMicros.record((now - Long.parseLong(content.substring(MARK.length()))) / 1_000);
+                deliveries.increment();
+                user.unread.set(msg);
+            }
+            case FILE_COMPLETE -> {
+                Long scheduled = awaitingFile.remove(msg.getMessageId());
+                if (scheduled == null) return;
+                deliveryMicros.record((now - scheduled) / 1_000);
+                deliveries.increment();
+            }
+            case STATUS_UPDATE -> onStatus(msg.getContent(), now);
+            case GROUP_CREATE -> groupsCreated.countDown();
+            default -> { } // USER_LIST, ROSTER_DELTA, partes de arquivo, avisos de grupo
+        }
+    }
+
+    /** Conteúdo montado em ChatRouter.notifyMessageStatus: id:STATUS:relacionado:horário. */
+    private void onStatus(String content, long now) {
+        String[] parts = content.split(":", 4);
+        if (parts.length < 2) return;
+        MessageStatus status;
+        try {
+            status = MessageStatus.valueOf(parts[1]);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        switch (status) {
+            case DELIVERED -> {
+                Long scheduled = awaitingDelivered.remove(parts[0]);
+                if (scheduled != null) statusMicros.record((now - scheduled) / 1_000);
+            }
+            case READ -> {
+                Long scheduled = awaitingRead.remove(parts[0]);
+                if (scheduled != null) readMicros.record((now - scheduled) / 1_000);
+            }
+            case FAILED -> {
+                failedStatus.increment();
+                awaitingDelivered.remove(parts[0]);
+            }
+            default -> { } // SENT: destinatário offline, fica guardada no servidor
+        }
+    }
+
+    private long totalSent() {
+        long total = 0;
+        for (LongAdder adder : sent.values()) total += adder.sum();
+        return total;
+    }
+
+    private long errors() {
+        return connectErrors.sum() + ioErrors.sum() + failedStatus.sum() + disconnects.sum();
+    }
+
+    private int openConnections() {
+        int open = 0;
+        for (SimulatedUser user : users) if (user.open) open++;
+        return open;
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.ROOT, micros < 10_000 ? "%.2f" : "%.0f", micros / 1_000.0);
+    }
+
+    private static String percentiles(Histogram.Snapshot snapshot) {
+        return snapshot.count() == 0 ? "-" : millis(snapshot.percentile(0.5)) + "/" + millis(snapshot.percentile(0.99));
+    }
+
+    /** chat_jvm_heap_usado_bytes do endpoint de métricas do servidor, em MB; "-" se não respondeu. */
+    private static String serverHeap(String metricsUrl) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(metricsUrl).openConnection();
+            connection.setConnectTimeout(500);
+            connection.setReadTimeout(2_000);
+            try (InputStream in = connection.getInputStream()) {
+                for (String line : new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+                    if (line.startsWith("chat_jvm_heap_usado_bytes ")) {
+                        return Long.parseLong(line.substring(line.indexOf(' ') + 1).trim()) / (1024 * 1024) + " MB";
+                    }
+                }
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Servidor sem endpoint de métricas ou sobrecarregado
+        }
+        return "-";
+    }
+
+    /** Um usuário conectado: o socket, as flags aceitas e a thread que lê tudo o que chega. */
+    private final class SimulatedUser {
+        final String name;
+        final List<String> groups = new ArrayList<>();
+        final AtomicReference<Message> unread = new AtomicReference<>(); // Última mensagem ainda não confirmada
+        volatile boolean open = false;
+        private Socket socket;
+        private DataOutputStream out;
+        private int flags;
+
+        SimulatedUser(String name) {
+            this.name = name;
+        }
+
+        void connect(String host, int port) throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), 5_000);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            WireProtocol.writeHandshake(out, FLAGS);
+            flags = WireProtocol.readHandshake(in) & FLAGS;
+            WireProtocol.writeFrame(out, WireProtocol.encodeUsername(name));
+            out.flush();
+            open = true;
+            Thread reader = new Thread(null, () -> readLoop(in), "carga-leitura-" + name, READER_STACK_BYTES);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(Message msg) throws IOException {
+            byte[] payload = WireProtocol.encodeMessage(msg, flags, compressor);
+            synchronized (out) { // Threads de envio e a de leitura não intercalam quadros
+                WireProtocol.writeFrame(out, payload);
+                out.flush();
+            }
+        }
+
+        private void readLoop(DataInputStream in) {
+            try {
+                while (true) {
+                    byte[] payload = WireProtocol.readFrame(in);
+                    onMessage(this, WireProtocol.decodeMessage(payload, 0, payload.length, flags, compressor));
+                }
+            } catch (IOException e) {
+                if (open) {
+                    open = false;
+                    disconnects.increment();
+                    if (running) System.out.println("Servidor desconectou " + name + ": " + e.getMessage());
+                }
+            }
+        }
+
+        void fail(IOException e) {
+            if (!open) return;
+            open = false;
+            ioErrors.increment();
+            System.out.println("Erro de E/S em " + name + ": " + e.getMessage());
+            close();
+        }
+
+        void close() {
+            open = false;
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException e) {
+                // Já fechado
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Mede uma operação como o JMH no modo tempo médio: iterações de aquecimento descartadas,
+ * iterações de medição de duração fixa, ns/op com intervalo de confiança de 99,9% entre as
+ * iterações e bytes alocados por operação (pela thread que mede).
+ *
+ * O resultado de cada chamada vai para um campo volatile, para o JIT não eliminar o trabalho.
+ * Quem chama deve rodar cada operação num processo próprio (ver HotPathBenchmark): medir várias
+ * operações na mesma JVM deixa os pontos de chamada polimórficos e a primeira medida favorecida.
+ */
+public final class Microbench {
+
+    /** Operação medida; o valor retornado é consumido para não virar código morto. */
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    /** ns/op (média entre iterações), meia largura do intervalo de 99,9% e bytes alocados por op. */
+    public record Result(String name, double nanosPerOp, double error, double bytesPerOp, long operations) {
+
+        /** Uma linha separada por tabulação; {@link #parse} lê de volta (arquivo de baseline e saída do processo filho). */
+        public String format() {
+            return String.format(Locale.ROOT, "%s\t%.3f\t%.3f\t%.1f\t%d", name, nanosPerOp, error, bytesPerOp, operations);
+        }
+
+        public static Result parse(String line) {
+            String[] parts = line.split("\t");
+            return new Result(parts[0], Double.parseDouble(parts[1]), Double.parseDouble(parts[2]),
+                    Double.parseDouble(parts[3]), Long.parseLong(parts[4]));
+        }
+    }
+
+    // t de Student bicaudal a 99,9% para 1..20 graus de liberdade; acima disso usa 3,29 (normal)
+    private static final double[] STUDENT_T_999 = {636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59,
+            4.44, 4.32, 4.22, 4.14, 4.07, 4.01, 3.97, 3.92, 3.88, 3.85};
+
+    private static volatile Object sink;
+
+    private Microbench() {
+    }
+
+    public static Result measure(String name, Operation operation, int warmupIterations, int iterations, long iterationMillis)
+            throws Exception {
+        for (int i = 0; i < warmupIterations; i++) iteration(operation, iterationMillis);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        double[] nanosPerOp = new double[iterations];
+        long totalOperations = 0;
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            long[] result = iteration(operation, iterationMillis);
+            nanosPerOp[i] = result[1] / (double) result[0];
+            totalOperations += result[0];
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        double mean = 0;
+        for (double value : nanosPerOp) mean += value;
+        mean /= iterations;
+        double variance = 0;
+        for (double value : nanosPerOp) variance += (value - mean) * (value - mean);
+        double error = iterations < 2 ? Double.NaN
+                : studentT(iterations - 1) * Math.sqrt(variance / (iterations - 1)) / Math.sqrt(iterations);
+        return new Result(name, mean, error, allocated / (double) totalOperations, totalOperations);
+    }
+
+    /** Roda a operação até passar {@code millis}; retorna {operações, nanossegundos}. */
+    private static long[] iteration(Operation operation, long millis) throws Exception {
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        long operations = 0;
+        long began = System.nanoTime();
+        long now;
+        do {
+            for (int i = 0; i < 16; i++) sink = operation.run(); // Consulta o relógio a cada 16 chamadas
+            operations += 16;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return new long[] {operations, now - began};
+    }
+
+    private static double studentT(int degreesOfFreedom) {
+        return degreesOfFreedom <= STUDENT_T_999.length ? STUDENT_T_999[degreesOfFreedom - 1] : 3.29;
+    }
+}
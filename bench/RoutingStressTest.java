@@ -0,0 +1,133 @@
+package bench;
+
+import common.Message;
+import common.MessageType;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import server.ChatRouter;
+import server.ClientConnection;
+import server.OutboundFrame;
+import server.ServerLog;
+import server.SpooledAttachment;
+
+/**
+ * Teste de estresse do ChatRouter: N usuários com conexões em memória e T threads
+ * roteando mensagens privadas entre pares aleatórios.
+ *
+ * Cada rodada é executada duas vezes: com um lock global em volta de routeMessage
+ * (como era o Server todo synchronized) e com o roteador concorrente. Com o lock global
+ * a vazão fica parada em ~1 thread; sem ele deve crescer com o número de núcleos.
+ *
+ * Uso: java -cp bin bench.RoutingStressTest [usuarios] [segundosPorRodada]
+ */
+public class RoutingStressTest {
+
+    private static final ServerLog NO_OP_LOG = new ServerLog() {
+        @Override public void log(String level, String category, String message) {}
+        @Override public void logError(String category, String message, Throwable e) {}
+    };
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int t = 1; t < cores; t *= 2) threadCounts.add(t);
+        threadCounts.add(cores);
+
+        System.out.printf("Usuários: %d | Núcleos: %d | %ds por rodada%n%n", users, cores, seconds);
+        System.out.printf("%-8s %20s %20s %10s%n", "threads", "lock global (msg/s)", "concorrente (msg/s)", "ganho");
+
+        double concurrentBaseline = 0;
+        for (int threads : threadCounts) {
+            double globalLock = run(users, threads, seconds, true);
+            double concurrent = run(users, threads, seconds, false);
+            if (threads == 1) concurrentBaseline = concurrent;
+            System.out.printf("%-8d %20.0f %20.0f %9.2fx%n", threads, globalLock, concurrent, concurrent / concurrentBaseline);
+        }
+    }
+
+    private static double run(int users, int threads, int seconds, boolean globalLock) throws InterruptedException {
+        ChatRouter router = new ChatRouter(NO_OP_LOG);
+        String[] names = new String[users];
+        for (int i = 0; i < users; i++) {
+            names[i] = "user" + i;
+            router.addClient(names[i], new InMemoryConnection(names[i]));
+        }
+
+        ReentrantLock lock = new ReentrantLock();
+        LongAdder routed = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline) {
+                        for (int i = 0; i < 256; i++) {
+                            String sender = names[random.nextInt(users)];
+                            String receiver = names[random.nextInt(users)];
+                            Message msg = new Message("m" + i, sender, receiver, "ola", MessageType.PRIVATE);
+                            if (globalLock) {
+                                lock.lock();
+                                try {
+                                    router.routeMessage(msg, sender);
+                                } finally {
+                                    lock.unlock();
+                                }
+                            } else {
+                                router.routeMessage(msg, sender);
+                            }
+                        }
+                        routed.add(256);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            worker.start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        done.await();
+        double elapsedSeconds = (System.nanoTime() - began) / 1e9;
+        return routed.sum() / elapsedSeconds;
+    }
+
+    /** Conexão que só descarta as mensagens: mede o custo do roteamento, não do I/O. */
+    private static final class InMemoryConnection implements ClientConnection {
+        private static final SocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 0);
+        private final String username;
+
+        InMemoryConnection(String username) {
+            this.username = username;
+        }
+
+        @Override public String getUsername() { return username; }
+        @Override public SocketAddress getRemoteSocketAddress() { return ADDRESS; }
+        @Override public boolean isOpen() { return true; }
+        @Override public void sendMessage(Message msg) {}
+        @Override public void sendFrame(OutboundFrame frame) {}
+        @Override public void sendAttachment(Message msg, SpooledAttachment attachment) {}
+        @Override public void closeClientSocket() {}
+        @Override public int getProtocolFlags() { return 0; }
+        @Override public int getOutboundDepth() { return 0; }
+        @Override public long getOutboundBytes() { return 0; }
+        @Override public void whenOutboundBelow(long bytes, Runnable callback) { callback.run(); }
+        @Override public long getOldestOutboundAgeMillis() { return 0; }
+        @Override public long getReceivedMessages() { return 0; }
+        @Override public long getSentBytes() { return 0; }
+    }
+}
@@ -0,0 +1,106 @@
+package bench;
+
+import common.WireProtocol;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Tempo até a primeira conexão aceita pelo servidor headless (-Dchat.server.janela=false).
+ *
+ * Cada rodada sobe um processo server.Server novo, com diretórios de dados vazios num temporário,
+ * e tenta conectar na porta 54321 até o handshake ser respondido. Depois manda SIGTERM
+ * (Process.destroy) e mede o desligamento pelo hook, conferindo no stdout do servidor que ele
+ * chegou ao SISTEMA_SHUTDOWN_COMP. As linhas SISTEMA_INIT e PRIMEIRA_CONEXAO do servidor mostram
+ * o mesmo tempo medido de dentro da JVM.
+ *
+ * Uso: java -cp bin bench.ServerStartupBenchmark [rodadas] [modo]
+ */
+public class ServerStartupBenchmark {
+
+    private static final int PORT = 54321;
+    private static final long TIMEOUT_MILLIS = 30_000;
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        String mode = args.length > 1 ? args[1] : "nio";
+        long[] firstConnection = new long[runs];
+        long[] shutdown = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            Path directory = Files.createTempDirectory("chat-partida-bench");
+            try {
+                Path output = directory.resolve("stdout.txt");
+                Process process = new ProcessBuilder(
+                        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                        "-cp", System.getProperty("java.class.path"),
+                        "-Djava.io.tmpdir=" + directory, // Spool e logs
+                        "-Dchat.server.dados.dir=" + directory.resolve("dados"), // Stores duráveis: cada rodada parte vazia
+                        "-Dchat.server.janela=false",
+                        "-Dchat.server.modo=" + mode,
+                        "server.Server")
+                        .redirectErrorStream(true)
+                        .redirectOutput(output.toFile())
+                        .start();
+                long began = System.nanoTime();
+                firstConnection[run] = awaitHandshake(process, began);
+
+                long stopping = System.nanoTime();
+                process.destroy(); // SIGTERM: o hook de shutdown desliga o servidor
+                if (!process.waitFor(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    process.destroyForcibly();
+                    throw new IllegalStateException("O servidor não terminou após SIGTERM");
+                }
+                shutdown[run] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopping);
+
+                String log = new String(Files.readAllBytes(output), StandardCharsets.UTF_8);
+                System.out.printf("rodada %d: primeira conexão em %d ms, desligamento em %d ms (%s)%n",
+                        run + 1, firstConnection[run], shutdown[run],
+                        log.contains("SISTEMA_SHUTDOWN_COMP") ? "limpo" : "SEM SISTEMA_SHUTDOWN_COMP");
+                log.lines().filter(line -> line.contains("SISTEMA_INIT") || line.contains("PRIMEIRA_CONEXAO"))
+                        .forEach(line -> System.out.println("    " + line));
+            } finally {
+                try (Stream<Path> files = Files.walk(directory)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+                }
+            }
+        }
+        System.out.printf("modo %s, %d rodadas: primeira conexão mediana %d ms, desligamento mediana %d ms%n",
+                mode, runs, median(firstConnection), median(shutdown));
+    }
+
+    /** Tenta o handshake até o servidor responder; retorna os ms desde o início do processo. */
+    private static long awaitHandshake(Process process, long began) throws InterruptedException {
+        while (true) {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - began);
+            if (!process.isAlive()) throw new IllegalStateException("O servidor terminou antes de aceitar conexões");
+            if (elapsed > TIMEOUT_MILLIS) throw new IllegalStateException("O servidor não aceitou conexões em " + TIMEOUT_MILLIS + " ms");
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", PORT), 100);
+                socket.setSoTimeout(1000);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                WireProtocol.writeHandshake(out, 0);
+                out.flush();
+                WireProtocol.readHandshake(new DataInputStream(socket.getInputStream()));
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - began);
+            } catch (IOException e) {
+                Thread.sleep(2); // Ainda não está escutando
+            }
+        }
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
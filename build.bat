@@ -27,6 +27,13 @@ echo.
 echo -------------------------------------------------------------------
 echo PARA EXECUTAR O SERVIDOR (a partir da raiz do projeto):
 echo java -cp "bin;lib/*" server.Server
+echo   (modo NIO: java -Dchat.server.modo=nio -cp "bin;lib/*" server.Server)
+echo   (threads virtuais, Java 21+: java -Dchat.server.modo=virtual -cp "bin;lib/*" server.Server)
+echo   (sem janela, logs em arquivo e no console: java -Dchat.server.janela=false -cp "bin;lib/*" server.Server)
+echo   (cluster, um processo por no, cada um com a sua porta; os dados de cada no ficam em dados\nome-do-no:
+echo    java -Dchat.server.cluster.no=a -Dchat.server.porta=54321 -Dchat.server.cluster.porta=7001 -Dchat.server.metricas.porta=9464
+echo         -Dchat.server.cluster.nos=a@127.0.0.1:7001,b@127.0.0.1:7002 -cp "bin;lib/*" server.Server
+echo    e o no b com porta 54331, cluster.porta 7002, metricas.porta 9465 e a mesma lista de nos)
 echo.
 echo PARA EXECUTAR O CLIENTE (a partir da raiz do projeto):
 echo java -cp "bin;lib/*" client.ClientGUI
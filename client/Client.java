@@ -1,19 +1,40 @@
 package client;
 
+import common.FileTransfer;
+import common.FrameCompressor;
+import common.History;
 import common.Message;
+import common.WireProtocol;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.SocketException; // Import necessário
+import java.nio.file.Path;
 import javax.swing.SwingUtilities;
 
 public class Client {
+    // -Dchat.cliente.protocolo=legado volta ao stream contínuo de ObjectOutputStream (servidores antigos)
+    private static final boolean USE_LEGACY_PROTOCOL = "legado".equalsIgnoreCase(System.getProperty("chat.cliente.protocolo"));
+    // -Dchat.cliente.codec=java mantém a serialização Java nos quadros em vez do codec binário
+    private static final boolean USE_JAVA_SERIALIZATION = "java".equalsIgnoreCase(System.getProperty("chat.cliente.codec"));
+    // -Dchat.cliente.compressao=false desliga a compressão dos quadros
+    private static final boolean USE_COMPRESSION = !"false".equalsIgnoreCase(System.getProperty("chat.cliente.compressao"));
+
     private final Socket socket;
-    private final ObjectOutputStream out;
-    private final ObjectInputStream in;
+    private ObjectOutputStream out;
+    private ObjectInputStream in;
+    private DataOutputStream framedOut;
+    private DataInputStream framedIn;
+    private int protocolFlags; // Flags aceitas pelo servidor no handshake
+    private final FrameCompressor compressor = new FrameCompressor();
     private final ClientGUI gui; // gui é final, sua referência não muda
+    private final FileTransfers fileTransfers;
     private Thread listenerThread; // Referência para a thread de escuta
 
     /**
@@ -27,17 +48,31 @@ public class Client {
      */
     public Client(String serverIP, int port, String usernameDoGui, ClientGUI gui) throws IOException {
         this.gui = gui; // Deve ser o primeiro para que showError possa ser usado se algo falhar abaixo
+        this.fileTransfers = new FileTransfers(this, gui);
         try {
             this.socket = new Socket(serverIP, port);
-            this.out = new ObjectOutputStream(socket.getOutputStream());
-            // É importante dar flush no ObjectOutputStream após criá-lo e antes de criar o ObjectInputStream
-            // para garantir que o cabeçalho do stream seja enviado, evitando deadlocks na inicialização.
-            this.out.flush(); 
-            this.in = new ObjectInputStream(socket.getInputStream());
-            
-            // Envia o username (recebido como parâmetro, que veio da GUI) para o servidor
-            this.out.writeObject(usernameDoGui);
-            this.out.flush(); // Garante o envio imediato do username
+            if (USE_LEGACY_PROTOCOL) {
+                this.out = new ObjectOutputStream(socket.getOutputStream());
+                // É importante dar flush no ObjectOutputStream após criá-lo e antes de criar o ObjectInputStream
+                // para garantir que o cabeçalho do stream seja enviado, evitando deadlocks na inicialização.
+                this.out.flush(); 
+                this.in = new ObjectInputStream(socket.getInputStream());
+                
+                // Envia o username (recebido como parâmetro, que veio da GUI) para o servidor
+                this.out.writeObject(usernameDoGui);
+                this.out.flush(); // Garante o envio imediato do username
+            } else {
+                // Protocolo enquadrado: handshake, depois o username num quadro próprio
+                this.framedOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                this.framedIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                int requestedFlags = WireProtocol.SUPPORTED_FLAGS;
+                if (USE_JAVA_SERIALIZATION) requestedFlags &= ~WireProtocol.FLAG_BINARY_CODEC;
+                if (!USE_COMPRESSION) requestedFlags &= ~WireProtocol.FLAG_COMPRESSION;
+                WireProtocol.writeHandshake(framedOut, requestedFlags);
+                this.protocolFlags = WireProtocol.readHandshake(framedIn) & requestedFlags;
+                WireProtocol.writeFrame(framedOut, WireProtocol.encodeUsername(usernameDoGui));
+                framedOut.flush();
+            }
         } catch (IOException e) {
             // Tenta fechar recursos se a conexão falhar parcialmente
             closeResourcesOnError();
@@ -70,12 +105,11 @@ public class Client {
      */
     public void sendMessage(Message msg) {
         try {
-            if (out != null && socket != null && socket.isConnected() && !socket.isOutputShutdown()) {
-                out.writeObject(msg);
-                out.flush();
+            if ((out != null || framedOut != null) && socket != null && socket.isConnected() && !socket.isOutputShutdown()) {
+                writeMessage(msg);
             } else {
                 String errorMessage = "Não é possível enviar mensagem: ";
-                if (out == null) errorMessage += "Stream de saída nulo. ";
+                if (out == null && framedOut == null) errorMessage += "Stream de saída nulo. ";
                 if (socket == null || !socket.isConnected()) errorMessage += "Socket não conectado. ";
                 if (socket != null && socket.isOutputShutdown()) errorMessage += "Saída do socket fechada.";
                 handleSendError(errorMessage);
@@ -85,6 +119,83 @@ public class Client {
         }
     }
     
+    /** Indica se o servidor aceitou a transferência de arquivos em partes no handshake. */
+    public boolean supportsChunkedFiles() {
+        return (protocolFlags & WireProtocol.FLAG_CHUNKED_FILES) != 0;
+    }
+
+    /** Indica se a lista de contatos chega como snapshot versionado + ROSTER_DELTA (ver common.Roster). */
+    public boolean supportsRosterDeltas() {
+        return (protocolFlags & WireProtocol.FLAG_ROSTER_DELTAS) != 0;
+    }
+
+    /** Indica se as confirmações de leitura vão acumuladas (READ_WATERMARK, ver common.ReadWatermark). */
+    public boolean supportsReadWatermarks() {
+        return (protocolFlags & WireProtocol.FLAG_READ_WATERMARKS) != 0;
+    }
+
+    /** Indica se o servidor guarda o histórico das conversas e o entrega em páginas (ver common.History). */
+    public boolean supportsHistory() {
+        return (protocolFlags & WireProtocol.FLAG_HISTORY) != 0;
+    }
+
+    /** Pede a página de histórico da conversa anterior a {@code beforeId} (null: as mensagens mais recentes). */
+    public void requestHistory(String username, String conversation, String beforeId) {
+        sendMessage(History.request(username, conversation, beforeId, History.PAGE_SIZE));
+    }
+
+    /** Indica se o servidor guarda arquivos por hash (envio só do que ele não tem, download sob demanda). */
+    public boolean supportsFileStore() {
+        return (protocolFlags & WireProtocol.FLAG_FILE_STORE) != 0;
+    }
+
+    /**
+     * Baixa do servidor um arquivo recebido por referência, salvando em {@code target}.
+     * A GUI é avisada com handleDownloadedFile ao terminar.
+     */
+    public void fetchFile(String sha256, String fileName, Path target) {
+        fileTransfers.fetch(sha256, fileName, target);
+    }
+
+    /**
+     * Envia um arquivo em partes, em segundo plano (requer supportsChunkedFiles()).
+     * @param transferId Id da mensagem de arquivo já exibida na GUI.
+     */
+    public void sendFile(Path file, String sender, String receiver, String transferId) {
+        fileTransfers.send(file, sender, receiver, transferId);
+    }
+
+    /** Como sendMessage, mas repassa o erro para quem chamou (usado pelo envio de arquivos). */
+    void sendOrThrow(Message msg) throws IOException {
+        if (socket == null || socket.isClosed() || (out == null && framedOut == null)) {
+            throw new IOException("Conexão com o servidor fechada.");
+        }
+        writeMessage(msg);
+    }
+
+    private void writeMessage(Message msg) throws IOException {
+        if (framedOut != null) {
+            byte[] payload = WireProtocol.encodeMessage(msg, protocolFlags, compressor);
+            synchronized (framedOut) {
+                WireProtocol.writeFrame(framedOut, payload);
+                framedOut.flush();
+            }
+        } else {
+            synchronized (out) {
+                out.writeObject(msg);
+                out.flush();
+            }
+        }
+    }
+
+    private Message readMessage() throws IOException, ClassNotFoundException {
+        if (framedIn != null) {
+            byte[] payload = WireProtocol.readFrame(framedIn);
+            return WireProtocol.decodeMessage(payload, 0, payload.length, protocolFlags, compressor);
+        }
+        return (Message) in.readObject();
+    }
+    
     private void handleSendError(String errorMessage) {
         String clientUsername = (gui != null && gui.getName() != null) ? gui.getName() : "desconhecido";
         System.err.println(errorMessage + " (Cliente: " + clientUsername + ")");
@@ -104,9 +215,11 @@ public class Client {
             Message msg;
             // Continua enquanto o socket estiver conectado, não fechado, e a thread não for interrompida
             while (socket.isConnected() && !socket.isClosed() && !Thread.currentThread().isInterrupted()) {
-                msg = (Message) in.readObject(); // Ponto de bloqueio
+                msg = readMessage(); // Ponto de bloqueio
                 if (msg != null) {
-                    if (gui != null) {
+                    if (FileTransfer.isFileTransferType(msg.getType())) {
+                        fileTransfers.onFrame(msg); // Grava no disco aqui, fora da EDT
+                    } else if (gui != null) {
                         final Message messageToHandle = msg; // Variável final para uso na lambda
                         SwingUtilities.invokeLater(() -> gui.handleMessage(messageToHandle));
                     }
@@ -169,6 +282,7 @@ public class Client {
         
         // Em seguida, fecha os recursos de rede
         closeResources(); 
+        fileTransfers.close();
         
         // Espera pela finalização da thread de escuta
         if (listenerThread != null && listenerThread.isAlive()) {
@@ -193,13 +307,15 @@ public class Client {
         // A ordem de fechamento pode ser importante: output, input, depois socket.
         try {
             if (out != null) out.close();
+            if (framedOut != null) framedOut.close();
         } catch (IOException e) {
-            System.err.println("Erro ao fechar ObjectOutputStream para " + clientUsername + ": " + e.getMessage());
+            System.err.println("Erro ao fechar stream de saída para " + clientUsername + ": " + e.getMessage());
         }
         try {
             if (in != null) in.close();
+            if (framedIn != null) framedIn.close();
         } catch (IOException e) {
-            System.err.println("Erro ao fechar ObjectInputStream para " + clientUsername + ": " + e.getMessage());
+            System.err.println("Erro ao fechar stream de entrada para " + clientUsername + ": " + e.getMessage());
         }
         try {
             if (socket != null && !socket.isClosed()) socket.close();
@@ -214,7 +330,9 @@ public class Client {
     private void closeResourcesOnError() {
         // Ordem reversa da abertura, ou a que fizer mais sentido para evitar bloqueios
         try { if (out != null) out.close(); } catch (IOException e) { /* ignora */ }
+        try { if (framedOut != null) framedOut.close(); } catch (IOException e) { /* ignora */ }
         try { if (in != null) in.close(); } catch (IOException e) { /* ignora */ }
+        try { if (framedIn != null) framedIn.close(); } catch (IOException e) { /* ignora */ }
         try { if (socket != null && !socket.isClosed()) socket.close(); } catch (IOException e) { /* ignora */ }
     }
 }
\ No newline at end of file
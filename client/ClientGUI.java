@@ -1,13 +1,19 @@
 package client;
 
+import common.History;
 import common.Message;
 import common.MessageStatus;
 import common.MessageType;
+import common.ReadWatermark;
+import common.Roster;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
 import java.io.IOException;
+import java.io.StreamCorruptedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
@@ -25,6 +31,15 @@ public class ClientGUI extends JFrame {
     private final Map<String, List<Message>> historicoMensagens = new HashMap<>();
     private final Map<String, Boolean> notificacoes = new HashMap<>();
     private final Map<String, JPanel> messagePanels = new HashMap<>();
+    private final Map<String, Path> arquivosRecebidos = new HashMap<>(); // Key: messageId; arquivos recebidos em partes
+    private final Map<String, String> arquivosNoServidor = new HashMap<>(); // Key: messageId; valor: SHA-256 no servidor
+    private long versaoContatos = -1; // Versão da lista de contatos aplicada (ver common.Roster)
+    private final Set<String> historicoCarregado = new HashSet<>(); // Conversas que já receberam uma página do servidor
+    private final Set<String> historicoPedido = new HashSet<>(); // Conversas com HISTORY_REQUEST sem resposta
+    private final Map<String, String> cursorHistorico = new HashMap<>(); // Key: conversa; valor: cursor da última página recebida
+    private final Set<String> historicoEsgotado = new HashSet<>(); // Conversas sem mensagens mais antigas no servidor
+    private final Map<String, List<Message>> leiturasPendentes = new LinkedHashMap<>(); // Key: conversa + remetente; valor: lidas, em ordem
+    private final javax.swing.Timer timerLeituras = new javax.swing.Timer(300, e -> enviarLeiturasPendentes());
 
     // Cores e Constantes
     private final Color primaryColor = new Color(7, 94, 84);
@@ -62,6 +77,7 @@ public class ClientGUI extends JFrame {
     public ClientGUI() {
         this.authManager = new AuthManager();
         this.userModel = new DefaultListModel<>();
+        this.timerLeituras.setRepeats(false);
 
         setTitle("ChatApp");
         setSize(375, 700);
@@ -205,11 +221,25 @@ public class ClientGUI extends JFrame {
                 return;
             }
 
+            // "host:porta" escolhe outra porta (ex.: outro nó de um cluster); só o host usa a padrão
+            String serverHost = serverIpText;
+            int serverPort = 54321;
+            int colon = serverIpText.lastIndexOf(':');
+            if (colon > 0 && serverIpText.indexOf(':') == colon) { // Um único ':': endereços IPv6 ficam como estão
+                try {
+                    serverPort = Integer.parseInt(serverIpText.substring(colon + 1));
+                    serverHost = serverIpText.substring(0, colon);
+                } catch (NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(loginDialog, "Porta do servidor inválida: " + serverIpText.substring(colon + 1), "Entrada Inválida", JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+            }
+
             if (authManager.loginUser(inputUser, inputPass)) {
                 try {
                     ClientGUI.this.username = inputUser; // Define o username da GUI
                     // 1. Cria o cliente
-                    ClientGUI.this.client = new Client(serverIpText, 54321, ClientGUI.this.username, ClientGUI.this);
+                    ClientGUI.this.client = new Client(serverHost, serverPort, ClientGUI.this.username, ClientGUI.this);
                     // 2. Inicia a thread de escuta do cliente APÓS a construção completa
                     ClientGUI.this.client.startListening();
 
@@ -532,6 +562,12 @@ public class ClientGUI extends JFrame {
         chatScrollPane = new JScrollPane(chatMessagesPanel);
         chatScrollPane.setBorder(null);
         chatScrollPane.getVerticalScrollBar().setUnitIncrement(16);
+        chatScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            // Rolou até o topo: busca a página anterior no servidor
+            if (!e.getValueIsAdjusting() && e.getValue() == 0 && isInChatView && currentChat != null && historicoCarregado.contains(currentChat)) {
+                carregarHistoricoAnterior(currentChat);
+            }
+        });
         chatPanel.add(chatScrollPane, BorderLayout.CENTER);
 
         JPanel inputPanel = new JPanel(new BorderLayout(10, 0));
@@ -714,13 +750,15 @@ public class ClientGUI extends JFrame {
             statusLabel.setFont(new Font("Segoe UI Symbol", Font.PLAIN, 14));
             statusLabel.setForeground(msg.getStatus() == MessageStatus.READ ? readStatusColor : mutedTextColor);
             footerPanel.add(statusLabel);
-        } else if (msg.getFileData() != null && msg.getFileName() != null) {
+        } else if (msg.getFileName() != null && (msg.getFileData() != null || arquivosRecebidos.containsKey(msg.getMessageId())
+                || arquivosNoServidor.containsKey(msg.getMessageId()))) {
             JButton btnDownloadFile = new JButton("\uD83D\uDCE5");
             btnDownloadFile.setToolTipText("Baixar " + msg.getFileName());
             btnDownloadFile.setFont(new Font("Segoe UI Symbol", Font.PLAIN, 14));
             btnDownloadFile.setMargin(new Insets(2,2,2,2));
             btnDownloadFile.setFocusPainted(false);
-            btnDownloadFile.addActionListener(e -> downloadFile(msg.getFileName(), msg.getFileData()));
+            btnDownloadFile.addActionListener(e -> downloadFile(msg.getFileName(), msg.getFileData(), arquivosRecebidos.get(msg.getMessageId()),
+                    arquivosNoServidor.get(msg.getMessageId())));
             footerPanel.add(btnDownloadFile);
         }
 
@@ -747,7 +785,7 @@ public class ClientGUI extends JFrame {
         scrollToBottom();
     }
 
-    private void downloadFile(String fileName, byte[] fileData) {
+    private void downloadFile(String fileName, byte[] fileData, Path receivedFile, String storedSha256) {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Salvar arquivo como...");
         fileChooser.setSelectedFile(new File(fileName));
@@ -755,8 +793,17 @@ public class ClientGUI extends JFrame {
         int userSelection = fileChooser.showSaveDialog(this);
         if (userSelection == JFileChooser.APPROVE_OPTION) {
             File fileToSave = fileChooser.getSelectedFile();
+            if (storedSha256 != null && receivedFile == null && fileData == null) {
+                // Arquivo guardado no servidor: o download segue em segundo plano e avisa em handleDownloadedFile
+                client.fetchFile(storedSha256, fileName, fileToSave.toPath());
+                return;
+            }
             try {
-                Files.write(fileToSave.toPath(), fileData);
+                if (receivedFile != null) {
+                    Files.copy(receivedFile, fileToSave.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.write(fileToSave.toPath(), fileData);
+                }
                 JOptionPane.showMessageDialog(this,
                         "Arquivo salvo com sucesso em:\n" + fileToSave.getAbsolutePath(),
                         "Download Concluído",
@@ -767,20 +814,73 @@ public class ClientGUI extends JFrame {
         }
     }
 
-    private void updateMessageStatusOnGUI(String messageId, MessageStatus newStatus, Date relevantTime) {
+    /**
+     * Confirma a leitura de uma mensagem recebida. Com READ_WATERMARK, as confirmações são acumuladas
+     * por conversa e remetente e saem juntas um instante depois: abrir um chat com centenas de
+     * mensagens gera um quadro por remetente, não um por mensagem.
+     */
+    private void marcarComoLida(Message msg) {
+        msg.setStatus(MessageStatus.READ); // Não confirma de novo ao reabrir o chat
+        if (client == null || getUsername() == null) return;
+        if (!client.supportsReadWatermarks()) {
+            client.sendMessage(new Message(msg.getMessageId(), getUsername(), msg.getSender(), "READ_CONFIRMATION", MessageType.MESSAGE_READ));
+            return;
+        }
+        // A mais recente é a marca; as anteriores vão junto para remetentes com clientes sem watermark
+        leiturasPendentes.computeIfAbsent(msg.getReceiver() + "\u0000" + msg.getSender(), k -> new ArrayList<>()).add(msg);
+        timerLeituras.restart();
+    }
+
+    private void enviarLeiturasPendentes() {
+        if (client != null && getUsername() != null) {
+            for (List<Message> read : leiturasPendentes.values()) {
+                client.sendMessage(ReadWatermark.of(read, getUsername()));
+            }
+        }
+        leiturasPendentes.clear();
+    }
+
+    /** READ_WATERMARK recebido: marca como lidas as mensagens próprias da conversa até a mensagem indicada. */
+    private void aplicarLeitura(Message watermark) {
+        List<Message> historico = historicoMensagens.get(watermark.getContent());
+        if (historico == null) return;
+        int limite = historico.size() - 1;
+        while (limite >= 0 && !historico.get(limite).getMessageId().equals(watermark.getMessageId())) {
+            limite--;
+        }
+        Date readTime = watermark.getReadTime() != null ? watermark.getReadTime() : new Date();
+        for (int i = 0; i <= limite; i++) {
+            Message msg = historico.get(i);
+            if (msg.getSender().equals(getUsername()) && msg.getStatus() != MessageStatus.READ && msg.getType() != MessageType.GROUP_SYSTEM_MESSAGE) {
+                msg.setStatus(MessageStatus.READ);
+                msg.setReadTime(readTime);
+                atualizarRotuloStatus(msg.getMessageId(), MessageStatus.READ);
+            }
+        }
+    }
+
+    private void atualizarRotuloStatus(String messageId, MessageStatus newStatus) {
         JPanel bubblePanel = messagePanels.get(messageId);
-        if (bubblePanel != null) {
-            // Usando instanceof com pattern matching (Java 16+)
-            if (bubblePanel.getComponent(1) instanceof JPanel footerPanel) { // Assumindo que o footer é o componente de índice 1
-                for (Component comp : footerPanel.getComponents()) {
-                    // Usando instanceof com pattern matching (Java 16+)
-                    if (comp instanceof JLabel statusLabel && comp.getName() != null && comp.getName().equals("statusLabel_" + messageId)) {
-                        statusLabel.setText(getStatusIcon(newStatus));
-                        statusLabel.setForeground(newStatus == MessageStatus.READ ? readStatusColor : mutedTextColor);
-                        break;
-                    }
+        if (bubblePanel == null) return;
+        // Usando instanceof com pattern matching (Java 16+)
+        if (bubblePanel.getComponent(1) instanceof JPanel footerPanel) { // Assumindo que o footer é o componente de índice 1
+            for (Component comp : footerPanel.getComponents()) {
+                // Usando instanceof com pattern matching (Java 16+)
+                if (comp instanceof JLabel statusLabel && comp.getName() != null && comp.getName().equals("statusLabel_" + messageId)) {
+                    statusLabel.setText(getStatusIcon(newStatus));
+                    statusLabel.setForeground(newStatus == MessageStatus.READ ? readStatusColor : mutedTextColor);
+                    break;
                 }
             }
+        }
+        bubblePanel.revalidate();
+        bubblePanel.repaint();
+    }
+
+    private void updateMessageStatusOnGUI(String messageId, MessageStatus newStatus, Date relevantTime) {
+        JPanel bubblePanel = messagePanels.get(messageId);
+        if (bubblePanel != null) {
+            atualizarRotuloStatus(messageId, newStatus);
             historicoMensagens.values().stream()
                 .flatMap(List::stream)
                 .filter(m -> m.getMessageId().equals(messageId))
@@ -790,9 +890,6 @@ public class ClientGUI extends JFrame {
                     if (newStatus == MessageStatus.DELIVERED && relevantTime != null) msgToUpdate.setDeliveredTime(relevantTime);
                     if (newStatus == MessageStatus.READ && relevantTime != null) msgToUpdate.setReadTime(relevantTime);
                 });
-
-            bubblePanel.revalidate();
-            bubblePanel.repaint();
         }
     }
 
@@ -860,9 +957,7 @@ public class ClientGUI extends JFrame {
                     msg.getType() != MessageType.STATUS_UPDATE &&
                     msg.getType() != MessageType.GROUP_SYSTEM_MESSAGE &&
                     msg.getType() != MessageType.MESSAGE_READ) {
-                    if (client != null) {
-                        client.sendMessage(new Message(msg.getMessageId(), getUsername(), msg.getSender(), "READ_CONFIRMATION", MessageType.MESSAGE_READ));
-                    }
+                    marcarComoLida(msg);
                 }
             }
         }
@@ -876,6 +971,63 @@ public class ClientGUI extends JFrame {
         if (inputField != null) {
             inputField.requestFocusInWindow();
         }
+        if (!historicoCarregado.contains(currentChat)) {
+            carregarHistoricoAnterior(currentChat);
+        }
+    }
+
+    /**
+     * Pede ao servidor a página anterior à última recebida ou, na primeira vez, as mensagens mais
+     * recentes; as que já estão no histórico local são ignoradas ao aplicar a página.
+     */
+    private void carregarHistoricoAnterior(String conversa) {
+        if (client == null || !client.supportsHistory() || getUsername() == null) return;
+        if (historicoEsgotado.contains(conversa) || !historicoPedido.add(conversa)) return;
+        client.requestHistory(getUsername(), conversa, cursorHistorico.get(conversa));
+    }
+
+    /** HISTORY_PAGE recebida: insere no início do histórico local as mensagens que ainda não estão nele. */
+    private void aplicarPaginaHistorico(Message page) {
+        String conversa = History.conversation(page);
+        historicoPedido.remove(conversa);
+        historicoCarregado.add(conversa);
+        if (!History.hasMore(page)) historicoEsgotado.add(conversa);
+        if (History.cursor(page) != null) cursorHistorico.put(conversa, History.cursor(page));
+        List<Message> anteriores;
+        try {
+            anteriores = History.messages(page);
+        } catch (StreamCorruptedException e) {
+            System.err.println("Página de histórico inválida para " + conversa + ": " + e.getMessage());
+            return;
+        }
+        List<Message> historico = historicoMensagens.computeIfAbsent(conversa, k -> new ArrayList<>());
+        Set<String> conhecidas = new HashSet<>();
+        for (Message msg : historico) conhecidas.add(msg.getMessageId());
+        List<Message> novas = new ArrayList<>();
+        for (Message msg : anteriores) {
+            if (!conhecidas.add(msg.getMessageId())) continue;
+            if (msg.getFileName() != null) { // O servidor não guarda o anexo no histórico
+                msg.setContent("Arquivo: " + msg.getFileName());
+                msg.setFileName(null);
+            }
+            if (msg.getSender().equals(getUsername())) {
+                if (msg.getStatus() == null || msg.getStatus() == MessageStatus.SENDING) msg.setStatus(MessageStatus.SENT);
+            } else {
+                msg.setStatus(MessageStatus.READ); // Mensagem de uma sessão anterior: não confirma a leitura de novo
+            }
+            novas.add(msg);
+        }
+        if (novas.isEmpty()) return;
+        historico.addAll(0, novas);
+        if (isInChatView && conversa.equals(currentChat) && chatScrollPane != null) {
+            JScrollBar barra = chatScrollPane.getVerticalScrollBar();
+            int distanciaDoFim = barra.getMaximum() - barra.getValue();
+            showChatView(conversa);
+            SwingUtilities.invokeLater(() -> {
+                chatScrollPane.validate();
+                barra.setValue(barra.getMaximum() - distanciaDoFim); // Mantém à vista o que o usuário estava lendo
+            });
+        }
     }
 
     private void createGroup() {
@@ -975,24 +1127,33 @@ public class ClientGUI extends JFrame {
 
         if (result == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
+            String fileName = file.getName();
+            MessageType type = currentChat.startsWith(GROUP_ICON_PREFIX) ? MessageType.GROUP : MessageType.PRIVATE;
+            String receiver = currentChat;
             try {
-                byte[] fileData = Files.readAllBytes(file.toPath());
-                String fileName = file.getName();
-                if (fileData.length > 20 * 1024 * 1024) {
-                    showError("O arquivo é muito grande (limite de 20MB).");
-                    return;
-                }
+                Message fileMessage;
+                if (client != null && client.supportsChunkedFiles()) {
+                    // Em partes: o arquivo é lido do disco durante o envio, sem limite de tamanho
+                    fileMessage = new Message(getUsername(), receiver, "Arquivo: " + fileName + " (" + file.length() / 1024 + " KB)", type);
+                    fileMessage.setFileName(fileName);
+                    fileMessage.setStatus(MessageStatus.SENDING);
+                    client.sendFile(file.toPath(), getUsername(), receiver, fileMessage.getMessageId());
+                } else {
+                    byte[] fileData = Files.readAllBytes(file.toPath());
+                    if (fileData.length > 20 * 1024 * 1024) {
+                        showError("O arquivo é muito grande (limite de 20MB).");
+                        return;
+                    }
 
-                MessageType type = currentChat.startsWith(GROUP_ICON_PREFIX) ? MessageType.GROUP : MessageType.PRIVATE;
-                String receiver = currentChat;
-                String fileMessageContent = "Arquivo: " + fileName + " (" + fileData.length / 1024 + " KB)";
+                    String fileMessageContent = "Arquivo: " + fileName + " (" + fileData.length / 1024 + " KB)";
 
-                Message fileMessage = new Message(getUsername(), receiver, fileMessageContent, type);
-                fileMessage.setFileData(fileData);
-                fileMessage.setFileName(fileName);
-                fileMessage.setStatus(MessageStatus.SENDING);
+                    fileMessage = new Message(getUsername(), receiver, fileMessageContent, type);
+                    fileMessage.setFileData(fileData);
+                    fileMessage.setFileName(fileName);
+                    fileMessage.setStatus(MessageStatus.SENDING);
 
-                if (client != null) client.sendMessage(fileMessage);
+                    if (client != null) client.sendMessage(fileMessage);
+                }
 
                 historicoMensagens.computeIfAbsent(currentChat, k -> new ArrayList<>()).add(fileMessage);
                 addMessageToPanel(fileMessage, true);
@@ -1004,6 +1165,32 @@ public class ClientGUI extends JFrame {
         }
     }
 
+    /**
+     * Chamado pelo Client (na EDT) quando um arquivo recebido em partes foi gravado e conferido.
+     * A mensagem é tratada como uma mensagem de arquivo comum; o download copia do arquivo temporário.
+     */
+    public void handleReceivedFile(Message fileMessage, Path file) {
+        arquivosRecebidos.put(fileMessage.getMessageId(), file);
+        handleMessage(fileMessage);
+    }
+
+    /**
+     * Chamado pelo Client (na EDT) quando chega a referência a um arquivo guardado no servidor.
+     * Nada é baixado até o usuário clicar em baixar.
+     */
+    public void handleFileReference(Message fileMessage, String sha256) {
+        arquivosNoServidor.put(fileMessage.getMessageId(), sha256);
+        handleMessage(fileMessage);
+    }
+
+    /** Chamado pelo Client (na EDT) quando o download de um arquivo guardado no servidor terminou. */
+    public void handleDownloadedFile(Path savedFile) {
+        JOptionPane.showMessageDialog(this,
+                "Arquivo salvo com sucesso em:\n" + savedFile.toAbsolutePath(),
+                "Download Concluído",
+                JOptionPane.INFORMATION_MESSAGE);
+    }
+
     @SuppressWarnings("unused")
     public void handleMessage(Message msg) {
         // A chamada a SwingUtilities.invokeLater já é feita pelo Client.java
@@ -1020,7 +1207,9 @@ public class ClientGUI extends JFrame {
         switch (type) {
             case USER_LIST -> {
                 System.out.println("[" + (currentGuiUsername != null ? currentGuiUsername : "NO_USERNAME") + "] DEBUG: Recebeu USER_LIST: " + msg.getContent());
-                List<String> receivedItemsFromServer = new ArrayList<>(Arrays.asList(msg.getContent().split(",")));
+                boolean versioned = client != null && client.supportsRosterDeltas();
+                List<String> receivedItemsFromServer = versioned ? Roster.items(msg) : new ArrayList<>(Arrays.asList(msg.getContent().split(",")));
+                if (versioned) versaoContatos = Roster.version(msg);
                 String previouslySelectedContact = (userList != null) ? userList.getSelectedValue() : null;
 
                 this.gruposParticipando.clear();
@@ -1058,6 +1247,21 @@ public class ClientGUI extends JFrame {
                     userList.clearSelection();
                 }
             }
+            case READ_WATERMARK -> aplicarLeitura(msg);
+            case HISTORY_PAGE -> aplicarPaginaHistorico(msg);
+            case ROSTER_DELTA -> {
+                long version = Roster.version(msg);
+                if (version <= versaoContatos) return; // Já contido no snapshot aplicado
+                versaoContatos = version;
+                for (String item : Roster.items(msg)) {
+                    String name = item.substring(1).trim();
+                    if (item.charAt(0) == '+') {
+                        adicionarContato(name);
+                    } else {
+                        removerContato(name);
+                    }
+                }
+            }
             case PRIVATE, GROUP -> {
                 boolean isOwnMessage = currentGuiUsername != null && msg.getSender().equals(currentGuiUsername);
                 String chatKey;
@@ -1077,7 +1281,7 @@ public class ClientGUI extends JFrame {
                     if (isInChatView && currentChat != null && currentChat.equals(chatKey)) {
                         addMessageToPanel(msg, false);
                         if(msg.getType() != MessageType.STATUS_UPDATE && msg.getType() != MessageType.GROUP_SYSTEM_MESSAGE && msg.getType() != MessageType.MESSAGE_READ){
-                            if (client != null && currentGuiUsername != null) client.sendMessage(new Message(msg.getMessageId(), currentGuiUsername, msg.getSender(), "READ_CONFIRMATION", MessageType.MESSAGE_READ));
+                            marcarComoLida(msg);
                         }
                     } else {
                         notificacoes.put(chatKey, true);
@@ -1168,6 +1372,47 @@ public class ClientGUI extends JFrame {
         }
     }
 
+    /** Usuários primeiro, depois grupos; cada parte em ordem alfabética. */
+    private static final Comparator<String> ORDEM_CONTATOS = (s1, s2) -> {
+        boolean s1IsGroup = s1.startsWith(GROUP_ICON_PREFIX);
+        boolean s2IsGroup = s2.startsWith(GROUP_ICON_PREFIX);
+
+        if (!s1IsGroup && s2IsGroup) return -1;
+        if (s1IsGroup && !s2IsGroup) return 1;
+        return s1.compareToIgnoreCase(s2);
+    };
+
+    /** Insere um contato (ROSTER_DELTA) na posição ordenada, sem reconstruir o userModel. */
+    private void adicionarContato(String name) {
+        if (name.isEmpty() || indiceContato(name) >= 0) return;
+        if (name.startsWith(GROUP_ICON_PREFIX) && !gruposParticipando.contains(name)) {
+            gruposParticipando.add(name);
+        }
+        int position = 0;
+        while (position < userModel.getSize()
+                && ORDEM_CONTATOS.compare(userModel.getElementAt(position).replace(NOTIFICATION_ICON, "").trim(), name) < 0) {
+            position++;
+        }
+        boolean comNotificacao = notificacoes.getOrDefault(name, false) && (currentChat == null || !name.equals(currentChat));
+        userModel.add(position, comNotificacao ? name + NOTIFICATION_ICON : name);
+    }
+
+    /** Remove um contato (ROSTER_DELTA); a seleção do JList se ajusta sozinha. */
+    private void removerContato(String name) {
+        gruposParticipando.remove(name);
+        int position = indiceContato(name);
+        if (position >= 0) {
+            userModel.removeElementAt(position);
+        }
+    }
+
+    private int indiceContato(String name) {
+        for (int i = 0; i < userModel.getSize(); i++) {
+            if (userModel.getElementAt(i).replace(NOTIFICATION_ICON, "").trim().equals(name)) return i;
+        }
+        return -1;
+    }
+
     private void atualizarListaContatosComNotificacao() {
         if (userList == null) return;
         String selectedValue = userList.getSelectedValue();
@@ -1179,14 +1424,7 @@ public class ClientGUI extends JFrame {
         Set<String> uniqueItems = new LinkedHashSet<>(currentRawItemsInModel);
         List<String> sortedList = new ArrayList<>(uniqueItems);
 
-        sortedList.sort((s1, s2) -> {
-            boolean s1IsGroup = s1.startsWith(GROUP_ICON_PREFIX);
-            boolean s2IsGroup = s2.startsWith(GROUP_ICON_PREFIX);
-
-            if (!s1IsGroup && s2IsGroup) return -1;
-            if (s1IsGroup && !s2IsGroup) return 1;
-            return s1.compareToIgnoreCase(s2);
-        });
+        sortedList.sort(ORDEM_CONTATOS);
 
         DefaultListModel<String> newPopulatedModel = new DefaultListModel<>();
         for (String itemName : sortedList) {
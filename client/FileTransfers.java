@@ -0,0 +1,268 @@
+package client;
+
+import common.FileTransfer;
+import common.Message;
+import common.MessageType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.swing.SwingUtilities;
+
+/**
+ * Envio e recebimento de arquivos em partes (ver common.FileTransfer).
+ *
+ * O envio roda numa thread própria, lendo o arquivo do disco uma parte por vez, para não
+ * travar a EDT nem segurar o arquivo inteiro na memória. As partes recebidas são gravadas
+ * direto num arquivo temporário pela thread de escuta; a GUI só recebe o caminho no final,
+ * depois de conferido o SHA-256.
+ *
+ * Com o armazenamento do servidor (FLAG_FILE_STORE), o envio primeiro anuncia o hash e só
+ * manda as partes se o servidor pedir; arquivos recebidos chegam como referência e só são
+ * baixados quando o usuário pede.
+ */
+class FileTransfers {
+
+    /** Arquivo anunciado ao servidor, esperando a resposta UPLOAD/STORED. */
+    private record Announced(Path file, String sender, String receiver) { }
+
+    /** Transferência sendo recebida. Só a thread de escuta do Client acessa. */
+    private static final class Incoming {
+        final Message offer;
+        final long size;
+        final Path tempFile;
+        final FileChannel channel;
+        final MessageDigest digest = FileTransfer.newDigest();
+        long received = 0;
+
+        Incoming(Message offer, long size, Path tempFile, FileChannel channel) {
+            this.offer = offer;
+            this.size = size;
+            this.tempFile = tempFile;
+            this.channel = channel;
+        }
+    }
+
+    private final Client client;
+    private final ClientGUI gui;
+    private final Map<String, Incoming> incoming = new ConcurrentHashMap<>(); // Key: id da transferência
+    private final Map<String, Announced> announced = new ConcurrentHashMap<>(); // Key: id da transferência
+    private final Map<String, Path> fetches = new ConcurrentHashMap<>(); // Key: id do FILE_FETCH; valor: onde salvar
+    private volatile boolean closed = false;
+
+    FileTransfers(Client client, ClientGUI gui) {
+        this.client = client;
+        this.gui = gui;
+    }
+
+    /**
+     * Envia o arquivo em segundo plano.
+     * @param transferId Id da mensagem de arquivo exibida na GUI (recebe os STATUS_UPDATE da transferência).
+     */
+    void send(Path file, String sender, String receiver, String transferId) {
+        Runnable task = client.supportsFileStore()
+                ? () -> announce(file, sender, receiver, transferId)
+                : () -> sendChunks(file, sender, receiver, transferId, true);
+        startSenderThread(task, file);
+    }
+
+    private static void startSenderThread(Runnable task, Path file) {
+        Thread senderThread = new Thread(task, "FileSender-" + file.getFileName());
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    /** Calcula o hash e anuncia o arquivo; as partes só são enviadas se o servidor responder UPLOAD. */
+    private void announce(Path file, String sender, String receiver, String transferId) {
+        String fileName = file.getFileName().toString();
+        try {
+            MessageDigest digest = FileTransfer.newDigest();
+            byte[] buffer = new byte[FileTransfer.CHUNK_SIZE];
+            long size = 0;
+            try (InputStream in = Files.newInputStream(file)) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                    size += read;
+                }
+            }
+            announced.put(transferId, new Announced(file, sender, receiver)); // Antes do envio: a resposta pode chegar logo
+            client.sendOrThrow(FileTransfer.announce(transferId, sender, receiver, fileName, size, FileTransfer.toHex(digest.digest())));
+        } catch (IOException e) {
+            announced.remove(transferId);
+            if (!closed) {
+                SwingUtilities.invokeLater(() -> gui.showError("Erro ao enviar o arquivo " + fileName + ": " + e.getMessage()));
+            }
+        }
+    }
+
+    private void onAnnounceReply(Message reply) {
+        Announced pending = announced.remove(reply.getMessageId());
+        if (pending == null) return;
+        if (FileTransfer.REPLY_UPLOAD.equals(reply.getContent())) {
+            startSenderThread(() -> sendChunks(pending.file(), pending.sender(), pending.receiver(), reply.getMessageId(), false), pending.file());
+        }
+        // STORED: o servidor já tinha o arquivo e entregou a referência; o status chega como STATUS_UPDATE
+    }
+
+    /**
+     * Pede ao servidor um arquivo recebido por referência, que será salvo em {@code target}.
+     * A resposta chega como uma transferência em partes com o id do pedido.
+     */
+    void fetch(String sha256, String fileName, Path target) {
+        String fetchId = UUID.randomUUID().toString();
+        fetches.put(fetchId, target);
+        client.sendMessage(FileTransfer.fetch(fetchId, gui.getUsername(), fileName, sha256));
+    }
+
+    /**
+     * @param withOffer false quando o arquivo foi anunciado com FILE_ANNOUNCE e o servidor pediu o
+     *                  upload; nesse caso não há FILE_OFFER, só as partes e a conclusão.
+     */
+    private void sendChunks(Path file, String sender, String receiver, String transferId, boolean withOffer) {
+        String fileName = file.getFileName().toString();
+        MessageDigest digest = FileTransfer.newDigest();
+        try (InputStream in = Files.newInputStream(file)) {
+            long size = Files.size(file);
+            if (withOffer) {
+                client.sendOrThrow(FileTransfer.offer(transferId, sender, receiver, fileName, size));
+            }
+            byte[] buffer = new byte[FileTransfer.CHUNK_SIZE]; // Reaproveitado: o Client codifica o quadro antes de voltar
+            long offset = 0;
+            int read;
+            while (!closed && (read = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+                digest.update(buffer, 0, read);
+                byte[] data = read == buffer.length ? buffer : Arrays.copyOf(buffer, read);
+                client.sendOrThrow(FileTransfer.chunk(transferId, sender, receiver, fileName, offset, data));
+                offset += read;
+            }
+            if (closed) return;
+            client.sendOrThrow(FileTransfer.complete(transferId, sender, receiver, fileName, FileTransfer.toHex(digest.digest())));
+        } catch (IOException e) {
+            if (!closed) {
+                SwingUtilities.invokeLater(() -> gui.showError("Erro ao enviar o arquivo " + fileName + ": " + e.getMessage()));
+            }
+        }
+    }
+
+    /** Trata um quadro de transferência de arquivo recebido (thread de escuta). */
+    void onFrame(Message msg) {
+        try {
+            switch (msg.getType()) {
+                case FILE_OFFER -> onOffer(msg);
+                case FILE_CHUNK -> onChunk(msg);
+                case FILE_COMPLETE -> onComplete(msg);
+                case FILE_ANNOUNCE_REPLY -> onAnnounceReply(msg);
+                case FILE_REF -> onReference(msg);
+                default -> { }
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao gravar arquivo recebido " + msg.getFileName() + ": " + e.getMessage());
+            abort(msg.getMessageId());
+        }
+    }
+
+    private void onOffer(Message offer) throws IOException {
+        long size = FileTransfer.parseLong(offer);
+        if (size < 0 || incoming.containsKey(offer.getMessageId())) {
+            System.err.println("Oferta de arquivo inválida ignorada: " + offer);
+            return;
+        }
+        Path tempFile = Files.createTempFile("chat-", ".part");
+        tempFile.toFile().deleteOnExit();
+        FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+        incoming.put(offer.getMessageId(), new Incoming(offer, size, tempFile, channel));
+    }
+
+    private void onChunk(Message chunk) throws IOException {
+        Incoming transfer = incoming.get(chunk.getMessageId());
+        if (transfer == null) return; // Oferta perdida ou transferência já abortada
+        byte[] data = chunk.getFileData();
+        long offset = FileTransfer.parseLong(chunk);
+        if (data == null || offset != transfer.received || transfer.received + data.length > transfer.size) {
+            System.err.println("Parte fora de ordem ou além do tamanho anunciado em " + transfer.offer.getFileName() + ". Transferência abortada.");
+            abort(chunk.getMessageId());
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            transfer.channel.write(buffer, offset + buffer.position());
+        }
+        transfer.digest.update(data);
+        transfer.received += data.length;
+    }
+
+    private void onComplete(Message complete) throws IOException {
+        Incoming transfer = incoming.remove(complete.getMessageId());
+        if (transfer == null) return;
+        transfer.channel.close();
+        String checksum = FileTransfer.toHex(transfer.digest.digest());
+        Path fetchTarget = fetches.remove(complete.getMessageId());
+        if (transfer.received != transfer.size || !checksum.equalsIgnoreCase(complete.getContent())) {
+            System.err.println("Arquivo " + transfer.offer.getFileName() + " chegou incompleto ou corrompido (checksum não confere). Descartado.");
+            Files.deleteIfExists(transfer.tempFile);
+            if (fetchTarget != null) {
+                SwingUtilities.invokeLater(() -> gui.showError("O download de " + transfer.offer.getFileName() + " chegou corrompido. Tente novamente."));
+            }
+            return;
+        }
+
+        if (fetchTarget != null) { // Download de um arquivo recebido por referência
+            Files.move(transfer.tempFile, fetchTarget, StandardCopyOption.REPLACE_EXISTING);
+            SwingUtilities.invokeLater(() -> gui.handleDownloadedFile(fetchTarget));
+            return;
+        }
+        Message fileMessage = displayMessage(transfer.offer, transfer.size);
+        Path file = transfer.tempFile;
+        SwingUtilities.invokeLater(() -> gui.handleReceivedFile(fileMessage, file));
+    }
+
+    /** Arquivo guardado no servidor: a GUI mostra a mensagem, e o download só acontece se o usuário pedir. */
+    private void onReference(Message reference) {
+        long size = FileTransfer.descriptorSize(reference);
+        String sha256 = FileTransfer.descriptorSha256(reference);
+        if (sha256 == null) {
+            System.err.println("Referência de arquivo inválida ignorada: " + reference);
+            return;
+        }
+        Message fileMessage = displayMessage(reference, size);
+        SwingUtilities.invokeLater(() -> gui.handleFileReference(fileMessage, sha256));
+    }
+
+    /** Mensagem de arquivo como a GUI exibe (privada ou de grupo), a partir de um FILE_OFFER ou FILE_REF. */
+    private static Message displayMessage(Message source, long size) {
+        MessageType type = source.getReceiver().startsWith(ClientGUI.GROUP_ICON_PREFIX) ? MessageType.GROUP : MessageType.PRIVATE;
+        Message fileMessage = new Message(source.getMessageId(), source.getSender(), source.getReceiver(),
+                "Arquivo: " + source.getFileName() + " (" + size / 1024 + " KB)", type);
+        fileMessage.setFileName(source.getFileName());
+        fileMessage.setTimestamp(source.getTimestamp());
+        return fileMessage;
+    }
+
+    private void abort(String transferId) {
+        fetches.remove(transferId);
+        Incoming transfer = incoming.remove(transferId);
+        if (transfer == null) return;
+        try {
+            transfer.channel.close();
+            Files.deleteIfExists(transfer.tempFile);
+        } catch (IOException e) { /* ignora */ }
+    }
+
+    /** Interrompe envios em andamento e descarta recebimentos incompletos. */
+    void close() {
+        closed = true;
+        for (String transferId : incoming.keySet()) {
+            abort(transferId);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Transferência de arquivo em partes, usada quando WireProtocol.FLAG_CHUNKED_FILES foi aceita.
+ *
+ * Em vez de um único Message com o arquivo inteiro em fileData, o remetente envia:
+ *   FILE_OFFER    content = tamanho total em bytes
+ *   FILE_CHUNK    content = offset da parte; fileData = até CHUNK_SIZE bytes
+ *   FILE_COMPLETE content = SHA-256 (hex) do arquivo inteiro
+ *
+ * Os três usam o mesmo messageId (o id da transferência), o mesmo receiver (usuário ou grupo)
+ * e o fileName. Como são quadros comuns, mensagens de chat podem ser intercaladas entre as
+ * partes. O servidor só repassa cada parte; ninguém precisa manter o arquivo inteiro em memória.
+ *
+ * Com WireProtocol.FLAG_FILE_STORE o servidor guarda os arquivos pelo SHA-256, e o envio começa
+ * por um anúncio:
+ *   FILE_ANNOUNCE        content = "tamanho:sha256"
+ *   FILE_ANNOUNCE_REPLY  content = UPLOAD (seguem FILE_CHUNK/FILE_COMPLETE, sem FILE_OFFER) ou STORED
+ *   FILE_REF             content = "tamanho:sha256"; o destinatário baixa quando quiser com
+ *   FILE_FETCH           content = sha256; a resposta vem como FILE_OFFER/FILE_CHUNK/FILE_COMPLETE
+ * Um arquivo repassado para vários chats é enviado ao servidor uma única vez.
+ */
+public final class FileTransfer {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    public static final String REPLY_UPLOAD = "UPLOAD";
+    public static final String REPLY_STORED = "STORED";
+
+    private FileTransfer() {}
+
+    public static Message offer(String transferId, String sender, String receiver, String fileName, long size) {
+        Message offer = new Message(transferId, sender, receiver, Long.toString(size), MessageType.FILE_OFFER);
+        offer.setFileName(fileName);
+        return offer;
+    }
+
+    public static Message chunk(String transferId, String sender, String receiver, String fileName, long offset, byte[] data) {
+        Message chunk = new Message(transferId, sender, receiver, Long.toString(offset), MessageType.FILE_CHUNK);
+        chunk.setFileName(fileName); // Também permite ao FrameCompressor pular formatos já comprimidos
+        chunk.setFileData(data);
+        return chunk;
+    }
+
+    public static Message complete(String transferId, String sender, String receiver, String fileName, String sha256Hex) {
+        Message complete = new Message(transferId, sender, receiver, sha256Hex, MessageType.FILE_COMPLETE);
+        complete.setFileName(fileName);
+        return complete;
+    }
+
+    public static Message announce(String transferId, String sender, String receiver, String fileName, long size, String sha256Hex) {
+        Message announce = new Message(transferId, sender, receiver, descriptor(size, sha256Hex), MessageType.FILE_ANNOUNCE);
+        announce.setFileName(fileName);
+        return announce;
+    }
+
+    public static Message announceReply(String transferId, String receiver, String reply) {
+        return new Message(transferId, "Servidor", receiver, reply, MessageType.FILE_ANNOUNCE_REPLY);
+    }
+
+    public static Message reference(String transferId, String sender, String receiver, String fileName, long size, String sha256Hex) {
+        Message reference = new Message(transferId, sender, receiver, descriptor(size, sha256Hex), MessageType.FILE_REF);
+        reference.setFileName(fileName);
+        return reference;
+    }
+
+    public static Message fetch(String fetchId, String sender, String fileName, String sha256Hex) {
+        Message fetch = new Message(fetchId, sender, "Servidor", sha256Hex, MessageType.FILE_FETCH);
+        fetch.setFileName(fileName);
+        return fetch;
+    }
+
+    public static boolean isFileTransferType(MessageType type) {
+        return type == MessageType.FILE_OFFER || type == MessageType.FILE_CHUNK || type == MessageType.FILE_COMPLETE
+                || type == MessageType.FILE_ANNOUNCE || type == MessageType.FILE_ANNOUNCE_REPLY
+                || type == MessageType.FILE_REF || type == MessageType.FILE_FETCH;
+    }
+
+    private static String descriptor(long size, String sha256Hex) {
+        return size + ":" + sha256Hex;
+    }
+
+    /** Tamanho de um FILE_ANNOUNCE/FILE_REF, ou -1 se o conteúdo é inválido. */
+    public static long descriptorSize(Message msg) {
+        String content = msg.getContent();
+        int separator = content != null ? content.indexOf(':') : -1;
+        if (separator < 0 || !isSha256Hex(content.substring(separator + 1))) return -1;
+        try {
+            return Long.parseLong(content.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** SHA-256 de um FILE_ANNOUNCE/FILE_REF, ou null se o conteúdo é inválido. */
+    public static String descriptorSha256(Message msg) {
+        if (descriptorSize(msg) < 0) return null;
+        return msg.getContent().substring(msg.getContent().indexOf(':') + 1);
+    }
+
+    /** 64 dígitos hexadecimais minúsculos, como produz toHex. */
+    public static boolean isSha256Hex(String value) {
+        if (value == null || value.length() != 64) return false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    /** Tamanho anunciado num FILE_OFFER ou offset de um FILE_CHUNK. */
+    public static long parseLong(Message msg) {
+        try {
+            return Long.parseLong(msg.getContent());
+        } catch (NumberFormatException | NullPointerException e) {
+            return -1;
+        }
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 indisponível nesta JVM", e);
+        }
+    }
+
+    public static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,168 @@
+package common;
+
+import java.io.StreamCorruptedException;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressão por quadro, usada quando WireProtocol.FLAG_COMPRESSION foi aceita no handshake.
+ *
+ * Com a flag ativa, todo payload de mensagem ganha 1 byte de prefixo:
+ *   RAW:     [0][payload]
+ *   DEFLATE: [1][int tamanho original][payload comprimido com Deflater]
+ *
+ * Só payloads a partir de THRESHOLD bytes são comprimidos, e arquivos que já vêm comprimidos
+ * (zip, jpeg, png...) são enviados como estão. Se a compressão não diminuir o payload, ele
+ * também segue como RAW. Cada instância acumula estatísticas (razão e tempo gasto por quadro).
+ */
+public final class FrameCompressor {
+
+    public static final int THRESHOLD = 1024;
+
+    static final byte RAW = 0;
+    private static final byte DEFLATE = 1;
+    private static final int DEFLATE_HEADER_SIZE = 1 + 4;
+
+    private static final String[] COMPRESSED_EXTENSIONS = {
+            ".zip", ".gz", ".tgz", ".bz2", ".xz", ".7z", ".rar", ".jar",
+            ".jpg", ".jpeg", ".png", ".gif", ".webp", ".heic",
+            ".mp3", ".mp4", ".m4a", ".aac", ".ogg", ".avi", ".mkv", ".mov", ".webm",
+            ".docx", ".xlsx", ".pptx", ".odt", ".ods", ".odp", ".pdf"
+    };
+
+    private final LongAdder compressedFrames = new LongAdder();
+    private final LongAdder skippedFrames = new LongAdder(); // Acima do limite, mas já comprimidos ou sem ganho
+    private final LongAdder bytesBefore = new LongAdder();
+    private final LongAdder bytesAfter = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder inflatedFrames = new LongAdder();
+    private final LongAdder inflateNanos = new LongAdder();
+
+    /** Indica se vale tentar comprimir a mensagem (o arquivo anexado não é de um formato já comprimido). */
+    public static boolean isCompressible(Message msg) {
+        String fileName = msg.getFileName();
+        if (fileName == null || msg.getFileData() == null) return true;
+        String lower = fileName.toLowerCase(Locale.ROOT);
+        for (String extension : COMPRESSED_EXTENSIONS) {
+            if (lower.endsWith(extension)) return false;
+        }
+        return true;
+    }
+
+    /** Aplica o prefixo de compressão ao payload, comprimindo se compensar. */
+    public byte[] wrap(byte[] payload, boolean compressible) {
+        if (payload.length >= THRESHOLD) {
+            if (compressible) {
+                byte[] compressed = deflate(payload);
+                if (compressed != null) return compressed;
+            }
+            skippedFrames.increment();
+        }
+        byte[] raw = new byte[1 + payload.length];
+        raw[0] = RAW;
+        System.arraycopy(payload, 0, raw, 1, payload.length);
+        return raw;
+    }
+
+    /** @return O payload com prefixo DEFLATE, ou null se não ficou menor que o original. */
+    private byte[] deflate(byte[] payload) {
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            byte[] out = new byte[DEFLATE_HEADER_SIZE + payload.length]; // Mais que isso não compensa
+            int length = DEFLATE_HEADER_SIZE;
+            while (!deflater.finished() && length < out.length) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            compressNanos.add(System.nanoTime() - start);
+            if (!deflater.finished() || length >= out.length) {
+                return null;
+            }
+            out[0] = DEFLATE;
+            writeInt(out, 1, payload.length);
+            compressedFrames.increment();
+            bytesBefore.add(payload.length);
+            bytesAfter.add(length);
+            byte[] result = new byte[length];
+            System.arraycopy(out, 0, result, 0, length);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Remove o prefixo e descomprime se necessário. */
+    public byte[] unwrap(byte[] data, int offset, int length) throws StreamCorruptedException {
+        if (length < 1) throw new StreamCorruptedException("Quadro sem prefixo de compressão.");
+        byte kind = data[offset];
+        if (kind == RAW) {
+            byte[] payload = new byte[length - 1];
+            System.arraycopy(data, offset + 1, payload, 0, length - 1);
+            return payload;
+        }
+        if (kind != DEFLATE || length < DEFLATE_HEADER_SIZE) {
+            throw new StreamCorruptedException("Prefixo de compressão inválido: " + kind);
+        }
+        int originalLength = readInt(data, offset + 1);
+        WireProtocol.checkFrameLength(originalLength); // Limita o tamanho descomprimido
+        long start = System.nanoTime();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset + DEFLATE_HEADER_SIZE, length - DEFLATE_HEADER_SIZE);
+            byte[] payload = new byte[originalLength];
+            int produced = 0;
+            while (produced < originalLength && !inflater.finished()) {
+                int n = inflater.inflate(payload, produced, originalLength - produced);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                produced += n;
+            }
+            if (produced != originalLength || !inflater.finished()) {
+                throw new StreamCorruptedException("Quadro comprimido inconsistente.");
+            }
+            inflatedFrames.increment();
+            inflateNanos.add(System.nanoTime() - start);
+            return payload;
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Quadro comprimido inválido: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public long getCompressedFrames() { return compressedFrames.sum(); }
+    public long getSkippedFrames() { return skippedFrames.sum(); }
+    public long getBytesBefore() { return bytesBefore.sum(); }
+    public long getBytesAfter() { return bytesAfter.sum(); }
+    public long getCompressNanos() { return compressNanos.sum(); }
+    public long getInflatedFrames() { return inflatedFrames.sum(); }
+    public long getInflateNanos() { return inflateNanos.sum(); }
+
+    /** Resumo para log: quadros comprimidos, razão e tempo médio por quadro. */
+    public String summary() {
+        long frames = getCompressedFrames();
+        long before = getBytesBefore();
+        long inflated = getInflatedFrames();
+        return String.format(Locale.ROOT,
+                "%d quadros comprimidos (%d -> %d bytes, razão %.2f, %.1f us/quadro), %d sem compressão, %d descomprimidos (%.1f us/quadro)",
+                frames, before, getBytesAfter(), before > 0 ? (double) getBytesAfter() / before : 1.0,
+                frames > 0 ? getCompressNanos() / 1000.0 / frames : 0.0, getSkippedFrames(),
+                inflated, inflated > 0 ? getInflateNanos() / 1000.0 / inflated : 0.0);
+    }
+
+    private static void writeInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
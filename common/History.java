@@ -0,0 +1,114 @@
+package common;
+
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Histórico de conversas guardado no servidor, usado quando WireProtocol.FLAG_HISTORY foi aceita.
+ *
+ * O cliente não precisa manter a conversa inteira em memória: ao abrir um chat pede as mais
+ * recentes e, ao rolar até o topo, a página anterior à última recebida, usando o cursor dela.
+ *   HISTORY_REQUEST  receiver = conversa (o outro usuário, ou o grupo com GROUP_ICON_PREFIX)
+ *                    content  = "limite;anterior" (anterior vazio: as mais recentes). anterior é o
+ *                               cursor de uma página ou, em clientes antigos, o id de uma mensagem
+ *                               recente da conversa
+ *   HISTORY_PAGE     messageId = o do pedido; content = "maisAntigas;conversa" (1 ou 0)
+ *                    fileName  = cursor para pedir a página anterior (ausente numa página vazia)
+ *                    fileData  = as mensagens da página em ordem cronológica, cada uma como
+ *                                [int tamanho][MessageCodec], sem os anexos
+ */
+public final class History {
+
+    public static final int PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 200;
+    public static final String CURSOR_PREFIX = "@"; // Ids de mensagem são UUIDs: não começam assim
+
+    private History() {}
+
+    /** Pede até {@code limit} mensagens da conversa anteriores a {@code beforeId} (cursor ou id; null: as mais recentes). */
+    public static Message request(String requester, String conversation, String beforeId, int limit) {
+        return new Message(UUID.randomUUID().toString(), requester, conversation,
+                limit + ";" + (beforeId != null ? beforeId : ""), MessageType.HISTORY_REQUEST);
+    }
+
+    /** Limite do pedido, entre 1 e MAX_PAGE_SIZE. */
+    public static int limit(Message request) {
+        String content = request.getContent();
+        int separator = content != null ? content.indexOf(';') : -1;
+        try {
+            int limit = Integer.parseInt(separator > 0 ? content.substring(0, separator) : content);
+            return Math.max(1, Math.min(MAX_PAGE_SIZE, limit));
+        } catch (NumberFormatException | NullPointerException e) {
+            return PAGE_SIZE;
+        }
+    }
+
+    /** Cursor (ou id de mensagem) a partir do qual voltar, ou null para as mais recentes. */
+    public static String beforeId(Message request) {
+        String content = request.getContent();
+        int separator = content != null ? content.indexOf(';') : -1;
+        String beforeId = separator >= 0 ? content.substring(separator + 1) : "";
+        return beforeId.isEmpty() ? null : beforeId;
+    }
+
+    /** Cursor de uma posição no histórico do servidor. */
+    public static String cursor(long position) {
+        return CURSOR_PREFIX + position;
+    }
+
+    /** Indica se o valor de beforeId é um cursor (e não o id de uma mensagem). */
+    public static boolean isCursor(String beforeId) {
+        return beforeId != null && beforeId.startsWith(CURSOR_PREFIX);
+    }
+
+    /** @param cursor Cursor da mensagem mais antiga da página, ou null se ela está vazia. */
+    public static Message page(Message request, List<byte[]> encodedMessages, boolean more, String cursor) {
+        int size = 0;
+        for (byte[] encoded : encodedMessages) size += 4 + encoded.length;
+        ByteBuffer data = ByteBuffer.allocate(size);
+        for (byte[] encoded : encodedMessages) data.putInt(encoded.length).put(encoded);
+
+        Message page = new Message(request.getMessageId(), "Servidor", request.getSender(),
+                (more ? "1" : "0") + ";" + request.getReceiver(), MessageType.HISTORY_PAGE);
+        page.setFileData(data.array());
+        page.setFileName(cursor);
+        return page;
+    }
+
+    /** Cursor para pedir a página anterior a esta, ou null (página vazia ou servidor antigo). */
+    public static String cursor(Message page) {
+        return page.getFileName();
+    }
+
+    /** Indica se há mensagens mais antigas que as desta página. */
+    public static boolean hasMore(Message page) {
+        return page.getContent() != null && page.getContent().startsWith("1;");
+    }
+
+    /** Conversa da página, como foi pedida (receiver do HISTORY_REQUEST). */
+    public static String conversation(Message page) {
+        String content = page.getContent();
+        return content.substring(content.indexOf(';') + 1);
+    }
+
+    public static List<Message> messages(Message page) throws StreamCorruptedException {
+        List<Message> messages = new ArrayList<>();
+        if (page.getFileData() == null) return messages;
+        ByteBuffer data = ByteBuffer.wrap(page.getFileData());
+        try {
+            while (data.hasRemaining()) {
+                int length = data.getInt();
+                if (length < 0 || length > data.remaining()) throw new StreamCorruptedException("Página de histórico truncada");
+                messages.add(MessageCodec.decode(data.array(), data.position(), length));
+                data.position(data.position() + length);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Página de histórico truncada");
+        }
+        return messages;
+    }
+}
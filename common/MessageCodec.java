@@ -0,0 +1,247 @@
+package common;
+
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Codec binário compacto para Message, alternativa à serialização Java no protocolo enquadrado.
+ *
+ * Formato do payload:
+ *   [versão: 1 byte][tipo: varint][máscara de campos presentes: varint]
+ *   [campos presentes, na ordem dos bits abaixo]
+ *   [fileData: varint comprimento + bytes]  (seção final, se presente)
+ *
+ * Strings são varint comprimento + UTF-8; datas são epoch millis em varint; o status é o
+ * ordinal do enum. Por isso, novos valores de MessageType/MessageStatus só podem ser
+ * acrescentados no final dos enums. O fileData fica por último para que o restante da
+ * mensagem possa ser lido sem tocar nos bytes do arquivo.
+ */
+public final class MessageCodec {
+
+    public static final int VERSION = 1;
+
+    private static final int HAS_ID = 1;
+    private static final int HAS_SENDER = 1 << 1;
+    private static final int HAS_RECEIVER = 1 << 2;
+    private static final int HAS_CONTENT = 1 << 3;
+    private static final int HAS_TIMESTAMP = 1 << 4;
+    private static final int HAS_FILE_NAME = 1 << 5;
+    private static final int HAS_STATUS = 1 << 6;
+    private static final int HAS_DELIVERED_TIME = 1 << 7;
+    private static final int HAS_READ_TIME = 1 << 8;
+    private static final int HAS_FILE_DATA = 1 << 9;
+
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final MessageStatus[] STATUSES = MessageStatus.values();
+
+    private MessageCodec() {}
+
+    public static byte[] encode(Message msg) {
+        byte[] fileData = msg.getFileData();
+        return encode(msg, fileData, fileData != null ? fileData.length : -1);
+    }
+
+    /**
+     * Payload sem os bytes do arquivo: termina no comprimento do fileData, e os {@code fileLength}
+     * bytes do arquivo devem ser escritos logo em seguida (ex.: direto do disco). O fileData de
+     * {@code msg} é ignorado.
+     */
+    public static byte[] encodeWithoutFileData(Message msg, long fileLength) {
+        return encode(msg, null, fileLength);
+    }
+
+    private static byte[] encode(Message msg, byte[] fileData, long fileLength) {
+        // Converte as strings primeiro para alocar o payload com o tamanho exato
+        byte[] id = utf8(msg.getMessageId());
+        byte[] sender = utf8(msg.getSender());
+        byte[] receiver = utf8(msg.getReceiver());
+        byte[] content = utf8(msg.getContent());
+        byte[] fileName = utf8(msg.getFileName());
+        Date timestamp = msg.getTimestamp();
+        MessageStatus status = msg.getStatus();
+        Date deliveredTime = msg.getDeliveredTime();
+        Date readTime = msg.getReadTime();
+
+        int mask = 0;
+        if (id != null) mask |= HAS_ID;
+        if (sender != null) mask |= HAS_SENDER;
+        if (receiver != null) mask |= HAS_RECEIVER;
+        if (content != null) mask |= HAS_CONTENT;
+        if (timestamp != null) mask |= HAS_TIMESTAMP;
+        if (fileName != null) mask |= HAS_FILE_NAME;
+        if (status != null) mask |= HAS_STATUS;
+        if (deliveredTime != null) mask |= HAS_DELIVERED_TIME;
+        if (readTime != null) mask |= HAS_READ_TIME;
+        if (fileLength >= 0) mask |= HAS_FILE_DATA;
+
+        int size = 1 + varIntSize(msg.getType().ordinal()) + varIntSize(mask)
+                + bytesSize(id) + bytesSize(sender) + bytesSize(receiver) + bytesSize(content)
+                + dateSize(timestamp) + bytesSize(fileName)
+                + (status != null ? varIntSize(status.ordinal()) : 0)
+                + dateSize(deliveredTime) + dateSize(readTime)
+                + (fileLength >= 0 ? varIntSize(fileLength) : 0) + (fileData != null ? fileData.length : 0);
+
+        Writer w = new Writer(size);
+        w.buf[w.pos++] = (byte) VERSION;
+        w.varLong(msg.getType().ordinal());
+        w.varLong(mask);
+        w.bytes(id);
+        w.bytes(sender);
+        w.bytes(receiver);
+        w.bytes(content);
+        w.date(timestamp);
+        w.bytes(fileName);
+        if (status != null) w.varLong(status.ordinal());
+        w.date(deliveredTime);
+        w.date(readTime);
+        if (fileLength >= 0) {
+            w.varLong(fileLength);
+            if (fileData != null) w.raw(fileData);
+        }
+        return w.buf;
+    }
+
+    public static Message decode(byte[] payload, int offset, int length) throws StreamCorruptedException {
+        Reader r = new Reader(payload, offset, length);
+        int version = r.u8();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Versão de codec não suportada: " + version);
+        }
+        MessageType type = r.enumValue(TYPES);
+        int mask = (int) r.varLong();
+
+        String id = (mask & HAS_ID) != 0 ? r.string() : null;
+        String sender = (mask & HAS_SENDER) != 0 ? r.string() : null;
+        String receiver = (mask & HAS_RECEIVER) != 0 ? r.string() : null;
+        String content = (mask & HAS_CONTENT) != 0 ? r.string() : null;
+        Message msg = new Message(id, sender, receiver, content, type);
+        msg.setTimestamp((mask & HAS_TIMESTAMP) != 0 ? r.date() : null);
+        if ((mask & HAS_FILE_NAME) != 0) msg.setFileName(r.string());
+        msg.setStatus((mask & HAS_STATUS) != 0 ? r.enumValue(STATUSES) : null); // O construtor pode ter posto SENDING
+        if ((mask & HAS_DELIVERED_TIME) != 0) msg.setDeliveredTime(r.date());
+        if ((mask & HAS_READ_TIME) != 0) msg.setReadTime(r.date());
+        if ((mask & HAS_FILE_DATA) != 0) msg.setFileData(r.bytes());
+        if (r.pos != r.end) {
+            throw new StreamCorruptedException("Bytes sobrando no payload: " + (r.end - r.pos));
+        }
+        return msg;
+    }
+
+    private static byte[] utf8(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    static int varIntSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int bytesSize(byte[] bytes) {
+        return bytes != null ? varIntSize(bytes.length) + bytes.length : 0;
+    }
+
+    private static int dateSize(Date date) {
+        return date != null ? varIntSize(date.getTime()) : 0;
+    }
+
+    private static final class Writer {
+        final byte[] buf;
+        int pos;
+
+        Writer(int size) {
+            this.buf = new byte[size];
+        }
+
+        void varLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void bytes(byte[] bytes) {
+            if (bytes == null) return;
+            varLong(bytes.length);
+            raw(bytes);
+        }
+
+        void raw(byte[] bytes) {
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void date(Date date) {
+            if (date != null) varLong(date.getTime());
+        }
+    }
+
+    private static final class Reader {
+        final byte[] buf;
+        int pos;
+        final int end;
+
+        Reader(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        int u8() throws StreamCorruptedException {
+            if (pos >= end) throw truncated();
+            return buf[pos++] & 0xFF;
+        }
+
+        long varLong() throws StreamCorruptedException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = u8();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new StreamCorruptedException("Varint inválido.");
+        }
+
+        int length() throws StreamCorruptedException {
+            long length = varLong();
+            if (length < 0 || length > end - pos) throw truncated();
+            return (int) length;
+        }
+
+        String string() throws StreamCorruptedException {
+            int length = length();
+            String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+
+        byte[] bytes() throws StreamCorruptedException {
+            int length = length();
+            byte[] value = new byte[length];
+            System.arraycopy(buf, pos, value, 0, length);
+            pos += length;
+            return value;
+        }
+
+        Date date() throws StreamCorruptedException {
+            return new Date(varLong());
+        }
+
+        <E extends Enum<E>> E enumValue(E[] values) throws StreamCorruptedException {
+            long ordinal = varLong();
+            if (ordinal < 0 || ordinal >= values.length) {
+                throw new StreamCorruptedException("Valor de enum desconhecido: " + ordinal);
+            }
+            return values[(int) ordinal];
+        }
+
+        private StreamCorruptedException truncated() {
+            return new StreamCorruptedException("Payload truncado.");
+        }
+    }
+}
@@ -18,5 +18,26 @@ public enum MessageType {
     // Novas para informações e eventos de grupo
     GROUP_SYSTEM_MESSAGE,       // Servidor para Cliente: Mensagem de sistema sobre um grupo (ex: user left, you were added)
     GROUP_INFO_REQUEST,         // Cliente para Servidor: Solicita informações de um grupo (ex: lista de membros)
-    GROUP_INFO_RESPONSE         // Servidor para Cliente: Resposta com informações do grupo
+    GROUP_INFO_RESPONSE,        // Servidor para Cliente: Resposta com informações do grupo
+
+    // Transferência de arquivo em partes (ver FileTransfer). Novos tipos sempre no final: o MessageCodec usa o ordinal.
+    FILE_OFFER,                 // Início: nome e tamanho do arquivo
+    FILE_CHUNK,                 // Uma parte do arquivo, com o offset
+    FILE_COMPLETE,              // Fim: checksum SHA-256 do arquivo inteiro
+
+    // Armazenamento de arquivos por conteúdo no servidor (ver FileTransfer)
+    FILE_ANNOUNCE,              // Cliente para Servidor: hash e tamanho, antes de enviar as partes
+    FILE_ANNOUNCE_REPLY,        // Servidor para Cliente: UPLOAD (envie as partes) ou STORED (já existe)
+    FILE_REF,                   // Servidor para Cliente: arquivo disponível no servidor, baixado sob demanda
+    FILE_FETCH,                 // Cliente para Servidor: pede o arquivo pelo hash; volta como OFFER/CHUNK/COMPLETE
+
+    // Lista de contatos incremental (ver Roster)
+    ROSTER_DELTA,               // Servidor para Cliente: contatos/grupos que entraram ou saíram da lista
+
+    // Confirmação de leitura acumulada (ver ReadWatermark)
+    READ_WATERMARK,             // "li tudo de fulano nesta conversa até a mensagem X"; nos dois sentidos
+
+    // Histórico de conversas guardado no servidor (ver History)
+    HISTORY_REQUEST,            // Cliente para Servidor: N mensagens de uma conversa anteriores à mensagem X
+    HISTORY_PAGE                // Servidor para Cliente: a página pedida, em ordem cronológica
 }
\ No newline at end of file
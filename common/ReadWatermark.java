@@ -0,0 +1,71 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Confirmação de leitura acumulada, usada quando WireProtocol.FLAG_READ_WATERMARKS foi aceita.
+ *
+ * Em vez de um MESSAGE_READ por mensagem (e um STATUS_UPDATE de volta para cada uma), quem lê
+ * manda um READ_WATERMARK por remetente e conversa dizendo "li tudo até a mensagem X":
+ *   messageId = id da mensagem mais recente lida daquele remetente
+ *   sender    = quem leu
+ *   receiver  = quem enviou as mensagens lidas
+ *   content   = conversa, do ponto de vista de quem enviou: o nome do grupo, ou quem leu (privada)
+ *   fileData  = ids de todas as mensagens lidas no lote, em UTF-8 separados por '\n'
+ *
+ * O servidor repassa o mesmo READ_WATERMARK ao remetente, com readTime preenchido (sem a lista);
+ * o remetente marca como lidas todas as suas mensagens da conversa até X, na ordem do seu
+ * histórico. Um remetente sem FLAG_READ_WATERMARKS não entende o watermark: para ele o servidor
+ * manda um STATUS_UPDATE READ por id da lista.
+ */
+public final class ReadWatermark {
+
+    /** Ids aceitos na lista de um watermark; o servidor ignora os que passarem disso. */
+    public static final int MAX_COVERED_IDS = 1000;
+
+    private ReadWatermark() {}
+
+    /**
+     * Watermark de quem leu ({@code reader}) para o remetente das mensagens lidas, todas da mesma
+     * conversa e do mesmo remetente, em ordem; a última é a marca.
+     */
+    public static Message of(List<Message> read, String reader) {
+        Message lastRead = read.get(read.size() - 1);
+        String conversation = lastRead.getType() == MessageType.GROUP ? lastRead.getReceiver() : reader;
+        Message watermark = new Message(lastRead.getMessageId(), reader, lastRead.getSender(), conversation, MessageType.READ_WATERMARK);
+        List<String> ids = new ArrayList<>(read.size());
+        for (Message message : read) {
+            ids.add(message.getMessageId());
+        }
+        watermark.setFileData(String.join("\n", ids).getBytes(StandardCharsets.UTF_8));
+        return watermark;
+    }
+
+    /**
+     * Ids das mensagens cobertas pelo watermark, no máximo MAX_COVERED_IDS. Um watermark sem lista
+     * (cliente mais antigo) cobre só a própria marca.
+     */
+    public static List<String> coveredIds(Message watermark) {
+        byte[] data = watermark.getFileData();
+        if (data == null || data.length == 0) return List.of(watermark.getMessageId());
+        List<String> ids = new ArrayList<>();
+        for (String id : new String(data, StandardCharsets.UTF_8).split("\n")) {
+            if (id.isEmpty()) continue;
+            if (ids.size() == MAX_COVERED_IDS) break;
+            ids.add(id);
+        }
+        return ids.isEmpty() ? List.of(watermark.getMessageId()) : ids;
+    }
+
+    /** Aviso do servidor ao remetente, com a hora em que a leitura foi registrada. */
+    public static Message notice(Message watermark, Date readTime) {
+        Message notice = new Message(watermark.getMessageId(), watermark.getSender(), watermark.getReceiver(),
+                watermark.getContent(), MessageType.READ_WATERMARK);
+        notice.setStatus(MessageStatus.READ);
+        notice.setReadTime(readTime);
+        return notice;
+    }
+}
@@ -0,0 +1,62 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Lista de contatos incremental, usada quando WireProtocol.FLAG_ROSTER_DELTAS foi aceita.
+ *
+ * Sem a flag, toda mudança (login, saída, grupo criado ou deixado) faz o servidor mandar a lista
+ * inteira para cada cliente. Com ela:
+ *   USER_LIST     content = "versão;item1,item2,..."  snapshot completo (login ou ressincronização)
+ *   ROSTER_DELTA  content = "versão;+item,-item,..."  só o que mudou, só para quem foi afetado
+ *
+ * Os itens são nomes de usuário ou de grupo (com GROUP_ICON_PREFIX), como no USER_LIST antigo.
+ * A versão é um contador global do servidor que só cresce; o cliente ignora deltas com versão
+ * menor ou igual à do último snapshot que aplicou. Deltas descartados para um cliente lento são
+ * recuperados com um novo snapshot (ver SlowConsumerPolicy).
+ */
+public final class Roster {
+
+    private Roster() {}
+
+    public static Message snapshot(String receiver, long version, String items) {
+        return new Message("Servidor", receiver, version + ";" + items, MessageType.USER_LIST);
+    }
+
+    /**
+     * Um único delta pode ir para vários clientes (o receiver fica nulo), então o mesmo quadro é
+     * reaproveitado no fan-out.
+     */
+    public static Message delta(long version, Collection<String> added, Collection<String> removed) {
+        StringBuilder content = new StringBuilder().append(version).append(';');
+        for (String item : added) content.append('+').append(item).append(',');
+        for (String item : removed) content.append('-').append(item).append(',');
+        content.setLength(content.length() - 1);
+        return new Message("Servidor", null, content.toString(), MessageType.ROSTER_DELTA);
+    }
+
+    /** Versão de um USER_LIST versionado ou de um ROSTER_DELTA, ou -1 se o conteúdo não tem versão. */
+    public static long version(Message msg) {
+        String content = msg.getContent();
+        int separator = content != null ? content.indexOf(';') : -1;
+        if (separator <= 0) return -1;
+        try {
+            return Long.parseLong(content.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Itens do snapshot ou do delta (no delta, cada item começa com '+' ou '-'). */
+    public static List<String> items(Message msg) {
+        String content = msg.getContent();
+        String list = content.substring(content.indexOf(';') + 1);
+        List<String> items = new ArrayList<>();
+        for (String item : list.split(",")) {
+            if (!item.isBlank()) items.add(item);
+        }
+        return items;
+    }
+}
@@ -0,0 +1,232 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocolo enquadrado (framed) usado entre cliente e servidor.
+ *
+ * Sequência de conexão:
+ *   1. Cliente envia MAGIC + 1 byte de flags (capacidades que deseja usar).
+ *   2. Servidor responde MAGIC + 1 byte com as flags aceitas.
+ *   3. Cliente envia um quadro com o nome de usuário em UTF-8.
+ *   4. A partir daí, cada mensagem é um quadro: [int comprimento][payload].
+ *
+ * Cada payload é independente (não há estado compartilhado entre quadros), o que
+ * permite que o servidor decodifique quadros de forma não bloqueante. O payload de uma
+ * Message é serialização Java, ou o MessageCodec binário se FLAG_BINARY_CODEC foi aceita;
+ * com FLAG_COMPRESSION, o payload ainda passa pelo FrameCompressor.
+ * Clientes antigos, que abrem direto um ObjectOutputStream, são reconhecidos pelo
+ * cabeçalho de serialização Java (0xACED) e continuam sendo atendidos no modo legado.
+ */
+public final class WireProtocol {
+
+    public static final byte[] MAGIC = {'C', 'H', 'T', '1'};
+    public static final int HANDSHAKE_SIZE = MAGIC.length + 1;
+    public static final int FRAME_HEADER_SIZE = 4;
+    public static final int MAX_FRAME_SIZE = 32 * 1024 * 1024;
+
+    /** Mensagens codificadas com MessageCodec em vez de serialização Java. */
+    public static final int FLAG_BINARY_CODEC = 0x01;
+
+    /** Payloads de mensagem com prefixo de compressão (ver FrameCompressor). */
+    public static final int FLAG_COMPRESSION = 0x02;
+
+    /** Arquivos enviados em partes (FILE_OFFER/FILE_CHUNK/FILE_COMPLETE, ver FileTransfer). */
+    public static final int FLAG_CHUNKED_FILES = 0x04;
+
+    /** Arquivos guardados no servidor pelo SHA-256: upload só se o servidor não tem, download sob demanda. */
+    public static final int FLAG_FILE_STORE = 0x08;
+
+    /** Lista de contatos com versão: um snapshot no login e depois só ROSTER_DELTA (ver Roster). */
+    public static final int FLAG_ROSTER_DELTAS = 0x10;
+
+    /** Confirmações de leitura acumuladas (READ_WATERMARK) em vez de um MESSAGE_READ por mensagem. */
+    public static final int FLAG_READ_WATERMARKS = 0x20;
+
+    /** Histórico de conversas no servidor, pedido em páginas (HISTORY_REQUEST/HISTORY_PAGE, ver History). */
+    public static final int FLAG_HISTORY = 0x40;
+
+    /** Flags de capacidade suportadas por esta versão do protocolo. */
+    public static final int SUPPORTED_FLAGS = FLAG_BINARY_CODEC | FLAG_COMPRESSION | FLAG_CHUNKED_FILES | FLAG_FILE_STORE
+            | FLAG_ROSTER_DELTAS | FLAG_READ_WATERMARKS | FLAG_HISTORY;
+
+    private static final byte LEGACY_STREAM_MAGIC_0 = (byte) 0xAC;
+    private static final byte LEGACY_STREAM_MAGIC_1 = (byte) 0xED;
+    /** Cabeçalho que um ObjectOutputStream escreve ao ser aberto (STREAM_MAGIC + STREAM_VERSION). */
+    public static final byte[] LEGACY_STREAM_HEADER = {LEGACY_STREAM_MAGIC_0, LEGACY_STREAM_MAGIC_1, 0x00, 0x05};
+    private static final byte LEGACY_TC_RESET = 0x79;
+
+    private WireProtocol() {}
+
+    /**
+     * Indica se os dois primeiros bytes recebidos são o cabeçalho de um ObjectOutputStream,
+     * ou seja, se a conexão vem de um cliente no protocolo legado.
+     */
+    public static boolean isLegacyStreamHeader(byte b0, byte b1) {
+        return b0 == LEGACY_STREAM_MAGIC_0 && b1 == LEGACY_STREAM_MAGIC_1;
+    }
+
+    public static byte[] handshake(int flags) {
+        byte[] bytes = new byte[HANDSHAKE_SIZE];
+        System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+        bytes[MAGIC.length] = (byte) flags;
+        return bytes;
+    }
+
+    /**
+     * Valida o handshake contido em {@code bytes} a partir de {@code offset}.
+     * @return As flags anunciadas pelo outro lado.
+     * @throws StreamCorruptedException Se o MAGIC não confere.
+     */
+    public static int parseHandshake(byte[] bytes, int offset) throws StreamCorruptedException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[offset + i] != MAGIC[i]) {
+                throw new StreamCorruptedException("Handshake inválido: MAGIC não reconhecido.");
+            }
+        }
+        return bytes[offset + MAGIC.length] & 0xFF;
+    }
+
+    public static void writeHandshake(OutputStream out, int flags) throws IOException {
+        out.write(handshake(flags));
+        out.flush();
+    }
+
+    public static int readHandshake(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[HANDSHAKE_SIZE];
+        in.readFully(bytes);
+        return parseHandshake(bytes, 0);
+    }
+
+    public static void writeFrame(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkFrameLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    public static void checkFrameLength(int length) throws StreamCorruptedException {
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Tamanho de quadro inválido: " + length);
+        }
+    }
+
+    /** Quadro completo (cabeçalho + payload), pronto para ser escrito no canal. */
+    public static byte[] frame(byte[] payload) {
+        byte[] frame = new byte[FRAME_HEADER_SIZE + payload.length];
+        writeInt(frame, 0, payload.length);
+        System.arraycopy(payload, 0, frame, FRAME_HEADER_SIZE, payload.length);
+        return frame;
+    }
+
+    /**
+     * Início de um quadro cujo payload termina com os {@code fileLength} bytes de um arquivo, que
+     * quem chama escreve em seguida (ex.: com FileChannel.transferTo). Só é possível com
+     * FLAG_BINARY_CODEC, em que o fileData é a seção final do payload; com FLAG_COMPRESSION o
+     * payload segue como RAW.
+     * @return Cabeçalho do quadro + o payload até o comprimento do fileData.
+     */
+    public static byte[] fileFrameHeader(Message msg, long fileLength, int flags) throws IOException {
+        if ((flags & FLAG_BINARY_CODEC) == 0) {
+            throw new IllegalArgumentException("Arquivo direto no quadro requer o codec binário.");
+        }
+        byte[] payloadStart = MessageCodec.encodeWithoutFileData(msg, fileLength);
+        int prefix = (flags & FLAG_COMPRESSION) != 0 ? 1 : 0;
+        long payloadLength = prefix + payloadStart.length + fileLength;
+        if (payloadLength > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Tamanho de quadro inválido: " + payloadLength);
+        }
+        byte[] header = new byte[FRAME_HEADER_SIZE + prefix + payloadStart.length];
+        writeInt(header, 0, (int) payloadLength);
+        if (prefix > 0) header[FRAME_HEADER_SIZE] = FrameCompressor.RAW;
+        System.arraycopy(payloadStart, 0, header, FRAME_HEADER_SIZE + prefix, payloadStart.length);
+        return header;
+    }
+
+    private static void writeInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    public static byte[] encodeUsername(String username) {
+        return username.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static String decodeUsername(byte[] payload) {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    public static byte[] encodeMessage(Message msg) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(msg);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Codifica com o codec combinado no handshake ({@code flags} são as flags aceitas). */
+    public static byte[] encodeMessage(Message msg, int flags) throws IOException {
+        return (flags & FLAG_BINARY_CODEC) != 0 ? MessageCodec.encode(msg) : encodeMessage(msg);
+    }
+
+    public static Message decodeMessage(byte[] payload, int offset, int length, int flags) throws IOException {
+        return (flags & FLAG_BINARY_CODEC) != 0 ? MessageCodec.decode(payload, offset, length) : decodeMessage(payload, offset, length);
+    }
+
+    /** Codifica com o codec e a compressão combinados no handshake. */
+    public static byte[] encodeMessage(Message msg, int flags, FrameCompressor compressor) throws IOException {
+        byte[] payload = encodeMessage(msg, flags);
+        if ((flags & FLAG_COMPRESSION) != 0) {
+            payload = compressor.wrap(payload, FrameCompressor.isCompressible(msg));
+        }
+        return payload;
+    }
+
+    public static Message decodeMessage(byte[] payload, int offset, int length, int flags, FrameCompressor compressor) throws IOException {
+        if ((flags & FLAG_COMPRESSION) != 0) {
+            byte[] unwrapped = compressor.unwrap(payload, offset, length);
+            return decodeMessage(unwrapped, 0, unwrapped.length, flags);
+        }
+        return decodeMessage(payload, offset, length, flags);
+    }
+
+    public static Message decodeMessage(byte[] payload, int offset, int length) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(payload, offset, length))) {
+            return (Message) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new StreamCorruptedException("Payload não contém uma Message válida: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Codifica a mensagem como um trecho autônomo do stream legado: TC_RESET seguido do objeto,
+     * sem o cabeçalho de stream. O reset zera a tabela de referências do ObjectInputStream do
+     * cliente, então cada trecho pode ser gerado isoladamente (fora da thread que escreve) e
+     * concatenado depois de {@link #LEGACY_STREAM_HEADER}.
+     */
+    public static byte[] encodeLegacyMessage(Message msg) throws IOException {
+        byte[] standalone = encodeMessage(msg);
+        int headerSize = LEGACY_STREAM_HEADER.length;
+        byte[] chunk = new byte[1 + standalone.length - headerSize];
+        chunk[0] = LEGACY_TC_RESET;
+        System.arraycopy(standalone, headerSize, chunk, 1, standalone.length - headerSize);
+        return chunk;
+    }
+}
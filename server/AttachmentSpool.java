@@ -0,0 +1,95 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Spool em disco para anexos de mensagens com fileData (clientes que não usam transferência em partes).
+ *
+ * O anexo é gravado uma única vez e a mensagem segue para os destinatários sem o fileData; cada
+ * fila de saída guarda só o cabeçalho do quadro e uma referência ao arquivo. Para conexões com
+ * o codec binário o arquivo vai do disco para o socket com FileChannel.transferTo, sem passar
+ * pelo heap nem ser serializado de novo por destinatário.
+ */
+final class AttachmentSpool {
+
+    private final Path directory;
+    private final long minBytes;
+    private final ServerLog logger;
+    private final LongAdder spooledFiles = new LongAdder();
+    private final LongAdder spooledBytes = new LongAdder();
+    private final AtomicLong activeBytes = new AtomicLong();
+    private DirectoryLock directoryLock; // Entre open() e close()
+
+    AttachmentSpool(Path directory, long minBytes, ServerLog logger) {
+        this.directory = directory;
+        this.minBytes = minBytes;
+        this.logger = logger;
+    }
+
+    /** Trava o diretório e apaga anexos que sobraram de uma execução anterior. */
+    void open() throws IOException {
+        directoryLock = DirectoryLock.acquire(directory);
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, "*.anexo")) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover);
+            }
+        }
+    }
+
+    /** Solta a trava do diretório; anexos ainda em fan-out seguem abertos até serem liberados. */
+    void close() {
+        if (directoryLock != null) directoryLock.close();
+        directoryLock = null;
+    }
+
+    /** Indica se o anexo é grande o bastante para valer a ida ao disco. */
+    boolean accepts(byte[] fileData) {
+        return fileData != null && fileData.length >= minBytes;
+    }
+
+    /**
+     * Grava o anexo e o devolve com uma referência, que quem chamou deve liberar ao terminar o fan-out.
+     */
+    SpooledAttachment spool(byte[] fileData) throws IOException {
+        Path file = Files.createTempFile(directory, "msg-", ".anexo");
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer data = ByteBuffer.wrap(fileData);
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        } catch (IOException e) {
+            if (channel != null) channel.close();
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        spooledFiles.increment();
+        spooledBytes.add(fileData.length);
+        activeBytes.addAndGet(fileData.length);
+        return new SpooledAttachment(this, file, channel, fileData.length);
+    }
+
+    void released(long size) {
+        activeBytes.addAndGet(-size);
+    }
+
+    void logDeleteError(Path file, IOException e) {
+        logger.logError("SPOOL_REMOCAO", "Erro ao apagar anexo " + file, e);
+    }
+
+    long getSpooledFiles() { return spooledFiles.sum(); }
+
+    /** Resumo para log: anexos gravados desde o início e bytes ainda no disco. */
+    String summary() {
+        return spooledFiles.sum() + " anexos gravados (" + spooledBytes.sum() + " bytes), " + activeBytes.get() + " bytes ainda em disco";
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Avisa quem espera uma fila de saída baixar de um limite de bytes (backpressure de arquivos em
+ * partes). Quem esvazia a fila chama signal com o total restante depois de cada retirada; cada
+ * callback roda uma única vez, na thread de quem sinalizou, e por isso não pode bloquear.
+ */
+final class BacklogSignal {
+
+    private static final class Waiter {
+        final long threshold;
+        final Runnable callback;
+
+        Waiter(long threshold, Runnable callback) {
+            this.threshold = threshold;
+            this.callback = callback;
+        }
+    }
+
+    private final List<Waiter> waiters = new ArrayList<>(); // Protegida pelo monitor deste objeto
+    private volatile boolean waiting = false; // Evita o monitor a cada quadro escrito quando ninguém espera
+
+    /**
+     * Registra o callback para quando a fila tiver {@code threshold} bytes ou menos.
+     * @param currentBytes Total atual, conferido depois do registro: se a fila já escoou, o callback roda na hora.
+     */
+    void await(long threshold, Runnable callback, LongSupplier currentBytes) {
+        synchronized (this) {
+            waiters.add(new Waiter(threshold, callback));
+            waiting = true;
+        }
+        signal(currentBytes.getAsLong());
+    }
+
+    /** Roda (e retira) os callbacks cujo limite já foi atingido com {@code bytes} na fila. */
+    void signal(long bytes) {
+        if (!waiting) return;
+        List<Runnable> ready = null;
+        synchronized (this) {
+            for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+                Waiter waiter = it.next();
+                if (bytes <= waiter.threshold) {
+                    if (ready == null) ready = new ArrayList<>();
+                    ready.add(waiter.callback);
+                    it.remove();
+                }
+            }
+            waiting = !waiters.isEmpty();
+        }
+        if (ready != null) ready.forEach(Runnable::run);
+    }
+}
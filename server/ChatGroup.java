@@ -0,0 +1,72 @@
+package server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Um grupo de chat e seus membros, num conjunto concorrente: pertinência em O(1) e fan-out
+ * direto sobre o conjunto, sem lock e sem cópia por mensagem. A iteração é fracamente
+ * consistente: um membro que sai durante um fan-out pode ou não receber aquela mensagem.
+ *
+ * Membros nunca são adicionados depois da criação; por isso, um grupo que ficou vazio
+ * continua vazio (ver ChatRouter.handleLeaveGroup), e duas cópias do mesmo grupo em nós
+ * diferentes se juntam pela interseção dos membros (ver ChatRouter.applyRemoteGroup).
+ */
+final class ChatGroup {
+    private final String name;
+    private final String id; // Identidade desta criação: o nome volta a ficar livre quando o grupo é apagado
+    private final Set<String> members;
+    private final LongAdder relayedMessages = new LongAdder(); // Mensagens repassadas aos membros (ver ServerManagement)
+
+    ChatGroup(String name, String id, Collection<String> initialMembers) {
+        this.name = name;
+        this.id = id;
+        this.members = ConcurrentHashMap.newKeySet(Math.max(4, initialMembers.size())); // Grupos são criados com todos os membros
+        this.members.addAll(initialMembers);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /** Identidade gerada na criação e replicada com o grupo; "" para grupos gravados antes de ela existir. */
+    String getId() {
+        return id;
+    }
+
+    boolean contains(String username) {
+        return members.contains(username);
+    }
+
+    /** Visão somente leitura dos membros atuais (não é uma cópia). */
+    Set<String> members() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    void recordRelay() {
+        relayedMessages.increment();
+    }
+
+    long getRelayedMessages() {
+        return relayedMessages.sum();
+    }
+
+    /**
+     * Remove o membro.
+     * @return false se o usuário não era membro.
+     */
+    boolean removeMember(String username) {
+        return members.remove(username);
+    }
+}
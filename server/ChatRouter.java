@@ -0,0 +1,1449 @@
+package server;
+
+import common.FileTransfer;
+import common.History;
+import common.Message;
+import common.MessageStatus;
+import common.MessageType;
+import common.ReadWatermark;
+import common.Roster;
+import common.WireProtocol;
+import java.io.IOException;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Núcleo de roteamento do servidor: registro de clientes, grupos e entrega de mensagens.
+ * Não depende de Swing nem de sockets; as conexões entram como ClientConnection.
+ *
+ * Concorrência: não há lock global. Mensagens privadas só fazem leituras no ConcurrentHashMap
+ * de clientes; a criação de grupos usa putIfAbsent; mutações de membros usam o lock do próprio
+ * ChatGroup (conjunto concorrente). Apenas a publicação de mudanças na lista de contatos é serializada (rosterLock), para
+ * que snapshots e deltas cheguem aos clientes na ordem das versões, e as mutações de grupos com o
+ * índice reverso userGroups (groupLock), para que o GroupJournal as registre na ordem em que foram
+ * aplicadas e um membro que desconecta durante uma criação não fique no grupo. O fan-out de
+ * mensagens não usa nenhum dos dois.
+ *
+ * Mudanças na lista de contatos são acumuladas por uma janela curta (rosterWindowMillis) e saem
+ * num único delta por usuário afetado. Numa enxurrada de reconexões (ex.: após reiniciar o
+ * servidor) cada cliente recebe um delta por janela, não um por login. O snapshot de quem entra
+ * continua saindo na hora.
+ *
+ * Em cluster (ver ClusterNode), usuários de outros nós ficam em remoteClients como RemoteConnection
+ * e são encontrados pelo lookup junto com os locais. Cada nó só gera os efeitos visíveis (avisos,
+ * status, histórico, caixa offline) das ações dos próprios clientes; os eventos que chegam de
+ * outros nós apenas atualizam o diretório de usuários e grupos daqui.
+ */
+public class ChatRouter {
+    public static final String GROUP_ICON_PREFIX = "\uD83D\uDC65 ";
+    private static final int MAX_GROUP_TOMBSTONES = 10_000;
+
+    private final ServerLog logger;
+    private final AttachmentSpool spool; // null: anexos ficam no heap, dentro de cada quadro
+    private final FileStore fileStore; // null: sem armazenamento por conteúdo (FILE_ANNOUNCE/FILE_FETCH recusados)
+    private final OfflineMailbox offlineMailbox; // null: mensagem privada para quem está offline falha
+    private final HistoryLog historyLog; // null: sem histórico no servidor (HISTORY_REQUEST recebe página vazia)
+    private final GroupJournal groupJournal; // null: grupos só em memória, perdidos ao reiniciar
+    private final Object groupLock = new Object(); // Serializa mutações de grupos + registro no GroupJournal
+    // Lápides dos grupos apagados (nome -> identidade), reenviadas na ressincronização do cluster para que um nó
+    // que perdeu a remoção apague a sua cópia em vez de devolvê-la. Protegido por groupLock; só em memória
+    private final LinkedHashMap<String, String> deletedGroups = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_GROUP_TOMBSTONES;
+        }
+    };
+    private final ConcurrentHashMap<String, ClientConnection> clients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, RemoteConnection> remoteClients = new ConcurrentHashMap<>(); // Usuários conectados em outros nós
+    private volatile ClusterNode cluster; // null: servidor sozinho
+    private final ConcurrentHashMap<String, ChatGroup> groups = new ConcurrentHashMap<>(); // Key: groupNameWithIcon
+    // Índice reverso dos grupos: desconexão e lista de contatos custam O(grupos do usuário), não O(todos os grupos).
+    // Como a desconexão tira o usuário dos grupos, os membros de um ChatGroup são os membros online, mais os
+    // recuperados do GroupJournal após reiniciar o servidor que ainda não voltaram.
+    private final ConcurrentHashMap<String, Set<String>> userGroups = new ConcurrentHashMap<>(); // Key: username; valor: groupNameWithIcon
+    // Usuários que acabaram de conectar com mensagens na caixa offline: até a caixa ser entregue, as privadas
+    // novas para eles também vão para a caixa, atrás das guardadas, em vez de passarem na frente
+    private final Set<String> drainingUsers = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock rosterLock = new ReentrantLock();
+    private long rosterVersion = 0; // Versão da lista de contatos (ver Roster); protegida por rosterLock
+    private final long rosterWindowMillis; // 0: cada mudança sai na hora
+    private final ScheduledExecutorService rosterFlusher; // null se rosterWindowMillis == 0
+    // Mudanças ainda não publicadas; protegidas por rosterLock
+    private final RosterChange pendingPresence = new RosterChange(); // Entradas/saídas: afetam todos os clientes
+    private final Map<String, RosterChange> pendingByUser = new HashMap<>(); // Grupos criados/deixados: só os membros
+    private boolean rosterFlushScheduled = false;
+    private volatile boolean running = true;
+    private final Histogram fanoutSizes = new Histogram(); // Membros online que receberam cada mensagem de grupo
+
+    public ChatRouter(ServerLog logger) {
+        this(logger, null, null, null, null, null, 0);
+    }
+
+    /** Roteador com grupos persistentes e sem os demais armazenamentos (usado pelos benchmarks). */
+    public ChatRouter(ServerLog logger, GroupJournal groupJournal) {
+        this(logger, null, null, null, null, groupJournal, 0);
+    }
+
+    ChatRouter(ServerLog logger, AttachmentSpool spool, FileStore fileStore, OfflineMailbox offlineMailbox,
+               HistoryLog historyLog, GroupJournal groupJournal, long rosterWindowMillis) {
+        this.logger = logger;
+        this.spool = spool;
+        this.fileStore = fileStore;
+        this.offlineMailbox = offlineMailbox;
+        this.historyLog = historyLog;
+        this.groupJournal = groupJournal;
+        this.rosterWindowMillis = Math.max(0, rosterWindowMillis);
+        this.rosterFlusher = this.rosterWindowMillis > 0 ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "roster-flush");
+            t.setDaemon(true);
+            return t;
+        }) : null;
+    }
+
+    /** Liga o roteamento aos outros nós; chamar na partida, antes de aceitar conexões. */
+    void attachCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    /** Interrompe o roteamento; chamado no início do desligamento do servidor. */
+    public void stop() {
+        running = false;
+        if (rosterFlusher != null) rosterFlusher.shutdownNow();
+    }
+
+    /**
+     * Recria os grupos gravados no GroupJournal. Chamar na partida, antes de aceitar conexões; os
+     * membros ficam nos grupos e voltam a recebê-los na lista de contatos quando reconectam.
+     * @return Quantos grupos foram recuperados.
+     */
+    public int recoverGroups() throws IOException {
+        if (groupJournal == null) return 0;
+        Map<String, String> ids = new HashMap<>();
+        Map<String, Set<String>> recovered = groupJournal.recover(ids);
+        for (Map.Entry<String, Set<String>> entry : recovered.entrySet()) {
+            String groupNameWithIcon = entry.getKey();
+            groups.put(groupNameWithIcon, new ChatGroup(groupNameWithIcon, ids.getOrDefault(groupNameWithIcon, ""), entry.getValue()));
+            for (String memberName : entry.getValue()) {
+                indexMembership(memberName, groupNameWithIcon);
+            }
+        }
+        return recovered.size();
+    }
+
+    /**
+     * Grava um snapshot dos grupos e descarta o WAL que ele cobre, se o WAL já cresceu o bastante
+     * (ou sempre, com {@code force}). Só a cópia do estado é feita com groupLock.
+     */
+    public void compactGroupJournal(boolean force) {
+        if (groupJournal == null || !groupJournal.isOpen() || (!force && !groupJournal.needsSnapshot())) return;
+        try {
+            long began = System.nanoTime();
+            GroupJournal.Snapshot snapshot;
+            synchronized (groupLock) {
+                snapshot = groupJournal.beginSnapshot(groups.values());
+            }
+            groupJournal.writeSnapshot(snapshot);
+            log("INFO", "GRUPOS_SNAPSHOT", "Snapshot de " + groups.size() + " grupos gravado em " + (System.nanoTime() - began) / 1_000_000 + " ms.");
+        } catch (IOException e) {
+            logger.logError("GRUPOS_SNAPSHOT", "Erro ao gravar o snapshot de grupos", e);
+        }
+    }
+
+    public void closeAllConnections() {
+        new ArrayList<>(clients.values()).forEach(ClientConnection::closeClientSocket);
+    }
+
+    public void clear() {
+        clients.clear();
+        remoteClients.clear();
+        groups.clear();
+        userGroups.clear();
+    }
+
+    /** Visão (somente leitura) das conexões registradas. */
+    public Collection<ClientConnection> getConnections() {
+        return Collections.unmodifiableCollection(clients.values());
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /** Distribuição do fan-out das mensagens de grupo (ver ServerMetrics). */
+    Histogram getFanoutSizes() {
+        return fanoutSizes;
+    }
+
+    /** Conexão registrada do usuário, ou null. */
+    ClientConnection getConnection(String username) {
+        return clients.get(username);
+    }
+
+    /** Usuários conectados em outros nós do cluster. */
+    int getRemoteClientCount() {
+        return remoteClients.size();
+    }
+
+    /** Conexão local do usuário ou, em cluster, a do nó onde ele está; null se offline. */
+    private ClientConnection lookup(String username) {
+        ClientConnection connection = clients.get(username);
+        return connection != null || remoteClients.isEmpty() ? connection : remoteClients.get(username);
+    }
+
+    /** Grupo pelo nome com o ícone, ou null. */
+    ChatGroup getGroup(String groupNameWithIcon) {
+        return groups.get(groupNameWithIcon);
+    }
+
+    /** Visão (somente leitura) dos grupos existentes. */
+    Collection<ChatGroup> getGroups() {
+        return Collections.unmodifiableCollection(groups.values());
+    }
+
+    /** Cópia das lápides dos grupos apagados: nome -> identidade (ver ChatGroup.getId). */
+    Map<String, String> getDeletedGroups() {
+        synchronized (groupLock) {
+            return new LinkedHashMap<>(deletedGroups);
+        }
+    }
+
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    /**
+     * Registra no log as conexões com mais bytes pendentes na fila de saída,
+     * para identificar clientes lentos. Não registra nada se todas as filas estão vazias.
+     */
+    public void logOutboundBacklog(int limit) {
+        List<ClientConnection> backlogged = new ArrayList<>();
+        for (ClientConnection connection : clients.values()) {
+            if (connection.getOutboundDepth() > 0) {
+                backlogged.add(connection);
+            }
+        }
+        if (backlogged.isEmpty()) return;
+        backlogged.sort(Comparator.comparingLong(ClientConnection::getOutboundBytes).reversed());
+        for (ClientConnection connection : backlogged.subList(0, Math.min(limit, backlogged.size()))) {
+            log("INFO", "FILA_SAIDA", connection.getUsername() + ": " + connection.getOutboundDepth() + " quadros, "
+                    + connection.getOutboundBytes() + " bytes, mais antigo há " + connection.getOldestOutboundAgeMillis() + " ms.");
+        }
+    }
+
+    private void log(String level, String category, String message) {
+        logger.log(level, category, message);
+    }
+
+    /**
+     * Registra o cliente após o handshake: rejeita nomes duplicados ou envia a lista inicial
+     * de usuários/grupos, atualiza a lista dos demais e entrega as mensagens guardadas enquanto
+     * ele estava offline.
+     * @return false se o nome de usuário já estiver em uso (a conexão deve ser encerrada).
+     */
+    public boolean registerClient(String username, ClientConnection connection) {
+        boolean added;
+        boolean draining = false;
+        rosterLock.lock(); // Nenhum delta pode chegar ao novo cliente antes do snapshot
+        try {
+            if (remoteClients.containsKey(username)) {
+                log("AVISO", "ADD_CLIENT_DUP", "Usuário '" + username + "' já conectado em outro nó. Nova conexão rejeitada.");
+                added = false;
+            } else {
+                // Marcado antes de a conexão aparecer no lookup (e só se o nome está livre, para não desviar as mensagens de outra sessão)
+                draining = !clients.containsKey(username) && offlineMailbox != null && offlineMailbox.hasMessages(username);
+                if (draining) drainingUsers.add(username);
+                added = addClient(username, connection);
+                if (!added && draining) {
+                    drainingUsers.remove(username);
+                    draining = false;
+                }
+            }
+            if (added) {
+                connection.sendMessage(userListFor(connection)); // Snapshot completo só no login
+                publishPresence(username, true);
+            }
+        } finally {
+            rosterLock.unlock();
+        }
+        if (added) {
+            ClusterNode cluster = this.cluster;
+            if (cluster != null) cluster.userUp(username, connection.getProtocolFlags());
+            deliverOfflineMessages(username);
+            if (draining) drainingUsers.remove(username); // O que entrou na caixa durante a entrega é entregue por quem gravou
+            return true;
+        }
+        Message errorMsg = new Message("Servidor", username, "Erro: Nome de usuário já está em uso.", MessageType.TEXT);
+        errorMsg.setStatus(MessageStatus.FAILED);
+        connection.sendMessage(errorMsg);
+        log("AVISO", "AUTENTICAÇÃO_FALHA", "Nome de usuário '" + username + "' já em uso. Conexão com " + connection.getRemoteSocketAddress() + " será fechada.");
+        return false;
+    }
+
+    public void processMessage(Message msg, String username) {
+        try {
+            switch (msg.getType()) {
+                case PRIVATE:
+                case GROUP:
+                    routeMessage(msg, username);
+                    break;
+
+                case GROUP_CREATE:
+                    String[] parts = msg.getContent().split(";", 2);
+                    if (parts.length < 2) {
+                        log("AVISO", "GRUPO_CRIA_MALFORMADO", "Msg de criação de grupo malformada de " + username);
+                        return;
+                    }
+                    String groupName = parts[0]; // Este é o groupNameWithIcon
+                    List<String> members = Arrays.asList(parts[1].split(","));
+                    createGroup(groupName, members, username);
+                    break;
+
+                case MESSAGE_READ:
+                    String messageIdRead = msg.getMessageId();
+                    String originalSenderOfInitialMsg = msg.getReceiver(); // O receiver da msg de READ é quem enviou a msg original
+                    String readerUsername = msg.getSender(); // Quem leu
+                    notifyMessageStatus(originalSenderOfInitialMsg, messageIdRead, MessageStatus.READ, readerUsername, new Date());
+                    break;
+
+                case READ_WATERMARK:
+                    handleReadWatermark(msg, username);
+                    break;
+
+                case HISTORY_REQUEST:
+                    handleHistoryRequest(msg, username);
+                    break;
+
+                case LEAVE_GROUP:
+                    String groupToLeave = msg.getReceiver(); // O receiver da msg LEAVE_GROUP é o nome do grupo (com ícone)
+                    handleLeaveGroup(groupToLeave, username);
+                    break;
+
+                case GROUP_INFO_REQUEST:
+                    // O 'receiver' da mensagem GROUP_INFO_REQUEST é o nome do grupo do qual se quer informação
+                    String groupNameForInfo = msg.getReceiver();
+                    handleGroupInfoRequest(groupNameForInfo, username);
+                    break;
+
+                case FILE_OFFER:
+                    routeFileFrame(msg, username);
+                    break;
+
+                case FILE_CHUNK:
+                case FILE_COMPLETE:
+                    FileStore.Upload upload = fileStore != null ? fileStore.getUpload(username, msg.getMessageId()) : null;
+                    if (upload != null) {
+                        receiveUpload(msg, username, upload);
+                    } else {
+                        routeFileFrame(msg, username);
+                    }
+                    break;
+
+                case FILE_ANNOUNCE:
+                    handleFileAnnounce(msg, username);
+                    break;
+
+                case FILE_FETCH:
+                    handleFileFetch(msg, username);
+                    break;
+
+                default:
+                    log("AVISO", "TIPO_MSG_DESCONHECIDO", "Tipo de mensagem não reconhecido de " + username + ": " + msg.getType());
+            }
+        } catch (Exception e) {
+            logger.logError("PROCESSAMENTO_MSG_HANDLER", "Erro ao processar mensagem de " + username + ": " + trimContent(msg.toString()), e);
+        }
+    }
+
+    public boolean addClient(String username, ClientConnection handler) {
+        if (clients.putIfAbsent(username, handler) != null) {
+            log("AVISO", "ADD_CLIENT_DUP", "Usuário '" + username + "' já conectado. Nova conexão rejeitada.");
+            return false;
+        }
+        log("INFO", "ADD_CLIENT_OK", "Conectado: " + username + " (" + handler.getRemoteSocketAddress() + ")");
+        return true;
+    }
+
+    public void removeClient(String username) {
+        if (username == null) return;
+        ClientConnection removedHandler = clients.remove(username);
+        if (removedHandler != null) {
+            log("INFO", "REMOVE_CLIENT", "Desconectado: " + username);
+            if (fileStore != null) fileStore.abortUploads(username);
+            if (!running) return; // Desligando: os grupos ficam como estão no GroupJournal e voltam na partida
+            ClusterNode cluster = this.cluster;
+            if (cluster != null) cluster.userDown(username); // Os outros nós tiram o usuário dos grupos sem avisar ninguém
+            // Notificar grupos que o usuário fazia parte (só os dele, pelo índice reverso)
+            for (ChatGroup group : leaveAllGroups(username)) {
+                String groupNameWithIcon = group.getName();
+                log("INFO", "GRUPO_MEMBRO_SAIU_OFF", username + " removido do grupo " + groupNameWithIcon + " (offline)");
+                // Se o grupo ficar vazio devido a desconexão, ele é mantido; handleLeaveGroup o remove numa saída explícita.
+                if (!group.isEmpty()) {
+                    // Notificar membros restantes sobre a saída (devido à desconexão)
+                    String systemMessageContent = username + " saiu do grupo (desconectado).";
+                    Message systemMessage = new Message("Servidor", groupNameWithIcon, systemMessageContent, MessageType.GROUP_SYSTEM_MESSAGE);
+                    sendToMembers(group.members(), systemMessage, null, null);
+                }
+            }
+            publishPresence(username, false);
+        }
+    }
+
+    public String getUserListString(String forWhomUsername) {
+        Set<String> itemsForThisUser = new HashSet<>();
+        for (String clientName : clients.keySet()) {
+            if (!clientName.equals(forWhomUsername)) {
+                itemsForThisUser.add(clientName);
+            }
+        }
+        for (String clientName : remoteClients.keySet()) {
+            if (!clientName.equals(forWhomUsername)) {
+                itemsForThisUser.add(clientName);
+            }
+        }
+        Set<String> memberships = userGroups.get(forWhomUsername);
+        if (memberships != null) {
+            itemsForThisUser.addAll(memberships);
+        }
+        return String.join(",", itemsForThisUser);
+    }
+
+    /**
+     * Tira o usuário (já fora de clients/remoteClients) de todos os grupos dele. Índice e membros mudam sob
+     * groupLock, o mesmo da criação de grupos: um createGroup concorrente ou já viu o usuário sair e não o
+     * inclui, ou o indexou antes e o grupo aparece aqui.
+     * @return Os grupos de que ele saiu.
+     */
+    private List<ChatGroup> leaveAllGroups(String username) {
+        List<ChatGroup> left = new ArrayList<>();
+        synchronized (groupLock) {
+            Set<String> memberships = userGroups.remove(username);
+            for (String groupNameWithIcon : memberships != null ? memberships : Set.<String>of()) {
+                ChatGroup group = groups.get(groupNameWithIcon);
+                if (group != null && removeMember(group, username)) left.add(group);
+            }
+        }
+        return left;
+    }
+
+    /** Apaga o grupo (já vazio, ou vindo de uma lápide) e deixa a lápide dele. Chamar com groupLock. @return false se ele já tinha saído. */
+    private boolean deleteGroup(ChatGroup group) {
+        if (!groups.remove(group.getName(), group)) return false;
+        if (groupJournal != null) groupJournal.logDelete(group.getName());
+        deletedGroups.put(group.getName(), group.getId());
+        return true;
+    }
+
+    /** Tira o membro do grupo e registra a saída no GroupJournal. */
+    private boolean removeMember(ChatGroup group, String username) {
+        synchronized (groupLock) {
+            if (!group.removeMember(username)) return false;
+            if (groupJournal != null) groupJournal.logRemoveMember(group.getName(), username);
+            return true;
+        }
+    }
+
+    /** Índice reverso de membros; chamar com groupLock (ou na partida, antes de aceitar conexões), como o que segue. */
+    private void indexMembership(String username, String groupNameWithIcon) {
+        userGroups.computeIfAbsent(username, k -> ConcurrentHashMap.newKeySet()).add(groupNameWithIcon);
+    }
+
+    private void unindexMembership(String username, String groupNameWithIcon) {
+        userGroups.computeIfPresent(username, (k, memberships) -> {
+            memberships.remove(groupNameWithIcon);
+            return memberships.isEmpty() ? null : memberships;
+        });
+    }
+
+    /** Itens que entraram e saíram de uma lista de contatos; o último evento de cada item prevalece. */
+    private static final class RosterChange {
+        final Set<String> added = new LinkedHashSet<>();
+        final Set<String> removed = new LinkedHashSet<>();
+
+        void add(String item) {
+            removed.remove(item);
+            added.add(item);
+        }
+
+        void remove(String item) {
+            added.remove(item);
+            removed.add(item);
+        }
+
+        void addAll(RosterChange other) {
+            other.added.forEach(this::add);
+            other.removed.forEach(this::remove);
+        }
+
+        boolean mentions(String item) {
+            return added.contains(item) || removed.contains(item);
+        }
+
+        boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+
+        void clear() {
+            added.clear();
+            removed.clear();
+        }
+    }
+
+    /** Um usuário entrou ou saiu: muda a lista de todos os outros clientes. */
+    private void publishPresence(String username, boolean online) {
+        rosterLock.lock();
+        try {
+            if (online) {
+                pendingPresence.add(username);
+            } else {
+                pendingPresence.remove(username);
+            }
+            scheduleRosterFlush();
+        } finally {
+            rosterLock.unlock();
+        }
+    }
+
+    /**
+     * Um item entrou na lista ou saiu da lista de alguns usuários (ex.: os membros de um grupo).
+     * @param added Item que entrou na lista dos destinatários, ou null.
+     * @param removed Item que saiu da lista dos destinatários, ou null.
+     */
+    private void publishRosterChange(Iterable<String> recipients, String added, String removed) {
+        rosterLock.lock();
+        try {
+            for (String username : recipients) {
+                RosterChange change = pendingByUser.computeIfAbsent(username, k -> new RosterChange());
+                if (added != null) change.add(added);
+                if (removed != null) change.remove(removed);
+            }
+            scheduleRosterFlush();
+        } finally {
+            rosterLock.unlock();
+        }
+    }
+
+    /** Chamar com rosterLock. Sem janela, publica na hora. */
+    private void scheduleRosterFlush() {
+        if (rosterFlusher == null) {
+            flushRosterChanges();
+        } else if (!rosterFlushScheduled && running) {
+            rosterFlushScheduled = true;
+            rosterFlusher.schedule(this::flushRosterChanges, rosterWindowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Publica as mudanças acumuladas, com uma nova versão: um ROSTER_DELTA por usuário afetado para
+     * quem aceitou FLAG_ROSTER_DELTAS (quem só foi afetado por entradas/saídas de outros recebe o
+     * mesmo quadro, codificado uma vez) e a lista completa para os demais.
+     */
+    private void flushRosterChanges() {
+        rosterLock.lock();
+        try {
+            rosterFlushScheduled = false;
+            if (!running || (pendingPresence.isEmpty() && pendingByUser.isEmpty())) return;
+            long version = ++rosterVersion;
+            OutboundFrame sharedDelta = null;
+            int deltaCount = 0;
+            int fullListCount = 0;
+            for (ClientConnection connection : clients.values()) {
+                String username = connection.getUsername();
+                RosterChange own = pendingByUser.get(username);
+                RosterChange change = pendingPresence;
+                if (own != null || pendingPresence.mentions(username)) { // Mudança só deste usuário
+                    change = new RosterChange();
+                    change.addAll(pendingPresence);
+                    change.added.remove(username); // A própria entrada não vai para a própria lista
+                    change.removed.remove(username);
+                    if (own != null) change.addAll(own);
+                }
+                if (change.isEmpty() || !connection.isOpen()) continue;
+                if ((connection.getProtocolFlags() & WireProtocol.FLAG_ROSTER_DELTAS) != 0) {
+                    if (change != pendingPresence) {
+                        connection.sendFrame(new OutboundFrame(Roster.delta(version, change.added, change.removed)));
+                    } else {
+                        if (sharedDelta == null) sharedDelta = new OutboundFrame(Roster.delta(version, change.added, change.removed));
+                        connection.sendFrame(sharedDelta);
+                    }
+                    deltaCount++;
+                } else {
+                    connection.sendMessage(userListFor(connection));
+                    fullListCount++;
+                }
+            }
+            log("INFO", "LISTA_CONTATOS_DELTA", "v" + version + ": " + (pendingPresence.added.size() + pendingPresence.removed.size())
+                    + " entradas/saídas e mudanças de grupo para " + pendingByUser.size() + " usuários; delta para " + deltaCount
+                    + " clientes, lista completa para " + fullListCount + ".");
+            pendingPresence.clear();
+            pendingByUser.clear();
+        } finally {
+            rosterLock.unlock();
+        }
+    }
+
+    /** Lista completa para uma conexão: versionada (Roster.snapshot) se ela aceita deltas. Chamar com rosterLock. */
+    private Message userListFor(ClientConnection connection) {
+        String username = connection.getUsername();
+        if ((connection.getProtocolFlags() & WireProtocol.FLAG_ROSTER_DELTAS) != 0) {
+            return Roster.snapshot(username, rosterVersion, getUserListString(username));
+        }
+        return new Message("Servidor", username, getUserListString(username), MessageType.USER_LIST);
+    }
+
+    /** Reenvia a lista de usuários/grupos atual para uma única conexão (ex.: após ela ter perdido atualizações). */
+    void sendUserList(ClientConnection connection) {
+        if (!running || !connection.isOpen()) return;
+        rosterLock.lock();
+        try {
+            connection.sendMessage(userListFor(connection));
+        } finally {
+            rosterLock.unlock();
+        }
+    }
+
+    public void routeMessage(Message msg, String senderUsername) {
+        if (!running) return;
+
+        ClientConnection senderHandler = clients.get(senderUsername);
+        if (senderHandler == null) {
+            log("AVISO", "ROTA_MSG_SENDER_NF", "Remetente " + senderUsername + " não encontrado.");
+            return;
+        }
+
+        SpooledAttachment attachment = spoolAttachment(msg, senderUsername);
+        try {
+            routeMessage(msg, senderUsername, senderHandler, attachment);
+        } finally {
+            if (attachment != null) attachment.release(); // As filas que enfileiraram o anexo seguram as próprias referências
+        }
+    }
+
+    /**
+     * Grava o anexo da mensagem no spool e tira o fileData da mensagem, para que o heap não
+     * segure o arquivo durante o fan-out.
+     * @return O anexo, ou null se a mensagem segue com o fileData (sem spool, anexo pequeno ou erro de disco).
+     */
+    private SpooledAttachment spoolAttachment(Message msg, String senderUsername) {
+        if (spool == null || msg.getFileName() == null || !spool.accepts(msg.getFileData())) return null;
+        try {
+            SpooledAttachment attachment = spool.spool(msg.getFileData());
+            msg.setFileData(null);
+            return attachment;
+        } catch (IOException e) {
+            logger.logError("SPOOL_GRAVACAO", "Erro ao gravar anexo '" + msg.getFileName() + "' de " + senderUsername + ". Repassando pelo heap.", e);
+            return null;
+        }
+    }
+
+    private void routeMessage(Message msg, String senderUsername, ClientConnection senderHandler, SpooledAttachment attachment) {
+        if (msg.getType() == MessageType.PRIVATE) {
+            ClientConnection receiverHandler = lookup(msg.getReceiver());
+            if (receiverHandler != null && attachment == null && drainingUsers.contains(msg.getReceiver())) {
+                receiverHandler = null; // Caixa offline sendo entregue: a mensagem entra na fila atrás das guardadas
+            }
+            if (receiverHandler != null) {
+                deliver(receiverHandler, msg, attachment);
+                if (historyLog != null) historyLog.append(HistoryLog.privateKey(senderUsername, msg.getReceiver()), msg);
+                if (!senderUsername.equals(msg.getReceiver())) {
+                     notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.DELIVERED, msg.getReceiver(), new Date());
+                }
+            } else if (attachment == null && storeOffline(msg)) {
+                if (historyLog != null) historyLog.append(HistoryLog.privateKey(senderUsername, msg.getReceiver()), msg);
+                log("INFO", "ROTA_PRIVADA_OFFLINE", "Destinatário " + msg.getReceiver() + " offline para msg de " + senderUsername + ". Guardada para entrega na reconexão.");
+                notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.SENT, msg.getReceiver(), new Date());
+                if (lookup(msg.getReceiver()) != null) {
+                    deliverOfflineMessages(msg.getReceiver()); // Conectou entre o lookup e a gravação, ou a caixa estava sendo entregue
+                }
+            } else {
+                log("AVISO", "ROTA_PRIVADA_OFFLINE", "Destinatário " + msg.getReceiver() + " offline para msg de " + senderUsername);
+                notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.FAILED, msg.getReceiver(), new Date());
+            }
+        } else if (msg.getType() == MessageType.GROUP) {
+            String groupNameWithIcon = msg.getReceiver();
+            ChatGroup group = groups.get(groupNameWithIcon);
+            Set<String> members = (group != null) ? group.members() : null;
+
+            if (members != null && members.contains(senderUsername)) {
+                Message relayedMsg = new Message(msg.getMessageId(), senderUsername, groupNameWithIcon, msg.getContent(), MessageType.GROUP);
+                relayedMsg.setTimestamp(msg.getTimestamp());
+                if ((msg.getFileData() != null || attachment != null) && msg.getFileName() != null) {
+                    relayedMsg.setFileData(msg.getFileData());
+                    relayedMsg.setFileName(msg.getFileName());
+                }
+
+                int deliveryCount = sendToMembers(members, relayedMsg, attachment, senderUsername); // Não envia para o próprio remetente
+                fanoutSizes.record(deliveryCount);
+                group.recordRelay();
+                if (historyLog != null) historyLog.append(HistoryLog.groupKey(groupNameWithIcon, group.getId()), relayedMsg);
+                if (deliveryCount > 0 || members.size() == 1) {
+                     notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.DELIVERED, groupNameWithIcon, new Date());
+                } else { // Se há outros membros, mas nenhum online
+                     if (logger.isEnabled("DEBUG")) log("DEBUG", "ROTA_GRUPO_DELIVERY_FAIL", "Msg de " + senderUsername + " para grupo " + groupNameWithIcon + ". Nenhum outro membro online para receber.");
+                     notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.SENT, groupNameWithIcon, new Date()); // Marcado como enviado ao servidor
+                }
+                 if (logger.isEnabled("DEBUG")) log("DEBUG", "ROTA_GRUPO_ENVIADA", "Msg de " + senderUsername + " para grupo " + groupNameWithIcon + " encaminhada para " + deliveryCount + " membros.");
+            } else if (members == null) {
+                log("AVISO", "ROTA_GRUPO_FALHA_NE", "Grupo " + groupNameWithIcon + " não existe para msg de " + senderUsername);
+                notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.FAILED, groupNameWithIcon, new Date());
+            } else { // Não é membro
+                 log("AVISO", "ROTA_GRUPO_FALHA_NM", senderUsername + " não é membro do grupo " + groupNameWithIcon + ". Mensagem não enviada.");
+                 Message notMemberMsg = new Message("Servidor", senderUsername, "Você não pode enviar mensagens para o grupo '" + groupNameWithIcon.replace(GROUP_ICON_PREFIX, "") + "' pois não é um membro.", MessageType.TEXT);
+                 senderHandler.sendMessage(notMemberMsg);
+                 notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.FAILED, groupNameWithIcon, new Date());
+            }
+        }
+    }
+
+    /** Guarda a mensagem privada na caixa offline do destinatário (anexos em spool não são guardados). */
+    private boolean storeOffline(Message msg) {
+        return offlineMailbox != null && offlineMailbox.append(msg.getReceiver(), msg);
+    }
+
+    /**
+     * Entrega as mensagens guardadas enquanto o usuário estava offline e avisa cada remetente
+     * ainda online (SENT -> DELIVERED). Remetentes offline não recebem o aviso. Em cluster, a caixa
+     * de cada nó é entregue quando o usuário aparece em qualquer nó.
+     */
+    private void deliverOfflineMessages(String username) {
+        if (offlineMailbox == null || !running) return;
+        ClientConnection connection = lookup(username);
+        if (connection == null) return;
+        Date deliveredTime = new Date();
+        int count = offlineMailbox.drain(username, msg -> {
+            connection.sendMessage(msg);
+            if (!username.equals(msg.getSender())) {
+                String recipient = msg.getType() == MessageType.GROUP ? msg.getReceiver() : username; // Como no envio ao grupo
+                notifyMessageStatus(msg.getSender(), msg.getMessageId(), MessageStatus.DELIVERED, recipient, deliveredTime);
+            }
+        });
+        if (count > 0) {
+            log("INFO", "CAIXA_OFFLINE_ENTREGUE", count + " mensagens guardadas entregues a " + username + ".");
+        }
+    }
+
+    /**
+     * Envia a mesma mensagem para cada membro online da lista. Sem anexo, a mensagem é codificada
+     * uma vez por formato de fio (OutboundFrame) e o mesmo quadro vai para todas as filas. Membros
+     * em outros nós do cluster recebem por um único DELIVER por nó. Membros offline (os recuperados
+     * do GroupJournal continuam no grupo até voltarem) recebem na caixa offline, como nas privadas.
+     * @param attachment Anexo em spool que acompanha a mensagem, ou null.
+     * @param exceptUsername Membro que não deve receber (o remetente), ou null.
+     * @return Quantos membros receberam (os que ficaram na caixa offline não contam).
+     */
+    private int sendToMembers(Collection<String> members, Message message, SpooledAttachment attachment, String exceptUsername) {
+        OutboundFrame frame = attachment == null ? new OutboundFrame(message) : null;
+        Map<String, List<String>> remoteMembers = null; // Por nó
+        List<String> offlineMembers = null;
+        int deliveryCount = 0;
+        for (String memberUsername : members) {
+            if (memberUsername.equals(exceptUsername)) continue;
+            if (attachment == null && drainingUsers.contains(memberUsername)) { // Caixa offline sendo entregue: entra atrás das guardadas
+                if (offlineMembers == null) offlineMembers = new ArrayList<>();
+                offlineMembers.add(memberUsername);
+                continue;
+            }
+            ClientConnection memberHandler = clients.get(memberUsername);
+            if (memberHandler != null) {
+                if (frame != null) {
+                    memberHandler.sendFrame(frame);
+                } else {
+                    memberHandler.sendAttachment(message, attachment);
+                }
+                deliveryCount++;
+            } else {
+                RemoteConnection remote = remoteClients.isEmpty() ? null : remoteClients.get(memberUsername);
+                if (remote != null) {
+                    if (remoteMembers == null) remoteMembers = new HashMap<>();
+                    remoteMembers.computeIfAbsent(remote.getNode(), k -> new ArrayList<>()).add(memberUsername);
+                    deliveryCount++;
+                } else {
+                    if (offlineMembers == null) offlineMembers = new ArrayList<>();
+                    offlineMembers.add(memberUsername);
+                }
+            }
+        }
+        if (remoteMembers != null) deliverToNodes(remoteMembers, message, attachment);
+        if (offlineMembers != null) storeForMembers(offlineMembers, message, attachment);
+        return deliveryCount;
+    }
+
+    /**
+     * Guarda a mensagem de grupo na caixa offline de cada membro da lista; quem conectou (ou está
+     * recebendo a caixa) nesse meio-tempo recebe na hora, como em routeMessage.
+     */
+    private void storeForMembers(List<String> members, Message message, SpooledAttachment attachment) {
+        if (offlineMailbox == null) return;
+        if (attachment != null) {
+            try {
+                message = attachment.inline(message); // A caixa guarda a mensagem inteira
+            } catch (IOException e) {
+                logger.logError("CAIXA_OFFLINE_ANEXO", "Erro ao ler o anexo '" + message.getFileName() + "' para membros offline de " + message.getReceiver() + ". Não guardado.", e);
+                return;
+            }
+        }
+        int stored = 0;
+        for (String member : members) {
+            if (!offlineMailbox.append(member, message)) continue;
+            stored++;
+            if (lookup(member) != null) deliverOfflineMessages(member);
+        }
+        if (stored < members.size()) {
+            log("AVISO", "CAIXA_OFFLINE_GRUPO", "Msg " + message.getMessageId() + " do grupo " + message.getReceiver() + " não guardada para "
+                    + (members.size() - stored) + " de " + members.size() + " membros offline (caixa cheia, mensagem grande demais ou erro de disco).");
+        } else if (logger.isEnabled("DEBUG")) {
+            log("DEBUG", "CAIXA_OFFLINE_GRUPO", "Msg " + message.getMessageId() + " do grupo " + message.getReceiver() + " guardada para " + stored + " membros offline.");
+        }
+    }
+
+    /** Um DELIVER por nó com todos os destinatários de lá; o anexo em spool segue dentro da mensagem. */
+    private void deliverToNodes(Map<String, List<String>> targetsByNode, Message message, SpooledAttachment attachment) {
+        ClusterNode cluster = this.cluster;
+        if (cluster == null) return;
+        if (attachment != null) {
+            try {
+                message = attachment.inline(message);
+            } catch (IOException e) {
+                logger.logError("CLUSTER_ANEXO", "Erro ao ler o anexo '" + message.getFileName() + "' para outros nós. Não entregue.", e);
+                return;
+            }
+        }
+        for (Map.Entry<String, List<String>> node : targetsByNode.entrySet()) {
+            cluster.deliver(node.getKey(), node.getValue(), message);
+        }
+    }
+
+    private static void deliver(ClientConnection connection, Message message, SpooledAttachment attachment) {
+        if (attachment != null) {
+            connection.sendAttachment(message, attachment);
+        } else {
+            connection.sendMessage(message);
+        }
+    }
+
+    /**
+     * Repassa um quadro de transferência em partes (oferta, parte ou conclusão) para o usuário ou
+     * os membros do grupo em msg.getReceiver(). Nada do arquivo fica guardado no servidor: cada parte
+     * vai para as filas de saída dos destinatários e é liberada quando escrita.
+     */
+    public void routeFileFrame(Message msg, String senderUsername) {
+        if (!running) return;
+        if (!senderUsername.equals(msg.getSender())) {
+            log("AVISO", "ARQUIVO_REMETENTE_INVALIDO", senderUsername + " enviou quadro de arquivo em nome de " + msg.getSender() + ". Ignorado.");
+            return;
+        }
+        List<ClientConnection> recipients = fileRecipients(msg.getReceiver(), senderUsername);
+        if (recipients == null) {
+            if (msg.getType() == MessageType.FILE_OFFER) {
+                log("AVISO", "ARQUIVO_DESTINO_INVALIDO", "Destino " + msg.getReceiver() + " indisponível para o arquivo '" + msg.getFileName() + "' de " + senderUsername);
+                notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.FAILED, msg.getReceiver(), new Date());
+            }
+            return; // Partes para um destino que sumiu no meio da transferência são descartadas em silêncio
+        }
+
+        OutboundFrame frame = new OutboundFrame(msg); // Parte de 64 KB: codificada uma vez para o grupo todo
+        Map<String, List<String>> remoteRecipients = null; // Por nó: a parte cruza cada ligação uma vez
+        int deliveryCount = 0;
+        for (ClientConnection recipient : recipients) {
+            if ((recipient.getProtocolFlags() & WireProtocol.FLAG_CHUNKED_FILES) != 0) {
+                if (recipient instanceof RemoteConnection) {
+                    if (remoteRecipients == null) remoteRecipients = new HashMap<>();
+                    remoteRecipients.computeIfAbsent(((RemoteConnection) recipient).getNode(), k -> new ArrayList<>()).add(recipient.getUsername());
+                } else {
+                    recipient.sendFrame(frame);
+                }
+                deliveryCount++;
+            } else if (msg.getType() == MessageType.FILE_OFFER) {
+                sendUnsupportedFileNotice(recipient, senderUsername, msg.getFileName());
+            }
+        }
+        if (remoteRecipients != null) deliverToNodes(remoteRecipients, msg, null);
+
+        if (msg.getType() == MessageType.FILE_OFFER) {
+            log("INFO", "ARQUIVO_OFERTA", senderUsername + " -> " + msg.getReceiver() + ": '" + msg.getFileName() + "' (" + msg.getContent() + " bytes) para " + deliveryCount + " destinatários.");
+        } else if (msg.getType() == MessageType.FILE_COMPLETE) {
+            log("INFO", "ARQUIVO_CONCLUIDO", senderUsername + " -> " + msg.getReceiver() + ": '" + msg.getFileName() + "' entregue a " + deliveryCount + " destinatários.");
+            notifyMessageStatus(senderUsername, msg.getMessageId(), deliveryCount > 0 ? MessageStatus.DELIVERED : MessageStatus.SENT, msg.getReceiver(), new Date());
+        }
+    }
+
+    private static void sendUnsupportedFileNotice(ClientConnection recipient, String senderUsername, String fileName) {
+        recipient.sendMessage(new Message("Servidor", recipient.getUsername(), senderUsername + " enviou o arquivo '" + fileName
+                + "', mas este cliente não suporta transferência em partes. Atualize o cliente para recebê-lo.", MessageType.TEXT));
+    }
+
+    /**
+     * FILE_ANNOUNCE: se o servidor já tem um arquivo com o mesmo hash e o remetente já o teve (enviou
+     * ou recebeu), entrega direto aos destinatários e responde STORED; senão abre o upload no FileStore
+     * e responde UPLOAD. Assim o STORED não revela a ninguém que um arquivo alheio está no servidor.
+     */
+    private void handleFileAnnounce(Message msg, String senderUsername) {
+        if (!running) return;
+        ClientConnection senderConnection = clients.get(senderUsername);
+        if (senderConnection == null) return;
+        if (!senderUsername.equals(msg.getSender())) {
+            log("AVISO", "ARQUIVO_REMETENTE_INVALIDO", senderUsername + " anunciou arquivo em nome de " + msg.getSender() + ". Ignorado.");
+            return;
+        }
+        long size = FileTransfer.descriptorSize(msg);
+        String sha256 = FileTransfer.descriptorSha256(msg);
+        if (fileStore == null || sha256 == null || msg.getFileName() == null) {
+            log("AVISO", "ARQUIVO_ANUNCIO_INVALIDO", "Anúncio de arquivo inválido de " + senderUsername + ": " + trimContent(msg.toString()));
+            notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.FAILED, msg.getReceiver(), new Date());
+            return;
+        }
+        if (size > fileStore.getMaxFileBytes()) {
+            log("AVISO", "ARQUIVO_GRANDE_DEMAIS", senderUsername + " anunciou '" + msg.getFileName() + "' com " + size + " bytes; o limite é " + fileStore.getMaxFileBytes() + ". Recusado.");
+            notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.FAILED, msg.getReceiver(), new Date());
+            return;
+        }
+        if (fileRecipients(msg.getReceiver(), senderUsername) == null) {
+            log("AVISO", "ARQUIVO_DESTINO_INVALIDO", "Destino " + msg.getReceiver() + " indisponível para o arquivo '" + msg.getFileName() + "' de " + senderUsername);
+            notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.FAILED, msg.getReceiver(), new Date());
+            return;
+        }
+
+        boolean stored = fileStore.sizeOf(sha256) == size && fileStore.isGranted(sha256, senderUsername);
+        fileStore.recordAnnounce(stored, size);
+        if (stored) {
+            log("INFO", "ARQUIVO_REAPROVEITADO", senderUsername + " -> " + msg.getReceiver() + ": '" + msg.getFileName() + "' já armazenado (" + size + " bytes não reenviados).");
+            senderConnection.sendMessage(FileTransfer.announceReply(msg.getMessageId(), senderUsername, FileTransfer.REPLY_STORED));
+            deliverStoredFile(msg, senderUsername, size, sha256);
+            return;
+        }
+        if (!fileStore.hasRoomFor(size)) {
+            log("AVISO", "ARMAZENAMENTO_CHEIO", "Sem espaço no armazenamento para '" + msg.getFileName() + "' (" + size + " bytes) de " + senderUsername + ". Recusado.");
+            notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.FAILED, msg.getReceiver(), new Date());
+            return;
+        }
+        try {
+            fileStore.beginUpload(senderUsername, msg, size, sha256);
+        } catch (IOException e) {
+            logger.logError("ARMAZENAMENTO_UPLOAD", "Erro ao abrir upload de '" + msg.getFileName() + "' de " + senderUsername, e);
+            notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.FAILED, msg.getReceiver(), new Date());
+            return;
+        }
+        log("INFO", "ARQUIVO_UPLOAD", senderUsername + " -> " + msg.getReceiver() + ": '" + msg.getFileName() + "' (" + size + " bytes) será enviado ao armazenamento.");
+        senderConnection.sendMessage(FileTransfer.announceReply(msg.getMessageId(), senderUsername, FileTransfer.REPLY_UPLOAD));
+    }
+
+    /** Partes e conclusão de um upload anunciado: vão para o FileStore, não para os destinatários. */
+    private void receiveUpload(Message msg, String senderUsername, FileStore.Upload upload) {
+        Message announce = upload.announce;
+        try {
+            if (msg.getType() == MessageType.FILE_CHUNK) {
+                fileStore.writeChunk(upload, msg); // Uma parte inválida marca o upload como falho; o aviso sai no FILE_COMPLETE
+                return;
+            }
+            if (fileStore.completeUpload(senderUsername, upload)) {
+                deliverStoredFile(announce, senderUsername, upload.size, upload.sha256);
+            } else {
+                log("AVISO", "ARQUIVO_UPLOAD_INVALIDO", "Upload de '" + announce.getFileName() + "' de " + senderUsername + " incompleto ou com hash diferente do anunciado. Descartado.");
+                notifyMessageStatus(senderUsername, announce.getMessageId(), MessageStatus.FAILED, announce.getReceiver(), new Date());
+            }
+        } catch (IOException e) {
+            logger.logError("ARMAZENAMENTO_UPLOAD", "Erro ao gravar upload de '" + announce.getFileName() + "' de " + senderUsername, e);
+            fileStore.abortUpload(senderUsername, upload);
+            notifyMessageStatus(senderUsername, announce.getMessageId(), MessageStatus.FAILED, announce.getReceiver(), new Date());
+        }
+    }
+
+    /**
+     * Entrega um arquivo que já está no FileStore: FILE_REF para quem baixa sob demanda, envio em
+     * partes a partir do disco para quem só suporta FLAG_CHUNKED_FILES, e um aviso para os demais.
+     */
+    private void deliverStoredFile(Message announce, String senderUsername, long size, String sha256) {
+        String transferId = announce.getMessageId();
+        String receiver = announce.getReceiver();
+        List<ClientConnection> recipients = fileRecipients(receiver, senderUsername);
+        if (recipients == null) { // Destino sumiu durante o upload; o arquivo fica armazenado
+            notifyMessageStatus(senderUsername, transferId, MessageStatus.FAILED, receiver, new Date());
+            return;
+        }
+        OutboundFrame reference = new OutboundFrame(FileTransfer.reference(transferId, senderUsername, receiver, announce.getFileName(), size, sha256));
+        int deliveryCount = 0;
+        for (ClientConnection recipient : recipients) {
+            int flags = recipient.getProtocolFlags();
+            if ((flags & WireProtocol.FLAG_FILE_STORE) != 0) {
+                fileStore.grant(sha256, recipient.getUsername()); // Antes do FILE_REF: o cliente pode buscar assim que o recebe
+                recipient.sendFrame(reference);
+                deliveryCount++;
+            } else if ((flags & WireProtocol.FLAG_CHUNKED_FILES) != 0) {
+                fileStore.push(recipient, sha256, size, transferId, senderUsername, receiver, announce.getFileName());
+                deliveryCount++;
+            } else {
+                sendUnsupportedFileNotice(recipient, senderUsername, announce.getFileName());
+            }
+        }
+        log("INFO", "ARQUIVO_CONCLUIDO", senderUsername + " -> " + receiver + ": '" + announce.getFileName() + "' entregue a " + deliveryCount + " destinatários.");
+        notifyMessageStatus(senderUsername, transferId, deliveryCount > 0 ? MessageStatus.DELIVERED : MessageStatus.SENT, receiver, new Date());
+    }
+
+    /** FILE_FETCH: envia em partes o arquivo armazenado com o hash pedido, se ele foi entregue ao usuário. */
+    private void handleFileFetch(Message msg, String username) {
+        if (!running) return;
+        ClientConnection requester = clients.get(username);
+        if (requester == null || (requester.getProtocolFlags() & WireProtocol.FLAG_CHUNKED_FILES) == 0) return;
+        String sha256 = msg.getContent();
+        long size = fileStore != null ? fileStore.sizeOf(sha256) : -1;
+        if (size < 0 || !fileStore.isGranted(sha256, username)) {
+            // Mesma resposta nos dois casos: quem não recebeu o arquivo não descobre se ele existe
+            log("AVISO", "ARQUIVO_BUSCA_NAO_ENCONTRADO", username + " pediu um arquivo que não está armazenado ou não foi entregue a ele: " + trimContent(String.valueOf(sha256)));
+            requester.sendMessage(new Message("Servidor", username, "O arquivo '" + msg.getFileName() + "' não está mais disponível no servidor.", MessageType.TEXT));
+            return;
+        }
+        fileStore.recordFetch();
+        fileStore.touch(sha256);
+        fileStore.push(requester, sha256, size, msg.getMessageId(), "Servidor", username, msg.getFileName());
+    }
+
+    /**
+     * Backpressure de arquivos em partes: indica se o remetente pode ler a próxima parte, isto é, se
+     * nenhum destinatário desta tem mais que {@code pauseBytes} na fila de saída. Se algum tem, espera o
+     * aviso dele (ClientConnection.whenOutboundBelow), confere os demais e só então chama {@code resume}.
+     * Partes de um upload para o FileStore vão para o disco e nunca seguram o remetente.
+     * @return true para seguir já ({@code resume} não é chamado); false se {@code resume} vai ser chamado
+     *         depois, possivelmente em outra thread e até antes deste método voltar.
+     */
+    public boolean awaitFileRecipients(Message msg, String senderUsername, long pauseBytes, Runnable resume) {
+        if (fileStore != null && fileStore.getUpload(senderUsername, msg.getMessageId()) != null) return true;
+        List<ClientConnection> recipients = fileRecipients(msg.getReceiver(), senderUsername);
+        if (recipients == null) return true;
+        for (ClientConnection recipient : recipients) {
+            if (recipient.getOutboundBytes() > pauseBytes) {
+                recipient.whenOutboundBelow(pauseBytes, () -> {
+                    if (awaitFileRecipients(msg, senderUsername, pauseBytes, resume)) resume.run();
+                });
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Conexões que devem receber um quadro de arquivo, ou null se o destino não existe ou o remetente não é membro. */
+    private List<ClientConnection> fileRecipients(String receiver, String senderUsername) {
+        ChatGroup group = groups.get(receiver);
+        if (group != null) {
+            if (!group.contains(senderUsername)) return null;
+            Set<String> members = group.members();
+            List<ClientConnection> recipients = new ArrayList<>(members.size());
+            for (String member : members) {
+                if (member.equals(senderUsername)) continue;
+                ClientConnection connection = lookup(member);
+                if (connection != null) recipients.add(connection);
+            }
+            return recipients;
+        }
+        ClientConnection connection = lookup(receiver);
+        return connection != null ? Collections.singletonList(connection) : null;
+    }
+
+    public void createGroup(String groupNameWithIcon, List<String> membersUsernames, String creatorUsername) {
+        if (!running) return;
+        String cleanGroupName = groupNameWithIcon.replace(GROUP_ICON_PREFIX, "").trim();
+
+        if (groups.containsKey(groupNameWithIcon) || lookup(groupNameWithIcon) != null) {
+            rejectExistingGroupName(groupNameWithIcon, cleanGroupName, creatorUsername);
+            return;
+        }
+
+        Set<String> validMembers = new LinkedHashSet<>(); // Descarta repetidos em O(1)
+        // Garante que o criador está na lista se for válido (no início)
+        if (clients.containsKey(creatorUsername)) {
+            validMembers.add(creatorUsername);
+        }
+        for(String memberName : membersUsernames){
+            if(lookup(memberName) != null){ // Só adiciona membros que estão online/válidos (em qualquer nó)
+                validMembers.add(memberName);
+            } else {
+                 log("AVISO", "GRUPO_CRIA_MEMBRO_OFF", "Membro " + memberName + " não encontrado/offline ao criar grupo " + cleanGroupName);
+            }
+        }
+
+
+        if(validMembers.isEmpty()){
+             log("AVISO", "GRUPO_CRIA_MEMBROS_INSUF", "Grupo '" + cleanGroupName + "' não pôde ser criado pois não há membros válidos online (incluindo o criador).");
+             ClientConnection creatorHandler = clients.get(creatorUsername);
+             if(creatorHandler != null) {
+                creatorHandler.sendMessage(new Message("Servidor", creatorUsername, "Erro: Grupo '" + cleanGroupName + "' não pôde ser criado (sem membros válidos online).", MessageType.TEXT));
+            }
+            return;
+        }
+
+        boolean nameTaken = false;
+        String groupId = UUID.randomUUID().toString();
+        synchronized (groupLock) {
+            // Quem desconectou depois da verificação acima fica de fora: removeClient limpa o índice sob este lock
+            validMembers.removeIf(memberName -> lookup(memberName) == null);
+            // putIfAbsent fecha a corrida entre duas criações simultâneas com o mesmo nome
+            if (!validMembers.isEmpty()) {
+                nameTaken = groups.putIfAbsent(groupNameWithIcon, new ChatGroup(groupNameWithIcon, groupId, validMembers)) != null;
+                if (!nameTaken) {
+                    deletedGroups.remove(groupNameWithIcon); // Nome reusado: a lápide era de outra criação
+                    if (groupJournal != null) groupJournal.logCreate(groupNameWithIcon, groupId, validMembers);
+                    for (String memberName : validMembers) {
+                        indexMembership(memberName, groupNameWithIcon);
+                    }
+                }
+            }
+        }
+        if (nameTaken) {
+            rejectExistingGroupName(groupNameWithIcon, cleanGroupName, creatorUsername);
+            return;
+        }
+        if (validMembers.isEmpty()) {
+            log("AVISO", "GRUPO_CRIA_MEMBROS_INSUF", "Grupo '" + cleanGroupName + "' não pôde ser criado: todos os membros desconectaram durante a criação.");
+            return;
+        }
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) cluster.groupCreated(groupNameWithIcon, groupId, validMembers); // Antes dos avisos: chega aos outros nós pela mesma ligação
+        log("INFO", "GRUPO_CRIADO_SUCESSO", "Grupo: " + groupNameWithIcon + " | Criador: " + creatorUsername + " | Membros: " + validMembers);
+
+        // Notifica o criador sobre a criação
+        ClientConnection creatorHandler = clients.get(creatorUsername);
+        if (creatorHandler != null) {
+            String creatorMsgContent = "Você criou o grupo '" + cleanGroupName + "'.";
+            creatorHandler.sendMessage(new Message("Servidor", groupNameWithIcon, creatorMsgContent, MessageType.GROUP_SYSTEM_MESSAGE));
+        }
+
+        // Notifica os membros (incluindo o criador pela GROUP_CREATE) que foram adicionados
+        // E envia a mensagem de sistema para os outros membros
+        String addedMsgContent = creatorUsername + " adicionou você ao grupo '" + cleanGroupName + "'.";
+        if (validMembers.size() > 1) { // Se há outros membros além do criador
+            addedMsgContent = creatorUsername + " criou o grupo '" + cleanGroupName + "' e adicionou você.";
+        }
+
+        for (String memberName : validMembers) {
+            ClientConnection memberHandler = lookup(memberName);
+            if (memberHandler != null) {
+                // Notificação de que o grupo foi criado e eles são membros (já faz isso com GROUP_CREATE)
+                memberHandler.sendMessage(new Message("Servidor", memberName, groupNameWithIcon, MessageType.GROUP_CREATE));
+
+                // Mensagem de sistema específica
+                if (!memberName.equals(creatorUsername)) {
+                     memberHandler.sendMessage(new Message("Servidor", groupNameWithIcon, addedMsgContent, MessageType.GROUP_SYSTEM_MESSAGE));
+                }
+            }
+        }
+        publishRosterChange(validMembers, groupNameWithIcon, null); // Só a lista dos membros muda (os de outros nós, pelo nó deles)
+    }
+
+    private void rejectExistingGroupName(String groupNameWithIcon, String cleanGroupName, String creatorUsername) {
+        log("AVISO", "GRUPO_CRIA_EXISTENTE", "Tentativa de criar grupo com nome já existente: " + groupNameWithIcon);
+        ClientConnection creatorHandler = clients.get(creatorUsername);
+        if(creatorHandler != null) {
+            creatorHandler.sendMessage(new Message("Servidor", creatorUsername, "Erro: Nome de grupo '" + cleanGroupName + "' já existe.", MessageType.TEXT));
+        }
+    }
+
+    public void handleLeaveGroup(String groupNameWithIcon, String usernameLeaving) {
+        if (!running) return;
+        ChatGroup group = groups.get(groupNameWithIcon);
+        ClientConnection userLeavingHandler = clients.get(usernameLeaving);
+        String cleanGroupName = groupNameWithIcon.replace(GROUP_ICON_PREFIX, "").trim();
+
+        if (group != null && userLeavingHandler != null) {
+            boolean removed;
+            boolean groupDeleted = false;
+            synchronized (groupLock) {
+                removed = removeMember(group, usernameLeaving);
+                if (removed) unindexMembership(usernameLeaving, groupNameWithIcon);
+                if (removed && group.isEmpty()) groupDeleted = deleteGroup(group);
+            }
+            if (removed) {
+                ClusterNode cluster = this.cluster;
+                if (cluster != null) cluster.groupLeft(groupNameWithIcon, usernameLeaving);
+                log("INFO", "GRUPO_SAIDA_MEMBRO", usernameLeaving + " saiu do grupo " + groupNameWithIcon);
+                // Notifica o usuário que ele saiu
+                userLeavingHandler.sendMessage(new Message("Servidor", groupNameWithIcon, "Você saiu do grupo '" + cleanGroupName + "'.", MessageType.GROUP_SYSTEM_MESSAGE));
+                userLeavingHandler.sendMessage(new Message("Servidor", usernameLeaving, groupNameWithIcon, MessageType.GROUP_REMOVED_NOTIFICATION)); // Para GUI remover o chat
+
+
+                Set<String> remainingMembers = group.members();
+                if (groupDeleted) {
+                    log("INFO", "GRUPO_AUTO_DELETE_VAZIO", "Grupo " + groupNameWithIcon + " ficou vazio e foi removido do servidor.");
+                } else {
+                    log("INFO", "GRUPO_MEMBROS_RESTANTES", "Grupo " + groupNameWithIcon + " agora tem " + remainingMembers.size() + " membros: " + remainingMembers);
+                    // Notifica os membros restantes
+                    String systemMessageContent = usernameLeaving + " saiu do grupo '" + cleanGroupName + "'.";
+                    Message systemMessage = new Message("Servidor", groupNameWithIcon, systemMessageContent, MessageType.GROUP_SYSTEM_MESSAGE);
+                    sendToMembers(remainingMembers, systemMessage, null, null);
+                }
+                publishRosterChange(List.of(usernameLeaving), null, groupNameWithIcon); // Só a lista de quem saiu muda
+            } else { // Não era membro, mas tentou sair
+                log("AVISO", "GRUPO_SAIDA_FALHA_NAOMEMBRO", usernameLeaving + " tentou sair do grupo " + groupNameWithIcon + " mas não era membro.");
+                userLeavingHandler.sendMessage(new Message("Servidor", usernameLeaving, groupNameWithIcon, MessageType.GROUP_REMOVED_NOTIFICATION)); // Para GUI se comportar como se tivesse saído
+            }
+        } else {
+            if (group == null && userLeavingHandler != null) {
+                log("AVISO", "GRUPO_SAIDA_FALHA_NAOEXISTE", "Tentativa de sair do grupo " + groupNameWithIcon + " que não existe (notificando cliente).");
+                userLeavingHandler.sendMessage(new Message("Servidor", usernameLeaving, groupNameWithIcon, MessageType.GROUP_REMOVED_NOTIFICATION));
+            }
+            if (userLeavingHandler == null) {
+                log("AVISO", "GRUPO_SAIDA_FALHA_USERNF", "Usuário " + usernameLeaving + " não encontrado ao tentar sair do grupo.");
+            }
+        }
+    }
+
+    public void handleGroupInfoRequest(String groupNameWithIcon, String requestingUsername) {
+        if (!running) return;
+        ClientConnection requesterHandler = clients.get(requestingUsername);
+        if (requesterHandler == null) {
+            log("AVISO", "GRUPO_INFO_REQ_USER_NF", "Usuário solicitante " + requestingUsername + " não encontrado.");
+            return;
+        }
+
+        ChatGroup group = groups.get(groupNameWithIcon);
+        if (group == null) {
+            log("AVISO", "GRUPO_INFO_REQ_GRP_NF", "Grupo " + groupNameWithIcon + " não encontrado para solicitação de info por " + requestingUsername);
+            requesterHandler.sendMessage(new Message("Servidor", requestingUsername, "Erro: Grupo não encontrado.", MessageType.TEXT));
+            return;
+        }
+
+        if (!group.contains(requestingUsername)) {
+            log("AVISO", "GRUPO_INFO_REQ_NOT_MEMBER", requestingUsername + " solicitou info do grupo " + groupNameWithIcon + " mas não é membro.");
+            requesterHandler.sendMessage(new Message("Servidor", requestingUsername, "Erro: Você não é membro deste grupo.", MessageType.TEXT));
+            return;
+        }
+
+        String membersString = String.join(",", group.members());
+        Message infoResponse = new Message("Servidor", groupNameWithIcon, membersString, MessageType.GROUP_INFO_RESPONSE);
+        infoResponse.setReceiver(requestingUsername);
+
+        requesterHandler.sendMessage(infoResponse);
+        log("INFO", "GRUPO_INFO_REQ_SENT", "Informações do grupo " + groupNameWithIcon + " enviadas para " + requestingUsername);
+    }
+
+
+    /**
+     * READ_WATERMARK: um único aviso ao remetente cobre todas as mensagens lidas daquela conversa.
+     * Clientes sem FLAG_READ_WATERMARKS recebem um STATUS_UPDATE de READ por mensagem listada no watermark.
+     */
+    private void handleReadWatermark(Message msg, String readerUsername) {
+        if (!running) return;
+        if (!readerUsername.equals(msg.getSender())) {
+            log("AVISO", "LEITURA_REMETENTE_INVALIDO", readerUsername + " enviou confirmação de leitura em nome de " + msg.getSender() + ". Ignorada.");
+            return;
+        }
+        ClientConnection originalSender = lookup(msg.getReceiver());
+        if (originalSender == null) return; // Remetente offline: a confirmação se perde, como no MESSAGE_READ
+        Date readTime = new Date();
+        if ((originalSender.getProtocolFlags() & WireProtocol.FLAG_READ_WATERMARKS) != 0) {
+            originalSender.sendMessage(ReadWatermark.notice(msg, readTime));
+        } else {
+            // Cliente sem watermark: um STATUS_UPDATE por mensagem do lote, como se cada uma viesse num MESSAGE_READ
+            for (String messageId : ReadWatermark.coveredIds(msg)) {
+                notifyMessageStatus(msg.getReceiver(), messageId, MessageStatus.READ, readerUsername, readTime);
+            }
+        }
+    }
+
+    /**
+     * Responde um HISTORY_REQUEST com a página pedida. Conversas privadas só podem ser lidas por
+     * um dos dois participantes (a chave usa o próprio solicitante) e grupos só pelos membros.
+     */
+    private void handleHistoryRequest(Message request, String username) {
+        ClientConnection connection = clients.get(username);
+        if (connection == null || !running) return;
+        String conversation = request.getReceiver();
+        HistoryLog.Page page = null;
+        if (historyLog != null && conversation != null) {
+            String key = null;
+            if (conversation.startsWith(GROUP_ICON_PREFIX)) {
+                ChatGroup group = groups.get(conversation);
+                if (group != null && group.contains(username)) {
+                    key = HistoryLog.groupKey(conversation, group.getId()); // Um grupo que reusou o nome não lê o histórico do anterior
+                } else {
+                    log("AVISO", "HISTORICO_NEGADO", username + " pediu o histórico de " + conversation + " sem ser membro.");
+                }
+            } else {
+                key = HistoryLog.privateKey(username, conversation);
+            }
+            if (key != null) {
+                try {
+                    page = historyLog.page(key, History.beforeId(request), History.limit(request));
+                } catch (IOException e) {
+                    logger.logError("HISTORICO_LEITURA", "Erro ao ler o histórico de " + conversation + " para " + username, e);
+                }
+            }
+        }
+        connection.sendMessage(page != null ? History.page(request, page.messages, page.more, page.cursor) : History.page(request, List.of(), false, null));
+    }
+
+    // Eventos vindos de outros nós do cluster (ver ClusterNode); só atualizam o estado deste nó
+
+    /** Um usuário entrou em outro nó: aparece na lista daqui e recebe o que estava guardado na caixa offline deste nó. */
+    void remoteUserUp(String node, String username, int protocolFlags) {
+        ClusterNode cluster = this.cluster;
+        if (!running || cluster == null) return;
+        if (clients.containsKey(username)) {
+            log("AVISO", "CLUSTER_USUARIO_DUPLICADO", "Usuário '" + username + "' entrou no nó " + node + " mas já está conectado aqui. Mantida a conexão local.");
+            return;
+        }
+        boolean draining = offlineMailbox != null && offlineMailbox.hasMessages(username); // Como em registerClient
+        if (draining) drainingUsers.add(username);
+        RemoteConnection previous = remoteClients.put(username, new RemoteConnection(username, node, protocolFlags, cluster));
+        if (previous == null) {
+            if (logger.isEnabled("DEBUG")) log("DEBUG", "CLUSTER_USUARIO_ENTROU", username + " conectado no nó " + node);
+            publishPresence(username, true);
+        }
+        deliverOfflineMessages(username);
+        if (draining) drainingUsers.remove(username);
+    }
+
+    /** Um usuário saiu do nó dele: sai da lista e dos grupos, como numa desconexão local, mas sem avisos (o nó dele já avisou). */
+    void remoteUserDown(String node, String username) {
+        RemoteConnection connection = remoteClients.get(username);
+        if (connection == null || !connection.getNode().equals(node) || !remoteClients.remove(username, connection)) return;
+        if (logger.isEnabled("DEBUG")) log("DEBUG", "CLUSTER_USUARIO_SAIU", username + " desconectado do nó " + node);
+        if (!running) return;
+        leaveAllGroups(username);
+        publishPresence(username, false);
+    }
+
+    /**
+     * A ligação com um nó caiu: os usuários dele saem da lista, mas continuam nos grupos (podem
+     * estar conectados lá; voltam com a ressincronização).
+     * @return Quantos usuários saíram.
+     */
+    int removeRemoteNode(String node) {
+        int removed = 0;
+        for (RemoteConnection connection : remoteClients.values()) {
+            if (connection.getNode().equals(node) && remoteClients.remove(connection.getUsername(), connection)) {
+                publishPresence(connection.getUsername(), false);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Grupo criado em outro nó ou, na ressincronização, o estado dele naquele nó. Membros só saem
+     * de um grupo depois da criação, então as duas cópias do mesmo grupo (mesma identidade) se
+     * juntam pela interseção: quem não está na cópia do outro nó saiu lá (ou saiu daqui e ele
+     * ainda não sabia, e sai dele quando este nó reenviar o seu estado). Um grupo com lápide
+     * daqui não é recriado; se já existe outro grupo com o nome, o daqui prevalece.
+     */
+    void applyRemoteGroup(String node, String groupNameWithIcon, String groupId, Set<String> members) {
+        if (!running) return;
+        List<String> departed = new ArrayList<>();
+        boolean created = false;
+        boolean deleted = false;
+        synchronized (groupLock) {
+            ChatGroup group = groups.get(groupNameWithIcon);
+            if (group == null) {
+                if (groupId.equals(deletedGroups.get(groupNameWithIcon))) return; // Apagado aqui; a lápide vai para ele na ressincronização
+                group = new ChatGroup(groupNameWithIcon, groupId, members);
+                groups.put(groupNameWithIcon, group);
+                deletedGroups.remove(groupNameWithIcon);
+                if (groupJournal != null) groupJournal.logCreate(groupNameWithIcon, groupId, members);
+                for (String memberName : members) {
+                    indexMembership(memberName, groupNameWithIcon);
+                }
+                created = true;
+            } else if (group.getId().equals(groupId)) {
+                for (String memberName : new ArrayList<>(group.members())) {
+                    if (!members.contains(memberName) && removeMember(group, memberName)) {
+                        unindexMembership(memberName, groupNameWithIcon);
+                        departed.add(memberName);
+                    }
+                }
+                if (!departed.isEmpty() && group.isEmpty()) deleted = deleteGroup(group);
+            } else {
+                log("AVISO", "CLUSTER_GRUPO_CONFLITO", "Grupo " + groupNameWithIcon + " do nó " + node + " é outro grupo com o mesmo nome de um daqui. Mantido o daqui.");
+                return;
+            }
+        }
+        if (created) {
+            log("INFO", "CLUSTER_GRUPO_CRIADO", "Grupo " + groupNameWithIcon + " criado no nó " + node + " | Membros: " + members);
+            List<String> localMembers = new ArrayList<>();
+            for (String memberName : members) {
+                if (clients.containsKey(memberName)) localMembers.add(memberName);
+            }
+            if (!localMembers.isEmpty()) publishRosterChange(localMembers, groupNameWithIcon, null);
+        } else if (!departed.isEmpty()) {
+            log("INFO", "CLUSTER_GRUPO_RESSINCRONIZADO", departed + " saíram do grupo " + groupNameWithIcon + " segundo o nó " + node
+                    + (deleted ? "; o grupo ficou vazio e foi removido." : "."));
+            publishRosterChange(departed, null, groupNameWithIcon); // Só quem está conectado aqui recebe (ver flushRosterChanges)
+        }
+    }
+
+    /** Lápide de um grupo apagado em outro nó: a cópia daqui (se for o mesmo grupo) é apagada. */
+    void applyRemoteDelete(String node, String groupNameWithIcon, String groupId) {
+        if (!running) return;
+        List<String> members;
+        synchronized (groupLock) {
+            ChatGroup group = groups.get(groupNameWithIcon);
+            if (group == null) {
+                deletedGroups.putIfAbsent(groupNameWithIcon, groupId);
+                return;
+            }
+            if (!group.getId().equals(groupId)) return; // Outro grupo com o mesmo nome, criado depois
+            members = new ArrayList<>(group.members());
+            for (String memberName : members) {
+                if (removeMember(group, memberName)) unindexMembership(memberName, groupNameWithIcon);
+            }
+            deleteGroup(group);
+        }
+        log("INFO", "CLUSTER_GRUPO_APAGADO", "Grupo " + groupNameWithIcon + " foi apagado no nó " + node + "; removido daqui (membros: " + members + ").");
+        if (!members.isEmpty()) publishRosterChange(members, null, groupNameWithIcon);
+    }
+
+    /** Saída explícita de um grupo em outro nó; o grupo é removido se ficar vazio, como em handleLeaveGroup. */
+    void applyRemoteLeave(String node, String groupNameWithIcon, String username) {
+        if (!running) return;
+        ChatGroup group = groups.get(groupNameWithIcon);
+        if (group == null) return;
+        synchronized (groupLock) {
+            if (!removeMember(group, username)) return;
+            unindexMembership(username, groupNameWithIcon);
+            if (group.isEmpty()) deleteGroup(group);
+        }
+        if (logger.isEnabled("DEBUG")) log("DEBUG", "CLUSTER_GRUPO_SAIDA", username + " saiu do grupo " + groupNameWithIcon + " no nó " + node);
+    }
+
+    /** Quadro DELIVER: entrega a mensagem aos destinatários que estão conectados neste nó. */
+    void deliverFromCluster(List<String> targets, Message msg) {
+        if (!running) return;
+        OutboundFrame frame = new OutboundFrame(msg);
+        for (String target : targets) {
+            ClientConnection connection = clients.get(target);
+            if (connection != null) connection.sendFrame(frame); // Desconectou enquanto o quadro cruzava a ligação: descartado
+        }
+    }
+
+    public void notifyMessageStatus(String userToNotify, String messageId, MessageStatus status, String relatedInfo, Date eventTimestamp) {
+        if (!running && status != MessageStatus.FAILED) return;
+        ClientConnection handlerToNotify = lookup(userToNotify);
+        if (handlerToNotify != null) {
+            String statusContent = String.format("%s:%s:%s:%d",
+                                                 messageId,
+                                                 status.name(),
+                                                 (relatedInfo != null ? relatedInfo : ""),
+                                                 eventTimestamp.getTime());
+
+            Message statusUpdateMsg = new Message(newServerMessageId(), "Servidor", userToNotify, statusContent, MessageType.STATUS_UPDATE);
+            handlerToNotify.sendMessage(statusUpdateMsg);
+        }
+    }
+
+    /**
+     * Id para mensagens geradas pelo servidor no caminho quente (STATUS_UPDATE).
+     * UUID.randomUUID() usa um SecureRandom compartilhado, que vira ponto de contenção
+     * entre threads; aqui o id só precisa ser único, não imprevisível.
+     */
+    static String newServerMessageId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+
+    public static String trimContent(String content) {
+        if (content == null) return "<null>";
+        return content.length() > 40 ? content.substring(0, 37) + "..." : content;
+    }
+}
@@ -0,0 +1,60 @@
+package server;
+
+import common.Message;
+import java.net.SocketAddress;
+
+/**
+ * Conexão de um cliente vista pelo roteamento do servidor.
+ * Implementada tanto pelo ClientHandler (uma thread por conexão) quanto pela
+ * NioConnection (event loop com Selector).
+ */
+public interface ClientConnection {
+
+    String getUsername();
+
+    SocketAddress getRemoteSocketAddress();
+
+    /** Indica se a conexão ainda está aberta e pode receber mensagens. */
+    boolean isOpen();
+
+    /** Enfileira a mensagem para envio; não bloqueia esperando o socket. */
+    void sendMessage(Message msg);
+
+    /**
+     * Como sendMessage, mas com uma mensagem compartilhada entre várias conexões (fan-out):
+     * a codificação é reaproveitada por todas as conexões com o mesmo formato de fio.
+     */
+    void sendFrame(OutboundFrame frame);
+
+    /**
+     * Enfileira a mensagem seguida de um anexo em spool ({@code msg} vem sem fileData). Com o codec
+     * binário o anexo é escrito direto do disco; nos demais codecs ele é lido de volta para a mensagem.
+     */
+    void sendAttachment(Message msg, SpooledAttachment attachment);
+
+    void closeClientSocket();
+
+    /** Flags de WireProtocol aceitas no handshake (0 no protocolo legado). */
+    int getProtocolFlags();
+
+    /** Quadros aguardando na fila de saída. */
+    int getOutboundDepth();
+
+    /** Bytes aguardando na fila de saída. */
+    long getOutboundBytes();
+
+    /**
+     * Roda {@code callback} uma vez quando a fila de saída tiver {@code bytes} bytes ou menos (na hora,
+     * se já tem), ou quando a conexão fechar. Pode rodar na thread que escreve no socket: não deve bloquear.
+     */
+    void whenOutboundBelow(long bytes, Runnable callback);
+
+    /** Idade do quadro mais antigo na fila de saída, em milissegundos (0 se vazia). */
+    long getOldestOutboundAgeMillis();
+
+    /** Mensagens lidas desta conexão desde o login. */
+    long getReceivedMessages();
+
+    /** Bytes já entregues ao socket desta conexão, incluindo anexos. */
+    long getSentBytes();
+}
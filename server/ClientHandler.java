@@ -2,30 +2,61 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import common.Message;
 import common.MessageType;
-import common.MessageStatus;
-import java.util.Arrays;
+import common.WireProtocol;
 import java.util.Date;
-import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Atende uma conexão com I/O bloqueante. É um Runnable (não uma Thread) para poder rodar
+ * tanto num pool de threads de plataforma quanto numa thread virtual por conexão.
+ * A leitura acontece em run(); a escrita fica com um writer separado, que esvazia a
+ * OutboundQueue da conexão, de modo que sendMessage nunca bloqueia quem roteia.
+ */
+public class ClientHandler implements Runnable, ClientConnection {
+    private static final int STREAM_BUFFER_SIZE = 2048; // Buffers pequenos: muitas conexões ociosas por processo
 
-public class ClientHandler extends Thread {
     private Socket socket;
     private Server server;
+    private static final long WRITER_DRAIN_TIMEOUT_MS = 2000; // Tempo para o writer entregar o que restou ao encerrar
+
     private ObjectInputStream in;
-    private ObjectOutputStream out;
+    private DataInputStream framedIn;
+    private OutputStream socketOut; // Só o writer escreve aqui depois do handshake
+    private boolean framed;
+    private int flags; // Flags aceitas no handshake (protocolo enquadrado)
+    private final byte[] prefetched; // Bytes já lidos do socket antes do handler assumir (ex.: repassado pelo modo NIO)
     private String username;
+    private boolean registered = false;
     private volatile boolean running = true;
+    private final OutboundQueue outbound;
+    private final CountDownLatch writerDone = new CountDownLatch(1);
+    private volatile CountDownLatch fileRecipientsDrained; // Leitura parada esperando destinatários de um arquivo
+    private boolean writerStarted = false;
+    private volatile long receivedMessages = 0; // Só a thread de leitura escreve
+    private volatile long sentBytes = 0; // Só o writer escreve
 
     public ClientHandler(Socket socket, Server server) {
+        this(socket, server, new byte[0]);
+    }
+
+    public ClientHandler(Socket socket, Server server, byte[] prefetched) {
         this.socket = socket;
         this.server = server;
+        this.prefetched = prefetched;
+        this.outbound = new OutboundQueue(server.getConfig().getOutboundMaxBytes());
     }
 
+    @Override
     public String getUsername() {
         return this.username;
     }
 
+    @Override
     public SocketAddress getRemoteSocketAddress() {
         if (socket != null) {
             return socket.getRemoteSocketAddress();
@@ -37,8 +68,17 @@ public class ClientHandler extends Thread {
         return this.socket;
     }
 
+    @Override
+    public boolean isOpen() {
+        return running && socket != null && !socket.isClosed() && socket.isConnected();
+    }
+
+    @Override
     public void closeClientSocket() {
         this.running = false;
+        outbound.discard();
+        CountDownLatch paused = fileRecipientsDrained;
+        if (paused != null) paused.countDown();
         try {
             if (socket != null && !socket.isClosed()) {
                 socket.close();
@@ -52,33 +92,36 @@ public class ClientHandler extends Thread {
     @Override
     public void run() {
         try {
-            out = new ObjectOutputStream(socket.getOutputStream());
-            out.flush(); 
-            in = new ObjectInputStream(socket.getInputStream());
+            openStreams();
+            server.log("INFO", "AUTENTICAÇÃO", "Usuário '" + username + "' conectando de " + socket.getInetAddress().getHostAddress() + (framed ? " (protocolo enquadrado)" : " (protocolo legado)"));
 
-            this.username = (String) in.readObject();
-            server.log("INFO", "AUTENTICAÇÃO", "Usuário '" + username + "' conectando de " + socket.getInetAddress().getHostAddress());
-
-            if (!server.addClient(username, this)) {
-                Message errorMsg = new Message("Servidor", username, "Erro: Nome de usuário já está em uso.", MessageType.TEXT);
-                errorMsg.setStatus(MessageStatus.FAILED);
-                sendMessage(errorMsg);
-                server.log("AVISO", "AUTENTICAÇÃO_FALHA", "Nome de usuário '" + username + "' já em uso. Conexão com " + getRemoteSocketAddress() + " será fechada.");
-                this.running = false; 
-            } else {
-                Message firstUserList = new Message("Servidor", username, server.getUserListString(this.username), MessageType.USER_LIST);
-                sendMessage(firstUserList);
-                server.broadcastUserList(); 
+            writerStarted = true;
+            server.startWriter(this::writeLoop);
+
+            registered = server.registerClient(username, this);
+            if (!registered) {
+                this.running = false;
             }
 
             while (running && socket.isConnected() && !socket.isClosed()) {
-                Message msg = (Message) in.readObject();
-                if (!running) break; 
+                Message msg = readMessage();
+                long receivedAt = System.nanoTime();
+                if (!running) break;
 
                 if (msg.getTimestamp() == null) {
                     msg.setTimestamp(new Date());
                 }
-                processMessage(msg);
+                receivedMessages++;
+                server.getMetrics().messageReceived(msg.getType());
+                ServerMetrics.beginInbound(receivedAt);
+                try {
+                    server.processMessage(msg, username);
+                } finally {
+                    ServerMetrics.endInbound();
+                }
+                if (msg.getType() == MessageType.FILE_CHUNK) {
+                    waitForFileRecipients(msg);
+                }
             }
         } catch (EOFException e) {
             if (running) server.log("INFO", "CONEXÃO_EOF", "Cliente " + (username != null ? username : getRemoteSocketAddress()) + " desconectou (EOF).");
@@ -87,7 +130,7 @@ public class ClientHandler extends Thread {
         }
         catch (IOException e) {
             if (running) {
-                if ("Connection reset".equalsIgnoreCase(e.getMessage()) || e.getMessage().toLowerCase().contains("socket closed") || e.getMessage().toLowerCase().contains("stream closed")) {
+                if ("Connection reset".equalsIgnoreCase(e.getMessage()) || (e.getMessage() != null && (e.getMessage().toLowerCase().contains("socket closed") || e.getMessage().toLowerCase().contains("stream closed")))) {
                      server.log("INFO", "CONEXÃO_IO_RESET", "Conexão com " + (username != null ? username : getRemoteSocketAddress()) + " foi encerrada.");
                 } else {
                     server.logError("CONEXÃO_IO_HANDLER", "Erro de I/O com " + (username != null ? username : getRemoteSocketAddress()), e);
@@ -96,86 +139,225 @@ public class ClientHandler extends Thread {
         } catch (ClassNotFoundException e) {
             if (running) server.logError("PROTOCOLO_HANDLER_CNFE", "Erro de classe não encontrada de " + (username != null ? username : getRemoteSocketAddress()), e);
         } finally {
-            if (username != null) {
-                server.removeClient(username); 
+            if (registered) {
+                server.removeClient(username);
             }
             closeResourcesFinal();
+            server.handlerFinished(this);
             if(running) server.log("INFO", "HANDLER_END", "Thread do ClientHandler para " + (username != null ? username : "desconhecido") + " terminada.");
              else server.log("INFO", "HANDLER_SHUTDOWN", "Thread do ClientHandler para " + (username != null ? username : "desconhecido") + " desligada (running=false).");
         }
     }
 
-    private void processMessage(Message msg) {
-        if (!running) return;
+    /**
+     * Backpressure de arquivos em partes: não lê a próxima parte enquanto algum destinatário
+     * ainda tem partes demais na fila de saída. Só esta conexão espera; as demais seguem normais.
+     */
+    private void waitForFileRecipients(Message chunk) {
+        CountDownLatch drained = new CountDownLatch(1);
+        fileRecipientsDrained = drained;
         try {
-            switch (msg.getType()) {
-                case PRIVATE:
-                case GROUP: 
-                    server.routeMessage(msg, username);
-                    break;
-
-                case GROUP_CREATE:
-                    String[] parts = msg.getContent().split(";", 2);
-                    if (parts.length < 2) {
-                        server.log("AVISO", "GRUPO_CRIA_MALFORMADO", "Msg de criação de grupo malformada de " + username);
-                        return;
-                    }
-                    String groupName = parts[0]; // Este é o groupNameWithIcon
-                    List<String> members = Arrays.asList(parts[1].split(","));
-                    server.createGroup(groupName, members, username);
-                    break;
-
-                case MESSAGE_READ:
-                    String messageIdRead = msg.getMessageId();
-                    String originalSenderOfInitialMsg = msg.getReceiver(); // O receiver da msg de READ é quem enviou a msg original
-                    String readerUsername = msg.getSender(); // Quem leu
-                    server.notifyMessageStatus(originalSenderOfInitialMsg, messageIdRead, MessageStatus.READ, readerUsername, new Date());
-                    break;
-
-                case LEAVE_GROUP:
-                    String groupToLeave = msg.getReceiver(); // O receiver da msg LEAVE_GROUP é o nome do grupo (com ícone)
-                    server.handleLeaveGroup(groupToLeave, username); 
-                    break;
-                
-                case GROUP_INFO_REQUEST:
-                    // O 'receiver' da mensagem GROUP_INFO_REQUEST é o nome do grupo do qual se quer informação
-                    String groupNameForInfo = msg.getReceiver(); 
-                    server.handleGroupInfoRequest(groupNameForInfo, username);
-                    break;
-
-                default:
-                    server.log("AVISO", "TIPO_MSG_DESCONHECIDO", "Tipo de mensagem não reconhecido de " + username + ": " + msg.getType());
+            if (running && !server.awaitFileRecipients(chunk, username, drained::countDown)) {
+                drained.await(); // closeClientSocket também libera
             }
-        } catch (Exception e) {
-            server.logError("PROCESSAMENTO_MSG_HANDLER", "Erro ao processar mensagem de " + username + ": " + server.trimContent(msg.toString()), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            fileRecipientsDrained = null;
         }
     }
 
+    /**
+     * Detecta o protocolo pelo primeiro par de bytes (cabeçalho 0xACED do ObjectOutputStream
+     * no protocolo legado, MAGIC no enquadrado), abre os streams correspondentes e lê o username.
+     */
+    private void openStreams() throws IOException, ClassNotFoundException {
+        InputStream socketIn = socket.getInputStream();
+        if (prefetched.length > 0) {
+            socketIn = new SequenceInputStream(new ByteArrayInputStream(prefetched), socketIn);
+        }
+        BufferedInputStream bufferedIn = new BufferedInputStream(socketIn, STREAM_BUFFER_SIZE);
+        bufferedIn.mark(2);
+        int b0 = bufferedIn.read();
+        int b1 = bufferedIn.read();
+        if (b0 < 0 || b1 < 0) {
+            throw new EOFException("Conexão encerrada antes do handshake.");
+        }
+        bufferedIn.reset();
+        framed = !WireProtocol.isLegacyStreamHeader((byte) b0, (byte) b1);
+
+        socketOut = new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE);
+        if (framed) {
+            framedIn = new DataInputStream(bufferedIn);
+            int requestedFlags = WireProtocol.readHandshake(framedIn);
+            flags = requestedFlags & WireProtocol.SUPPORTED_FLAGS;
+            WireProtocol.writeHandshake(socketOut, flags);
+            this.username = WireProtocol.decodeUsername(WireProtocol.readFrame(framedIn));
+        } else {
+            // Escreve o cabeçalho do ObjectOutputStream; as mensagens seguem como trechos com TC_RESET
+            socketOut.write(WireProtocol.LEGACY_STREAM_HEADER);
+            socketOut.flush();
+            in = new ObjectInputStream(bufferedIn);
+            this.username = (String) in.readObject();
+        }
+    }
+
+    private Message readMessage() throws IOException, ClassNotFoundException {
+        if (framed) {
+            byte[] payload = WireProtocol.readFrame(framedIn);
+            return WireProtocol.decodeMessage(payload, 0, payload.length, flags, server.getCompressor());
+        }
+        return (Message) in.readObject();
+    }
+
+    @Override
     public void sendMessage(Message msg) {
-        if (!running || out == null || socket == null || socket.isOutputShutdown() || socket.isClosed()) {
+        sendFrame(new OutboundFrame(msg));
+    }
+
+    @Override
+    public void sendFrame(OutboundFrame outboundFrame) {
+        if (!running) {
             return;
         }
+        if (server.getSlowConsumerPolicy().shouldDrop(this, outboundFrame.message().getType())) {
+            return;
+        }
+        byte[] frame;
         try {
-            synchronized(out) {
-                out.writeObject(msg);
-                out.flush();
+            frame = outboundFrame.encode(framed, flags, server.getCompressor());
+        } catch (IOException e) {
+            server.logError("ENVIO_CLIENTE_CODEC", "Erro ao codificar mensagem para " + username, e);
+            return;
+        }
+        enqueue(frame, null);
+    }
+
+    @Override
+    public void sendAttachment(Message msg, SpooledAttachment attachment) {
+        if (!framed || (flags & WireProtocol.FLAG_BINARY_CODEC) == 0) {
+            try {
+                sendMessage(attachment.inline(msg));
+            } catch (IOException e) {
+                server.logError("SPOOL_LEITURA", "Erro ao ler anexo em spool para " + username, e);
             }
+            return;
+        }
+        if (!running || server.getSlowConsumerPolicy().shouldDrop(this, msg.getType())) {
+            return;
+        }
+        try {
+            enqueue(WireProtocol.fileFrameHeader(msg, attachment.size(), flags), attachment);
+        } catch (IOException e) {
+            server.logError("ENVIO_CLIENTE_CODEC", "Erro ao codificar mensagem para " + username, e);
+        }
+    }
+
+    private void enqueue(byte[] frame, SpooledAttachment attachment) {
+        if (!outbound.offer(frame, attachment) && !outbound.isClosed()) {
+            server.log("AVISO", "FILA_SAIDA_CHEIA", "Fila de saída de " + username + " cheia (" + outbound.bytes() + " bytes, " + outbound.depth() + " quadros). Fechando conexão.");
+            this.closeClientSocket();
+        }
+    }
+
+    /** Writer da conexão: esvazia a fila de saída e só faz flush quando ela fica vazia. */
+    private void writeLoop() {
+        try {
+            OutboundQueue.Entry entry;
+            while ((entry = outbound.take()) != null) {
+                try {
+                    socketOut.write(entry.frame);
+                    if (entry.attachment != null) {
+                        socketOut.flush();
+                        writeAttachment(entry.attachment);
+                    }
+                } finally {
+                    entry.release();
+                }
+                if (outbound.isEmpty()) {
+                    socketOut.flush();
+                }
+                sentBytes += entry.length();
+                server.getMetrics().frameWritten(entry);
+            }
+            socketOut.flush();
         } catch (SocketException se) {
             if (running) server.log("AVISO","ENVIO_MSG_SOCKET_EX", "SocketException ao enviar para " + username +": " + se.getMessage() + ". Fechando socket.");
-            this.closeClientSocket(); 
-        }
-        catch (IOException e) {
+            this.closeClientSocket();
+        } catch (IOException e) {
             if (running) server.logError("ENVIO_CLIENTE_IO_HANDLER", "Erro de I/O ao enviar mensagem para " + username, e);
-            this.closeClientSocket(); 
+            this.closeClientSocket();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.closeClientSocket();
+        } finally {
+            writerDone.countDown();
         }
     }
 
+    /**
+     * Escreve o anexo direto do disco. Com o socket aberto por um canal (ver Server.start) o
+     * transferTo vira sendfile; sem canal, cai numa cópia pelo stream em blocos pequenos.
+     */
+    private void writeAttachment(SpooledAttachment attachment) throws IOException {
+        WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socketOut);
+        long position = 0;
+        while (position < attachment.size()) {
+            position += attachment.transferTo(position, target);
+        }
+    }
+
+    @Override
+    public int getProtocolFlags() {
+        return flags;
+    }
+
+    @Override
+    public int getOutboundDepth() {
+        return outbound.depth();
+    }
+
+    @Override
+    public long getOutboundBytes() {
+        return outbound.bytes();
+    }
+
+    @Override
+    public void whenOutboundBelow(long bytes, Runnable callback) {
+        outbound.whenBelow(bytes, callback);
+    }
+
+    @Override
+    public long getOldestOutboundAgeMillis() {
+        return outbound.oldestAgeMillis();
+    }
+
+    @Override
+    public long getReceivedMessages() {
+        return receivedMessages;
+    }
+
+    @Override
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
     private void closeResourcesFinal() {
+        outbound.finish(); // Deixa o writer entregar o que já estava na fila (ex.: aviso de login recusado)
+        if (writerStarted) {
+            try {
+                writerDone.await(WRITER_DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         try {
             if (in != null) in.close();
+            if (framedIn != null) framedIn.close();
         } catch (IOException e) { /* ignora no shutdown */ }
+        outbound.discard();
         try {
-            if (out != null) out.close();
+            if (socket != null && !socket.isClosed()) socket.close();
         } catch (IOException e) { /* ignora no shutdown */ }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,62 @@
+package server;
+
+import java.beans.ConstructorProperties;
+import java.util.List;
+
+/**
+ * Registro de clientes conectados, publicado via JMX como chat.server:type=Clientes.
+ * Atributos e operações são lidos na hora, direto das conexões; nada é amostrado.
+ */
+public interface ClientsMXBean {
+
+    int getConnectedCount();
+
+    List<String> getUsernames();
+
+    /** Estado da conexão do usuário, ou null se ele não está conectado. */
+    ConnectionInfo describe(String username);
+
+    /** As {@code limit} conexões que mais enviaram mensagens desde o login. */
+    List<ConnectionInfo> topByReceivedMessages(int limit);
+
+    /** As {@code limit} conexões com mais bytes parados na fila de saída. */
+    List<ConnectionInfo> topByOutboundBytes(int limit);
+
+    /** Fecha a conexão do usuário como se o socket tivesse caído. Retorna false se ele não está conectado. */
+    boolean disconnect(String username);
+
+    /** Estatísticas de uma conexão (vira CompositeData no jconsole). */
+    final class ConnectionInfo {
+        private final String username;
+        private final String address;
+        private final int protocolFlags;
+        private final int outboundDepth;
+        private final long outboundBytes;
+        private final long oldestOutboundAgeMillis;
+        private final long receivedMessages;
+        private final long sentBytes;
+
+        @ConstructorProperties({"username", "address", "protocolFlags", "outboundDepth", "outboundBytes",
+                "oldestOutboundAgeMillis", "receivedMessages", "sentBytes"})
+        public ConnectionInfo(String username, String address, int protocolFlags, int outboundDepth, long outboundBytes,
+                              long oldestOutboundAgeMillis, long receivedMessages, long sentBytes) {
+            this.username = username;
+            this.address = address;
+            this.protocolFlags = protocolFlags;
+            this.outboundDepth = outboundDepth;
+            this.outboundBytes = outboundBytes;
+            this.oldestOutboundAgeMillis = oldestOutboundAgeMillis;
+            this.receivedMessages = receivedMessages;
+            this.sentBytes = sentBytes;
+        }
+
+        public String getUsername() { return username; }
+        public String getAddress() { return address; }
+        public int getProtocolFlags() { return protocolFlags; }
+        public int getOutboundDepth() { return outboundDepth; }
+        public long getOutboundBytes() { return outboundBytes; }
+        public long getOldestOutboundAgeMillis() { return oldestOutboundAgeMillis; }
+        public long getReceivedMessages() { return receivedMessages; }
+        public long getSentBytes() { return sentBytes; }
+    }
+}
@@ -0,0 +1,472 @@
+package server;
+
+import common.Message;
+import common.MessageCodec;
+import common.WireProtocol;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ligações deste servidor com os demais nós de um cluster (-Dchat.server.cluster.*).
+ *
+ * Cada usuário pertence ao nó onde está a sua sessão: o cliente conecta num nó qualquer e é ele
+ * que roteia o que o usuário envia. Os outros nós só precisam saber onde cada usuário está e quais
+ * grupos existem; esse diretório é replicado por eventos (USER_UP, USER_DOWN, GROUP_CREATED,
+ * GROUP_LEFT, GROUP_DELETED) e, para quem está em outro nó, o ChatRouter usa uma RemoteConnection cujos envios
+ * viram quadros DELIVER, com a lista de destinatários daquele nó e a mensagem no codec binário.
+ * O fan-out de grupo manda um único DELIVER por nó, com todos os membros que estão lá.
+ *
+ * Cada nó disca para todos os outros (uma ligação de saída por nó, com uma thread de escrita e
+ * uma fila) e aceita as ligações deles (uma thread de leitura por nó). Ao estabelecer uma ligação
+ * de saída, o nó reenvia o seu estado inteiro: usuários locais, cada grupo com os membros atuais e
+ * as lápides dos grupos apagados. O estado de um grupo não só cria o que falta: quem não está na
+ * lista sai da cópia do outro nó (ver ChatRouter.applyRemoteGroup), e uma lápide apaga a cópia,
+ * então saídas e remoções perdidas durante uma queda da ligação são reconciliadas. Quando a
+ * ligação vinda de um nó cai, os usuários dele saem da lista até ela voltar; os grupos ficam
+ * como estão até a ressincronização.
+ *
+ * As ligações não são autenticadas: a porta do cluster deve ficar numa rede só dos servidores.
+ */
+final class ClusterNode {
+
+    private static final byte[] MAGIC = {'C', 'H', 'N', '2'}; // 2: grupos com identidade e lápides
+    private static final byte HEARTBEAT = 0;     // Ligação ociosa; só mantém a detecção de falhas
+    private static final byte USER_UP = 1;       // [usuário][flags]
+    private static final byte USER_DOWN = 2;     // [usuário]
+    private static final byte GROUP_CREATED = 3; // [grupo][identidade][n][membros...], também o estado na ressincronização
+    private static final byte GROUP_LEFT = 4;    // [grupo][usuário]
+    private static final byte DELIVER = 5;       // [n][destinatários...][Message no MessageCodec]
+    private static final byte GROUP_DELETED = 6; // [grupo][identidade], lápide reenviada na ressincronização
+    private static final long LINK_MAX_BYTES = 64L * 1024 * 1024; // Acima disso a ligação é refeita e o estado reenviado
+    private static final int CONNECT_TIMEOUT_MS = 2_000;
+    private static final long RECONNECT_MIN_MS = 100;
+    private static final long RECONNECT_MAX_MS = 5_000;
+    private static final long HEARTBEAT_MS = 1_000;
+    private static final int READ_TIMEOUT_MS = 10_000; // Sem quadros (nem heartbeat) por esse tempo, o outro nó é dado como fora
+    private static final byte[] HEARTBEAT_PAYLOAD = {HEARTBEAT};
+    private static final byte[] RECONNECT = new byte[0]; // Marca na fila: refazer a ligação de saída
+
+    private final String nodeName;
+    private final int port;
+    private final ChatRouter router;
+    private final ServerLog logger;
+    private final Map<String, Link> links = new LinkedHashMap<>(); // Ligações de saída, por nó; fixo após o construtor
+    private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>(); // Ligação de entrada ativa de cada nó
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder framesDropped = new LongAdder();
+    private ServerSocket listener;
+    private volatile boolean running = false;
+
+    ClusterNode(String nodeName, int port, Map<String, InetSocketAddress> peers, ChatRouter router, ServerLog logger) {
+        this.nodeName = nodeName;
+        this.port = port;
+        this.router = router;
+        this.logger = logger;
+        for (Map.Entry<String, InetSocketAddress> peer : peers.entrySet()) {
+            links.put(peer.getKey(), new Link(peer.getKey(), peer.getValue()));
+        }
+    }
+
+    /** Escuta na porta do cluster e começa a discar para os outros nós; as ligações sobem em segundo plano. */
+    void open() throws IOException {
+        listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress(port));
+        running = true;
+        startDaemon(this::acceptLoop, "cluster-aceitar");
+        for (Link link : links.values()) {
+            startDaemon(link, "cluster-saida-" + link.peer);
+        }
+    }
+
+    void close() {
+        running = false;
+        try {
+            if (listener != null) listener.close();
+        } catch (IOException e) {
+            // Já fechado
+        }
+        for (Socket socket : inbound.values()) closeQuietly(socket);
+        for (Link link : links.values()) link.disconnect();
+    }
+
+    String summary() {
+        int up = 0;
+        for (Link link : links.values()) {
+            if (link.up) up++;
+        }
+        return "nó " + nodeName + " (porta " + port + "): " + up + "/" + links.size() + " ligações de saída, " + inbound.size()
+                + " de entrada, " + router.getRemoteClientCount() + " usuários em outros nós, " + framesSent.sum() + " quadros enviados, "
+                + framesReceived.sum() + " recebidos, " + framesDropped.sum() + " descartados.";
+    }
+
+    long getFrames() {
+        return framesSent.sum() + framesReceived.sum();
+    }
+
+    // Eventos do ChatRouter local, replicados para todos os nós
+
+    void userUp(String username, int protocolFlags) {
+        broadcast(payload(USER_UP, out -> {
+            out.writeUTF(username);
+            out.writeInt(protocolFlags);
+        }));
+    }
+
+    void userDown(String username) {
+        broadcast(payload(USER_DOWN, out -> out.writeUTF(username)));
+    }
+
+    void groupCreated(String groupNameWithIcon, String groupId, Collection<String> members) {
+        broadcast(groupCreatedPayload(groupNameWithIcon, groupId, members));
+    }
+
+    void groupLeft(String groupNameWithIcon, String username) {
+        broadcast(payload(GROUP_LEFT, out -> {
+            out.writeUTF(groupNameWithIcon);
+            out.writeUTF(username);
+        }));
+    }
+
+    /** Entrega a mensagem aos usuários {@code targets}, todos conectados em {@code node}. */
+    void deliver(String node, Collection<String> targets, Message msg) {
+        Link link = links.get(node);
+        if (link == null) return;
+        link.send(payload(DELIVER, out -> {
+            out.writeInt(targets.size());
+            for (String target : targets) out.writeUTF(target);
+            out.write(MessageCodec.encode(msg));
+        }));
+    }
+
+    // Estado das ligações, lido pelas RemoteConnection
+
+    SocketAddress getPeerAddress(String node) {
+        Link link = links.get(node);
+        return link != null ? link.address : null;
+    }
+
+    boolean isLinkUp(String node) {
+        Link link = links.get(node);
+        return link != null && link.up;
+    }
+
+    int getLinkDepth(String node) {
+        Link link = links.get(node);
+        return link != null ? link.queue.size() : 0;
+    }
+
+    long getLinkBytes(String node) {
+        Link link = links.get(node);
+        return link != null ? Math.max(0, link.pendingBytes.get()) : 0;
+    }
+
+    /** Roda {@code callback} quando a ligação com o nó tiver {@code bytes} pendentes ou menos (ou cair). */
+    void whenLinkBelow(String node, long bytes, Runnable callback) {
+        Link link = links.get(node);
+        if (link == null) {
+            callback.run();
+            return;
+        }
+        link.drained.await(bytes, callback, () -> Math.max(0, link.pendingBytes.get()));
+    }
+
+    void attachmentError(Message msg, String username, IOException e) {
+        logger.logError("CLUSTER_ANEXO", "Erro ao ler o anexo '" + msg.getFileName() + "' para " + username + " em outro nó. Não entregue.", e);
+    }
+
+    private void broadcast(byte[] payload) {
+        for (Link link : links.values()) link.send(payload);
+    }
+
+    private static byte[] groupCreatedPayload(String groupNameWithIcon, String groupId, Collection<String> members) {
+        List<String> copy = new ArrayList<>(members); // O conjunto de um ChatGroup pode mudar entre o tamanho e a iteração
+        return payload(GROUP_CREATED, out -> {
+            out.writeUTF(groupNameWithIcon);
+            out.writeUTF(groupId);
+            out.writeInt(copy.size());
+            for (String member : copy) out.writeUTF(member);
+        });
+    }
+
+    private interface Fields {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] payload(byte kind, Fields fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(kind);
+            fields.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream não lança
+        }
+        return bytes.toByteArray();
+    }
+
+    // Ligações de entrada
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                startDaemon(() -> readLink(socket), "cluster-entrada-" + socket.getRemoteSocketAddress());
+            } catch (IOException e) {
+                if (running) logger.logError("CLUSTER_ACEITAR", "Erro ao aceitar ligação de outro nó", e);
+            }
+        }
+    }
+
+    private void readLink(Socket socket) {
+        String peer = null;
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new StreamCorruptedException("Cabeçalho de ligação de cluster inválido");
+            String name = in.readUTF();
+            if (!links.containsKey(name)) {
+                logger.log("AVISO", "CLUSTER_NO_DESCONHECIDO", "Ligação de " + socket.getRemoteSocketAddress() + " como nó '" + name
+                        + "', que não está em chat.server.cluster.nos. Recusada.");
+                return;
+            }
+            peer = name;
+            Socket previous = inbound.put(peer, socket);
+            if (previous != null) closeQuietly(previous); // O nó reiniciou ou refez a ligação
+            logger.log("INFO", "CLUSTER_ENTRADA", "Nó " + peer + " conectado (" + socket.getRemoteSocketAddress() + ").");
+            while (running) {
+                dispatch(peer, WireProtocol.readFrame(in));
+            }
+        } catch (EOFException e) {
+            // O outro nó fechou a ligação
+        } catch (IOException e) {
+            if (running && peer != null && inbound.get(peer) == socket) {
+                logger.log("AVISO", "CLUSTER_ENTRADA_ERRO", "Ligação vinda do nó " + peer + " interrompida: " + e.getMessage());
+            } else if (peer == null) {
+                logger.log("AVISO", "CLUSTER_ENTRADA_ERRO", "Ligação de cluster inválida de " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+            }
+        } finally {
+            if (peer != null && inbound.remove(peer, socket) && running) { // Não substituída por uma ligação mais nova
+                links.get(peer).reconnect(); // O nó pode ter reiniciado: a ligação de saída ociosa não percebe sozinha e ele precisa do estado daqui
+                int removed = router.removeRemoteNode(peer);
+                logger.log("AVISO", "CLUSTER_NO_CAIU", "Ligação vinda do nó " + peer + " encerrada; " + removed + " usuários dele saem da lista até ela voltar.");
+            }
+        }
+    }
+
+    private void dispatch(String peer, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte kind = in.readByte();
+        if (kind == HEARTBEAT) return;
+        framesReceived.increment();
+        switch (kind) {
+            case USER_UP:
+                router.remoteUserUp(peer, in.readUTF(), in.readInt());
+                break;
+            case USER_DOWN:
+                router.remoteUserDown(peer, in.readUTF());
+                break;
+            case GROUP_CREATED:
+                String groupName = in.readUTF();
+                String groupId = in.readUTF();
+                int count = in.readInt();
+                Set<String> members = new LinkedHashSet<>();
+                for (int i = 0; i < count; i++) members.add(in.readUTF());
+                router.applyRemoteGroup(peer, groupName, groupId, members);
+                break;
+            case GROUP_DELETED:
+                router.applyRemoteDelete(peer, in.readUTF(), in.readUTF());
+                break;
+            case GROUP_LEFT:
+                router.applyRemoteLeave(peer, in.readUTF(), in.readUTF());
+                break;
+            case DELIVER:
+                int targetCount = in.readInt();
+                List<String> targets = new ArrayList<>(targetCount);
+                for (int i = 0; i < targetCount; i++) targets.add(in.readUTF());
+                int offset = payload.length - in.available();
+                Message msg = MessageCodec.decode(payload, offset, payload.length - offset);
+                ServerMetrics.beginInbound(System.nanoTime()); // A latência deste nó conta a partir da chegada pela ligação
+                try {
+                    router.deliverFromCluster(targets, msg);
+                } finally {
+                    ServerMetrics.endInbound();
+                }
+                break;
+            default:
+                throw new StreamCorruptedException("Quadro de cluster desconhecido: " + kind);
+        }
+    }
+
+    // Ligações de saída
+
+    /** Ligação de saída para um nó: fila de quadros e a thread que disca, reenvia o estado e escreve. */
+    private final class Link implements Runnable {
+        final String peer;
+        final InetSocketAddress address;
+        final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        final AtomicLong pendingBytes = new AtomicLong();
+        final BacklogSignal drained = new BacklogSignal();
+        volatile boolean up = false;
+        private volatile Socket socket;
+        private volatile Thread thread;
+
+        Link(String peer, InetSocketAddress address) {
+            this.peer = peer;
+            this.address = address;
+        }
+
+        /** Enfileira o quadro; com a ligação fora ele é descartado (o estado volta na ressincronização). */
+        void send(byte[] payload) {
+            if (!up) {
+                framesDropped.increment();
+                return;
+            }
+            if (pendingBytes.addAndGet(payload.length) > LINK_MAX_BYTES) {
+                pendingBytes.addAndGet(-payload.length);
+                framesDropped.increment();
+                logger.log("AVISO", "CLUSTER_SAIDA_CHEIA", "Ligação com o nó " + peer + " passou de " + LINK_MAX_BYTES + " bytes pendentes. Refazendo a ligação.");
+                closeQuietly(socket);
+                return;
+            }
+            queue.add(payload);
+        }
+
+        String describe() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+
+        /** Faz a thread de escrita fechar a ligação e discar de novo, reenviando o estado. */
+        void reconnect() {
+            if (up) queue.add(RECONNECT);
+        }
+
+        void disconnect() {
+            closeQuietly(socket);
+            Thread writer = thread;
+            if (writer != null) writer.interrupt();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            long backoff = RECONNECT_MIN_MS;
+            boolean reported = false; // Falha já registrada desde a última ligação
+            while (running) {
+                try (Socket s = new Socket()) {
+                    s.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MS);
+                    s.setTcpNoDelay(true);
+                    socket = s;
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+                    out.write(MAGIC);
+                    out.writeUTF(nodeName);
+                    up = true;
+                    sendState();
+                    logger.log("INFO", "CLUSTER_SAIDA", "Ligação com o nó " + peer + " (" + describe() + ") estabelecida; estado local reenviado.");
+                    backoff = RECONNECT_MIN_MS;
+                    reported = false;
+                    while (running) {
+                        byte[] payload = queue.poll();
+                        if (payload == null) {
+                            out.flush(); // Escreve em lote o que chegou junto
+                            payload = queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                            if (payload == null) payload = HEARTBEAT_PAYLOAD;
+                        }
+                        if (payload == RECONNECT) throw new IOException("ligação vinda dele caiu");
+                        drained.signal(pendingBytes.addAndGet(-payload.length));
+                        WireProtocol.writeFrame(out, payload);
+                        if (payload != HEARTBEAT_PAYLOAD) framesSent.increment();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    if (running && (up || !reported)) {
+                        logger.log("AVISO", "CLUSTER_SAIDA_FALHA", "Sem ligação com o nó " + peer + " (" + describe() + "): " + e.getMessage()
+                                + ". Tentando de novo em segundo plano.");
+                        reported = true;
+                    }
+                } finally {
+                    up = false;
+                    socket = null;
+                    framesDropped.add(queue.size());
+                    queue.clear();
+                    pendingBytes.set(0);
+                    drained.signal(0);
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, RECONNECT_MAX_MS);
+            }
+        }
+
+        /**
+         * Usuários locais, grupos e lápides. Eventos de outras threads podem se intercalar com estes
+         * quadros: como membros só saem de grupos, um estado já velho ao chegar não desfaz uma saída
+         * (a junção é a interseção) e o outro nó chega ao mesmo estado.
+         */
+        private void sendState() {
+            for (ClientConnection connection : router.getConnections()) {
+                send(payload(USER_UP, out -> {
+                    out.writeUTF(connection.getUsername());
+                    out.writeInt(connection.getProtocolFlags());
+                }));
+            }
+            for (ChatGroup group : router.getGroups()) {
+                send(groupCreatedPayload(group.getName(), group.getId(), group.members()));
+            }
+            for (Map.Entry<String, String> deleted : router.getDeletedGroups().entrySet()) {
+                send(payload(GROUP_DELETED, out -> {
+                    out.writeUTF(deleted.getKey());
+                    out.writeUTF(deleted.getValue());
+                }));
+            }
+        }
+    }
+
+    private static void startDaemon(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Já fechado
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Trava exclusiva de um diretório de armazenamento, tomada no open() de cada store e solta no
+ * close(). Impede que dois servidores (dois nós do cluster esquecidos no mesmo diretório, ou uma
+ * segunda instância) gravem os mesmos segmentos e apaguem os arquivos um do outro na partida.
+ * A trava é do sistema operacional: some sozinha se o processo morrer, sem arquivo a limpar.
+ */
+final class DirectoryLock implements AutoCloseable {
+
+    private static final String FILE_NAME = ".lock";
+
+    /** O diretório já está travado por outro processo (ou por outro store neste). A partida deve falhar. */
+    static final class HeldException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        HeldException(Path directory) {
+            super("O diretório " + directory.toAbsolutePath() + " já está em uso por outro servidor"
+                    + " (use -Dchat.server.dados.dir ou -Dchat.server.cluster.no diferentes para cada processo)");
+        }
+    }
+
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    private DirectoryLock(FileChannel channel, FileLock lock) {
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /** Cria o diretório, se preciso, e trava o seu arquivo .lock sem esperar. */
+    static DirectoryLock acquire(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        FileChannel channel = FileChannel.open(directory.resolve(FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null; // Já travado nesta mesma JVM
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new HeldException(directory);
+        }
+        return new DirectoryLock(channel, lock);
+    }
+
+    @Override
+    public void close() {
+        try {
+            lock.release();
+            channel.close();
+        } catch (IOException e) {
+            // O fechamento do canal solta a trava de qualquer forma
+        }
+    }
+}
@@ -0,0 +1,511 @@
+package server;
+
+import common.FileTransfer;
+import common.Message;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Armazenamento de arquivos por conteúdo (SHA-256), usado com WireProtocol.FLAG_FILE_STORE.
+ *
+ * Cada arquivo fica em {@code diretório/ab/abcdef...} (as duas primeiras letras do hash
+ * separam os subdiretórios). Uploads são gravados em {@code tmp/} e só entram no armazenamento
+ * depois de conferido o hash anunciado. Como o nome é o próprio hash, o mesmo PDF repassado
+ * para vários chats é guardado e enviado ao servidor uma única vez.
+ *
+ * A entrega para quem não baixa por referência (e os downloads pedidos com FILE_FETCH) sai em
+ * partes numa thread própria, respeitando o backlog da fila de saída de cada destinatário.
+ *
+ * Só baixa (ou reaproveita num anúncio) quem já teve o arquivo: quem o enviou ou recebeu um
+ * FILE_REF dele. Essas permissões ficam em {@code diretório/ab/abcdef....acesso}, uma por linha.
+ * Arquivos sem uso há mais que a retenção são apagados, e os menos usados também, quando o total
+ * passa do limite.
+ */
+final class FileStore {
+
+    private static final int PUSH_CHUNKS_PER_RUN = 16; // Depois disso cede a vez para os outros envios
+    private static final long SWEEP_INTERVAL_MS = 60_000;
+    private static final long TOUCH_PERSIST_MS = TimeUnit.HOURS.toMillis(1); // Grava o último uso no mtime no máximo a cada hora
+    private static final String GRANTS_SUFFIX = ".acesso";
+
+    public static final class Limits {
+        final long maxFileBytes;
+        final long maxTotalBytes;
+        final long retentionMillis;
+
+        /**
+         * @param maxFileBytes    Maior arquivo aceito num FILE_ANNOUNCE.
+         * @param maxTotalBytes   Acima disso a limpeza apaga os arquivos usados há mais tempo, e uploads novos são recusados.
+         * @param retentionMillis Arquivos sem uso há mais que isso são apagados (0 desliga).
+         */
+        public Limits(long maxFileBytes, long maxTotalBytes, long retentionMillis) {
+            this.maxFileBytes = Math.max(1, maxFileBytes);
+            this.maxTotalBytes = Math.max(this.maxFileBytes, maxTotalBytes);
+            this.retentionMillis = Math.max(0, retentionMillis);
+        }
+    }
+
+    /** Arquivo armazenado. O último uso (anúncio, FILE_REF entregue, download) decide a retenção. */
+    private static final class Blob {
+        final long size;
+        volatile long lastUsedMillis;
+        volatile long persistedUseMillis; // Último uso já gravado no mtime do arquivo
+
+        Blob(long size, long lastUsedMillis) {
+            this.size = size;
+            this.lastUsedMillis = lastUsedMillis;
+            this.persistedUseMillis = lastUsedMillis;
+        }
+    }
+
+    /** Upload em andamento, anunciado com FILE_ANNOUNCE. Só a thread de leitura do remetente acessa. */
+    static final class Upload {
+        final Message announce;
+        final long size;
+        final String sha256;
+        private final Path tempFile;
+        private final FileChannel channel;
+        private final MessageDigest digest = FileTransfer.newDigest();
+        private long received = 0;
+        private boolean failed = false;
+
+        private Upload(Message announce, long size, String sha256, Path tempFile, FileChannel channel) {
+            this.announce = announce;
+            this.size = size;
+            this.sha256 = sha256;
+            this.tempFile = tempFile;
+            this.channel = channel;
+        }
+    }
+
+    private final Path directory;
+    private final Path tempDirectory;
+    private final Limits limits;
+    private final long pauseBytes;
+    private final ServerLog logger;
+    private final ConcurrentHashMap<String, Blob> index = new ConcurrentHashMap<>(); // Key: sha256
+    private final ConcurrentHashMap<String, Set<String>> grants = new ConcurrentHashMap<>(); // Key: sha256; lido do disco sob demanda
+    private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>(); // Key: remetente + id da transferência
+    private final ScheduledExecutorService pushExecutor;
+    private DirectoryLock directoryLock; // Entre open() e close()
+
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong uploadingBytes = new AtomicLong(); // Anunciado pelos uploads em andamento
+    private final LongAdder announces = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+    private final LongAdder fetches = new LongAdder();
+    private final LongAdder pushedBytes = new LongAdder();
+    private final LongAdder removedFiles = new LongAdder();
+
+    FileStore(Path directory, Limits limits, long pauseBytes, ServerLog logger) {
+        this.directory = directory;
+        this.tempDirectory = directory.resolve("tmp");
+        this.limits = limits;
+        this.pauseBytes = pauseBytes;
+        this.logger = logger;
+        this.pushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "file-store-push");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Trava o diretório, apaga uploads incompletos e indexa os arquivos já armazenados. */
+    void open() throws IOException {
+        directoryLock = DirectoryLock.acquire(directory);
+        Files.createDirectories(tempDirectory);
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(tempDirectory)) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover);
+            }
+        }
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(directory, "??")) {
+            for (Path prefix : prefixes) {
+                if (!Files.isDirectory(prefix)) continue;
+                try (DirectoryStream<Path> blobs = Files.newDirectoryStream(prefix)) {
+                    for (Path blob : blobs) {
+                        String sha256 = blob.getFileName().toString();
+                        if (!FileTransfer.isSha256Hex(sha256)) continue; // Arquivos de permissões
+                        long size = Files.size(blob);
+                        if (index.putIfAbsent(sha256, new Blob(size, Files.getLastModifiedTime(blob).toMillis())) == null) {
+                            storedBytes.addAndGet(size);
+                        }
+                    }
+                }
+            }
+        }
+        pushExecutor.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    void close() {
+        pushExecutor.shutdownNow();
+        if (directoryLock != null) directoryLock.close();
+        directoryLock = null;
+    }
+
+    /** @return O tamanho do arquivo armazenado com este hash, ou -1 se não existe. */
+    long sizeOf(String sha256) {
+        if (!FileTransfer.isSha256Hex(sha256)) return -1;
+        Blob blob = index.get(sha256);
+        return blob != null ? blob.size : -1;
+    }
+
+    /** Maior arquivo aceito num anúncio. */
+    long getMaxFileBytes() {
+        return limits.maxFileBytes;
+    }
+
+    /** Indica se um upload deste tamanho cabe no limite total, contando os uploads em andamento. */
+    boolean hasRoomFor(long size) {
+        return storedBytes.get() + uploadingBytes.get() + size <= limits.maxTotalBytes;
+    }
+
+    /** Indica se o usuário já teve este arquivo (enviou ou recebeu um FILE_REF) e pode reaproveitá-lo ou baixá-lo. */
+    boolean isGranted(String sha256, String username) {
+        if (!index.containsKey(sha256)) return false;
+        Set<String> users = grantsOf(sha256);
+        synchronized (users) {
+            return users.contains(username);
+        }
+    }
+
+    /** Permite ao usuário baixar o arquivo e marca o uso; a permissão é gravada em segundo plano. */
+    void grant(String sha256, String username) {
+        touch(sha256);
+        Set<String> users = grantsOf(sha256);
+        synchronized (users) {
+            if (!users.add(username)) return;
+        }
+        executeQuietly(() -> {
+            try {
+                Files.writeString(grantsPath(sha256), username + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                logger.logError("ARMAZENAMENTO_ACESSO", "Erro ao gravar a permissão de " + username + " para " + sha256, e);
+            }
+        });
+    }
+
+    /** Marca o uso do arquivo para a retenção. */
+    void touch(String sha256) {
+        Blob blob = index.get(sha256);
+        if (blob == null) return;
+        long now = System.currentTimeMillis();
+        blob.lastUsedMillis = now;
+        if (now - blob.persistedUseMillis < TOUCH_PERSIST_MS) return;
+        blob.persistedUseMillis = now;
+        executeQuietly(() -> {
+            try {
+                Files.setLastModifiedTime(blobPath(sha256), FileTime.fromMillis(now)); // A retenção sobrevive ao restart
+            } catch (IOException e) { /* Apagado nesse meio tempo */ }
+        });
+    }
+
+    private Set<String> grantsOf(String sha256) {
+        return grants.computeIfAbsent(sha256, key -> {
+            Set<String> users = new HashSet<>();
+            try {
+                Path file = grantsPath(key);
+                if (Files.exists(file)) {
+                    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                        if (!line.isEmpty()) users.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                logger.logError("ARMAZENAMENTO_ACESSO", "Erro ao ler as permissões de " + key, e);
+            }
+            return users;
+        });
+    }
+
+    /**
+     * Apaga os arquivos sem uso há mais que a retenção e, se o total ainda passa do limite, os usados
+     * há mais tempo. Um envio em andamento de um arquivo apagado termina com erro no log.
+     */
+    private void sweep() {
+        long cutoff = limits.retentionMillis > 0 ? System.currentTimeMillis() - limits.retentionMillis : Long.MIN_VALUE;
+        List<Map.Entry<String, Blob>> byUse = new ArrayList<>(index.entrySet());
+        byUse.sort(Comparator.comparingLong(entry -> entry.getValue().lastUsedMillis));
+        int removed = 0;
+        long freed = 0;
+        for (Map.Entry<String, Blob> entry : byUse) {
+            Blob blob = entry.getValue();
+            if (blob.lastUsedMillis >= cutoff && storedBytes.get() <= limits.maxTotalBytes) break;
+            if (remove(entry.getKey(), blob)) {
+                removed++;
+                freed += blob.size;
+            }
+        }
+        if (removed > 0) {
+            removedFiles.add(removed);
+            logger.log("INFO", "ARMAZENAMENTO_LIMPEZA", removed + " arquivos (" + freed + " bytes) apagados por retenção ou limite de espaço.");
+        }
+    }
+
+    private boolean remove(String sha256, Blob blob) {
+        try {
+            Files.deleteIfExists(blobPath(sha256));
+            Files.deleteIfExists(grantsPath(sha256));
+        } catch (IOException e) {
+            logger.logError("ARMAZENAMENTO_REMOCAO", "Erro ao apagar o arquivo armazenado " + sha256, e);
+            return false;
+        }
+        if (index.remove(sha256, blob)) storedBytes.addAndGet(-blob.size);
+        grants.remove(sha256);
+        return true;
+    }
+
+    private void executeQuietly(Runnable task) {
+        try {
+            pushExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            /* Servidor desligando */
+        }
+    }
+
+    /** Registra um FILE_ANNOUNCE para as métricas de reaproveitamento. */
+    void recordAnnounce(boolean hit, long size) {
+        announces.increment();
+        if (hit) {
+            hits.increment();
+            savedBytes.add(size);
+        }
+    }
+
+    Upload beginUpload(String sender, Message announce, long size, String sha256) throws IOException {
+        Path tempFile = Files.createTempFile(tempDirectory, "upload-", ".part");
+        FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+        Upload upload = new Upload(announce, size, sha256, tempFile, channel);
+        uploadingBytes.addAndGet(size);
+        Upload previous = uploads.put(uploadKey(sender, announce.getMessageId()), upload);
+        if (previous != null) discard(previous);
+        return upload;
+    }
+
+    Upload getUpload(String sender, String transferId) {
+        return transferId != null ? uploads.get(uploadKey(sender, transferId)) : null;
+    }
+
+    /**
+     * Grava uma parte do upload. Partes fora de ordem ou além do tamanho anunciado marcam o upload
+     * como falho; as partes seguintes são ignoradas até o FILE_COMPLETE.
+     */
+    void writeChunk(Upload upload, Message chunk) throws IOException {
+        if (upload.failed) return;
+        byte[] data = chunk.getFileData();
+        long offset = FileTransfer.parseLong(chunk);
+        if (data == null || offset != upload.received || upload.received + data.length > upload.size) {
+            upload.failed = true;
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            upload.channel.write(buffer, offset + buffer.position());
+        }
+        upload.digest.update(data);
+        upload.received += data.length;
+    }
+
+    /**
+     * Encerra o upload: confere tamanho e hash e move o arquivo para o armazenamento.
+     * @return false se o upload falhou ou o conteúdo não bate com o anunciado (o arquivo é descartado).
+     */
+    boolean completeUpload(String sender, Upload upload) throws IOException {
+        if (uploads.remove(uploadKey(sender, upload.announce.getMessageId()), upload)) {
+            uploadingBytes.addAndGet(-upload.size);
+        }
+        upload.channel.close();
+        boolean valid = !upload.failed && upload.received == upload.size
+                && FileTransfer.toHex(upload.digest.digest()).equals(upload.sha256);
+        if (!valid) {
+            Files.deleteIfExists(upload.tempFile);
+            return false;
+        }
+        Path blob = blobPath(upload.sha256);
+        Files.createDirectories(blob.getParent());
+        try {
+            Files.move(upload.tempFile, blob, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(upload.tempFile, blob, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (index.putIfAbsent(upload.sha256, new Blob(upload.size, System.currentTimeMillis())) == null) { // Dois uploads simultâneos do mesmo arquivo contam uma vez
+            storedBytes.addAndGet(upload.size);
+        }
+        grant(upload.sha256, sender);
+        return true;
+    }
+
+    /** Descarta os uploads incompletos do usuário (desconectou no meio). */
+    void abortUploads(String sender) {
+        String prefix = sender + '\n';
+        uploads.entrySet().removeIf(entry -> {
+            if (!entry.getKey().startsWith(prefix)) return false;
+            discard(entry.getValue());
+            return true;
+        });
+    }
+
+    void abortUpload(String sender, Upload upload) {
+        if (uploads.remove(uploadKey(sender, upload.announce.getMessageId()), upload)) {
+            discard(upload);
+        }
+    }
+
+    private void discard(Upload upload) {
+        uploadingBytes.addAndGet(-upload.size);
+        try {
+            upload.channel.close();
+            Files.deleteIfExists(upload.tempFile);
+        } catch (IOException e) {
+            logger.logError("ARMAZENAMENTO_REMOCAO", "Erro ao apagar upload incompleto " + upload.tempFile, e);
+        }
+    }
+
+    /** Registra um FILE_FETCH atendido. */
+    void recordFetch() {
+        fetches.increment();
+    }
+
+    /**
+     * Envia o arquivo armazenado para a conexão como FILE_OFFER/FILE_CHUNK/FILE_COMPLETE, em segundo
+     * plano. As partes só são enfileiradas enquanto a fila de saída do destinatário estiver abaixo do
+     * limite de pausa dos arquivos em partes.
+     */
+    void push(ClientConnection connection, String sha256, long size, String transferId, String sender, String receiver, String fileName) {
+        pushExecutor.execute(new Push(connection, sha256, size, transferId, sender, receiver, fileName));
+    }
+
+    private final class Push implements Runnable {
+        private final ClientConnection connection;
+        private final String sha256;
+        private final long size;
+        private final String transferId;
+        private final String sender;
+        private final String receiver;
+        private final String fileName;
+        private FileChannel channel;
+        private byte[] buffer;
+        private long offset = 0;
+
+        Push(ClientConnection connection, String sha256, long size, String transferId, String sender, String receiver, String fileName) {
+            this.connection = connection;
+            this.sha256 = sha256;
+            this.size = size;
+            this.transferId = transferId;
+            this.sender = sender;
+            this.receiver = receiver;
+            this.fileName = fileName;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!connection.isOpen()) {
+                    closeChannel();
+                    return;
+                }
+                if (channel == null) {
+                    channel = FileChannel.open(blobPath(sha256), StandardOpenOption.READ);
+                    buffer = new byte[FileTransfer.CHUNK_SIZE]; // Reaproveitado: sendMessage codifica o quadro antes de voltar
+                    connection.sendMessage(FileTransfer.offer(transferId, sender, receiver, fileName, size));
+                }
+                int sent = 0;
+                while (offset < size && sent < PUSH_CHUNKS_PER_RUN && connection.getOutboundBytes() <= pauseBytes) {
+                    int length = (int) Math.min(buffer.length, size - offset);
+                    ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+                    while (target.hasRemaining()) {
+                        if (channel.read(target, offset + target.position()) < 0) {
+                            throw new EOFException("Arquivo armazenado menor que o esperado: " + sha256);
+                        }
+                    }
+                    byte[] data = length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+                    connection.sendMessage(FileTransfer.chunk(transferId, sender, receiver, fileName, offset, data));
+                    offset += length;
+                    sent++;
+                }
+                if (offset < size) {
+                    if (sent == PUSH_CHUNKS_PER_RUN) {
+                        pushExecutor.execute(this);
+                    } else {
+                        connection.whenOutboundBelow(pauseBytes, this::resume); // Destinatário ainda escoando
+                    }
+                    return;
+                }
+                connection.sendMessage(FileTransfer.complete(transferId, sender, receiver, fileName, sha256));
+                pushedBytes.add(size);
+                closeChannel();
+            } catch (IOException e) {
+                logger.logError("ARMAZENAMENTO_ENVIO", "Erro ao enviar '" + fileName + "' para " + connection.getUsername(), e);
+                closeChannel();
+            }
+        }
+
+        /** Volta à fila do envio; chamado pelo writer do destinatário quando ele escoa. */
+        private void resume() {
+            try {
+                pushExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                closeChannel(); // Servidor desligando
+            }
+        }
+
+        private void closeChannel() {
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException e) { /* ignora */ }
+        }
+    }
+
+    private Path blobPath(String sha256) {
+        return directory.resolve(sha256.substring(0, 2)).resolve(sha256);
+    }
+
+    private Path grantsPath(String sha256) {
+        return directory.resolve(sha256.substring(0, 2)).resolve(sha256 + GRANTS_SUFFIX);
+    }
+
+    private static String uploadKey(String sender, String transferId) {
+        return sender + '\n' + transferId;
+    }
+
+    /** Anúncios e downloads atendidos desde o início; usado para só registrar o resumo quando houve uso. */
+    long getRequests() {
+        return announces.sum() + fetches.sum();
+    }
+
+    /** Resumo para log: taxa de reaproveitamento dos anúncios, bytes de upload evitados e tamanho do armazenamento. */
+    String summary() {
+        long total = announces.sum();
+        long hit = hits.sum();
+        return String.format(Locale.ROOT,
+                "%d anúncios, %d já armazenados (%.1f%%), %d bytes de upload evitados, %d downloads, %d bytes enviados em partes, %d arquivos (%d bytes) armazenados, %d apagados pela limpeza",
+                total, hit, total > 0 ? 100.0 * hit / total : 0.0, savedBytes.sum(), fetches.sum(), pushedBytes.sum(),
+                index.size(), storedBytes.get(), removedFiles.sum());
+    }
+}
@@ -0,0 +1,383 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Persistência dos grupos: snapshot compacto + write-ahead log das mutações.
+ *
+ * Cada criação de grupo, saída de membro e remoção de grupo vira um registro
+ * {@code [tamanho][CRC32][operação]} no WAL da geração atual ({@code grupos-0000000003.wal}).
+ * De tempos em tempos (snapshotRecords registros) o estado inteiro é gravado em
+ * {@code grupos.snapshot} junto com a geração que ele cobre; o WAL passa para a geração seguinte
+ * e os anteriores são apagados depois que o snapshot está no disco.
+ *
+ * Na partida: carrega o snapshot e reaplica, em ordem, os WALs de gerações posteriores. Um
+ * registro pela metade no fim do último WAL (queda do processo) é cortado. O fsync do WAL é
+ * feito em lote a cada syncMillis.
+ *
+ * Quem chama deve registrar as mutações na mesma ordem em que as aplica (ver ChatRouter.groupLock):
+ * a recuperação reaplica o WAL em ordem, sem conferir contra o estado do momento.
+ */
+public final class GroupJournal {
+
+    private static final String SNAPSHOT_FILE = "grupos.snapshot";
+    private static final String WAL_PREFIX = "grupos-";
+    private static final String WAL_SUFFIX = ".wal";
+    private static final int SNAPSHOT_MAGIC_V1 = 0x47525031; // "GRP1": grupos sem identidade
+    private static final int SNAPSHOT_MAGIC = 0x47525032; // "GRP2"
+    private static final int RECORD_HEADER = 8; // Tamanho + CRC32
+
+    private static final byte OP_CREATE = 1;
+    private static final byte OP_REMOVE_MEMBER = 2;
+    private static final byte OP_DELETE = 3;
+
+    /** Estado serializado sob o lock de quem chama; gravado depois, fora dele (ver writeSnapshot). */
+    static final class Snapshot {
+        private final long generation; // Última geração de WAL coberta
+        private final byte[] data;
+        private final int groups;
+
+        private Snapshot(long generation, byte[] data, int groups) {
+            this.generation = generation;
+            this.data = data;
+            this.groups = groups;
+        }
+    }
+
+    private final Path directory;
+    private final long syncMillis;
+    private final long snapshotRecords;
+    private final ServerLog logger;
+    private final ScheduledExecutorService syncExecutor;
+
+    private DirectoryLock directoryLock; // Protegidos pelo monitor do GroupJournal
+    private FileChannel wal;
+    private long generation = 0;
+    private long recordsSinceSnapshot = 0;
+    private boolean unsynced = false;
+
+    public GroupJournal(Path directory, long syncMillis, long snapshotRecords, ServerLog logger) {
+        this.directory = directory;
+        this.syncMillis = Math.max(0, syncMillis);
+        this.snapshotRecords = Math.max(1, snapshotRecords);
+        this.logger = logger;
+        this.syncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "group-journal-sync");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Recupera os grupos (snapshot + WALs posteriores) e abre o WAL para as próximas mutações.
+     * @param ids Recebe a identidade de cada grupo recuperado (ver ChatGroup.getId); "" para grupos
+     *            gravados antes de ela existir.
+     * @return Membros de cada grupo, por nome (com GROUP_ICON_PREFIX), na ordem de criação.
+     */
+    public synchronized Map<String, Set<String>> recover(Map<String, String> ids) throws IOException {
+        directoryLock = DirectoryLock.acquire(directory);
+        Map<String, Set<String>> groups = new LinkedHashMap<>();
+        Map<String, String> names = new HashMap<>(); // Um único String por usuário, por mais grupos que ele tenha
+        long snapshotGeneration = readSnapshot(groups, ids, names);
+
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, WAL_PREFIX + "*" + WAL_SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(WAL_PREFIX.length(), name.length() - WAL_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Não é um WAL nosso
+                }
+            }
+        }
+        generations.sort(null);
+        generation = snapshotGeneration;
+        for (long walGeneration : generations) {
+            if (walGeneration <= snapshotGeneration) {
+                Files.deleteIfExists(walFile(walGeneration)); // Já coberto pelo snapshot
+                continue;
+            }
+            recordsSinceSnapshot += replay(walFile(walGeneration), groups, ids, names);
+            generation = walGeneration;
+        }
+        if (generation == snapshotGeneration) generation++;
+        wal = FileChannel.open(walFile(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        wal.position(wal.size());
+        if (syncMillis > 0) {
+            syncExecutor.scheduleWithFixedDelay(this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        }
+        return groups;
+    }
+
+    public synchronized void close() {
+        syncExecutor.shutdownNow();
+        if (wal != null) {
+            try {
+                wal.force(false);
+                wal.close();
+            } catch (IOException e) {
+                logger.logError("GRUPOS_WAL_FECHAR", "Erro ao fechar o WAL de grupos", e);
+            }
+            wal = null;
+        }
+        if (directoryLock != null) directoryLock.close();
+        directoryLock = null;
+    }
+
+    public void logCreate(String group, String id, Collection<String> members) {
+        append(OP_CREATE, group, id, members);
+    }
+
+    public void logRemoveMember(String group, String member) {
+        append(OP_REMOVE_MEMBER, group, null, List.of(member));
+    }
+
+    public void logDelete(String group) {
+        append(OP_DELETE, group, null, List.of());
+    }
+
+    /**
+     * Indica se recover() abriu o WAL (e travou o diretório). Sem isso um snapshot gravaria o estado em
+     * memória, possivelmente vazio, por cima dos grupos de outro servidor ou de uma recuperação que falhou.
+     */
+    synchronized boolean isOpen() {
+        return wal != null;
+    }
+
+    /** Indica se o WAL já acumulou registros suficientes para valer um novo snapshot. */
+    synchronized boolean needsSnapshot() {
+        return recordsSinceSnapshot >= snapshotRecords;
+    }
+
+    /**
+     * Serializa os grupos e passa o WAL para a próxima geração. Chamar com o lock das mutações de
+     * grupo, para que nenhuma mutação fique entre o estado copiado e o WAL novo.
+     */
+    Snapshot beginSnapshot(Collection<ChatGroup> groups) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = 0;
+        for (ChatGroup group : groups) {
+            out.writeUTF(group.getName());
+            Set<String> members = group.members();
+            List<String> copy = new ArrayList<>(members); // O tamanho escrito tem que bater com os nomes
+            out.writeInt(copy.size());
+            for (String member : copy) out.writeUTF(member);
+            out.writeUTF(group.getId());
+            count++;
+        }
+        synchronized (this) {
+            long covered = generation;
+            rotate();
+            return new Snapshot(covered, bytes.toByteArray(), count);
+        }
+    }
+
+    /** Grava o snapshot (arquivo temporário + fsync + rename) e apaga os WALs que ele cobre. */
+    void writeSnapshot(Snapshot snapshot) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4 + 8 + 4);
+        header.putInt(SNAPSHOT_MAGIC).putLong(snapshot.generation).putInt(snapshot.groups).flip();
+        CRC32 crc = new CRC32();
+        crc.update(header.duplicate());
+        crc.update(snapshot.data);
+        ByteBuffer trailer = ByteBuffer.allocate(4).putInt((int) crc.getValue()).flip();
+
+        Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer[] buffers = {header, ByteBuffer.wrap(snapshot.data), trailer};
+            while (trailer.hasRemaining()) {
+                channel.write(buffers);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING);
+        }
+        for (long old = snapshot.generation; old > 0 && Files.deleteIfExists(walFile(old)); old--) { }
+    }
+
+    /** @param id Identidade do grupo, só em OP_CREATE (vai depois dos membros). */
+    private void append(byte op, String group, String id, Collection<String> members) {
+        byte[] payload;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + 16 * members.size());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(op);
+            out.writeUTF(group);
+            if (op == OP_CREATE) out.writeInt(members.size());
+            for (String member : members) out.writeUTF(member);
+            if (op == OP_CREATE) out.writeUTF(id);
+            payload = bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // ByteArrayOutputStream não lança
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+        record.putInt(payload.length).putInt(crc(payload)).put(payload).flip();
+        synchronized (this) {
+            if (wal == null) return; // Não recuperado (erro na partida) ou já fechado
+            try {
+                while (record.hasRemaining()) {
+                    wal.write(record);
+                }
+                recordsSinceSnapshot++;
+                if (syncMillis == 0) {
+                    wal.force(false);
+                } else {
+                    unsynced = true;
+                }
+            } catch (IOException e) {
+                logger.logError("GRUPOS_WAL_GRAVACAO", "Erro ao registrar mutação do grupo " + group + " no WAL", e);
+            }
+        }
+    }
+
+    /** Fecha o WAL atual (com fsync) e abre o da próxima geração. Chamar com o monitor. */
+    private void rotate() throws IOException {
+        if (wal != null) {
+            wal.force(false);
+            wal.close();
+        }
+        generation++;
+        wal = FileChannel.open(walFile(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        wal.position(wal.size());
+        recordsSinceSnapshot = 0;
+        unsynced = false;
+    }
+
+    private void sync() {
+        synchronized (this) {
+            if (!unsynced || wal == null) return;
+            try {
+                wal.force(false);
+                unsynced = false;
+            } catch (IOException e) {
+                logger.logError("GRUPOS_WAL_SYNC", "Erro no fsync do WAL de grupos", e);
+            }
+        }
+    }
+
+    /** @return A geração coberta pelo snapshot, ou 0 se não há snapshot válido. */
+    private long readSnapshot(Map<String, Set<String>> groups, Map<String, String> ids, Map<String, String> names) throws IOException {
+        Path file = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) return 0;
+        byte[] data = Files.readAllBytes(file);
+        if (data.length < 20) {
+            logger.log("AVISO", "GRUPOS_SNAPSHOT_INVALIDO", "Snapshot de grupos truncado (" + data.length + " bytes). Ignorado.");
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int magic = buffer.getInt(0);
+        if ((magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V1) || buffer.getInt(data.length - 4) != (int) crc.getValue()) {
+            logger.log("AVISO", "GRUPOS_SNAPSHOT_INVALIDO", "Snapshot de grupos com cabeçalho ou CRC inválido. Ignorado.");
+            return 0;
+        }
+        long covered = buffer.getLong(4);
+        int count = buffer.getInt(12);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 16, data.length - 20));
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            int size = in.readInt();
+            Set<String> members = new LinkedHashSet<>(Math.max(4, size * 2));
+            for (int j = 0; j < size; j++) members.add(readName(in, names));
+            groups.put(name, members);
+            ids.put(name, magic == SNAPSHOT_MAGIC ? in.readUTF() : "");
+        }
+        return covered;
+    }
+
+    /** Reaplica um WAL sobre {@code groups}; corta um registro incompleto no fim. @return Registros aplicados. */
+    private long replay(Path file, Map<String, Set<String>> groups, Map<String, String> ids, Map<String, String> names) throws IOException {
+        long applied = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+            while (data.hasRemaining() && channel.read(data) >= 0) { }
+            data.flip();
+            int offset = 0;
+            while (data.limit() - offset >= RECORD_HEADER) {
+                int length = data.getInt(offset);
+                if (length < 0 || length > data.limit() - offset - RECORD_HEADER) break;
+                byte[] payload = new byte[length];
+                data.get(offset + RECORD_HEADER, payload);
+                if (crc(payload) != data.getInt(offset + 4)) break;
+                apply(payload, groups, ids, names);
+                applied++;
+                offset += RECORD_HEADER + length;
+            }
+            if (offset < channel.size()) {
+                logger.log("AVISO", "GRUPOS_WAL_RECUPERACAO", "Registro incompleto no fim de " + file + ": " + (channel.size() - offset) + " bytes cortados.");
+                channel.truncate(offset);
+            }
+        }
+        return applied;
+    }
+
+    private static void apply(byte[] payload, Map<String, Set<String>> groups, Map<String, String> ids, Map<String, String> names) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte op = in.readByte();
+        String group = in.readUTF();
+        switch (op) {
+            case OP_CREATE -> {
+                int size = in.readInt();
+                Set<String> members = new LinkedHashSet<>(Math.max(4, size * 2));
+                for (int i = 0; i < size; i++) members.add(readName(in, names));
+                groups.put(group, members);
+                ids.put(group, in.available() > 0 ? in.readUTF() : ""); // Registros antigos não têm a identidade
+            }
+            case OP_REMOVE_MEMBER -> {
+                Set<String> members = groups.get(group);
+                if (members != null) members.remove(in.readUTF());
+            }
+            case OP_DELETE -> {
+                groups.remove(group);
+                ids.remove(group);
+            }
+            default -> throw new IOException("Operação desconhecida no WAL de grupos: " + op);
+        }
+    }
+
+    private static String readName(DataInputStream in, Map<String, String> names) throws IOException {
+        String name = in.readUTF();
+        String existing = names.putIfAbsent(name, name);
+        return existing != null ? existing : name;
+    }
+
+    private Path walFile(long walGeneration) {
+        return directory.resolve(String.format(Locale.ROOT, "%s%010d%s", WAL_PREFIX, walGeneration, WAL_SUFFIX));
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
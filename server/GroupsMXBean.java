@@ -0,0 +1,43 @@
+package server;
+
+import java.beans.ConstructorProperties;
+import java.util.List;
+
+/**
+ * Grupos existentes, publicados via JMX como chat.server:type=Grupos. Os nomes podem ser
+ * passados com ou sem o ícone de grupo.
+ */
+public interface GroupsMXBean {
+
+    int getGroupCount();
+
+    /** Os {@code limit} grupos com mais membros. */
+    List<GroupInfo> largestGroups(int limit);
+
+    /** Os {@code limit} grupos que mais repassaram mensagens desde a partida. */
+    List<GroupInfo> hottestGroups(int limit);
+
+    /** Membros do grupo, um por linha, marcando quem está online. */
+    String dumpGroup(String name);
+
+    /** Resumo de um grupo (vira CompositeData no jconsole). */
+    final class GroupInfo {
+        private final String name;
+        private final int members;
+        private final int onlineMembers;
+        private final long relayedMessages;
+
+        @ConstructorProperties({"name", "members", "onlineMembers", "relayedMessages"})
+        public GroupInfo(String name, int members, int onlineMembers, long relayedMessages) {
+            this.name = name;
+            this.members = members;
+            this.onlineMembers = onlineMembers;
+            this.relayedMessages = relayedMessages;
+        }
+
+        public String getName() { return name; }
+        public int getMembers() { return members; }
+        public int getOnlineMembers() { return onlineMembers; }
+        public long getRelayedMessages() { return relayedMessages; }
+    }
+}
@@ -0,0 +1,99 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de valores inteiros não negativos no estilo do HdrHistogram: faixas log-lineares com
+ * erro relativo máximo de 1/64 (~1,6%) em qualquer ordem de grandeza, até MAX_VALUE.
+ *
+ * Valores abaixo de 128 têm uma faixa cada; a partir daí, cada potência de 2 é dividida em 64
+ * faixas iguais. Registrar é um incremento atômico numa posição do array (threads diferentes
+ * quase sempre caem em faixas diferentes) mais dois LongAdder/LongAccumulator para soma e máximo;
+ * não há lock nem alocação. Os percentis são calculados sobre uma cópia (Snapshot).
+ *
+ * Público para o gerador de carga (bench.LoadGenerator) medir com a mesma precisão do servidor.
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 128
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int MAX_EXPONENT = 40;
+    /** Valores maiores são registrados como este (~2,2e12: 25 dias em microssegundos). */
+    static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        long clamped = Math.max(0, Math.min(MAX_VALUE, value));
+        counts.incrementAndGet(index(clamped));
+        sum.add(clamped);
+        max.accumulate(clamped);
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) copy[i] = counts.get(i);
+        return new Snapshot(copy, sum.sum(), max.get());
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BUCKET_BITS
+        int shift = exponent - SUB_BUCKET_BITS + 1;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+    }
+
+    /** Maior valor que cai na mesma faixa (o percentil informado nunca subestima). */
+    private static long highestEquivalent(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long lowest = (long) (HALF + (index - SUB_BUCKETS) % HALF) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /** Cópia imutável das contagens. {@link #minus} dá o histograma de um intervalo. */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max; // Máximo desde o início: não dá para subtrair
+
+        private Snapshot(long[] counts, long sum, long max) {
+            this.counts = counts;
+            long total = 0;
+            for (long c : counts) total += c;
+            this.count = total;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long count() { return count; }
+        public long sum() { return sum; }
+        public long max() { return max; }
+
+        /** Valor abaixo do qual estão {@code quantile} (0 a 1) dos registros; 0 sem registros. */
+        public long percentile(double quantile) {
+            if (count == 0) return 0;
+            long target = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) return Math.min(highestEquivalent(i), max);
+            }
+            return max;
+        }
+
+        /** Registros feitos depois de {@code earlier}. O máximo continua sendo o acumulado. */
+        public Snapshot minus(Snapshot earlier) {
+            long[] delta = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) delta[i] = counts[i] - earlier.counts[i];
+            return new Snapshot(delta, sum - earlier.sum, max);
+        }
+    }
+}
@@ -0,0 +1,679 @@
+package server;
+
+import common.History;
+import common.Message;
+import common.MessageCodec;
+import common.MessageType;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Histórico de todas as mensagens PRIVATE/GROUP roteadas, num log segmentado só de acréscimo,
+ * servido em páginas com HISTORY_REQUEST (ver common.History).
+ *
+ * Todas as conversas vão para o mesmo log ({@code diretório/0000000001.log}, ...); cada registro
+ * é {@code [tamanho][CRC32][0xFF][chave da conversa][mensagem no codec binário, sem anexo]}. A chave
+ * vai no registro porque a de um grupo inclui a identidade dele (ver groupKey), que a mensagem não
+ * tem; registros gravados antes dela (só {@code [tamanho][CRC32][mensagem]}) são de grupos sem
+ * identidade e continuam lidos. Em memória fica só o índice:
+ * para cada conversa, as posições (segmento + offset) das suas mensagens em ordem. A posição da
+ * mais antiga de uma página é o cursor da página anterior (ver History.cursor), então voltar no
+ * histórico é uma busca binária nessas posições, sem mapa por id. Uma página são no máximo
+ * algumas centenas de posições; as que caem no mesmo segmento são lidas numa única leitura
+ * sequencial quando estão próximas, e os bytes do codec vão para a resposta sem serem decodificados.
+ *
+ * Quem roteia só codifica o registro e o põe numa fila limitada; uma única thread
+ * ("history-writer") grava, atualiza o índice e faz o fsync em lote a cada syncMillis (0: um
+ * fsync por lote retirado da fila). Com a fila cheia (disco parado) o registro é descartado e
+ * contado, como no LogPipeline: o roteamento nunca espera pelo disco. O monitor do HistoryLog
+ * protege só o índice em memória.
+ *
+ * Retenção: o log guarda até maxBytes e segmentos cuja última escrita passou de retentionMillis
+ * são apagados, sempre os mais antigos primeiro; as posições deles saem do índice.
+ *
+ * O índice é reconstruído na abertura lendo os segmentos em blocos. Um registro inválido é pulado
+ * até o próximo registro válido e registrado no log; só um resto inválido no fim do último
+ * segmento (gravação interrompida por uma queda) é cortado.
+ */
+final class HistoryLog {
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER = 8; // Tamanho + CRC32
+    private static final byte KEYED_RECORD = (byte) 0xFF; // Primeiro byte de registros com a chave; o codec começa pela versão
+    private static final int MAX_SPAN_READ = 1024 * 1024; // Acima disso a página é lida registro a registro
+    private static final int INDEX_BUFFER = 1024 * 1024; // Bloco lido por vez ao indexar um segmento
+    private static final int QUEUE_CAPACITY = 64 * 1024; // Registros esperando a thread de gravação
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_ID_SCAN = 10 * History.MAX_PAGE_SIZE; // Pedidos com id de mensagem (clientes antigos): quanto procurar para trás
+    private static final long IDLE_POLL_MS = 1_000;
+    private static final long PAGE_WAIT_MS = 1_000; // Quanto uma página espera a gravação alcançar o que já foi roteado
+    private static final long SWEEP_INTERVAL_MS = 60_000;
+    private static final Pending STOP = new Pending(null, null, null); // Acorda a thread de gravação no close()
+
+    /** Limites do histórico, lidos de ServerConfig. */
+    public static final class Limits {
+        final long segmentBytes;
+        final long maxBytes;
+        final long retentionMillis;
+        final long syncMillis;
+
+        /** @param retentionMillis 0 desliga a retenção por idade. */
+        public Limits(long segmentBytes, long maxBytes, long retentionMillis, long syncMillis) {
+            this.segmentBytes = Math.min(Integer.MAX_VALUE, Math.max(64 * 1024, segmentBytes)); // O offset vai nos 32 bits baixos da posição
+            this.maxBytes = Math.max(this.segmentBytes, maxBytes);
+            this.retentionMillis = Math.max(0, retentionMillis);
+            this.syncMillis = Math.max(0, syncMillis);
+        }
+    }
+
+    /** Uma página lida do histórico. */
+    static final class Page {
+        final List<byte[]> messages;
+        final boolean more;
+        final String cursor; // Para pedir a página anterior; null se a página está vazia
+
+        Page(List<byte[]> messages, boolean more, String cursor) {
+            this.messages = messages;
+            this.more = more;
+            this.cursor = cursor;
+        }
+    }
+
+    /** Registro codificado esperando a thread de gravação. */
+    private static final class Pending {
+        final String key;
+        final String messageId;
+        final ByteBuffer record;
+
+        Pending(String key, String messageId, ByteBuffer record) {
+            this.key = key;
+            this.messageId = messageId;
+            this.record = record;
+        }
+    }
+
+    /** Posições das mensagens de uma conversa, em ordem de chegada. Protegida pelo monitor do HistoryLog. */
+    private static final class Conversation {
+        long[] positions = new long[8];
+        int count = 0;
+
+        void add(long position) {
+            if (count == positions.length) positions = Arrays.copyOf(positions, count * 2);
+            positions[count++] = position;
+        }
+
+        /** Índice da primeira posição igual ou posterior a {@code position}. */
+        int indexOf(long position) {
+            int index = Arrays.binarySearch(positions, 0, count, position);
+            return index >= 0 ? index : -index - 1;
+        }
+
+        /** Tira as posições anteriores a {@code position} (segmentos apagados). @return Quantas saíram. */
+        int dropBefore(long position) {
+            int cut = indexOf(position);
+            if (cut == 0) return 0;
+            count -= cut;
+            positions = Arrays.copyOfRange(positions, cut, cut + Math.max(8, count));
+            return cut;
+        }
+    }
+
+    /** Janela de leitura sobre um segmento, para indexá-lo sem carregar o arquivo inteiro no heap. */
+    private static final class SegmentWindow {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(INDEX_BUFFER);
+        private long start = 0; // Offset no arquivo do primeiro byte do buffer
+
+        SegmentWindow(FileChannel channel) {
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        /** Traz {@code [offset, offset + length)} para a janela. @return O buffer, ou null se o segmento acaba antes. */
+        ByteBuffer at(long offset, int length) throws IOException {
+            if (offset < start || offset + length > start + buffer.limit()) {
+                if (length > buffer.capacity()) buffer = ByteBuffer.allocate(length);
+                buffer.clear();
+                start = offset;
+                while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0) { }
+                buffer.flip();
+                if (length > buffer.limit()) return null;
+            }
+            return buffer;
+        }
+
+        int index(long offset) {
+            return (int) (offset - start);
+        }
+    }
+
+    private final Path directory;
+    private final Limits limits;
+    private final ServerLog logger;
+    private final Map<String, Conversation> conversations = new HashMap<>(); // Key: privateKey(...) ou groupKey(...)
+    private long messages = 0; // Posições em todas as conversas; protegido pelo monitor do HistoryLog
+    private final ConcurrentSkipListMap<Integer, FileChannel> readers = new ConcurrentSkipListMap<>(); // Key: número do segmento
+    private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong enqueued = new AtomicLong();
+    private long indexed = 0; // Registros retirados da fila e já no índice; protegido pelo monitor do HistoryLog
+    private volatile boolean running = false;
+    private Thread writerThread;
+    private DirectoryLock directoryLock; // Entre open() e close()
+
+    private FileChannel writer; // Só a thread de gravação acessa (depois de open)
+    private int segment = 0;
+    private long segmentSize = 0;
+    private boolean unsynced = false;
+    private long lastSyncNanos = 0;
+    private long lastSweepMillis = 0;
+    private volatile long storedBytes = 0; // Só a thread de gravação escreve
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder pages = new LongAdder();
+    private final LongAdder pageReads = new LongAdder();
+
+    HistoryLog(Path directory, Limits limits, ServerLog logger) {
+        this.directory = directory;
+        this.limits = limits;
+        this.logger = logger;
+    }
+
+    /**
+     * Chave de um registro gravado sem ela: grupos dessa época não têm identidade, então nunca
+     * coincidem com um grupo que reusou o nome depois.
+     */
+    private static String legacyKey(Message msg) {
+        return msg.getType() == MessageType.GROUP ? groupKey(msg.getReceiver(), "") : privateKey(msg.getSender(), msg.getReceiver());
+    }
+
+    /** Chave de uma conversa privada: os dois participantes em ordem (a mesma para os dois lados). */
+    static String privateKey(String user, String otherUser) {
+        return user.compareTo(otherUser) <= 0 ? user + '\u0000' + otherUser : otherUser + '\u0000' + user;
+    }
+
+    /**
+     * Chave de um grupo: o nome e a identidade (ChatGroup.getId), para que um grupo novo com o nome
+     * de um apagado não leia o histórico dele.
+     */
+    static String groupKey(String group, String groupId) {
+        return group + '\u0001' + groupId;
+    }
+
+    /** Reconstrói o índice a partir dos segmentos existentes, abre o último para escrita e inicia a thread de gravação. */
+    synchronized void open() throws IOException {
+        directoryLock = DirectoryLock.acquire(directory);
+        TreeMap<Integer, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                try {
+                    files.put(Integer.parseInt(file.getFileName().toString().replace(SEGMENT_SUFFIX, "")), file);
+                } catch (NumberFormatException e) {
+                    // Não é um segmento
+                }
+            }
+        }
+        for (Map.Entry<Integer, Path> entry : files.entrySet()) {
+            int sequence = entry.getKey();
+            segment = sequence;
+            segmentSize = indexSegment(entry.getValue(), sequence, sequence == files.lastKey());
+            storedBytes += segmentSize;
+            readers.put(sequence, FileChannel.open(entry.getValue(), StandardOpenOption.READ));
+        }
+        if (segment > 0) {
+            writer = FileChannel.open(segmentFile(segment), StandardOpenOption.WRITE);
+            writer.position(segmentSize);
+        }
+        lastSweepMillis = System.currentTimeMillis();
+        running = true;
+        writerThread = new Thread(this::writeLoop, "history-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /** Para a thread de gravação depois de esvaziar a fila e fecha os segmentos. */
+    void close() {
+        running = false;
+        if (writerThread != null) {
+            queue.offer(STOP); // Sem interrupt: ele fecharia o FileChannel no meio de uma escrita
+            try {
+                writerThread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (writer != null) {
+                writer.force(false);
+                writer.close();
+            }
+            for (FileChannel reader : readers.values()) reader.close();
+        } catch (IOException e) {
+            logger.logError("HISTORICO_FECHAR", "Erro ao fechar o histórico em " + directory, e);
+        }
+        writer = null;
+        if (directoryLock != null) directoryLock.close();
+        directoryLock = null;
+    }
+
+    /**
+     * Acrescenta a mensagem ao histórico da conversa (o anexo fica de fora; o nome do arquivo, não).
+     * Só codifica e enfileira: a gravação é feita pela thread de gravação.
+     * @param key privateKey ou groupKey.
+     */
+    void append(String key, Message msg) {
+        byte[] encoded = MessageCodec.encodeWithoutFileData(msg, -1);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > 0xFFFF) { // Não cabe no tamanho da chave; nomes de usuário e de grupo são curtos
+            dropped.increment();
+            return;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(3 + keyBytes.length + encoded.length);
+        payload.put(KEYED_RECORD).putShort((short) keyBytes.length).put(keyBytes).put(encoded);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + payload.capacity());
+        record.putInt(payload.capacity()).putInt(crc(payload.array())).put(payload.array()).flip();
+        if (queue.offer(new Pending(key, msg.getMessageId(), record))) {
+            enqueued.incrementAndGet();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH);
+        long[] positions = new long[MAX_BATCH];
+        long lastReportedDrops = 0;
+        while (true) {
+            boolean stopping = !running; // Lido antes de esvaziar: o que foi enfileirado antes do close() é gravado
+            Pending first;
+            try {
+                first = stopping ? queue.poll() : queue.poll(unsynced && limits.syncMillis > 0 ? limits.syncMillis : IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first != null) {
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (int i = 0; i < batch.size(); i++) positions[i] = write(batch.get(i));
+                index(batch, positions);
+                batch.clear();
+                if (limits.syncMillis == 0) sync();
+            }
+            if (unsynced && System.nanoTime() - lastSyncNanos >= TimeUnit.MILLISECONDS.toNanos(limits.syncMillis)) sync();
+            if (storedBytes > limits.maxBytes || System.currentTimeMillis() - lastSweepMillis >= SWEEP_INTERVAL_MS) sweep();
+            long drops = dropped.sum();
+            if (drops != lastReportedDrops) {
+                logger.log("AVISO", "HISTORICO_DESCARTES", (drops - lastReportedDrops) + " mensagens fora do histórico (fila de gravação cheia). Total: " + drops);
+                lastReportedDrops = drops;
+            }
+            if (stopping && first == null) return;
+        }
+    }
+
+    /** Grava o registro no segmento atual. @return A posição dele, ou -1 se a gravação falhou. */
+    private long write(Pending pending) {
+        if (pending == STOP) return -1;
+        ByteBuffer record = pending.record;
+        try {
+            if (writer == null || segmentSize + record.remaining() > limits.segmentBytes) roll();
+            long position = position(segment, segmentSize);
+            int size = record.remaining();
+            while (record.hasRemaining()) {
+                writer.write(record);
+            }
+            segmentSize += size;
+            storedBytes += size;
+            unsynced = true;
+            appended.increment();
+            return position;
+        } catch (IOException e) {
+            logger.logError("HISTORICO_GRAVACAO", "Erro ao gravar mensagem " + pending.messageId + " no histórico", e);
+            closeWriter(); // O próximo registro abre um segmento novo
+            return -1;
+        }
+    }
+
+    /** Põe o lote gravado no índice e acorda as páginas que esperavam por ele. */
+    private synchronized void index(List<Pending> batch, long[] positions) {
+        for (int i = 0; i < batch.size(); i++) {
+            if (positions[i] >= 0) index(batch.get(i).key, positions[i]);
+        }
+        indexed += batch.size();
+        notifyAll();
+    }
+
+    /** Chamar com o monitor. */
+    private void index(String key, long position) {
+        conversations.computeIfAbsent(key, k -> new Conversation()).add(position);
+        messages++;
+    }
+
+    /**
+     * Até {@code limit} mensagens da conversa anteriores a {@code before} (ou as mais recentes),
+     * em ordem cronológica e já codificadas (MessageCodec).
+     * @param before Cursor de uma página anterior (History.isCursor) ou, de clientes antigos, o id
+     *               de uma das últimas MAX_ID_SCAN mensagens da conversa.
+     */
+    Page page(String key, String before, int limit) throws IOException {
+        long beforePosition = -1;
+        if (before != null) {
+            beforePosition = History.isCursor(before) ? parseCursor(before) : findById(key, before);
+            if (beforePosition < 0) return new Page(List.of(), false, null); // Cursor inválido ou id desconhecido: página vazia
+        }
+        long[] positions;
+        boolean more;
+        long target = enqueued.get();
+        synchronized (this) {
+            awaitIndexed(target);
+            Conversation conversation = conversations.get(key);
+            int end = conversation == null ? 0 : beforePosition < 0 ? conversation.count : conversation.indexOf(beforePosition);
+            int start = Math.max(0, end - limit);
+            positions = conversation != null ? Arrays.copyOfRange(conversation.positions, start, end) : new long[0];
+            more = start > 0;
+        }
+        pages.increment();
+        return new Page(read(positions), more, positions.length > 0 ? History.cursor(positions[0]) : null);
+    }
+
+    private static long parseCursor(String cursor) {
+        try {
+            return Long.parseLong(cursor.substring(History.CURSOR_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Procura a posição da mensagem entre as últimas MAX_ID_SCAN da conversa, das mais novas para as mais antigas. @return -1 se não achou. */
+    private long findById(String key, String messageId) throws IOException {
+        long[] candidates;
+        synchronized (this) {
+            Conversation conversation = conversations.get(key);
+            if (conversation == null) return -1;
+            candidates = Arrays.copyOfRange(conversation.positions, Math.max(0, conversation.count - MAX_ID_SCAN), conversation.count);
+        }
+        for (int end = candidates.length; end > 0; end -= History.MAX_PAGE_SIZE) {
+            long[] batch = Arrays.copyOfRange(candidates, Math.max(0, end - History.MAX_PAGE_SIZE), end);
+            List<byte[]> payloads = read(batch);
+            for (int i = payloads.size() - 1; i >= 0; i--) {
+                byte[] payload = payloads.get(i);
+                if (messageId.equals(MessageCodec.decode(payload, 0, payload.length).getMessageId())) return batch[i];
+            }
+        }
+        return -1;
+    }
+
+    /** Espera (por pouco tempo) a thread de gravação indexar o que já foi roteado, para a página incluir a última mensagem enviada. Chamar com o monitor. */
+    private void awaitIndexed(long target) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PAGE_WAIT_MS);
+        long remaining;
+        while (indexed < target && running && (remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Lê as mensagens (codec, sem a chave); posições do mesmo segmento próximas entre si saem numa
+     * única leitura. As posições são copiadas do índice antes, sem o monitor: as de um segmento que a
+     * retenção apagou nesse meio-tempo são puladas (são as mais antigas da página), sem derrubar a página.
+     */
+    private List<byte[]> read(long[] positions) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(positions.length);
+        int i = 0;
+        while (i < positions.length) {
+            int sequence = (int) (positions[i] >>> 32);
+            FileChannel reader = readers.get(sequence);
+            int j = i;
+            while (j + 1 < positions.length && (int) (positions[j + 1] >>> 32) == sequence
+                    && (reader == null || offset(positions[j + 1]) - offset(positions[i]) < MAX_SPAN_READ)) {
+                j++;
+            }
+            if (reader == null) { // Já apagado pela retenção
+                i = j + 1;
+                continue;
+            }
+            long first = offset(positions[i]);
+            long last = offset(positions[j]);
+            ByteBuffer span;
+            try {
+                ByteBuffer lastHeader = readAt(reader, last, RECORD_HEADER);
+                span = readAt(reader, first, (int) (last - first) + RECORD_HEADER + lastHeader.getInt(0));
+            } catch (ClosedChannelException e) {
+                if (readers.get(sequence) == reader) throw e; // Não foi a retenção
+                i = j + 1; // Apagado pela retenção durante a leitura
+                continue;
+            }
+            pageReads.increment();
+            for (int k = i; k <= j; k++) {
+                byte[] payload = record(span, (int) (offset(positions[k]) - first));
+                int start = messageOffset(payload);
+                payloads.add(start == 0 ? payload : Arrays.copyOfRange(payload, start, payload.length));
+            }
+            i = j + 1;
+        }
+        return payloads;
+    }
+
+    private static byte[] record(ByteBuffer span, int offset) throws StreamCorruptedException {
+        int length = span.getInt(offset);
+        int checksum = span.getInt(offset + 4);
+        if (length < 0 || offset + RECORD_HEADER + length > span.limit()) throw new StreamCorruptedException("Registro do histórico truncado");
+        byte[] payload = new byte[length];
+        span.get(offset + RECORD_HEADER, payload);
+        if (crc(payload) != checksum) throw new StreamCorruptedException("CRC inválido no histórico");
+        return payload;
+    }
+
+    /** Onde a mensagem começa no payload do registro: depois da chave, se o registro a tem. */
+    private static int messageOffset(byte[] payload) throws StreamCorruptedException {
+        if (payload.length == 0 || payload[0] != KEYED_RECORD) return 0;
+        if (payload.length < 3) throw new StreamCorruptedException("Chave do histórico truncada");
+        int start = 3 + (((payload[1] & 0xFF) << 8) | (payload[2] & 0xFF));
+        if (start > payload.length) throw new StreamCorruptedException("Chave do histórico truncada");
+        return start;
+    }
+
+    private static long position(int sequence, long offset) {
+        return ((long) sequence << 32) | offset;
+    }
+
+    private static long offset(long position) {
+        return position & 0xFFFFFFFFL;
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Fim do segmento do histórico");
+        }
+        return buffer.flip();
+    }
+
+    private void sync() {
+        lastSyncNanos = System.nanoTime();
+        if (!unsynced || writer == null) return;
+        try {
+            writer.force(false);
+            unsynced = false;
+        } catch (IOException e) {
+            logger.logError("HISTORICO_SYNC", "Erro no fsync do histórico", e);
+        }
+    }
+
+    /**
+     * Apaga os segmentos mais antigos enquanto o log passa de maxBytes ou a última escrita deles
+     * passou da retenção. O segmento atual fica.
+     */
+    private void sweep() {
+        lastSweepMillis = System.currentTimeMillis();
+        long cutoff = limits.retentionMillis > 0 ? lastSweepMillis - limits.retentionMillis : Long.MIN_VALUE;
+        int segments = 0;
+        long removed = 0;
+        while (!readers.isEmpty() && readers.firstKey() != segment) {
+            int oldest = readers.firstKey();
+            Path file = segmentFile(oldest);
+            long size;
+            long lastWriteMillis;
+            try {
+                size = Files.size(file);
+                lastWriteMillis = Files.getLastModifiedTime(file).toMillis();
+            } catch (IOException e) {
+                logger.logError("HISTORICO_RETENCAO", "Erro ao ler o segmento " + file + " do histórico", e);
+                return;
+            }
+            if (storedBytes <= limits.maxBytes && lastWriteMillis >= cutoff) break;
+            removed += dropIndexBefore(oldest + 1);
+            try {
+                readers.remove(oldest).close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                logger.logError("HISTORICO_RETENCAO", "Erro ao apagar o segmento " + file + " do histórico", e);
+            }
+            storedBytes -= size;
+            segments++;
+        }
+        if (segments > 0) {
+            expired.add(removed);
+            logger.log("INFO", "HISTORICO_RETENCAO", segments + " segmentos mais antigos apagados (" + removed + " mensagens); o histórico ficou com " + storedBytes + " bytes.");
+        }
+    }
+
+    /** Tira do índice as posições dos segmentos anteriores a {@code sequence}. @return Quantas saíram. */
+    private synchronized long dropIndexBefore(int sequence) {
+        long removed = 0;
+        for (Iterator<Conversation> it = conversations.values().iterator(); it.hasNext(); ) {
+            Conversation conversation = it.next();
+            removed += conversation.dropBefore(position(sequence, 0));
+            if (conversation.count == 0) it.remove();
+        }
+        messages -= removed;
+        return removed;
+    }
+
+    /** Fecha o segmento atual (com fsync) e abre o próximo. */
+    private void roll() throws IOException {
+        closeWriter();
+        segment++;
+        Path file = segmentFile(segment);
+        writer = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        readers.put(segment, FileChannel.open(file, StandardOpenOption.READ));
+        segmentSize = 0;
+    }
+
+    private void closeWriter() {
+        if (writer == null) return;
+        try {
+            writer.force(false);
+            writer.close();
+        } catch (IOException e) {
+            logger.logError("HISTORICO_FECHAR", "Erro ao fechar o segmento " + segment + " do histórico", e);
+        }
+        writer = null;
+        unsynced = false;
+    }
+
+    /**
+     * Indexa as mensagens de um segmento, lido em blocos de INDEX_BUFFER. Bytes inválidos são
+     * pulados até o próximo registro válido; se não houver nenhum depois deles no último segmento,
+     * são o fim de uma gravação interrompida e são cortados.
+     * @return Tamanho do segmento depois do corte.
+     */
+    private long indexSegment(Path file, int sequence, boolean last) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            SegmentWindow window = new SegmentWindow(channel);
+            long offset = 0;
+            long invalidFrom = -1;
+            while (offset < size) {
+                String key = recordAt(window, offset, size);
+                if (key == null) {
+                    if (invalidFrom < 0) invalidFrom = offset;
+                    offset++;
+                    continue;
+                }
+                if (invalidFrom >= 0) {
+                    logger.log("AVISO", "HISTORICO_CORROMPIDO", (offset - invalidFrom) + " bytes inválidos em " + file + " a partir do offset " + invalidFrom + ", pulados.");
+                    invalidFrom = -1;
+                }
+                index(key, position(sequence, offset));
+                offset += RECORD_HEADER + window.at(offset, RECORD_HEADER).getInt(window.index(offset));
+            }
+            if (invalidFrom >= 0) {
+                if (last) {
+                    logger.log("AVISO", "HISTORICO_RECUPERACAO", "Registro incompleto no fim de " + file + ": " + (size - invalidFrom) + " bytes cortados.");
+                    channel.truncate(invalidFrom);
+                    return invalidFrom;
+                }
+                logger.log("AVISO", "HISTORICO_CORROMPIDO", (size - invalidFrom) + " bytes inválidos no fim de " + file + ", pulados.");
+            }
+            return size;
+        }
+    }
+
+    /** Valida o registro em {@code offset}. @return A chave da conversa dele, ou null se ali não começa um registro válido. */
+    private String recordAt(SegmentWindow window, long offset, long size) throws IOException {
+        if (size - offset < RECORD_HEADER) return null;
+        int length = window.at(offset, RECORD_HEADER).getInt(window.index(offset));
+        if (length < 0 || length > limits.segmentBytes - RECORD_HEADER || offset + RECORD_HEADER + length > size) return null;
+        ByteBuffer span = window.at(offset, RECORD_HEADER + length);
+        try {
+            byte[] payload = record(span, window.index(offset));
+            int start = messageOffset(payload);
+            Message msg = MessageCodec.decode(payload, start, payload.length - start);
+            return start == 0 ? legacyKey(msg) : new String(payload, 3, start - 3, StandardCharsets.UTF_8);
+        } catch (StreamCorruptedException e) {
+            return null;
+        }
+    }
+
+    private Path segmentFile(int sequence) {
+        return directory.resolve(String.format(Locale.ROOT, "%010d%s", sequence, SEGMENT_SUFFIX));
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    long getPages() {
+        return pages.sum();
+    }
+
+    /** Resumo para log: mensagens guardadas, conversas, gravações, descartes, retenção, páginas servidas e leituras de disco por página. */
+    synchronized String summary() {
+        long served = pages.sum();
+        return String.format(Locale.ROOT, "%d mensagens em %d conversas (%d bytes, %d segmentos), %d gravadas nesta execução, %d na fila, %d descartadas, %d apagadas pela retenção, %d páginas servidas (%.1f leituras por página)",
+                messages, conversations.size(), storedBytes, readers.size(), appended.sum(), queue.size(), dropped.sum(), expired.sum(), served,
+                served > 0 ? (double) pageReads.sum() / served : 0.0);
+    }
+}
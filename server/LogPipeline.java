@@ -0,0 +1,346 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Caminho dos logs do servidor, fora das threads de roteamento e do EDT.
+ *
+ * Quem loga só passa pelo filtro de nível e reserva uma posição num buffer circular de tamanho
+ * fixo (CAS no contador de escrita, sem lock nem alocação: as entradas são pré-alocadas e
+ * reaproveitadas). Se o buffer estiver cheio a linha é descartada e contada; quem loga nunca
+ * espera. Uma única thread ("server-log") formata as linhas, grava em arquivos com rotação por
+ * tamanho e guarda as mais recentes para a janela, que as lê periodicamente em vez de receber
+ * um invokeLater por linha.
+ */
+final class LogPipeline {
+
+    /** Tamanho do buffer, tamanho de cada arquivo de log e quantos arquivos antigos manter. */
+    public static final class Limits {
+        private final int capacity;
+        private final long fileBytes;
+        private final int files;
+
+        public Limits(int capacity, long fileBytes, int files) {
+            this.capacity = Integer.highestOneBit(Math.max(64, Math.min(1 << 20, capacity)) * 2 - 1); // Potência de 2
+            this.fileBytes = Math.max(64 * 1024, fileBytes);
+            this.files = Math.max(1, files);
+        }
+
+        public int getCapacity() { return capacity; }
+        public long getFileBytes() { return fileBytes; }
+        public int getFiles() { return files; }
+    }
+
+    static final String FILE_NAME = "servidor.log";
+    private static final String[] LEVELS = {"DEBUG", "INFO", "AVISO", "ERROR"}; // Índice: rank
+    private static final int RECENT_LINES = 1024; // Potência de 2
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private static final class Entry {
+        long time;
+        String level;
+        String category;
+        String message;
+        Throwable error;
+    }
+
+    private final Path directory;
+    private final Limits limits;
+    private volatile int minLevel;
+    private final int mask;
+    private final Entry[] entries;
+    // sequences[i] == posição + 1: entrada publicada; == posição: livre para o produtor dessa posição
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final String[] recent = new String[RECENT_LINES];
+    private volatile long recentCount = 0; // Só a thread de log escreve
+
+    private volatile PrintStream console;
+    private volatile boolean running = true;
+    private Thread consumer;
+    private long head = 0; // Só a thread de log acessa
+    private long lastReportedDrops = 0; // Só a thread de log acessa
+    private Writer out; // Só a thread de log acessa
+    private long fileBytes; // Só a thread de log acessa
+
+    LogPipeline(Path directory, Limits limits, String minLevel) {
+        this.directory = directory;
+        this.limits = limits;
+        this.minLevel = rank(minLevel);
+        this.mask = limits.getCapacity() - 1;
+        this.entries = new Entry[limits.getCapacity()];
+        this.sequences = new AtomicLongArray(limits.getCapacity());
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+    }
+
+    /** Abre o arquivo de log e inicia a thread que esvazia o buffer. Sem diretório, as linhas vão só para a janela/console. */
+    void open() {
+        try {
+            Files.createDirectories(directory);
+            openFile();
+        } catch (IOException e) {
+            System.err.println("Não foi possível abrir o log em " + directory + ": " + e.getMessage());
+        }
+        consumer = new Thread(this::drainLoop, "server-log");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /** Repete as linhas formatadas neste stream (servidor sem janela). */
+    void echoTo(PrintStream stream) {
+        this.console = stream;
+    }
+
+    /** Troca o nível mínimo com o servidor rodando. */
+    void setMinLevel(String level) {
+        if (!isKnownLevel(level)) throw new IllegalArgumentException("Nível de log desconhecido: " + level + " (use DEBUG, INFO, AVISO ou ERROR)");
+        minLevel = rank(level);
+    }
+
+    String getMinLevel() {
+        return LEVELS[minLevel];
+    }
+
+    static boolean isKnownLevel(String level) {
+        return level != null && Arrays.asList(LEVELS).contains(level);
+    }
+
+    /** Indica se linhas deste nível passam pelo filtro; permite não montar a mensagem quando não passam. */
+    boolean isEnabled(String level) {
+        return rank(level) >= minLevel;
+    }
+
+    /** Enfileira a linha sem formatá-la. Retorna false se ela foi filtrada ou descartada por buffer cheio. */
+    boolean publish(String level, String category, String message, Throwable error) {
+        if (rank(level) < minLevel) return false;
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) break;
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.increment(); // A thread de log ainda não liberou esta volta do buffer
+                return false;
+            } else {
+                position = tail.get(); // Outro produtor já ficou com esta posição
+            }
+        }
+        Entry entry = entries[index];
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.category = category;
+        entry.message = message;
+        entry.error = error;
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Copia para {@code lines} as linhas formatadas a partir de {@code from} (o valor retornado na
+     * chamada anterior, 0 na primeira). Linhas que já saíram da janela de recentes são puladas.
+     */
+    long recentSince(long from, List<String> lines) {
+        long end = recentCount;
+        long start = Math.max(from, end - RECENT_LINES);
+        int first = lines.size();
+        for (long i = start; i < end; i++) lines.add(recent[(int) (i & (RECENT_LINES - 1))]);
+        long overwritten = recentCount - RECENT_LINES - start; // Sobrescritas pela thread de log durante a cópia
+        if (overwritten > 0) lines.subList(first, first + (int) Math.min(overwritten, end - start)).clear();
+        return end;
+    }
+
+    long getDropped() { return dropped.sum(); }
+    long getWritten() { return written.sum(); }
+
+    String summary() {
+        return written.sum() + " linhas gravadas, " + dropped.sum() + " descartadas por buffer cheio (capacidade "
+                + limits.getCapacity() + "), " + Math.max(0, tail.get() - head) + " na fila";
+    }
+
+    /** Para a thread de log depois de esvaziar o buffer e fecha o arquivo. */
+    void close() {
+        running = false;
+        if (consumer == null) return;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        while (true) {
+            boolean stopping = !running; // Lido antes de esvaziar: o que foi publicado antes do close() sai
+            int drained = drain();
+            reportDrops();
+            if (drained > 0) continue;
+            flush();
+            if (stopping) break;
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        closeFile();
+    }
+
+    private int drain() {
+        int drained = 0;
+        while (true) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) return drained;
+            Entry entry = entries[index];
+            long time = entry.time;
+            String level = entry.level;
+            String category = entry.category;
+            String message = entry.message;
+            Throwable error = entry.error;
+            entry.level = entry.category = entry.message = null;
+            entry.error = null;
+            sequences.set(index, head + mask + 1);
+            head++;
+            drained++;
+            write(format(time, level, category, message, error), error);
+        }
+    }
+
+    private String format(long time, String level, String category, String message, Throwable error) {
+        String timestamp = dateFormat.format(Instant.ofEpochMilli(time));
+        if (error == null) {
+            return String.format("[%s] [%-5s] [%-22s] %s", timestamp, level.toUpperCase(), category, message);
+        }
+        StringWriter sw = new StringWriter();
+        error.printStackTrace(new PrintWriter(sw));
+        String[] stackLines = sw.toString().split("\n");
+        String shortStackTrace = stackLines[0] + (stackLines.length > 1 ? " (" + stackLines[1].trim() + ")" : "");
+        return String.format("[%s] [%-5s] [%-22s] %s | Exceção: %s - %s (%s)", timestamp, level.toUpperCase(), category, message,
+                error.getClass().getSimpleName(), error.getMessage(), shortStackTrace);
+    }
+
+    private void reportDrops() {
+        long drops = dropped.sum();
+        if (drops == lastReportedDrops) return;
+        String line = format(System.currentTimeMillis(), "AVISO", "LOG_DESCARTES",
+                (drops - lastReportedDrops) + " linhas de log descartadas (buffer cheio). Total: " + drops, null);
+        lastReportedDrops = drops;
+        write(line, null);
+    }
+
+    private void write(String line, Throwable error) {
+        recent[(int) (recentCount & (RECENT_LINES - 1))] = line;
+        recentCount = recentCount + 1;
+        written.increment();
+        PrintStream stream = console;
+        if (stream != null) {
+            if (error == null) stream.println(line);
+            else System.err.println(line);
+        }
+        if (out == null) return;
+        try {
+            out.write(line);
+            out.write('\n');
+            if (error != null) { // No arquivo vai o stack trace inteiro
+                PrintWriter trace = new PrintWriter(out);
+                error.printStackTrace(trace);
+                trace.flush();
+            }
+            if (fileBytes >= limits.getFileBytes()) rotate();
+        } catch (IOException e) {
+            System.err.println("Erro ao gravar o log em " + directory + ": " + e.getMessage() + ". Log em arquivo desligado.");
+            closeFile();
+        }
+    }
+
+    private void flush() {
+        if (out == null) return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Erro ao gravar o log em " + directory + ": " + e.getMessage() + ". Log em arquivo desligado.");
+            closeFile();
+        }
+    }
+
+    /** servidor.log vira servidor.log.1, o .1 vira .2 e assim por diante; o mais antigo é apagado. */
+    private void rotate() throws IOException {
+        out.close();
+        out = null;
+        Path base = directory.resolve(FILE_NAME);
+        Files.deleteIfExists(directory.resolve(FILE_NAME + "." + limits.getFiles()));
+        for (int i = limits.getFiles() - 1; i >= 1; i--) {
+            Path older = directory.resolve(FILE_NAME + "." + i);
+            if (Files.exists(older)) Files.move(older, directory.resolve(FILE_NAME + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(base, directory.resolve(FILE_NAME + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        openFile();
+    }
+
+    private void openFile() throws IOException {
+        Path file = directory.resolve(FILE_NAME);
+        fileBytes = Files.exists(file) ? Files.size(file) : 0;
+        OutputStream stream = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        out = new BufferedWriter(new OutputStreamWriter(new FilterOutputStream(stream) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                fileBytes += len;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                fileBytes++;
+            }
+        }, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    private void closeFile() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Erro ao fechar o log em " + directory + ": " + e.getMessage());
+        }
+        out = null;
+    }
+
+    private static int rank(String level) {
+        switch (level) {
+            case "DEBUG": return 0;
+            case "AVISO": return 2;
+            case "ERROR": return 3;
+            default: return 1;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package server;
+
+import common.Message;
+import common.MessageType;
+import common.WireProtocol;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Conexão de cliente atendida por um NioEventLoop.
+ * Leitura e escrita acontecem sempre na thread do loop; sendMessage pode ser chamado
+ * de qualquer thread e apenas enfileira o quadro já codificado.
+ *
+ * O loop só decodifica: o login e as mensagens lidas (roteamento, spool de anexos, caixas offline,
+ * histórico, WAL de grupos) seguem para os workers do NioServer, uma de cada vez e na ordem em que
+ * chegaram. Com mais de INBOUND_PAUSE_BYTES lidos e ainda não processados, o loop para de ler o canal.
+ */
+final class NioConnection implements ClientConnection {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    private static final long INBOUND_PAUSE_BYTES = 1024 * 1024;
+
+    private enum State { HANDSHAKE, USERNAME, OPEN, HANDOFF, CLOSED }
+
+    private final Server server;
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final SocketAddress remoteAddress;
+    private SelectionKey key;
+
+    private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private boolean readingPaused; // Workers atrasados com esta conexão; só a thread do loop acessa
+    private int requiredCapacity = 0;
+    private byte[] handoffPrefix;
+
+    private final OutboundQueue outbound;
+    private ByteBuffer partialWrite; // Quadro que o socket aceitou só em parte; só a thread do loop acessa
+    private OutboundQueue.Entry partialEntry; // Quadro de partialWrite, que pode terminar com um anexo em spool
+    private long partialAttachmentSent;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile boolean closeAfterFlush = false;
+
+    private final Executor worker;
+    private final Queue<BooleanSupplier> inboundTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean inboundScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean inboundWaiting = new AtomicBoolean(false); // Fila parada esperando destinatários de um arquivo
+    private final AtomicLong inboundBytes = new AtomicLong(); // Lido pelo loop e ainda não processado
+
+    private volatile State state = State.HANDSHAKE;
+    private volatile String username;
+    private volatile int flags; // Flags aceitas no handshake
+    private volatile boolean registered = false;
+    private volatile long receivedMessages = 0; // Só a thread do loop escreve
+    private volatile long sentBytes = 0; // Só a thread do loop escreve
+
+    NioConnection(Server server, NioEventLoop loop, SocketChannel channel) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.remoteAddress = channel.socket().getRemoteSocketAddress();
+        this.outbound = new OutboundQueue(server.getConfig().getOutboundMaxBytes());
+        this.worker = loop.workers();
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get() && state == State.OPEN && channel.isOpen();
+    }
+
+    @Override
+    public void sendMessage(Message msg) {
+        sendFrame(new OutboundFrame(msg));
+    }
+
+    @Override
+    public void sendFrame(OutboundFrame frame) {
+        if (closed.get() || !channel.isOpen()) {
+            return;
+        }
+        if (server.getSlowConsumerPolicy().shouldDrop(this, frame.message().getType())) {
+            return;
+        }
+        try {
+            enqueue(frame.encode(true, flags, server.getCompressor()), null);
+        } catch (IOException e) {
+            server.logError("ENVIO_CLIENTE_NIO_CODEC", "Erro ao codificar mensagem para " + username, e);
+        }
+    }
+
+    @Override
+    public void sendAttachment(Message msg, SpooledAttachment attachment) {
+        if ((flags & WireProtocol.FLAG_BINARY_CODEC) == 0) {
+            try {
+                sendMessage(attachment.inline(msg));
+            } catch (IOException e) {
+                server.logError("SPOOL_LEITURA", "Erro ao ler anexo em spool para " + username, e);
+            }
+            return;
+        }
+        if (closed.get() || !channel.isOpen() || server.getSlowConsumerPolicy().shouldDrop(this, msg.getType())) {
+            return;
+        }
+        try {
+            enqueue(WireProtocol.fileFrameHeader(msg, attachment.size(), flags), attachment);
+        } catch (IOException e) {
+            server.logError("ENVIO_CLIENTE_NIO_CODEC", "Erro ao codificar mensagem para " + username, e);
+        }
+    }
+
+    private void enqueue(byte[] frame, SpooledAttachment attachment) {
+        if (!outbound.offer(frame, attachment)) {
+            if (!outbound.isClosed()) {
+                server.log("AVISO", "FILA_SAIDA_CHEIA", "Fila de saída de " + describe() + " cheia (" + outbound.bytes() + " bytes, " + outbound.depth() + " quadros). Fechando conexão.");
+                closeClientSocket();
+            }
+            return;
+        }
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.requestWrite(this);
+        }
+    }
+
+    @Override
+    public int getProtocolFlags() {
+        return flags;
+    }
+
+    @Override
+    public int getOutboundDepth() {
+        return outbound.depth();
+    }
+
+    /** Não inclui o restante de um quadro que já começou a ser escrito. */
+    @Override
+    public long getOutboundBytes() {
+        return outbound.bytes();
+    }
+
+    @Override
+    public void whenOutboundBelow(long bytes, Runnable callback) {
+        outbound.whenBelow(bytes, callback);
+    }
+
+    @Override
+    public long getOldestOutboundAgeMillis() {
+        return outbound.oldestAgeMillis();
+    }
+
+    @Override
+    public long getReceivedMessages() {
+        return receivedMessages;
+    }
+
+    @Override
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    // ---- Thread do event loop ----
+
+    void onReadable() {
+        int read;
+        try {
+            read = channel.read(inbound);
+        } catch (IOException e) {
+            if (!closed.get()) server.log("INFO", "CONEXÃO_IO_RESET", "Conexão com " + describe() + " foi encerrada: " + e.getMessage());
+            closeClientSocket();
+            return;
+        }
+        if (read < 0) {
+            if (!closed.get()) server.log("INFO", "CONEXÃO_EOF", "Cliente " + describe() + " desconectou (EOF).");
+            closeClientSocket();
+            return;
+        }
+        decodeBuffered();
+    }
+
+    private void decodeBuffered() {
+        inbound.flip();
+        try {
+            while (state != State.CLOSED && state != State.HANDOFF && !readingPaused && decodeNext()) {
+                // Continua decodificando enquanto houver quadros completos no buffer
+            }
+        } catch (IOException e) {
+            server.logError("PROTOCOLO_NIO", "Quadro inválido de " + describe(), e);
+            closeClientSocket();
+            return;
+        } finally {
+            inbound.compact();
+        }
+        adjustInboundCapacity();
+    }
+
+    private boolean decodeNext() throws IOException {
+        if (state == State.HANDSHAKE) {
+            if (inbound.remaining() < 2) return false;
+            int pos = inbound.position();
+            if (WireProtocol.isLegacyStreamHeader(inbound.get(pos), inbound.get(pos + 1))) {
+                handoffPrefix = new byte[inbound.remaining()];
+                inbound.get(handoffPrefix);
+                state = State.HANDOFF;
+                key.cancel();
+                loop.handOff(this);
+                return false;
+            }
+            if (inbound.remaining() < WireProtocol.HANDSHAKE_SIZE) return false;
+            byte[] handshake = new byte[WireProtocol.HANDSHAKE_SIZE];
+            inbound.get(handshake);
+            int requestedFlags = WireProtocol.parseHandshake(handshake, 0);
+            flags = requestedFlags & WireProtocol.SUPPORTED_FLAGS;
+            enqueue(WireProtocol.handshake(flags), null);
+            state = State.USERNAME;
+            return true;
+        }
+
+        if (inbound.remaining() < WireProtocol.FRAME_HEADER_SIZE) return false;
+        int length = inbound.getInt(inbound.position());
+        WireProtocol.checkFrameLength(length);
+        if (inbound.remaining() < WireProtocol.FRAME_HEADER_SIZE + length) {
+            requiredCapacity = WireProtocol.FRAME_HEADER_SIZE + length;
+            return false;
+        }
+        inbound.getInt();
+        byte[] payload = new byte[length];
+        inbound.get(payload);
+        onFrame(payload);
+        return true;
+    }
+
+    private void onFrame(byte[] payload) throws IOException {
+        if (state == State.USERNAME) {
+            username = WireProtocol.decodeUsername(payload);
+            server.log("INFO", "AUTENTICAÇÃO", "Usuário '" + username + "' conectando de " + remoteAddress + " (NIO)");
+            state = State.OPEN;
+            submitInbound(this::register);
+            return;
+        }
+        Message msg = WireProtocol.decodeMessage(payload, 0, payload.length, flags, server.getCompressor());
+        long receivedAt = System.nanoTime();
+        if (msg.getTimestamp() == null) {
+            msg.setTimestamp(new Date());
+        }
+        receivedMessages++;
+        server.getMetrics().messageReceived(msg.getType());
+        int size = payload.length;
+        long pending = inboundBytes.addAndGet(size);
+        submitInbound(() -> process(msg, receivedAt, size));
+        if (pending > INBOUND_PAUSE_BYTES) {
+            // Backpressure: para de ler este canal até os workers alcançarem; o aviso volta pelo loop
+            readingPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /** Chamado pelo loop quando os workers processaram o que estava acumulado. */
+    void resumeReading() {
+        if (closed.get() || !readingPaused) return;
+        readingPaused = false;
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            decodeBuffered(); // Quadros que já estavam no buffer quando a leitura foi suspensa
+        }
+    }
+
+    /** Cresce o buffer para caber um quadro grande e volta ao tamanho inicial quando esvazia. */
+    private void adjustInboundCapacity() {
+        if (requiredCapacity > inbound.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(requiredCapacity);
+            inbound.flip();
+            bigger.put(inbound);
+            inbound = bigger;
+        } else if (inbound.position() == 0 && inbound.capacity() > INITIAL_BUFFER_SIZE) {
+            inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+        requiredCapacity = 0;
+    }
+
+    void onWritable() {
+        writeScheduled.set(false);
+        if (key == null || !key.isValid() || closed.get()) {
+            finishPartialWrite(); // Conexão fechada no meio de um quadro: solta o anexo, se houver
+            return;
+        }
+        try {
+            while (true) {
+                if (partialWrite == null) {
+                    OutboundQueue.Entry entry = outbound.poll();
+                    if (entry == null) break;
+                    partialEntry = entry;
+                    partialWrite = ByteBuffer.wrap(entry.frame);
+                    partialAttachmentSent = 0;
+                }
+                if (partialWrite.hasRemaining()) {
+                    channel.write(partialWrite);
+                }
+                SpooledAttachment attachment = partialEntry.attachment;
+                if (!partialWrite.hasRemaining() && attachment != null && partialAttachmentSent < attachment.size()) {
+                    partialAttachmentSent += attachment.transferTo(partialAttachmentSent, channel);
+                }
+                if (partialWrite.hasRemaining() || (attachment != null && partialAttachmentSent < attachment.size())) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE); // Buffer TCP cheio: espera o Selector
+                    return;
+                }
+                sentBytes += partialEntry.length();
+                server.getMetrics().frameWritten(partialEntry);
+                finishPartialWrite();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeAfterFlush) {
+                closeClientSocket();
+            }
+        } catch (IOException e) {
+            if (!closed.get()) server.log("AVISO", "ENVIO_MSG_NIO_EX", "Erro ao enviar para " + describe() + ": " + e.getMessage() + ". Fechando conexão.");
+            finishPartialWrite();
+            closeClientSocket();
+        }
+    }
+
+    private void finishPartialWrite() {
+        if (partialEntry != null) partialEntry.release();
+        partialEntry = null;
+        partialWrite = null;
+    }
+
+    // ---- Workers ----
+
+    /**
+     * Enfileira trabalho desta conexão para os workers. As tarefas rodam uma de cada vez, na ordem de
+     * chegada; uma tarefa que devolve false suspende a fila até resumeInbound.
+     */
+    private void submitInbound(BooleanSupplier task) {
+        inboundTasks.add(task);
+        if (inboundScheduled.compareAndSet(false, true)) {
+            executeInbound();
+        }
+    }
+
+    private void executeInbound() {
+        try {
+            worker.execute(this::runInbound);
+        } catch (RejectedExecutionException e) {
+            /* Servidor desligando */
+        }
+    }
+
+    private void runInbound() {
+        while (true) {
+            BooleanSupplier task = inboundTasks.poll();
+            if (task == null) {
+                inboundScheduled.set(false);
+                if (inboundTasks.isEmpty() || !inboundScheduled.compareAndSet(false, true)) return;
+                continue;
+            }
+            boolean proceed = true;
+            try {
+                proceed = task.getAsBoolean();
+            } catch (RuntimeException e) {
+                server.logError("NIO_WORKER", "Erro ao processar mensagem de " + describe(), e);
+            }
+            if (!proceed) return; // Segue agendada: quem chamar resumeInbound continua daqui
+        }
+    }
+
+    /** Retoma a fila parada num arquivo em partes; chamado quando os destinatários escoam ou a conexão fecha. */
+    private void resumeInbound() {
+        if (inboundWaiting.compareAndSet(true, false)) {
+            executeInbound();
+        }
+    }
+
+    private boolean register() {
+        registered = server.registerClient(username, this);
+        if (!registered) {
+            closeAfterFlush = true;
+            state = State.CLOSED;
+            loop.requestWrite(this); // O loop fecha depois de escrever a recusa
+        }
+        return true;
+    }
+
+    /** @return false se a fila deve esperar os destinatários de uma parte de arquivo escoarem. */
+    private boolean process(Message msg, long receivedAt, int size) {
+        try {
+            if (!registered) return true; // Login recusado; o que já tinha sido lido é descartado
+            ServerMetrics.beginInbound(receivedAt);
+            try {
+                server.processMessage(msg, username);
+            } finally {
+                ServerMetrics.endInbound();
+            }
+        } finally {
+            long pending = inboundBytes.addAndGet(-size);
+            if (pending <= INBOUND_PAUSE_BYTES && pending + size > INBOUND_PAUSE_BYTES) {
+                loop.resumeReading(this);
+            }
+        }
+        if (msg.getType() != MessageType.FILE_CHUNK || closed.get()) return true;
+        // Backpressure de arquivo: a próxima mensagem desta conexão espera os destinatários escoarem
+        inboundWaiting.set(true);
+        if (server.awaitFileRecipients(msg, username, this::resumeInbound)) {
+            inboundWaiting.set(false);
+            return true;
+        }
+        return false;
+    }
+
+    /** Executado pelo loop após o cancelamento da chave ter sido efetivado no Selector. */
+    void completeHandoff() {
+        try {
+            channel.configureBlocking(true);
+            server.handOffLegacyConnection(channel.socket(), handoffPrefix);
+        } catch (IOException e) {
+            server.logError("NIO_HANDOFF", "Erro ao repassar conexão legada de " + remoteAddress, e);
+            closeClientSocket();
+        }
+    }
+
+    @Override
+    public void closeClientSocket() {
+        if (!closed.compareAndSet(false, true)) return;
+        state = State.CLOSED;
+        outbound.discard();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            server.logError("CLOSE_CLIENT_SOCKET", "Erro ao fechar canal para " + describe(), e);
+        }
+        loop.requestWrite(this); // O loop solta o quadro que estava no meio da escrita
+        if (username != null) {
+            // Depois das mensagens já lidas; não espera mais os destinatários de um arquivo
+            submitInbound(() -> {
+                if (registered && server.isRunning()) { // No shutdown o servidor limpa o registro de uma vez
+                    server.removeClient(username);
+                }
+                return true;
+            });
+            resumeInbound();
+        }
+    }
+
+    private String describe() {
+        return username != null ? username : String.valueOf(remoteAddress);
+    }
+}
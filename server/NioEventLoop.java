@@ -0,0 +1,171 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Um Selector e a thread que o atende. Faz leitura, decodificação de quadros e escrita de todas
+ * as conexões registradas nele; o processamento das mensagens lidas fica com os workers, para
+ * que disco e roteamento lentos não segurem as outras conexões do loop.
+ */
+final class NioEventLoop implements Runnable {
+    private final Server server;
+    private final Selector selector;
+    private final Executor workers;
+    private final Thread thread;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final List<NioConnection> pendingHandoffs = new ArrayList<>(); // Só acessado pela thread do loop
+    private final Queue<NioConnection> pendingResumes = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    NioEventLoop(Server server, String name, Executor workers) throws IOException {
+        this.server = server;
+        this.workers = workers;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /** Onde as conexões deste loop processam as mensagens lidas (ver NioConnection.submitInbound). */
+    Executor workers() {
+        return workers;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Chamado pela thread de aceitação; o registro no Selector acontece na thread do loop. */
+    void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /** Agenda a escrita da fila de saída da conexão. Pode ser chamado de qualquer thread. */
+    void requestWrite(NioConnection connection) {
+        pendingWrites.add(connection);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /** Retoma a leitura suspensa por backpressure. Pode ser chamado de qualquer thread. */
+    void resumeReading(NioConnection connection) {
+        pendingResumes.add(connection);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /** Conexão legada detectada: será devolvida ao modo bloqueante ao fim da iteração atual. */
+    void handOff(NioConnection connection) {
+        pendingHandoffs.add(connection);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                registerPendingChannels();
+                processPendingWrites();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) connection.onReadable();
+                        if (key.isValid() && key.isWritable()) connection.onWritable();
+                    } catch (CancelledKeyException e) {
+                        connection.closeClientSocket();
+                    }
+                }
+
+                completeHandoffs();
+                resumePendingReaders();
+                processPendingWrites(); // Escritas geradas pelo próprio loop durante o roteamento
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (running) server.logError("NIO_LOOP_IO", "Erro de I/O no event loop " + thread.getName(), e);
+            }
+        }
+        closeAllConnections();
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            NioConnection connection = new NioConnection(server, this, channel);
+            try {
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                server.logError("NIO_REGISTRO", "Erro ao registrar conexão no event loop", e);
+                connection.closeClientSocket();
+            }
+        }
+    }
+
+    private void processPendingWrites() {
+        NioConnection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            connection.onWritable();
+        }
+    }
+
+    private void resumePendingReaders() {
+        NioConnection connection;
+        while ((connection = pendingResumes.poll()) != null) {
+            connection.resumeReading();
+        }
+    }
+
+    private void completeHandoffs() throws IOException {
+        if (pendingHandoffs.isEmpty()) return;
+        selector.selectNow(); // Efetiva o cancelamento das chaves para permitir voltar ao modo bloqueante
+        for (NioConnection connection : pendingHandoffs) {
+            connection.completeHandoff();
+        }
+        pendingHandoffs.clear();
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeAllConnections() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection connection) {
+                    connection.closeClientSocket();
+                }
+            }
+            selector.close();
+        } catch (ClosedSelectorException | IOException e) {
+            /* ignora no shutdown */
+        }
+    }
+}
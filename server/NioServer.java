@@ -0,0 +1,89 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Servidor não bloqueante: aceita conexões num ServerSocketChannel e distribui
+ * cada SocketChannel, em round-robin, para um número fixo de event loops. As mensagens
+ * decodificadas pelos loops são processadas num pool fixo de workers.
+ */
+final class NioServer {
+    private final Server server;
+    private final int port;
+    private final NioEventLoop[] loops;
+    private final ExecutorService workers;
+    private ServerSocketChannel serverChannel;
+    private int nextLoop = 0; // Só acessado pela thread de aceitação
+
+    NioServer(Server server, int port, int loopCount, int workerCount) throws IOException {
+        this.server = server;
+        this.port = port;
+        AtomicInteger workerIds = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "NioWorker-" + workerIds.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        this.loops = new NioEventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new NioEventLoop(server, "NioEventLoop-" + i, workers);
+        }
+    }
+
+    void bind() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        for (NioEventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /** Bloqueia aceitando conexões até o servidor ser desligado. */
+    void acceptLoop() {
+        while (server.isRunning()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (!server.isRunning()) {
+                    try { channel.close(); } catch (IOException ex) {/*ignore*/}
+                    break;
+                }
+                server.connectionAccepted(channel.getRemoteAddress());
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            } catch (ClosedChannelException e) {
+                break; // Normal durante shutdown
+            } catch (IOException e) {
+                if (server.isRunning()) { server.logError("ACEITAR_CONEXAO_NIO", "Erro de I/O ao aceitar nova conexão", e); }
+            }
+        }
+    }
+
+    void close() {
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            server.logError("SHUTDOWN_SOCKET_SRV_IO", "Erro ao fechar ServerSocketChannel", e);
+        }
+        for (NioEventLoop loop : loops) {
+            loop.close();
+        }
+        workers.shutdown(); // Termina o que já foi lido antes de os armazenamentos fecharem
+        try {
+            if (!workers.awaitTermination(5, TimeUnit.SECONDS)) workers.shutdownNow();
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
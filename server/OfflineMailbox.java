@@ -0,0 +1,437 @@
+package server;
+
+import common.Message;
+import common.MessageCodec;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Caixa de mensagens para destinatários offline, em arquivos de segmento só de acréscimo.
+ *
+ * Cada destinatário tem um diretório ({@code diretório/<nome em hex>/}) com segmentos numerados
+ * ({@code 0000000001.seg}, ...). Cada registro é {@code [tamanho][CRC32][mensagem no codec binário]};
+ * só o último segmento recebe escritas e, ao passar de segmentBytes, abre-se o próximo. Na
+ * reconexão todos os segmentos são lidos em ordem, entregues e apagados.
+ *
+ * O fsync é feito em lote: as escritas vão para o page cache e uma thread própria força os
+ * segmentos alterados a cada syncMillis (0: fsync a cada mensagem). Numa queda do sistema
+ * operacional perdem-se no máximo as mensagens desse intervalo; um registro pela metade no fim
+ * de um segmento é descartado na abertura.
+ *
+ * Retenção: cada caixa guarda até maxBytes (os segmentos mais antigos saem primeiro) e segmentos
+ * cuja última escrita é mais velha que retentionMillis são apagados.
+ */
+final class OfflineMailbox {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int RECORD_HEADER = 8; // Tamanho + CRC32
+    private static final long SWEEP_INTERVAL_MS = 60_000;
+
+    /** Limites da caixa, lidos de ServerConfig. */
+    public static final class Limits {
+        final long segmentBytes;
+        final long maxBytes;
+        final long retentionMillis;
+        final long syncMillis;
+
+        public Limits(long segmentBytes, long maxBytes, long retentionMillis, long syncMillis) {
+            this.segmentBytes = Math.max(4 * 1024, segmentBytes);
+            this.maxBytes = Math.max(this.segmentBytes, maxBytes);
+            this.retentionMillis = retentionMillis;
+            this.syncMillis = Math.max(0, syncMillis);
+        }
+    }
+
+    private static final class Segment {
+        final Path file;
+        final long sequence;
+        long size;
+        int messages;
+        long lastWriteMillis;
+
+        Segment(Path file, long sequence, long size, int messages, long lastWriteMillis) {
+            this.file = file;
+            this.sequence = sequence;
+            this.size = size;
+            this.messages = messages;
+            this.lastWriteMillis = lastWriteMillis;
+        }
+    }
+
+    /** Caixa de um destinatário. Todo acesso é feito sob o monitor da própria caixa. */
+    private static final class Box {
+        final String recipient;
+        final Path directory;
+        final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        FileChannel writer; // Canal do último segmento, ou null se ainda não foi aberto
+        long bytes = 0;
+        int messages = 0;
+
+        Box(String recipient, Path directory) {
+            this.recipient = recipient;
+            this.directory = directory;
+        }
+    }
+
+    private final Path directory;
+    private final Limits limits;
+    private final ServerLog logger;
+    private final ConcurrentHashMap<String, Box> boxes = new ConcurrentHashMap<>(); // Key: destinatário
+    private final Set<Box> unsynced = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService maintenanceExecutor;
+    private DirectoryLock directoryLock; // Entre open() e close()
+
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong storedMessages = new AtomicLong();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+
+    OfflineMailbox(Path directory, Limits limits, ServerLog logger) {
+        this.directory = directory;
+        this.limits = limits;
+        this.logger = logger;
+        this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "offline-mailbox");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Trava o diretório, carrega as caixas que sobraram da execução anterior e inicia o fsync em lote e a retenção. */
+    void open() throws IOException {
+        directoryLock = DirectoryLock.acquire(directory);
+        try (DirectoryStream<Path> recipients = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path recipientDirectory : recipients) {
+                String recipient = recipientName(recipientDirectory);
+                if (recipient != null) {
+                    load(new Box(recipient, recipientDirectory));
+                }
+            }
+        }
+        if (limits.syncMillis > 0) {
+            maintenanceExecutor.scheduleWithFixedDelay(this::syncAll, limits.syncMillis, limits.syncMillis, TimeUnit.MILLISECONDS);
+        }
+        if (limits.retentionMillis > 0) {
+            maintenanceExecutor.scheduleWithFixedDelay(this::sweepExpired, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Faz o fsync pendente e fecha os segmentos abertos. */
+    void close() {
+        maintenanceExecutor.shutdownNow();
+        for (Box box : boxes.values()) {
+            synchronized (box) {
+                closeWriter(box);
+            }
+        }
+        if (directoryLock != null) directoryLock.close();
+        directoryLock = null;
+    }
+
+    /**
+     * Acrescenta a mensagem à caixa do destinatário.
+     * @return false se a mensagem não cabe num segmento ou houve erro de disco (quem chamou deve tratá-la como não entregue).
+     */
+    boolean append(String recipient, Message msg) {
+        byte[] payload = MessageCodec.encode(msg);
+        int recordSize = RECORD_HEADER + payload.length;
+        if (recordSize > limits.segmentBytes) return false;
+
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(payload.length).putInt(crc(payload)).put(payload).flip();
+
+        Box box = boxes.computeIfAbsent(recipient, name -> new Box(name, directory.resolve(directoryName(name))));
+        synchronized (box) {
+            try {
+                Segment segment = box.segments.peekLast();
+                if (box.writer == null || segment == null || segment.size + recordSize > limits.segmentBytes) {
+                    segment = roll(box);
+                }
+                while (record.hasRemaining()) {
+                    box.writer.write(record);
+                }
+                segment.size += recordSize;
+                segment.messages++;
+                segment.lastWriteMillis = System.currentTimeMillis();
+                box.bytes += recordSize;
+                box.messages++;
+                storedBytes.addAndGet(recordSize);
+                storedMessages.incrementAndGet();
+                queued.increment();
+                if (limits.syncMillis == 0) {
+                    box.writer.force(false);
+                    syncs.increment();
+                } else {
+                    unsynced.add(box);
+                }
+                enforceMaxBytes(box);
+                return true;
+            } catch (IOException e) {
+                logger.logError("CAIXA_OFFLINE_GRAVACAO", "Erro ao gravar mensagem para " + recipient + " em " + box.directory, e);
+                closeWriter(box); // A próxima gravação abre um segmento novo em vez de continuar um registro pela metade
+                return false;
+            }
+        }
+    }
+
+    /** Indica se há mensagens guardadas para o destinatário. */
+    boolean hasMessages(String recipient) {
+        Box box = boxes.get(recipient);
+        if (box == null) return false;
+        synchronized (box) {
+            return !box.segments.isEmpty();
+        }
+    }
+
+    /**
+     * Entrega as mensagens guardadas para o destinatário, na ordem em que chegaram, e esvazia a caixa.
+     * Chamadas a append para o mesmo destinatário esperam a entrega terminar, então nada é
+     * gravado num segmento que está sendo apagado.
+     * @return Quantas mensagens foram entregues.
+     */
+    int drain(String recipient, Consumer<Message> consumer) {
+        Box box = boxes.get(recipient);
+        if (box == null) return 0;
+        synchronized (box) {
+            if (box.segments.isEmpty()) return 0;
+            closeWriter(box);
+            int count = 0;
+            for (Segment segment : box.segments) {
+                try {
+                    for (Message msg : readSegment(segment.file)) {
+                        consumer.accept(msg);
+                        count++;
+                    }
+                } catch (IOException e) {
+                    logger.logError("CAIXA_OFFLINE_LEITURA", "Erro ao ler o segmento " + segment.file + " de " + recipient + ". Mensagens descartadas.", e);
+                }
+            }
+            while (!box.segments.isEmpty()) {
+                deleteSegment(box, box.segments.pollFirst());
+            }
+            delivered.add(count);
+            return count;
+        }
+    }
+
+    /** Fsync em lote: força os segmentos que receberam escritas desde a última passada. */
+    private void syncAll() {
+        for (Box box : unsynced) {
+            unsynced.remove(box);
+            synchronized (box) {
+                try {
+                    if (box.writer != null) {
+                        box.writer.force(false);
+                        syncs.increment();
+                    }
+                } catch (IOException e) {
+                    logger.logError("CAIXA_OFFLINE_SYNC", "Erro no fsync da caixa de " + box.recipient, e);
+                }
+            }
+        }
+    }
+
+    /** Apaga os segmentos cuja última escrita passou da retenção. */
+    private void sweepExpired() {
+        long cutoff = System.currentTimeMillis() - limits.retentionMillis;
+        for (Box box : boxes.values()) {
+            synchronized (box) {
+                int expired = 0;
+                while (!box.segments.isEmpty() && box.segments.peekFirst().lastWriteMillis < cutoff) {
+                    if (box.segments.size() == 1) closeWriter(box);
+                    Segment segment = box.segments.pollFirst();
+                    expired += segment.messages;
+                    deleteSegment(box, segment);
+                }
+                if (expired > 0) {
+                    discarded.add(expired);
+                    logger.log("AVISO", "CAIXA_OFFLINE_RETENCAO", expired + " mensagens para " + box.recipient + " expiraram sem entrega.");
+                }
+            }
+        }
+    }
+
+    /** Fecha o segmento atual (com fsync) e abre o próximo. Chamar sob o monitor da caixa. */
+    private Segment roll(Box box) throws IOException {
+        closeWriter(box);
+        Files.createDirectories(box.directory);
+        Segment last = box.segments.peekLast();
+        long sequence = last != null ? last.sequence + 1 : 1;
+        Path file = box.directory.resolve(String.format(Locale.ROOT, "%010d%s", sequence, SEGMENT_SUFFIX));
+        box.writer = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        Segment segment = new Segment(file, sequence, 0, 0, System.currentTimeMillis());
+        box.segments.addLast(segment);
+        return segment;
+    }
+
+    /** Descarta os segmentos mais antigos enquanto a caixa passa de maxBytes (o segmento atual fica). */
+    private void enforceMaxBytes(Box box) {
+        int dropped = 0;
+        while (box.bytes > limits.maxBytes && box.segments.size() > 1) {
+            Segment oldest = box.segments.pollFirst();
+            dropped += oldest.messages;
+            deleteSegment(box, oldest);
+        }
+        if (dropped > 0) {
+            discarded.add(dropped);
+            logger.log("AVISO", "CAIXA_OFFLINE_CHEIA", "Caixa de " + box.recipient + " passou de " + limits.maxBytes + " bytes: "
+                    + dropped + " mensagens mais antigas descartadas.");
+        }
+    }
+
+    private void deleteSegment(Box box, Segment segment) {
+        box.bytes -= segment.size;
+        box.messages -= segment.messages;
+        storedBytes.addAndGet(-segment.size);
+        storedMessages.addAndGet(-segment.messages);
+        try {
+            Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            logger.logError("CAIXA_OFFLINE_APAGAR", "Erro ao apagar o segmento " + segment.file, e);
+        }
+    }
+
+    private void closeWriter(Box box) {
+        if (box.writer == null) return;
+        try {
+            box.writer.force(false);
+            box.writer.close();
+        } catch (IOException e) {
+            logger.logError("CAIXA_OFFLINE_FECHAR", "Erro ao fechar o segmento de " + box.recipient, e);
+        }
+        box.writer = null;
+        unsynced.remove(box);
+    }
+
+    /** Indexa os segmentos de uma caixa existente; um registro incompleto no fim é cortado. */
+    private void load(Box box) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(box.directory, "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        files.sort(Comparator.comparing(file -> file.getFileName().toString()));
+        for (Path file : files) {
+            long sequence;
+            try {
+                sequence = Long.parseLong(file.getFileName().toString().replace(SEGMENT_SUFFIX, ""));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            int messages = 0;
+            long validBytes = 0;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer data = readFully(channel);
+                while (nextRecord(data) != null) {
+                    messages++;
+                    validBytes = data.position();
+                }
+                if (validBytes < channel.size()) {
+                    logger.log("AVISO", "CAIXA_OFFLINE_RECUPERACAO", "Registro incompleto no fim de " + file + ": " + (channel.size() - validBytes) + " bytes cortados.");
+                    channel.truncate(validBytes);
+                }
+            }
+            if (messages == 0) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+            box.segments.addLast(new Segment(file, sequence, validBytes, messages, Files.getLastModifiedTime(file).toMillis()));
+            box.bytes += validBytes;
+            box.messages += messages;
+        }
+        if (box.segments.isEmpty()) return;
+        boxes.put(box.recipient, box);
+        storedBytes.addAndGet(box.bytes);
+        storedMessages.addAndGet(box.messages);
+    }
+
+    private static List<Message> readSegment(Path file) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer data = readFully(channel);
+            Message msg;
+            while ((msg = nextRecord(data)) != null) {
+                messages.add(msg);
+            }
+        }
+        return messages;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+        while (data.hasRemaining() && channel.read(data) >= 0) { }
+        return data.flip();
+    }
+
+    /** Lê o próximo registro; null no fim do segmento ou num registro incompleto/corrompido (a posição não avança). */
+    private static Message nextRecord(ByteBuffer data) {
+        if (data.remaining() < RECORD_HEADER) return null;
+        int start = data.position();
+        int length = data.getInt(start);
+        int checksum = data.getInt(start + 4);
+        if (length < 0 || length > data.remaining() - RECORD_HEADER) return null;
+        byte[] payload = new byte[length];
+        data.get(start + RECORD_HEADER, payload);
+        if (crc(payload) != checksum) return null;
+        try {
+            Message msg = MessageCodec.decode(payload, 0, length);
+            data.position(start + RECORD_HEADER + length);
+            return msg;
+        } catch (StreamCorruptedException e) {
+            return null;
+        }
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /** Nome do diretório de um destinatário: o nome de usuário em hex, que vale em qualquer sistema de arquivos. */
+    private static String directoryName(String recipient) {
+        return HexFormat.of().formatHex(recipient.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String recipientName(Path recipientDirectory) {
+        try {
+            return new String(HexFormat.of().parseHex(recipientDirectory.getFileName().toString()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    long getQueuedMessages() {
+        return queued.sum();
+    }
+
+    /** Resumo para log: mensagens guardadas, entregues na reconexão, descartadas e fsyncs feitos. */
+    String summary() {
+        return String.format(Locale.ROOT,
+                "%d mensagens guardadas, %d entregues na reconexão, %d descartadas (limite/retenção), %d fsyncs, %d aguardando entrega (%d bytes)",
+                queued.sum(), delivered.sum(), discarded.sum(), syncs.sum(), storedMessages.get(), storedBytes.get());
+    }
+}
@@ -0,0 +1,52 @@
+package server;
+
+import common.FrameCompressor;
+import common.Message;
+import common.WireProtocol;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Mensagem a caminho de uma ou mais conexões, codificada no máximo uma vez por formato de fio.
+ *
+ * No fan-out de grupo a mesma mensagem vai para todos os membros; em vez de cada conexão
+ * serializar de novo, todas pedem os bytes a este objeto, que guarda o quadro pronto de cada
+ * combinação de codec/compressão (mais o trecho do stream legado). Os arrays são imutáveis depois
+ * de criados e vão direto para as OutboundQueue de cada membro; não há cópia nem contagem de
+ * referências, o coletor libera o quadro quando a última fila o escreve.
+ *
+ * A mensagem não pode ser alterada depois de criado o OutboundFrame.
+ */
+public final class OutboundFrame {
+
+    private static final int CODEC_FLAGS = WireProtocol.FLAG_BINARY_CODEC | WireProtocol.FLAG_COMPRESSION;
+    private static final int LEGACY = CODEC_FLAGS + 1;
+
+    private final Message message;
+    private final AtomicReferenceArray<byte[]> encoded = new AtomicReferenceArray<>(LEGACY + 1); // Índice: flags de codec, ou LEGACY
+
+    public OutboundFrame(Message message) {
+        this.message = message;
+    }
+
+    public Message message() {
+        return message;
+    }
+
+    /**
+     * Bytes prontos para a fila de saída: o quadro completo (cabeçalho + payload) no protocolo
+     * enquadrado, ou o trecho com TC_RESET no protocolo legado. A primeira conexão de cada
+     * formato codifica; as seguintes recebem o mesmo array.
+     */
+    public byte[] encode(boolean framed, int flags, FrameCompressor compressor) throws IOException {
+        int variant = framed ? flags & CODEC_FLAGS : LEGACY;
+        byte[] bytes = encoded.get(variant);
+        if (bytes == null) {
+            bytes = framed ? WireProtocol.frame(WireProtocol.encodeMessage(message, flags, compressor)) : WireProtocol.encodeLegacyMessage(message);
+            if (!encoded.compareAndSet(variant, null, bytes)) {
+                bytes = encoded.get(variant); // Outra conexão codificou ao mesmo tempo; usa o dela
+            }
+        }
+        return bytes;
+    }
+}
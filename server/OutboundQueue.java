@@ -0,0 +1,214 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fila de saída limitada de uma conexão. O roteamento só enfileira quadros já codificados;
+ * quem escreve no socket é o writer da própria conexão (thread/thread virtual no ClientHandler,
+ * o event loop na NioConnection). Assim um cliente lento não segura a thread de quem envia.
+ *
+ * O limite é em bytes. Um quadro é sempre aceito com a fila vazia, para que um arquivo
+ * maior que o limite ainda possa ser entregue a um cliente que está em dia.
+ *
+ * Um quadro pode terminar com um anexo em spool (ver AttachmentSpool): a fila guarda só o
+ * início do quadro e uma referência ao arquivo, que o writer escreve em seguida. A referência é
+ * liberada pelo writer depois da escrita, ou pela própria fila se o quadro for descartado.
+ *
+ * Quem precisa esperar a fila escoar (remetente de arquivo em partes, envio do FileStore) usa
+ * whenBelow: o aviso sai da própria retirada do quadro, sem polling.
+ */
+final class OutboundQueue {
+
+    static final class Entry {
+        final byte[] frame;
+        final SpooledAttachment attachment; // Restante do quadro, em disco; null na maioria dos quadros
+        final long enqueuedAt;
+        final long receivedAt; // nanoTime da leitura da mensagem que gerou o quadro (0: não veio de uma leitura)
+
+        Entry(byte[] frame, SpooledAttachment attachment, long enqueuedAt, long receivedAt) {
+            this.frame = frame;
+            this.attachment = attachment;
+            this.enqueuedAt = enqueuedAt;
+            this.receivedAt = receivedAt;
+        }
+
+        long length() {
+            return frame.length + (attachment != null ? attachment.size() : 0);
+        }
+
+        /** Libera o anexo depois que o quadro foi escrito (ou não vai mais ser). */
+        void release() {
+            if (attachment != null) attachment.release();
+        }
+    }
+
+    private final long maxBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private long bytes = 0;
+    private boolean closed = false;
+    private final BacklogSignal drained = new BacklogSignal();
+
+    OutboundQueue(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Enfileira o quadro.
+     * @return false se a fila está fechada ou se o quadro estouraria o limite de bytes.
+     */
+    boolean offer(byte[] frame) {
+        return offer(frame, null);
+    }
+
+    /**
+     * Enfileira o início do quadro seguido do anexo; em caso de sucesso a fila passa a segurar
+     * uma referência ao anexo.
+     * @return false se a fila está fechada ou se o quadro estouraria o limite de bytes.
+     */
+    boolean offer(byte[] frame, SpooledAttachment attachment) {
+        Entry entry = new Entry(frame, attachment, System.nanoTime(), ServerMetrics.inboundReceivedAt());
+        long length = entry.length();
+        lock.lock();
+        try {
+            if (closed) return false;
+            if (!entries.isEmpty() && bytes + length > maxBytes) return false;
+            if (attachment != null) attachment.retain();
+            entries.addLast(entry);
+            bytes += length;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Retira o próximo quadro sem bloquear, ou null se a fila está vazia. */
+    Entry poll() {
+        Entry entry;
+        long remaining;
+        lock.lock();
+        try {
+            entry = removeFirst();
+            remaining = bytes;
+        } finally {
+            lock.unlock();
+        }
+        if (entry != null) drained.signal(remaining);
+        return entry;
+    }
+
+    /**
+     * Retira o próximo quadro, esperando se necessário.
+     * @return null quando a fila foi fechada e não há mais nada a escrever.
+     */
+    Entry take() throws InterruptedException {
+        Entry entry;
+        long remaining;
+        lock.lock();
+        try {
+            while (entries.isEmpty()) {
+                if (closed) return null;
+                notEmpty.await();
+            }
+            entry = removeFirst();
+            remaining = bytes;
+        } finally {
+            lock.unlock();
+        }
+        drained.signal(remaining);
+        return entry;
+    }
+
+    /**
+     * Roda {@code callback} uma vez quando a fila tiver {@code threshold} bytes ou menos (na hora, se
+     * já tem) ou quando for descartada. Roda na thread do writer: o callback não pode bloquear.
+     */
+    void whenBelow(long threshold, Runnable callback) {
+        drained.await(threshold, callback, this::bytes);
+    }
+
+    private Entry removeFirst() {
+        Entry entry = entries.pollFirst();
+        if (entry == null) return null;
+        bytes -= entry.length();
+        return entry;
+    }
+
+    boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Não aceita mais quadros; os já enfileirados ainda são entregues ao writer. */
+    void finish() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Fecha a fila e descarta o que estava pendente (conexão encerrada). */
+    void discard() {
+        lock.lock();
+        try {
+            closed = true;
+            entries.forEach(Entry::release);
+            entries.clear();
+            bytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        drained.signal(0); // Ninguém mais vai escoar esta fila: libera quem esperava
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Há quanto tempo o quadro mais antigo espera na fila, em milissegundos (0 se vazia). */
+    long oldestAgeMillis() {
+        lock.lock();
+        try {
+            Entry oldest = entries.peekFirst();
+            return oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.enqueuedAt);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package server;
+
+import common.Message;
+import common.WireProtocol;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.List;
+
+/**
+ * Usuário conectado em outro nó do cluster, visto pelo roteamento como mais uma ClientConnection.
+ * Tudo que é enviado a ele vira um quadro DELIVER na ligação com aquele nó (ver ClusterNode), que
+ * o entrega à conexão de verdade. A fila de saída que aparece aqui é a da ligação: é ela que
+ * segura o remetente de um arquivo em partes quando o outro nó não escoa.
+ */
+final class RemoteConnection implements ClientConnection {
+
+    private final String username;
+    private final String node;
+    private final int protocolFlags;
+    private final ClusterNode cluster;
+
+    /**
+     * @param protocolFlags Flags aceitas pelo cliente no outro nó. FLAG_FILE_STORE é retirada: o
+     *                      FileStore é de cada nó, então arquivos armazenados aqui seguem em partes.
+     */
+    RemoteConnection(String username, String node, int protocolFlags, ClusterNode cluster) {
+        this.username = username;
+        this.node = node;
+        this.protocolFlags = protocolFlags & ~WireProtocol.FLAG_FILE_STORE;
+        this.cluster = cluster;
+    }
+
+    /** Nome do nó onde a conexão está. */
+    String getNode() {
+        return node;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return cluster.getPeerAddress(node);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return cluster.isLinkUp(node);
+    }
+
+    @Override
+    public void sendMessage(Message msg) {
+        cluster.deliver(node, List.of(username), msg);
+    }
+
+    @Override
+    public void sendFrame(OutboundFrame frame) {
+        cluster.deliver(node, List.of(username), frame.message());
+    }
+
+    @Override
+    public void sendAttachment(Message msg, SpooledAttachment attachment) {
+        try {
+            cluster.deliver(node, List.of(username), attachment.inline(msg));
+        } catch (IOException e) {
+            cluster.attachmentError(msg, username, e);
+        }
+    }
+
+    /** Não fecha nada aqui: o usuário continua conectado no outro nó. */
+    @Override
+    public void closeClientSocket() {
+    }
+
+    @Override
+    public int getProtocolFlags() {
+        return protocolFlags;
+    }
+
+    @Override
+    public int getOutboundDepth() {
+        return cluster.getLinkDepth(node);
+    }
+
+    @Override
+    public long getOutboundBytes() {
+        return cluster.getLinkBytes(node);
+    }
+
+    @Override
+    public void whenOutboundBelow(long bytes, Runnable callback) {
+        cluster.whenLinkBelow(node, bytes, callback);
+    }
+
+    @Override
+    public long getOldestOutboundAgeMillis() {
+        return 0;
+    }
+
+    @Override
+    public long getReceivedMessages() {
+        return 0;
+    }
+
+    @Override
+    public long getSentBytes() {
+        return 0;
+    }
+}
@@ -0,0 +1,34 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * Contadores de roteamento e nível de log, publicados via JMX como chat.server:type=Roteamento.
+ * São os mesmos valores do endpoint /metrics (ServerMetrics), acumulados desde a partida.
+ */
+public interface RoutingMXBean {
+
+    /** Mensagens recebidas dos clientes, por MessageType (só os tipos já vistos). */
+    Map<String, Long> getReceivedByType();
+
+    long getConnectionsAccepted();
+
+    long getFramesWritten();
+
+    long getBytesWritten();
+
+    long getOutboundBytes();
+
+    double getRoutingLatencyP50Millis();
+
+    double getRoutingLatencyP99Millis();
+
+    double getRoutingLatencyP999Millis();
+
+    long getLogLinesDropped();
+
+    /** Nível mínimo do log: DEBUG, INFO, AVISO ou ERROR. */
+    String getLogLevel();
+
+    void setLogLevel(String level);
+}
@@ -1,67 +1,102 @@
 package server;
 
-import javax.swing.*;
-import java.awt.*;
-import java.awt.event.WindowAdapter;
-import java.awt.event.WindowEvent;
+import java.awt.GraphicsEnvironment;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
-import java.text.SimpleDateFormat;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
-import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.JMException;
 
+import common.FrameCompressor;
 import common.Message;
-import common.MessageType;
-import common.MessageStatus;
 
-public class Server extends JFrame {
-    private JTextArea logArea;
+/**
+ * Núcleo do servidor: abre os armazenamentos, escuta na porta e repassa as conexões ao ChatRouter.
+ * Não depende do Swing; a janela de logs (ServerWindow) é opcional e só lê o LogPipeline.
+ */
+public class Server implements ServerLog {
     private ServerSocket serverSocket;
-    private final ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, List<String>> groups = new ConcurrentHashMap<>(); // Key: groupNameWithIcon
-    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-    private final int PORT = 54321;
+    private final ServerConfig config = ServerConfig.fromSystemProperties();
+    private final LogPipeline logPipeline = new LogPipeline(config.getLogDirectory(), config.getLogLimits(), config.getLogLevel());
+    private final AttachmentSpool spool = new AttachmentSpool(config.getSpoolDirectory(), config.getSpoolMinBytes(), this);
+    private final FileStore fileStore = new FileStore(config.getFileStoreDirectory(), config.getFileStoreLimits(), config.getFilePauseBytes(), this);
+    private final OfflineMailbox offlineMailbox = new OfflineMailbox(config.getOfflineDirectory(), config.getOfflineLimits(), this);
+    private final HistoryLog historyLog = new HistoryLog(config.getHistoryDirectory(), config.getHistoryLimits(), this);
+    private final GroupJournal groupJournal = new GroupJournal(config.getGroupDirectory(), config.getGroupSyncMillis(), config.getGroupSnapshotRecords(), this);
+    private final ChatRouter router = new ChatRouter(this, spool, fileStore, offlineMailbox, historyLog, groupJournal, config.getRosterWindowMillis());
+    private final ClusterNode cluster = config.isClusterEnabled()
+            ? new ClusterNode(config.getClusterNodeName(), config.getClusterPort(), config.getClusterPeers(), router, this) : null;
     private volatile boolean running = false;
     private ExecutorService clientExecutorService;
-
-    public static final String GROUP_ICON_PREFIX = "\uD83D\uDC65 "; 
+    private NioServer nioServer;
+    private final AtomicBoolean shutdownStarted = new AtomicBoolean(false);
+    private final Set<ClientHandler> activeHandlers = ConcurrentHashMap.newKeySet(); // Inclui conexões ainda no handshake
+    private ScheduledExecutorService monitorExecutor;
+    private final FrameCompressor compressor = new FrameCompressor(); // Compartilhado: acumula as estatísticas de todas as conexões
+    private long lastReportedCompressionFrames = 0; // Só o thread do monitor acessa
+    private long lastReportedSpooledFiles = 0; // Só o thread do monitor acessa
+    private long lastReportedFileStoreRequests = 0; // Só o thread do monitor acessa
+    private long lastReportedOfflineMessages = 0; // Só o thread do monitor acessa
+    private long lastReportedHistoryPages = 0; // Só o thread do monitor acessa
+    private long lastReportedClusterFrames = 0; // Só o thread do monitor acessa
+    private final ServerMetrics metrics = new ServerMetrics(router, logPipeline);
+    private final ServerManagement management = new ServerManagement(router, metrics, logPipeline, this);
+    private final SlowConsumerPolicy slowConsumerPolicy = new SlowConsumerPolicy(config.getSlowConsumerLimits(), this, router);
+    private static final int OUTBOUND_REPORT_TOP = 5;
+    private static final int GROUP_SNAPSHOT_CHECK_SECONDS = 30;
+    private boolean firstConnectionAccepted = false; // Só a thread de aceitação acessa
 
     public Server() {
-        setTitle("Servidor de Chat - Logs");
-        setSize(750, 550);
-        setLocationRelativeTo(null);
-
-        logArea = new JTextArea();
-        logArea.setEditable(false);
-        logArea.setFont(new Font("Monospaced", Font.PLAIN, 13));
-        logArea.setMargin(new Insets(5,5,5,5));
-        JScrollPane scrollPane = new JScrollPane(logArea);
-        add(scrollPane, BorderLayout.CENTER);
-
-        addWindowListener(new WindowAdapter() {
-            @Override
-            public void windowClosing(WindowEvent e) {
-                log("INFO", "SISTEMA_SHUTDOWN_REQ", "Requisição de desligamento do servidor...");
-                shutdownServer();
-            }
-        });
-        setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
-
-        setVisible(true);
-        new Thread(this::startServer).start();
+        logPipeline.open();
     }
 
-    private void startServer() {
-        clientExecutorService = Executors.newCachedThreadPool();
-        try {
-            serverSocket = new ServerSocket(PORT);
+    /**
+     * Abre os armazenamentos, recupera os grupos e passa a escutar na porta. Ao retornar o servidor
+     * já aceita conexões (pelo acceptLoop); erros de bind saem como IOException.
+     */
+    void start() throws IOException {
+        clientExecutorService = createClientExecutor();
+        openSpool();
+        openFileStore();
+        openOfflineMailbox();
+        openHistoryLog();
+        recoverGroups();
+        openCluster();
+        openMetrics();
+        registerManagement();
+        startMonitor();
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            nioServer = new NioServer(this, config.getPort(), config.getNioEventLoops(), config.getNioWorkers());
+            nioServer.bind();
             running = true;
-            log("INFO", "SISTEMA_INIT", "Servidor iniciado na porta " + PORT + ".");
+            log("INFO", "SISTEMA_INIT", "Servidor iniciado na porta " + config.getPort() + " (modo NIO, " + config.getNioEventLoops() + " event loops, " + config.getNioWorkers() + " workers) "
+                    + ManagementFactory.getRuntimeMXBean().getUptime() + " ms após o início da JVM.");
+            return;
+        }
+        // Aberto por um canal para que os sockets aceitos tenham getChannel(): o writer do
+        // ClientHandler usa FileChannel.transferTo (sendfile) para os anexos em spool
+        serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(config.getPort())).socket();
+        running = true;
+        log("INFO", "SISTEMA_INIT", "Servidor iniciado na porta " + config.getPort() + " (modo " + config.getMode() + ") "
+                + ManagementFactory.getRuntimeMXBean().getUptime() + " ms após o início da JVM.");
+    }
 
+    /** Bloqueia aceitando conexões até o shutdown. */
+    void acceptLoop() {
+        try {
+            if (nioServer != null) {
+                // Modo NIO: um Selector por núcleo faz leitura, decodificação de quadros e escrita
+                // de todas as conexões; os workers processam as mensagens. Esta thread fica apenas aceitando conexões.
+                nioServer.acceptLoop();
+                return;
+            }
             while (running) {
                 try {
                     Socket clientSocket = serverSocket.accept();
@@ -69,9 +104,8 @@ public class Server extends JFrame {
                         try { clientSocket.close(); } catch (IOException ex) {/*ignore*/}
                         break;
                     }
-                    log("INFO", "CONEXÃO_NOVA", "Nova conexão de: " + clientSocket.getRemoteSocketAddress());
-                    ClientHandler handler = new ClientHandler(clientSocket, this);
-                    clientExecutorService.submit(handler);
+                    connectionAccepted(clientSocket.getRemoteSocketAddress());
+                    submitHandler(new ClientHandler(clientSocket, this));
                 } catch (SocketException e) {
                     if (!running) { /* Normal durante shutdown */ }
                     else { logError("ACEITAR_CONEXAO_SOCKET", "SocketException ao aceitar conexão", e); }
@@ -79,412 +113,377 @@ public class Server extends JFrame {
                     if (running) { logError("ACEITAR_CONEXAO_IO", "Erro de I/O ao aceitar nova conexão", e); }
                 }
             }
-        } catch (IOException e) {
-            if (running) {
-                logError("SISTEMA_STARTUP_FATAL", "Erro crítico ao iniciar servidor na porta " + PORT, e);
-                JOptionPane.showMessageDialog(this, "Erro crítico: " + e.getMessage(), "Erro Servidor", JOptionPane.ERROR_MESSAGE);
-                System.exit(1);
-            }
         } finally {
             log("INFO", "SISTEMA_LOOP_END", "Loop principal do servidor terminado.");
         }
     }
 
-    private synchronized void shutdownServer() {
-        if (!running) return;
-        running = false;
-        log("INFO", "SHUTDOWN_PROCESSO", "Iniciando processo de desligamento do servidor...");
+    /** Chamado pela thread de aceitação (nos dois modos) para cada conexão nova. */
+    void connectionAccepted(SocketAddress remoteAddress) {
+        metrics.connectionAccepted();
+        log("INFO", "CONEXÃO_NOVA", "Nova conexão de: " + remoteAddress);
+        if (firstConnectionAccepted) return;
+        firstConnectionAccepted = true;
+        log("INFO", "PRIMEIRA_CONEXAO", "Primeira conexão aceita " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms após o início da JVM.");
+    }
 
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            try {
-                serverSocket.close();
-                log("INFO", "SHUTDOWN_SOCKET_SRV", "ServerSocket fechado.");
-            } catch (IOException e) {
-                logError("SHUTDOWN_SOCKET_SRV_IO", "Erro ao fechar ServerSocket", e);
-            }
+    /**
+     * Clientes no protocolo legado (stream contínuo de ObjectOutputStream) não podem ser
+     * decodificados pelo event loop; no modo NIO eles são repassados para um ClientHandler bloqueante.
+     */
+    void handOffLegacyConnection(Socket socket, byte[] prefetched) {
+        if (!running) {
+            try { socket.close(); } catch (IOException ex) {/*ignore*/}
+            return;
         }
+        log("INFO", "CONEXÃO_LEGADA", "Conexão legada de " + socket.getRemoteSocketAddress() + " repassada para ClientHandler.");
+        submitHandler(new ClientHandler(socket, this, prefetched));
+    }
 
-        log("INFO", "SHUTDOWN_HANDLERS", "Fechando conexões de cliente...");
-        new ArrayList<>(clients.values()).forEach(ClientHandler::closeClientSocket);
+    private void submitHandler(ClientHandler handler) {
+        activeHandlers.add(handler);
+        clientExecutorService.submit(handler);
+    }
 
-        log("INFO", "SHUTDOWN_EXECUTOR", "Desligando pool de threads dos clientes...");
-        if (clientExecutorService != null) {
-            clientExecutorService.shutdown();
-            try {
-                if (!clientExecutorService.awaitTermination(5, TimeUnit.SECONDS)) {
-                    clientExecutorService.shutdownNow();
-                    if (!clientExecutorService.awaitTermination(5, TimeUnit.SECONDS))
-                        logError("SHUTDOWN_EXECUTOR_FAIL", "Pool de threads não terminou", null);
-                }
-            } catch (InterruptedException ie) {
-                clientExecutorService.shutdownNow();
-                Thread.currentThread().interrupt();
-            }
-        }
-        clients.clear();
-        groups.clear();
-        log("INFO", "SISTEMA_SHUTDOWN_COMP", "Servidor desligado. Encerrando GUI.");
-        dispose();
-        System.exit(0);
+    /** Executa o writer de um ClientHandler no mesmo executor dos handlers (thread virtual no modo VIRTUAL). */
+    void startWriter(Runnable writer) {
+        clientExecutorService.submit(writer);
     }
 
-    public synchronized boolean addClient(String username, ClientHandler handler) {
-        if (clients.containsKey(username)) {
-            log("AVISO", "ADD_CLIENT_DUP", "Usuário '" + username + "' já conectado. Nova conexão rejeitada.");
-            return false;
+    /** Tarefas periódicas do servidor: política de consumidores lentos, snapshot dos grupos e relatórios de filas de saída, compressão, spool, armazenamento de arquivos, caixas offline, histórico, cluster e métricas. */
+    private void startMonitor() {
+        monitorExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "server-monitor");
+            t.setDaemon(true);
+            return t;
+        });
+        long checkMillis = slowConsumerPolicy.getLimits().getCheckIntervalMillis();
+        monitorExecutor.scheduleWithFixedDelay(() -> slowConsumerPolicy.check(router.getConnections()), checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+        monitorExecutor.scheduleWithFixedDelay(() -> router.compactGroupJournal(false), GROUP_SNAPSHOT_CHECK_SECONDS, GROUP_SNAPSHOT_CHECK_SECONDS, TimeUnit.SECONDS);
+        int reportSeconds = config.getOutboundReportSeconds();
+        if (reportSeconds > 0) {
+            monitorExecutor.scheduleAtFixedRate(() -> {
+                router.logOutboundBacklog(OUTBOUND_REPORT_TOP);
+                logCompressionStats();
+                logSpoolStats();
+                logFileStoreStats();
+                logOfflineMailboxStats();
+                logHistoryStats();
+                logClusterStats();
+                logMetrics();
+            }, reportSeconds, reportSeconds, TimeUnit.SECONDS);
         }
-        clients.put(username, handler);
-        log("INFO", "ADD_CLIENT_OK", "Conectado: " + username + " (" + handler.getRemoteSocketAddress() + ")");
-        return true;
-    }
-
-    public synchronized void removeClient(String username) {
-        if (username == null) return;
-        ClientHandler removedHandler = clients.remove(username);
-        if (removedHandler != null) {
-            log("INFO", "REMOVE_CLIENT", "Desconectado: " + username);
-            // Notificar grupos que o usuário fazia parte
-            List<String> groupsAffected = new ArrayList<>();
-            for (Map.Entry<String, List<String>> entry : groups.entrySet()) {
-                String groupNameWithIcon = entry.getKey();
-                List<String> members = entry.getValue();
-                if (members.remove(username)) {
-                    log("INFO", "GRUPO_MEMBRO_SAIU_OFF", username + " removido do grupo " + groupNameWithIcon + " (offline)");
-                    groupsAffected.add(groupNameWithIcon);
-                    if (members.isEmpty()) {
-                        // Não removeremos o grupo aqui, handleLeaveGroup fará isso se for uma saída explícita.
-                        // Se o grupo ficar vazio devido a desconexão, ele simplesmente não será mais listado.
-                        // Ou podemos decidir remover grupos vazios automaticamente:
-                        // groups.remove(groupNameWithIcon);
-                        // log("INFO", "GRUPO_AUTO_DELETE_VAZIO_OFF", "Grupo " + groupNameWithIcon + " ficou vazio (desconexão) e foi removido.");
-                    } else {
-                        // Notificar membros restantes sobre a saída (devido à desconexão)
-                        String systemMessageContent = username + " saiu do grupo (desconectado).";
-                        Message systemMessage = new Message("Servidor", groupNameWithIcon, systemMessageContent, MessageType.GROUP_SYSTEM_MESSAGE);
-                        for (String member : members) {
-                            ClientHandler memberHandler = clients.get(member);
-                            if (memberHandler != null) {
-                                memberHandler.sendMessage(systemMessage);
-                            }
-                        }
-                    }
-                }
-            }
-            broadcastUserList(); // Atualiza as listas de todos
+    }
+
+    private void openSpool() throws IOException {
+        try {
+            spool.open();
+            log("INFO", "SPOOL_INIT", "Anexos a partir de " + config.getSpoolMinBytes() + " bytes serão gravados em " + config.getSpoolDirectory());
+        } catch (DirectoryLock.HeldException e) {
+            throw e; // Outro servidor usa o diretório: não há como seguir sem corromper os dados dele
+        } catch (IOException e) {
+            logError("SPOOL_INIT", "Erro ao preparar o diretório de spool " + config.getSpoolDirectory(), e);
         }
     }
 
-    public synchronized String getUserListString(String forWhomUsername) {
-        Set<String> itemsForThisUser = new HashSet<>();
-        for (String clientName : clients.keySet()) {
-            if (!clientName.equals(forWhomUsername)) {
-                itemsForThisUser.add(clientName);
-            }
+    private void openFileStore() throws IOException {
+        try {
+            fileStore.open();
+            log("INFO", "ARMAZENAMENTO_INIT", "Armazenamento de arquivos em " + config.getFileStoreDirectory() + ": " + fileStore.summary());
+        } catch (DirectoryLock.HeldException e) {
+            throw e;
+        } catch (IOException e) {
+            logError("ARMAZENAMENTO_INIT", "Erro ao preparar o armazenamento de arquivos em " + config.getFileStoreDirectory(), e);
         }
-        for (Map.Entry<String, List<String>> groupEntry : groups.entrySet()) {
-            if (groupEntry.getValue().contains(forWhomUsername)) {
-                itemsForThisUser.add(groupEntry.getKey());
-            }
+    }
+
+    private void openOfflineMailbox() throws IOException {
+        try {
+            offlineMailbox.open();
+            log("INFO", "CAIXA_OFFLINE_INIT", "Mensagens para usuários offline em " + config.getOfflineDirectory() + ": " + offlineMailbox.summary());
+        } catch (DirectoryLock.HeldException e) {
+            throw e;
+        } catch (IOException e) {
+            logError("CAIXA_OFFLINE_INIT", "Erro ao preparar as caixas offline em " + config.getOfflineDirectory(), e);
         }
-        return String.join(",", itemsForThisUser);
-    }
-
-    synchronized void broadcastUserList() {
-        if (!running) return;
-        log("INFO", "BROADCAST_USER_LIST", "Iniciando broadcast da lista de usuários/grupos para " + clients.size() + " clientes.");
-        for (Map.Entry<String, ClientHandler> entry : clients.entrySet()) {
-            String username = entry.getKey();
-            ClientHandler handler = entry.getValue();
-            if (handler != null && handler.getSocket() != null && !handler.getSocket().isClosed() && handler.getSocket().isConnected()) {
-                String userSpecificListStr = getUserListString(username);
-                Message userListMsg = new Message("Servidor", username, userSpecificListStr, MessageType.USER_LIST);
-                handler.sendMessage(userListMsg);
-            } else {
-                log("AVISO", "BROADCAST_USER_LIST_SKIP", "Pulando envio para " + (username != null ? username : "handler nulo/socket fechado") + " durante broadcast.");
-            }
+    }
+
+    private void openHistoryLog() throws IOException {
+        try {
+            historyLog.open();
+            log("INFO", "HISTORICO_INIT", "Histórico de conversas em " + config.getHistoryDirectory() + ": " + historyLog.summary());
+        } catch (DirectoryLock.HeldException e) {
+            throw e;
+        } catch (IOException e) {
+            logError("HISTORICO_INIT", "Erro ao carregar o histórico de conversas em " + config.getHistoryDirectory(), e);
         }
     }
 
-    public synchronized void routeMessage(Message msg, String senderUsername) {
-        if (!running) return;
+    /** Com -Dchat.server.cluster.no, escuta os outros nós e começa a discar para eles. Se a porta do cluster não abrir, o nó segue sozinho. */
+    private void openCluster() {
+        if (cluster == null) return;
+        try {
+            router.attachCluster(cluster); // Antes de abrir: eventos dos outros nós podem chegar logo
+            cluster.open();
+            log("INFO", "CLUSTER_INIT", "Cluster: nó " + config.getClusterNodeName() + " na porta " + config.getClusterPort()
+                    + ", nós configurados: " + (config.getClusterPeers().isEmpty() ? "nenhum" : config.getClusterPeers().keySet()));
+        } catch (IOException e) {
+            logError("CLUSTER_INIT", "Erro ao abrir a porta do cluster " + config.getClusterPort() + ". Servidor segue sem os outros nós.", e);
+            router.attachCluster(null);
+            cluster.close();
+        }
+    }
 
-        ClientHandler senderHandler = clients.get(senderUsername);
-        if (senderHandler == null) {
-            log("AVISO", "ROTA_MSG_SENDER_NF", "Remetente " + senderUsername + " não encontrado.");
-            return;
+    private void openMetrics() {
+        int port = config.getMetricsPort();
+        if (port <= 0) return;
+        try {
+            metrics.open(port);
+            log("INFO", "METRICAS_INIT", "Métricas no formato do Prometheus em http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            logError("METRICAS_INIT", "Erro ao abrir o endpoint de métricas na porta " + port + ". Métricas só no log.", e);
         }
+    }
 
-        if (msg.getType() == MessageType.PRIVATE) {
-            ClientHandler receiverHandler = clients.get(msg.getReceiver());
-            if (receiverHandler != null) {
-                receiverHandler.sendMessage(msg);
-                if (!senderUsername.equals(msg.getReceiver())) {
-                     notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.DELIVERED, msg.getReceiver(), new Date());
-                }
-            } else {
-                log("AVISO", "ROTA_PRIVADA_OFFLINE", "Destinatário " + msg.getReceiver() + " offline para msg de " + senderUsername);
-                notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.FAILED, msg.getReceiver(), new Date());
-            }
-        } else if (msg.getType() == MessageType.GROUP) {
-            String groupNameWithIcon = msg.getReceiver();
-            List<String> members = groups.get(groupNameWithIcon);
-
-            if (members != null && members.contains(senderUsername)) {
-                Message relayedMsg = new Message(msg.getMessageId(), senderUsername, groupNameWithIcon, msg.getContent(), MessageType.GROUP);
-                relayedMsg.setTimestamp(msg.getTimestamp());
-                if (msg.getFileData() != null && msg.getFileName() != null) {
-                    relayedMsg.setFileData(msg.getFileData());
-                    relayedMsg.setFileName(msg.getFileName());
-                }
+    private void registerManagement() {
+        try {
+            management.register();
+            log("INFO", "JMX_INIT", management.summary());
+        } catch (JMException e) {
+            logError("JMX_INIT", "Erro ao registrar os MXBeans do servidor. Introspecção só pelo log e pelas métricas.", e);
+        }
+    }
 
-                int deliveryCount = 0;
-                for (String memberUsername : members) {
-                    if (!memberUsername.equals(senderUsername)) { // Não envia para o próprio remetente
-                        ClientHandler memberHandler = clients.get(memberUsername);
-                        if (memberHandler != null) {
-                            memberHandler.sendMessage(relayedMsg);
-                            deliveryCount++;
-                        }
-                    }
-                }
-                if (deliveryCount > 0 || (members.size() == 1 && members.contains(senderUsername))) {
-                     notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.DELIVERED, groupNameWithIcon, new Date());
-                } else if (members.size() > 1){ // Se há outros membros, mas nenhum online
-                     log("INFO", "ROTA_GRUPO_DELIVERY_FAIL", "Msg de " + senderUsername + " para grupo " + groupNameWithIcon + ". Nenhum outro membro online para receber.");
-                     notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.SENT, groupNameWithIcon, new Date()); // Marcado como enviado ao servidor
-                }
-                 log("INFO", "ROTA_GRUPO_ENVIADA", "Msg de " + senderUsername + " para grupo " + groupNameWithIcon + " encaminhada para " + deliveryCount + " membros.");
-            } else if (members == null) {
-                log("AVISO", "ROTA_GRUPO_FALHA_NE", "Grupo " + groupNameWithIcon + " não existe para msg de " + senderUsername);
-                notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.FAILED, groupNameWithIcon, new Date());
-            } else { // Não é membro
-                 log("AVISO", "ROTA_GRUPO_FALHA_NM", senderUsername + " não é membro do grupo " + groupNameWithIcon + ". Mensagem não enviada.");
-                 Message notMemberMsg = new Message("Servidor", senderUsername, "Você não pode enviar mensagens para o grupo '" + groupNameWithIcon.replace(GROUP_ICON_PREFIX, "") + "' pois não é um membro.", MessageType.TEXT);
-                 senderHandler.sendMessage(notMemberMsg);
-                 notifyMessageStatus(senderUsername, msg.getMessageId(), MessageStatus.FAILED, groupNameWithIcon, new Date());
-            }
+    private void recoverGroups() throws IOException {
+        try {
+            long began = System.nanoTime();
+            int recovered = router.recoverGroups();
+            log("INFO", "GRUPOS_RECUPERADOS", recovered + " grupos recuperados de " + config.getGroupDirectory() + " em "
+                    + (System.nanoTime() - began) / 1_000_000 + " ms.");
+        } catch (DirectoryLock.HeldException e) {
+            throw e;
+        } catch (IOException e) {
+            logError("GRUPOS_RECUPERACAO", "Erro ao recuperar os grupos de " + config.getGroupDirectory() + ". Grupos novos não serão persistidos.", e);
         }
     }
 
-    public synchronized void createGroup(String groupNameWithIcon, List<String> membersUsernames, String creatorUsername) {
-        if (!running) return;
-        String cleanGroupName = groupNameWithIcon.replace(GROUP_ICON_PREFIX, "").trim();
+    void handlerFinished(ClientHandler handler) {
+        activeHandlers.remove(handler);
+    }
 
-        if (groups.containsKey(groupNameWithIcon) || clients.containsKey(groupNameWithIcon)) {
-            log("AVISO", "GRUPO_CRIA_EXISTENTE", "Tentativa de criar grupo com nome já existente: " + groupNameWithIcon);
-            ClientHandler creatorHandler = clients.get(creatorUsername);
-            if(creatorHandler != null) {
-                creatorHandler.sendMessage(new Message("Servidor", creatorUsername, "Erro: Nome de grupo '" + cleanGroupName + "' já existe.", MessageType.TEXT));
+    /**
+     * Threads virtuais (Java 21+) no modo VIRTUAL; em JVMs mais antigas cai no pool em cache.
+     * A fábrica é buscada por reflexão para o código continuar compilando com Java 17.
+     */
+    private ExecutorService createClientExecutor() {
+        if (config.useVirtualThreads()) {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                log("INFO", "SISTEMA_THREADS_VIRTUAIS", "ClientHandlers serão executados em threads virtuais.");
+                return executor;
+            } catch (ReflectiveOperationException e) {
+                log("AVISO", "THREADS_VIRTUAIS_INDISP", "Threads virtuais indisponíveis nesta JVM (requer Java 21+). Usando pool em cache.");
             }
-            return;
         }
+        return Executors.newCachedThreadPool();
+    }
 
-        List<String> validMembers = new ArrayList<>();
-        for(String memberName : membersUsernames){
-            if(clients.containsKey(memberName)){ // Só adiciona membros que estão online/válidos
-                if(!validMembers.contains(memberName)) {
-                    validMembers.add(memberName);
-                }
-            } else {
-                 log("AVISO", "GRUPO_CRIA_MEMBRO_OFF", "Membro " + memberName + " não encontrado/offline ao criar grupo " + cleanGroupName);
-            }
-        }
-        // Garante que o criador está na lista se for válido
-        if (!validMembers.contains(creatorUsername) && clients.containsKey(creatorUsername)) {
-            validMembers.add(0, creatorUsername); // Adiciona no início
-        }
+    boolean isRunning() {
+        return running;
+    }
 
+    ServerConfig getConfig() {
+        return config;
+    }
 
-        if(validMembers.isEmpty()){
-             log("AVISO", "GRUPO_CRIA_MEMBROS_INSUF", "Grupo '" + cleanGroupName + "' não pôde ser criado pois não há membros válidos online (incluindo o criador).");
-             ClientHandler creatorHandler = clients.get(creatorUsername);
-             if(creatorHandler != null) {
-                creatorHandler.sendMessage(new Message("Servidor", creatorUsername, "Erro: Grupo '" + cleanGroupName + "' não pôde ser criado (sem membros válidos online).", MessageType.TEXT));
-            }
-            return;
-        }
+    SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
 
-        groups.put(groupNameWithIcon, new ArrayList<>(validMembers));
-        log("INFO", "GRUPO_CRIADO_SUCESSO", "Grupo: " + groupNameWithIcon + " | Criador: " + creatorUsername + " | Membros: " + validMembers);
+    FrameCompressor getCompressor() {
+        return compressor;
+    }
 
-        // Notifica o criador sobre a criação
-        ClientHandler creatorHandler = clients.get(creatorUsername);
-        if (creatorHandler != null) {
-            String creatorMsgContent = "Você criou o grupo '" + cleanGroupName + "'.";
-            creatorHandler.sendMessage(new Message("Servidor", groupNameWithIcon, creatorMsgContent, MessageType.GROUP_SYSTEM_MESSAGE));
-        }
-        
-        // Notifica os membros (incluindo o criador pela GROUP_CREATE) que foram adicionados
-        // E envia a mensagem de sistema para os outros membros
-        String addedMsgContent = creatorUsername + " adicionou você ao grupo '" + cleanGroupName + "'.";
-        if (validMembers.size() > 1) { // Se há outros membros além do criador
-            addedMsgContent = creatorUsername + " criou o grupo '" + cleanGroupName + "' e adicionou você.";
-        }
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
 
-        for (String memberName : validMembers) {
-            ClientHandler memberHandler = clients.get(memberName);
-            if (memberHandler != null) {
-                // Notificação de que o grupo foi criado e eles são membros (já faz isso com GROUP_CREATE)
-                memberHandler.sendMessage(new Message("Servidor", memberName, groupNameWithIcon, MessageType.GROUP_CREATE));
-                
-                // Mensagem de sistema específica
-                if (!memberName.equals(creatorUsername)) {
-                     memberHandler.sendMessage(new Message("Servidor", groupNameWithIcon, addedMsgContent, MessageType.GROUP_SYSTEM_MESSAGE));
-                }
-            }
-        }
-        broadcastUserList(); // Atualiza as listas de todos
-    }
-
-    public synchronized void handleLeaveGroup(String groupNameWithIcon, String usernameLeaving) {
-        if (!running) return;
-        List<String> members = groups.get(groupNameWithIcon);
-        ClientHandler userLeavingHandler = clients.get(usernameLeaving);
-        String cleanGroupName = groupNameWithIcon.replace(GROUP_ICON_PREFIX, "").trim();
-
-        if (members != null && userLeavingHandler != null) {
-            boolean removed = members.remove(usernameLeaving);
-            if (removed) {
-                log("INFO", "GRUPO_SAIDA_MEMBRO", usernameLeaving + " saiu do grupo " + groupNameWithIcon);
-                // Notifica o usuário que ele saiu
-                userLeavingHandler.sendMessage(new Message("Servidor", groupNameWithIcon, "Você saiu do grupo '" + cleanGroupName + "'.", MessageType.GROUP_SYSTEM_MESSAGE));
-                userLeavingHandler.sendMessage(new Message("Servidor", usernameLeaving, groupNameWithIcon, MessageType.GROUP_REMOVED_NOTIFICATION)); // Para GUI remover o chat
-
-
-                if (members.isEmpty()) {
-                    groups.remove(groupNameWithIcon);
-                    log("INFO", "GRUPO_AUTO_DELETE_VAZIO", "Grupo " + groupNameWithIcon + " ficou vazio e foi removido do servidor.");
-                    // O broadcastUserList vai cuidar de remover o grupo das listas dos outros.
-                } else {
-                    log("INFO", "GRUPO_MEMBROS_RESTANTES", "Grupo " + groupNameWithIcon + " agora tem " + members.size() + " membros: " + members);
-                    // Notifica os membros restantes
-                    String systemMessageContent = usernameLeaving + " saiu do grupo '" + cleanGroupName + "'.";
-                    Message systemMessage = new Message("Servidor", groupNameWithIcon, systemMessageContent, MessageType.GROUP_SYSTEM_MESSAGE);
-                    for (String member : members) {
-                        ClientHandler memberHandler = clients.get(member);
-                        if (memberHandler != null) {
-                            memberHandler.sendMessage(systemMessage);
-                        }
-                    }
-                }
-                broadcastUserList(); // Atualiza as listas de todos
-            } else { // Não era membro, mas tentou sair
-                log("AVISO", "GRUPO_SAIDA_FALHA_NAOMEMBRO", usernameLeaving + " tentou sair do grupo " + groupNameWithIcon + " mas não era membro.");
-                userLeavingHandler.sendMessage(new Message("Servidor", usernameLeaving, groupNameWithIcon, MessageType.GROUP_REMOVED_NOTIFICATION)); // Para GUI se comportar como se tivesse saído
-            }
-        } else {
-            if (members == null && userLeavingHandler != null) {
-                log("AVISO", "GRUPO_SAIDA_FALHA_NAOEXISTE", "Tentativa de sair do grupo " + groupNameWithIcon + " que não existe (notificando cliente).");
-                userLeavingHandler.sendMessage(new Message("Servidor", usernameLeaving, groupNameWithIcon, MessageType.GROUP_REMOVED_NOTIFICATION));
-            }
-            if (userLeavingHandler == null) {
-                log("AVISO", "GRUPO_SAIDA_FALHA_USERNF", "Usuário " + usernameLeaving + " não encontrado ao tentar sair do grupo.");
+    /** Registra o resumo das métricas do último intervalo, se houve tráfego. */
+    private void logMetrics() {
+        String summary = metrics.intervalSummary();
+        if (summary != null) log("INFO", "METRICAS", summary);
+    }
+
+    /** Registra as estatísticas acumuladas de compressão, se houve quadros novos desde o último relatório. */
+    private void logCompressionStats() {
+        long frames = compressor.getCompressedFrames() + compressor.getSkippedFrames() + compressor.getInflatedFrames();
+        if (frames == lastReportedCompressionFrames) return;
+        lastReportedCompressionFrames = frames;
+        log("INFO", "COMPRESSAO", compressor.summary());
+    }
+
+    /** Registra o uso do spool de anexos, se houve anexos novos desde o último relatório. */
+    private void logSpoolStats() {
+        long files = spool.getSpooledFiles();
+        if (files == lastReportedSpooledFiles) return;
+        lastReportedSpooledFiles = files;
+        log("INFO", "SPOOL", spool.summary());
+    }
+
+    /** Registra a taxa de reaproveitamento do armazenamento de arquivos, se houve uso desde o último relatório. */
+    private void logFileStoreStats() {
+        long requests = fileStore.getRequests();
+        if (requests == lastReportedFileStoreRequests) return;
+        lastReportedFileStoreRequests = requests;
+        log("INFO", "ARMAZENAMENTO", fileStore.summary());
+    }
+
+    /** Registra o uso das caixas offline, se houve mensagens guardadas desde o último relatório. */
+    private void logOfflineMailboxStats() {
+        long queued = offlineMailbox.getQueuedMessages();
+        if (queued == lastReportedOfflineMessages) return;
+        lastReportedOfflineMessages = queued;
+        log("INFO", "CAIXA_OFFLINE", offlineMailbox.summary());
+    }
+
+    /** Registra o uso do histórico, se houve páginas pedidas desde o último relatório. */
+    private void logHistoryStats() {
+        long pages = historyLog.getPages();
+        if (pages == lastReportedHistoryPages) return;
+        lastReportedHistoryPages = pages;
+        log("INFO", "HISTORICO", historyLog.summary());
+    }
+
+    /** Registra o estado das ligações do cluster, se houve quadros desde o último relatório. */
+    private void logClusterStats() {
+        if (cluster == null) return;
+        long frames = cluster.getFrames();
+        if (frames == lastReportedClusterFrames) return;
+        lastReportedClusterFrames = frames;
+        log("INFO", "CLUSTER", cluster.summary());
+    }
+
+    /** Desliga o servidor; chamado pela janela, pelo hook de shutdown (SIGTERM/SIGINT) ou em erro fatal na partida. */
+    void shutdownServer() {
+        if (!shutdownStarted.compareAndSet(false, true)) return;
+        running = false;
+        log("INFO", "SHUTDOWN_PROCESSO", "Iniciando processo de desligamento do servidor...");
+
+        if (serverSocket != null && !serverSocket.isClosed()) {
+            try {
+                serverSocket.close();
+                log("INFO", "SHUTDOWN_SOCKET_SRV", "ServerSocket fechado.");
+            } catch (IOException e) {
+                logError("SHUTDOWN_SOCKET_SRV_IO", "Erro ao fechar ServerSocket", e);
             }
         }
-    }
 
-    public synchronized void handleGroupInfoRequest(String groupNameWithIcon, String requestingUsername) {
-        if (!running) return;
-        ClientHandler requesterHandler = clients.get(requestingUsername);
-        if (requesterHandler == null) {
-            log("AVISO", "GRUPO_INFO_REQ_USER_NF", "Usuário solicitante " + requestingUsername + " não encontrado.");
-            return;
+        if (nioServer != null) {
+            nioServer.close();
+            log("INFO", "SHUTDOWN_NIO", "Event loops NIO encerrados.");
         }
 
-        List<String> members = groups.get(groupNameWithIcon);
-        if (members == null) {
-            log("AVISO", "GRUPO_INFO_REQ_GRP_NF", "Grupo " + groupNameWithIcon + " não encontrado para solicitação de info por " + requestingUsername);
-            requesterHandler.sendMessage(new Message("Servidor", requestingUsername, "Erro: Grupo não encontrado.", MessageType.TEXT));
-            return;
+        if (monitorExecutor != null) {
+            monitorExecutor.shutdownNow();
         }
+        metrics.close();
+        management.unregister();
+        fileStore.close();
 
-        if (!members.contains(requestingUsername)) {
-            log("AVISO", "GRUPO_INFO_REQ_NOT_MEMBER", requestingUsername + " solicitou info do grupo " + groupNameWithIcon + " mas não é membro.");
-            requesterHandler.sendMessage(new Message("Servidor", requestingUsername, "Erro: Você não é membro deste grupo.", MessageType.TEXT));
-            return;
+        log("INFO", "SHUTDOWN_HANDLERS", "Fechando conexões de cliente...");
+        router.stop();
+        if (cluster != null) cluster.close(); // Os outros nós tiram da lista os usuários deste nó
+        offlineMailbox.close(); // Depois do router.stop(): nenhuma mensagem nova entra nas caixas nem no histórico
+        historyLog.close();
+        router.compactGroupJournal(true); // A próxima partida carrega só o snapshot
+        groupJournal.close();
+        router.closeAllConnections();
+        new ArrayList<>(activeHandlers).forEach(ClientHandler::closeClientSocket); // Desbloqueia handlers ainda no handshake
+        spool.close();
+
+        log("INFO", "SHUTDOWN_EXECUTOR", "Desligando executor dos clientes...");
+        if (clientExecutorService != null) {
+            // Com threads virtuais, shutdownNow interrompe a thread e fecha o socket bloqueado em leitura
+            clientExecutorService.shutdown();
+            try {
+                if (!clientExecutorService.awaitTermination(5, TimeUnit.SECONDS)) {
+                    clientExecutorService.shutdownNow();
+                    if (!clientExecutorService.awaitTermination(5, TimeUnit.SECONDS))
+                        logError("SHUTDOWN_EXECUTOR_FAIL", "Pool de threads não terminou", null);
+                }
+            } catch (InterruptedException ie) {
+                clientExecutorService.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
         }
+        router.clear();
+        log("INFO", "SISTEMA_SHUTDOWN_COMP", "Servidor desligado.");
+        logPipeline.close(); // Grava o que ainda está no buffer
+    }
 
-        String membersString = String.join(",", members);
-        Message infoResponse = new Message("Servidor", groupNameWithIcon, membersString, MessageType.GROUP_INFO_RESPONSE);
-        infoResponse.setReceiver(requestingUsername); 
-                                                     
-        requesterHandler.sendMessage(infoResponse);
-        log("INFO", "GRUPO_INFO_REQ_SENT", "Informações do grupo " + groupNameWithIcon + " enviadas para " + requestingUsername);
+    // Interface usada pelas conexões; o roteamento em si fica no ChatRouter
+
+    public boolean registerClient(String username, ClientConnection connection) {
+        return router.registerClient(username, connection);
     }
 
+    public void processMessage(Message msg, String username) {
+        router.processMessage(msg, username);
+    }
 
-    public void notifyMessageStatus(String userToNotify, String messageId, MessageStatus status, String relatedInfo, Date eventTimestamp) {
-        if (!running && status != MessageStatus.FAILED) return;
-        ClientHandler handlerToNotify = clients.get(userToNotify);
-        if (handlerToNotify != null) {
-            String statusContent = String.format("%s:%s:%s:%d",
-                                                 messageId,
-                                                 status.name(),
-                                                 (relatedInfo != null ? relatedInfo : ""),
-                                                 eventTimestamp.getTime());
+    public void removeClient(String username) {
+        router.removeClient(username);
+    }
 
-            Message statusUpdateMsg = new Message("Servidor", userToNotify, statusContent, MessageType.STATUS_UPDATE);
-            handlerToNotify.sendMessage(statusUpdateMsg);
-        }
+    /**
+     * Indica se a conexão que enviou esta parte de arquivo pode seguir lendo. Se os destinatários ainda
+     * não escoaram, devolve false e chama {@code resume} quando escoarem (ver ChatRouter.awaitFileRecipients).
+     */
+    boolean awaitFileRecipients(Message chunk, String username, Runnable resume) {
+        return router.awaitFileRecipients(chunk, username, config.getFilePauseBytes(), resume);
     }
 
+    @Override
     public void log(String level, String category, String message) {
-        if (logArea == null) {
-            System.out.println(String.format("[%s] [%s] %s", level.toUpperCase(), category, message));
-            return;
-        }
-        String timestamp = dateFormat.format(new Date());
-        String logMessage = String.format("[%s] [%-5s] [%-22s] %s", timestamp, level.toUpperCase(), category, message);
-        SwingUtilities.invokeLater(() -> {
-            if (logArea.getDocument().getLength() > 30000) {
-                try { logArea.replaceRange("", 0, 15000); } catch (Exception e) { /*ignore*/ }
-            }
-            logArea.append(logMessage + "\n");
-            logArea.setCaretPosition(logArea.getDocument().getLength());
-        });
+        logPipeline.publish(level, category, message, null);
     }
 
+    @Override
     public void logError(String category, String message, Throwable e) {
-        String timestamp = dateFormat.format(new Date());
-        String exceptionDetails = "";
-        String shortStackTrace = "";
-
-        if (e != null) {
-            StringWriter sw = new StringWriter();
-            e.printStackTrace(new PrintWriter(sw));
-            String[] stackLines = sw.toString().split("\n");
-            shortStackTrace = stackLines[0] + (stackLines.length > 1 ? " (" + stackLines[1].trim() + ")" : "");
-            exceptionDetails = String.format(" | Exceção: %s - %s (%s)", e.getClass().getSimpleName(), e.getMessage(), shortStackTrace);
-        }
-
-        String logMessage = String.format("[%s] [ERROR] [%-22s] %s%s",
-                timestamp, category, message, exceptionDetails);
+        logPipeline.publish("ERROR", category, message, e);
+    }
 
-        if (logArea == null) {
-            System.err.println(logMessage);
-            if (e != null) e.printStackTrace();
-            return;
-        }
-        SwingUtilities.invokeLater(() -> {
-             if (logArea.getDocument().getLength() > 30000) {
-                try { logArea.replaceRange("", 0, 15000); } catch (Exception ex) { /*ignore*/ }
-            }
-            logArea.append(logMessage + "\n");
-            logArea.setCaretPosition(logArea.getDocument().getLength());
-        });
+    @Override
+    public boolean isEnabled(String level) {
+        return logPipeline.isEnabled(level);
     }
 
-    public String trimContent(String content) {
-        if (content == null) return "<null>";
-        return content.length() > 40 ? content.substring(0, 37) + "..." : content;
+    LogPipeline getLogPipeline() {
+        return logPipeline;
     }
 
+    /**
+     * Sobe o servidor. Com -Dchat.server.janela=false (ou numa JVM headless) não há Swing: os logs vão
+     * para o arquivo e para o stdout e o desligamento vem de SIGTERM/SIGINT. Com janela, ela é
+     * apenas um visualizador do log que também permite desligar o servidor.
+     */
     public static void main(String[] args) {
-         try {
-            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
-        } catch (Exception e) {
-            System.err.println("Não foi possível definir o LookAndFeel do sistema para o servidor: " + e.getMessage());
+        Server server = new Server();
+        boolean window = server.config.isWindowEnabled() && !GraphicsEnvironment.isHeadless();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdownServer, "server-shutdown"));
+        if (window) {
+            ServerWindow.open(server);
+        } else {
+            server.logPipeline.echoTo(System.out);
+        }
+
+        try {
+            server.start();
+        } catch (IOException e) {
+            server.logError("SISTEMA_STARTUP_FATAL", "Erro crítico ao iniciar servidor na porta " + server.config.getPort(), e);
+            if (window) ServerWindow.showFatalError(e);
+            System.exit(1); // O hook de shutdown fecha o que chegou a abrir
         }
-        SwingUtilities.invokeLater(Server::new);
+        server.acceptLoop();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,248 @@
+package server;
+
+import common.FileTransfer;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuração do servidor, lida das propriedades de sistema (-Dchat.server.*).
+ * Valores ausentes ou inválidos caem nos padrões.
+ */
+public final class ServerConfig {
+
+    /**
+     * THREADS: uma thread de plataforma por conexão (pool em cache).
+     * VIRTUAL: uma thread virtual por conexão (Java 21+), mesmo código bloqueante.
+     * NIO: event loops com Selector.
+     */
+    public enum Mode { THREADS, VIRTUAL, NIO }
+
+    private final Mode mode;
+    private final int nioEventLoops;
+    private final int nioWorkers;
+    private final long outboundMaxBytes;
+    private final int outboundReportSeconds;
+    private final SlowConsumerPolicy.Limits slowConsumerLimits;
+    private final long filePauseBytes;
+    private final Path spoolDirectory;
+    private final long spoolMinBytes;
+    private final Path fileStoreDirectory;
+    private final FileStore.Limits fileStoreLimits;
+    private final long rosterWindowMillis;
+    private final Path offlineDirectory;
+    private final OfflineMailbox.Limits offlineLimits;
+    private final Path historyDirectory;
+    private final HistoryLog.Limits historyLimits;
+    private final Path groupDirectory;
+    private final long groupSyncMillis;
+    private final long groupSnapshotRecords;
+    private final Path logDirectory;
+    private final LogPipeline.Limits logLimits;
+    private final String logLevel;
+    private final boolean windowEnabled;
+    private final int metricsPort;
+    private final int port;
+    private final String clusterNodeName;
+    private final int clusterPort;
+    private final Map<String, InetSocketAddress> clusterPeers;
+
+    public ServerConfig(Mode mode, int nioEventLoops, int nioWorkers, long outboundMaxBytes, int outboundReportSeconds,
+                        SlowConsumerPolicy.Limits slowConsumerLimits, long filePauseBytes,
+                        Path spoolDirectory, long spoolMinBytes, Path fileStoreDirectory, FileStore.Limits fileStoreLimits, long rosterWindowMillis,
+                        Path offlineDirectory, OfflineMailbox.Limits offlineLimits,
+                        Path historyDirectory, HistoryLog.Limits historyLimits,
+                        Path groupDirectory, long groupSyncMillis, long groupSnapshotRecords,
+                        Path logDirectory, LogPipeline.Limits logLimits, String logLevel, boolean windowEnabled,
+                        int metricsPort, int port, String clusterNodeName, int clusterPort,
+                        Map<String, InetSocketAddress> clusterPeers) {
+        this.mode = mode;
+        this.nioEventLoops = Math.max(1, nioEventLoops);
+        this.nioWorkers = Math.max(1, nioWorkers);
+        this.outboundMaxBytes = Math.max(64 * 1024, outboundMaxBytes);
+        this.outboundReportSeconds = outboundReportSeconds;
+        this.slowConsumerLimits = slowConsumerLimits;
+        this.filePauseBytes = filePauseBytes;
+        this.spoolDirectory = spoolDirectory;
+        this.spoolMinBytes = spoolMinBytes;
+        this.fileStoreDirectory = fileStoreDirectory;
+        this.fileStoreLimits = fileStoreLimits;
+        this.rosterWindowMillis = rosterWindowMillis;
+        this.offlineDirectory = offlineDirectory;
+        this.offlineLimits = offlineLimits;
+        this.historyDirectory = historyDirectory;
+        this.historyLimits = historyLimits;
+        this.groupDirectory = groupDirectory;
+        this.groupSyncMillis = groupSyncMillis;
+        this.groupSnapshotRecords = groupSnapshotRecords;
+        this.logDirectory = logDirectory;
+        this.logLimits = logLimits;
+        this.logLevel = logLevel;
+        this.windowEnabled = windowEnabled;
+        this.metricsPort = metricsPort;
+        this.port = port;
+        this.clusterNodeName = clusterNodeName;
+        this.clusterPort = clusterPort;
+        this.clusterPeers = Collections.unmodifiableMap(new LinkedHashMap<>(clusterPeers));
+    }
+
+    public static ServerConfig fromSystemProperties() {
+        Mode mode = parseMode(System.getProperty("chat.server.modo", "threads"));
+        int loops = Integer.getInteger("chat.server.nio.loops", Runtime.getRuntime().availableProcessors());
+        int workers = Integer.getInteger("chat.server.nio.workers", 2 * Runtime.getRuntime().availableProcessors());
+        long outboundMaxBytes = Long.getLong("chat.server.saida.maxBytes", 16L * 1024 * 1024);
+        int reportSeconds = Integer.getInteger("chat.server.saida.relatorioSegundos", 30);
+        SlowConsumerPolicy.Limits slowConsumerLimits = new SlowConsumerPolicy.Limits(
+                Long.getLong("chat.server.lento.descarteBytes", 256L * 1024),
+                Long.getLong("chat.server.lento.descarteMs", 2_000L),
+                Long.getLong("chat.server.lento.degradarBytes", 2L * 1024 * 1024),
+                Long.getLong("chat.server.lento.degradarMs", 10_000L),
+                Long.getLong("chat.server.lento.desconectarMs", 30_000L),
+                Long.getLong("chat.server.lento.verificarMs", 1_000L));
+        long filePauseBytes = Long.getLong("chat.server.arquivo.pausaBytes", 3L * FileTransfer.CHUNK_SIZE);
+        // Com nome de nó, os diretórios padrão levam o nome: vários nós na mesma máquina não dividem os stores
+        String clusterNodeName = System.getProperty("chat.server.cluster.no", "").trim();
+        String nodeSuffix = clusterNodeName.isEmpty() ? "" : "-" + clusterNodeName;
+        Path spoolDirectory = Paths.get(System.getProperty("chat.server.spool.dir",
+                Paths.get(System.getProperty("java.io.tmpdir"), "chat-spool" + nodeSuffix).toString()));
+        long spoolMinBytes = Long.getLong("chat.server.spool.minBytes", 64L * 1024);
+        // O que precisa sobreviver a um reinício fica sob um diretório de dados (relativo ao diretório de trabalho),
+        // nunca no tmpdir, que o sistema limpa; só o spool, descartável, fica lá
+        Path dataDirectory = Paths.get(System.getProperty("chat.server.dados.dir",
+                clusterNodeName.isEmpty() ? "dados" : Paths.get("dados", clusterNodeName).toString()));
+        Path fileStoreDirectory = Paths.get(System.getProperty("chat.server.arquivos.dir",
+                dataDirectory.resolve("arquivos").toString()));
+        FileStore.Limits fileStoreLimits = new FileStore.Limits(
+                Long.getLong("chat.server.arquivos.maxBytes", 256L * 1024 * 1024),
+                Long.getLong("chat.server.arquivos.totalBytes", 10L * 1024 * 1024 * 1024),
+                TimeUnit.DAYS.toMillis(Long.getLong("chat.server.arquivos.retencaoDias", 30L)));
+        long rosterWindowMillis = Long.getLong("chat.server.contatos.janelaMs", 100L);
+        Path offlineDirectory = Paths.get(System.getProperty("chat.server.offline.dir",
+                dataDirectory.resolve("offline").toString()));
+        OfflineMailbox.Limits offlineLimits = new OfflineMailbox.Limits(
+                Long.getLong("chat.server.offline.segmentoBytes", 1024L * 1024),
+                Long.getLong("chat.server.offline.maxBytes", 8L * 1024 * 1024),
+                TimeUnit.HOURS.toMillis(Long.getLong("chat.server.offline.retencaoHoras", 7L * 24)),
+                Long.getLong("chat.server.offline.syncMs", 50L));
+        Path historyDirectory = Paths.get(System.getProperty("chat.server.historico.dir",
+                dataDirectory.resolve("historico").toString()));
+        HistoryLog.Limits historyLimits = new HistoryLog.Limits(
+                Long.getLong("chat.server.historico.segmentoBytes", 64L * 1024 * 1024),
+                Long.getLong("chat.server.historico.maxBytes", 4L * 1024 * 1024 * 1024),
+                TimeUnit.DAYS.toMillis(Long.getLong("chat.server.historico.retencaoDias", 365L)),
+                Long.getLong("chat.server.historico.syncMs", 200L));
+        Path groupDirectory = Paths.get(System.getProperty("chat.server.grupos.dir",
+                dataDirectory.resolve("grupos").toString()));
+        long groupSyncMillis = Long.getLong("chat.server.grupos.syncMs", 50L);
+        long groupSnapshotRecords = Long.getLong("chat.server.grupos.snapshotRegistros", 10_000L);
+        Path logDirectory = Paths.get(System.getProperty("chat.server.log.dir",
+                Paths.get(System.getProperty("java.io.tmpdir"), "chat-logs" + nodeSuffix).toString()));
+        LogPipeline.Limits logLimits = new LogPipeline.Limits(
+                Integer.getInteger("chat.server.log.capacidade", 8192),
+                Long.getLong("chat.server.log.arquivoBytes", 10L * 1024 * 1024),
+                Integer.getInteger("chat.server.log.arquivos", 5));
+        String logLevel = System.getProperty("chat.server.log.nivel", "INFO").trim().toUpperCase();
+        boolean windowEnabled = Boolean.parseBoolean(System.getProperty("chat.server.janela", "true"));
+        int metricsPort = Integer.getInteger("chat.server.metricas.porta", 9464);
+        int port = Integer.getInteger("chat.server.porta", 54321);
+        int clusterPort = Integer.getInteger("chat.server.cluster.porta", port + 1);
+        Map<String, InetSocketAddress> clusterPeers = parsePeers(System.getProperty("chat.server.cluster.nos", ""), clusterNodeName);
+        return new ServerConfig(mode, loops, workers, outboundMaxBytes, reportSeconds, slowConsumerLimits, filePauseBytes,
+                spoolDirectory, spoolMinBytes, fileStoreDirectory, fileStoreLimits, rosterWindowMillis, offlineDirectory, offlineLimits,
+                historyDirectory, historyLimits, groupDirectory, groupSyncMillis, groupSnapshotRecords,
+                logDirectory, logLimits, logLevel, windowEnabled, metricsPort, port, clusterNodeName, clusterPort, clusterPeers);
+    }
+
+    /** Lê "nome@host:porta,..."; entradas malformadas e o próprio nó são ignorados. */
+    private static Map<String, InetSocketAddress> parsePeers(String value, String ownName) {
+        Map<String, InetSocketAddress> peers = new LinkedHashMap<>();
+        for (String entry : value.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int at = entry.indexOf('@');
+            int colon = entry.lastIndexOf(':');
+            try {
+                if (at <= 0 || colon < at) throw new IllegalArgumentException();
+                String name = entry.substring(0, at);
+                if (!name.equals(ownName)) {
+                    peers.put(name, InetSocketAddress.createUnresolved(entry.substring(at + 1, colon), Integer.parseInt(entry.substring(colon + 1))));
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println("Nó de cluster inválido '" + entry + "' (use nome@host:porta), ignorado.");
+            }
+        }
+        return peers;
+    }
+
+    private static Mode parseMode(String value) {
+        try {
+            return Mode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Modo de servidor desconhecido '" + value + "', usando THREADS.");
+            return Mode.THREADS;
+        }
+    }
+
+    public Mode getMode() { return mode; }
+    public int getNioEventLoops() { return nioEventLoops; }
+    /** Threads que processam as mensagens lidas pelos event loops (roteamento, spool e persistência bloqueiam nelas). */
+    public int getNioWorkers() { return nioWorkers; }
+    public boolean useVirtualThreads() { return mode == Mode.VIRTUAL; }
+    /** Limite da fila de saída de cada conexão; acima disso a conexão é encerrada. */
+    public long getOutboundMaxBytes() { return outboundMaxBytes; }
+    /** Intervalo do relatório das maiores filas de saída no log (0 desliga). */
+    public int getOutboundReportSeconds() { return outboundReportSeconds; }
+    public SlowConsumerPolicy.Limits getSlowConsumerLimits() { return slowConsumerLimits; }
+    /**
+     * Acima deste backlog em algum destinatário, a conexão que envia um arquivo em partes para de ser lida
+     * até ele escoar. Fica abaixo do limite de descarte da política de consumidores lentos.
+     */
+    public long getFilePauseBytes() { return filePauseBytes; }
+    /** Diretório onde anexos de mensagens com fileData são gravados antes do fan-out. */
+    public Path getSpoolDirectory() { return spoolDirectory; }
+    /** Anexos menores que isso seguem no heap; gravar em disco não compensa. */
+    public long getSpoolMinBytes() { return spoolMinBytes; }
+    /** Diretório do armazenamento de arquivos por SHA-256 (FLAG_FILE_STORE). */
+    public Path getFileStoreDirectory() { return fileStoreDirectory; }
+    /** Maior arquivo aceito, limite total e retenção (desde o último uso) do armazenamento de arquivos. */
+    public FileStore.Limits getFileStoreLimits() { return fileStoreLimits; }
+    /** Janela em que mudanças na lista de contatos são acumuladas antes de sair (0 publica cada uma na hora). */
+    public long getRosterWindowMillis() { return rosterWindowMillis; }
+    /** Diretório das caixas de mensagens para destinatários offline. */
+    public Path getOfflineDirectory() { return offlineDirectory; }
+    /** Tamanho dos segmentos, limite por caixa, retenção e intervalo do fsync em lote das caixas offline. */
+    public OfflineMailbox.Limits getOfflineLimits() { return offlineLimits; }
+    /** Diretório do log de histórico das conversas (HISTORY_REQUEST). */
+    public Path getHistoryDirectory() { return historyDirectory; }
+    /** Tamanho dos segmentos, limite total, retenção (0 desliga) e intervalo do fsync em lote do histórico. */
+    public HistoryLog.Limits getHistoryLimits() { return historyLimits; }
+    /** Diretório do snapshot e do WAL dos grupos. */
+    public Path getGroupDirectory() { return groupDirectory; }
+    /** Intervalo do fsync em lote do WAL de grupos (0: fsync a cada mutação). */
+    public long getGroupSyncMillis() { return groupSyncMillis; }
+    /** Registros no WAL de grupos a partir dos quais o monitor grava um novo snapshot. */
+    public long getGroupSnapshotRecords() { return groupSnapshotRecords; }
+    /** Diretório dos arquivos de log (servidor.log e os rotacionados). */
+    public Path getLogDirectory() { return logDirectory; }
+    /** Capacidade do buffer de log, tamanho de cada arquivo e quantos arquivos rotacionados manter. */
+    public LogPipeline.Limits getLogLimits() { return logLimits; }
+    /** Nível mínimo registrado: DEBUG, INFO, AVISO ou ERROR. */
+    public String getLogLevel() { return logLevel; }
+    /** Abre a janela de logs; false sobe o servidor só com log em arquivo e stdout. */
+    public boolean isWindowEnabled() { return windowEnabled; }
+    /** Porta do endpoint de métricas (só em 127.0.0.1); 0 desliga, deixando só o resumo no log. */
+    public int getMetricsPort() { return metricsPort; }
+    /** Porta em que os clientes conectam. */
+    public int getPort() { return port; }
+    /** Nome deste nó no cluster; vazio roda o servidor sozinho. */
+    public String getClusterNodeName() { return clusterNodeName; }
+    public boolean isClusterEnabled() { return !clusterNodeName.isEmpty(); }
+    /** Porta das ligações entre nós (padrão: a porta dos clientes + 1). */
+    public int getClusterPort() { return clusterPort; }
+    /** Demais nós do cluster, por nome; endereços ainda não resolvidos (a resolução fica para cada conexão). */
+    public Map<String, InetSocketAddress> getClusterPeers() { return clusterPeers; }
+}
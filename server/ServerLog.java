@@ -0,0 +1,20 @@
+package server;
+
+/**
+ * Destino dos logs do servidor. Permite que o núcleo de roteamento rode sem a janela Swing
+ * (por exemplo, em testes de carga).
+ */
+public interface ServerLog {
+
+    void log(String level, String category, String message);
+
+    /**
+     * Indica se linhas deste nível ("DEBUG", "INFO", "AVISO", "ERROR") seriam registradas. Caminhos
+     * executados a cada mensagem consultam isso antes de montar o texto do log.
+     */
+    default boolean isEnabled(String level) {
+        return true;
+    }
+
+    void logError(String category, String message, Throwable e);
+}
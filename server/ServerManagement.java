@@ -0,0 +1,201 @@
+package server;
+
+import common.MessageType;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registra os MXBeans do servidor no MBeanServer da plataforma (jconsole, jcmd, JFR), sob o
+ * domínio chat.server. Nada aqui é mantido em paralelo ao roteamento: cada leitura percorre o
+ * registro do ChatRouter e os contadores que as conexões e o ServerMetrics já mantêm.
+ *
+ * As operações que alteram o servidor (desconectar um usuário, trocar o nível de log) ficam
+ * registradas no log como AVISO, com a categoria JMX_*.
+ */
+final class ServerManagement {
+
+    private static final String DOMAIN = "chat.server";
+
+    private final ChatRouter router;
+    private final ServerMetrics metrics;
+    private final LogPipeline logPipeline;
+    private final ServerLog logger;
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    ServerManagement(ChatRouter router, ServerMetrics metrics, LogPipeline logPipeline, ServerLog logger) {
+        this.router = router;
+        this.metrics = metrics;
+        this.logPipeline = logPipeline;
+        this.logger = logger;
+    }
+
+    void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        register(server, "Clientes", new Clients());
+        register(server, "Grupos", new Groups());
+        register(server, "Roteamento", new Routing());
+    }
+
+    private void register(MBeanServer server, String type, Object bean) throws JMException {
+        ObjectName name = new ObjectName(DOMAIN, "type", type);
+        if (server.isRegistered(name)) server.unregisterMBean(name); // Outro Server na mesma JVM (benchmarks)
+        server.registerMBean(bean, name);
+        registered.add(name);
+    }
+
+    void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // Já removido
+            }
+        }
+        registered.clear();
+    }
+
+    String summary() {
+        return registered.size() + " MXBeans em " + DOMAIN + ":type=Clientes|Grupos|Roteamento";
+    }
+
+    private static ClientsMXBean.ConnectionInfo info(ClientConnection connection) {
+        return new ClientsMXBean.ConnectionInfo(connection.getUsername(), String.valueOf(connection.getRemoteSocketAddress()),
+                connection.getProtocolFlags(), connection.getOutboundDepth(), connection.getOutboundBytes(),
+                connection.getOldestOutboundAgeMillis(), connection.getReceivedMessages(), connection.getSentBytes());
+    }
+
+    private GroupsMXBean.GroupInfo info(ChatGroup group) {
+        int online = 0;
+        for (String member : group.members()) {
+            if (router.getConnection(member) != null) online++;
+        }
+        return new GroupsMXBean.GroupInfo(group.getName(), group.size(), online, group.getRelayedMessages());
+    }
+
+    private static double millis(long micros) {
+        return micros / 1_000.0;
+    }
+
+    private final class Clients implements ClientsMXBean {
+        @Override
+        public int getConnectedCount() {
+            return router.getClientCount();
+        }
+
+        @Override
+        public List<String> getUsernames() {
+            TreeSet<String> names = new TreeSet<>();
+            for (ClientConnection connection : router.getConnections()) names.add(connection.getUsername());
+            return new ArrayList<>(names);
+        }
+
+        @Override
+        public ConnectionInfo describe(String username) {
+            ClientConnection connection = router.getConnection(username);
+            return connection == null ? null : info(connection);
+        }
+
+        @Override
+        public List<ConnectionInfo> topByReceivedMessages(int limit) {
+            return top(Comparator.comparingLong(ConnectionInfo::getReceivedMessages), limit);
+        }
+
+        @Override
+        public List<ConnectionInfo> topByOutboundBytes(int limit) {
+            return top(Comparator.comparingLong(ConnectionInfo::getOutboundBytes), limit);
+        }
+
+        private List<ConnectionInfo> top(Comparator<ConnectionInfo> order, int limit) {
+            List<ConnectionInfo> all = new ArrayList<>();
+            for (ClientConnection connection : router.getConnections()) all.add(info(connection));
+            all.sort(order.reversed());
+            return new ArrayList<>(all.subList(0, Math.max(0, Math.min(limit, all.size()))));
+        }
+
+        @Override
+        public boolean disconnect(String username) {
+            ClientConnection connection = router.getConnection(username);
+            if (connection == null) return false;
+            logger.log("AVISO", "JMX_DESCONECTAR", "Desconectando " + username + " (" + connection.getRemoteSocketAddress() + ") a pedido via JMX.");
+            connection.closeClientSocket();
+            return true;
+        }
+    }
+
+    private final class Groups implements GroupsMXBean {
+        @Override
+        public int getGroupCount() {
+            return router.getGroupCount();
+        }
+
+        @Override
+        public List<GroupInfo> largestGroups(int limit) {
+            return top(Comparator.comparingInt(GroupInfo::getMembers), limit);
+        }
+
+        @Override
+        public List<GroupInfo> hottestGroups(int limit) {
+            return top(Comparator.comparingLong(GroupInfo::getRelayedMessages), limit);
+        }
+
+        private List<GroupInfo> top(Comparator<GroupInfo> order, int limit) {
+            List<GroupInfo> all = new ArrayList<>();
+            for (ChatGroup group : router.getGroups()) all.add(info(group));
+            all.sort(order.reversed());
+            return new ArrayList<>(all.subList(0, Math.max(0, Math.min(limit, all.size()))));
+        }
+
+        @Override
+        public String dumpGroup(String name) {
+            ChatGroup group = router.getGroup(name);
+            if (group == null) group = router.getGroup(ChatRouter.GROUP_ICON_PREFIX + name);
+            if (group == null) throw new IllegalArgumentException("Grupo não encontrado: " + name);
+            GroupInfo summary = info(group);
+            StringBuilder text = new StringBuilder();
+            text.append(group.getName()).append(": ").append(summary.getMembers()).append(" membros, ")
+                    .append(summary.getOnlineMembers()).append(" online, ").append(summary.getRelayedMessages()).append(" mensagens repassadas\n");
+            for (String member : new TreeSet<>(group.members())) {
+                text.append("  ").append(member).append(router.getConnection(member) != null ? " (online)" : "").append('\n');
+            }
+            return text.toString();
+        }
+    }
+
+    private final class Routing implements RoutingMXBean {
+        @Override
+        public Map<String, Long> getReceivedByType() {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            for (MessageType type : MessageType.values()) {
+                long value = metrics.getReceived(type);
+                if (value > 0) counts.put(type.name(), value);
+            }
+            return counts;
+        }
+
+        @Override public long getConnectionsAccepted() { return metrics.getConnectionsAccepted(); }
+        @Override public long getFramesWritten() { return metrics.getFramesWritten(); }
+        @Override public long getBytesWritten() { return metrics.getBytesWritten(); }
+        @Override public long getOutboundBytes() { return metrics.outboundBytes(); }
+        @Override public double getRoutingLatencyP50Millis() { return millis(metrics.getRoutingLatency().percentile(0.5)); }
+        @Override public double getRoutingLatencyP99Millis() { return millis(metrics.getRoutingLatency().percentile(0.99)); }
+        @Override public double getRoutingLatencyP999Millis() { return millis(metrics.getRoutingLatency().percentile(0.999)); }
+        @Override public long getLogLinesDropped() { return logPipeline.getDropped(); }
+        @Override public String getLogLevel() { return logPipeline.getMinLevel(); }
+
+        @Override
+        public void setLogLevel(String level) {
+            if (!LogPipeline.isKnownLevel(level)) throw new IllegalArgumentException("Nível de log desconhecido: " + level + " (use DEBUG, INFO, AVISO ou ERROR)");
+            logger.log("AVISO", "JMX_NIVEL_LOG", "Nível de log alterado via JMX: " + logPipeline.getMinLevel() + " -> " + level); // Antes: ERROR filtraria esta linha
+            logPipeline.setMinLevel(level);
+        }
+    }
+}
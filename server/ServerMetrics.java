@@ -0,0 +1,259 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import common.MessageType;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Métricas do servidor, para dimensionar capacidade sem depender das linhas de log.
+ *
+ * Contadores são LongAdder (uma célula por thread em disputa, somadas só na leitura) e as
+ * distribuições usam Histogram. A latência de roteamento vai da leitura da mensagem (depois de
+ * decodificada, em ClientHandler.run ou NioConnection.onFrame) até o writer de cada destinatário
+ * entregar o quadro ao socket: cada quadro gerado por uma leitura é uma amostra, então uma
+ * mensagem de grupo conta uma vez por membro. O instante da leitura chega à OutboundQueue por
+ * uma ThreadLocal, já que o roteamento roda na thread que leu.
+ *
+ * Conexões, grupos e fila de saída são lidos do ChatRouter na hora da coleta. Tudo sai em texto
+ * no formato do Prometheus num endpoint HTTP que só escuta em loopback, e um resumo do último
+ * intervalo vai para o log junto com os demais relatórios do monitor.
+ */
+final class ServerMetrics {
+
+    private static final ThreadLocal<long[]> INBOUND_RECEIVED_AT = ThreadLocal.withInitial(() -> new long[1]);
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ChatRouter router;
+    private final LogPipeline logPipeline;
+    private final LongAdder[] received = new LongAdder[TYPES.length];
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder framesWritten = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final Histogram routingLatencyMicros = new Histogram();
+    private HttpServer endpoint;
+    private ExecutorService endpointExecutor;
+
+    // Estado do resumo periódico; só o thread do monitor acessa
+    private long[] lastReceived = new long[TYPES.length];
+    private Histogram.Snapshot lastLatency = new Histogram().snapshot();
+    private Histogram.Snapshot lastFanout = lastLatency;
+    private long lastBytesWritten = 0;
+    private long lastReportNanos = System.nanoTime();
+
+    ServerMetrics(ChatRouter router, LogPipeline logPipeline) {
+        this.router = router;
+        this.logPipeline = logPipeline;
+        for (int i = 0; i < received.length; i++) received[i] = new LongAdder();
+    }
+
+    /** Marca a thread atual como processando uma mensagem lida em {@code receivedAt} (System.nanoTime). */
+    static void beginInbound(long receivedAt) {
+        INBOUND_RECEIVED_AT.get()[0] = receivedAt;
+    }
+
+    static void endInbound() {
+        INBOUND_RECEIVED_AT.get()[0] = 0;
+    }
+
+    /** Instante da leitura que a thread atual está roteando, ou 0 fora do roteamento de uma leitura. */
+    static long inboundReceivedAt() {
+        return INBOUND_RECEIVED_AT.get()[0];
+    }
+
+    void messageReceived(MessageType type) {
+        received[type.ordinal()].increment();
+    }
+
+    void connectionAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    /** Chamado pelo writer da conexão depois de entregar o quadro (e o anexo, se houver) ao socket. */
+    void frameWritten(OutboundQueue.Entry entry) {
+        framesWritten.increment();
+        bytesWritten.add(entry.length());
+        if (entry.receivedAt != 0) {
+            routingLatencyMicros.record((System.nanoTime() - entry.receivedAt) / 1_000);
+        }
+    }
+
+    long getReceived(MessageType type) { return received[type.ordinal()].sum(); }
+    long getConnectionsAccepted() { return connectionsAccepted.sum(); }
+    long getFramesWritten() { return framesWritten.sum(); }
+    long getBytesWritten() { return bytesWritten.sum(); }
+    Histogram.Snapshot getRoutingLatency() { return routingLatencyMicros.snapshot(); }
+
+    /** Sobe o endpoint em 127.0.0.1:{@code port}; GET /metrics responde no formato texto do Prometheus. */
+    void open(int port) throws IOException {
+        endpoint = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        endpointExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "server-metricas");
+            t.setDaemon(true);
+            return t;
+        });
+        endpoint.setExecutor(endpointExecutor);
+        endpoint.createContext("/metrics", this::handle);
+        endpoint.start();
+    }
+
+    void close() {
+        if (endpoint == null) return;
+        endpoint.stop(0);
+        endpointExecutor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /** Todas as métricas, acumuladas desde a partida, no formato de exposição em texto do Prometheus. */
+    String prometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        header(out, "chat_mensagens_recebidas_total", "counter", "Mensagens recebidas dos clientes, por tipo.");
+        for (int i = 0; i < TYPES.length; i++) {
+            long value = received[i].sum();
+            if (value > 0) out.append("chat_mensagens_recebidas_total{tipo=\"").append(TYPES[i].name()).append("\"} ").append(value).append('\n');
+        }
+        counter(out, "chat_conexoes_aceitas_total", "Conexões aceitas desde a partida.", connectionsAccepted.sum());
+        gauge(out, "chat_conexoes_ativas", "Usuários conectados.", router.getClientCount());
+        gauge(out, "chat_grupos", "Grupos existentes.", router.getGroupCount());
+        gauge(out, "chat_fila_saida_bytes", "Bytes aguardando nas filas de saída de todas as conexões.", outboundBytes());
+        counter(out, "chat_quadros_enviados_total", "Quadros entregues aos sockets.", framesWritten.sum());
+        counter(out, "chat_bytes_enviados_total", "Bytes entregues aos sockets, incluindo anexos.", bytesWritten.sum());
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        gauge(out, "chat_jvm_heap_usado_bytes", "Heap em uso na JVM do servidor.", heap.getUsed());
+        gauge(out, "chat_jvm_heap_comprometido_bytes", "Heap reservado pela JVM do servidor.", heap.getCommitted());
+        counter(out, "chat_log_descartes_total", "Linhas de log descartadas com o buffer de log cheio.", logPipeline.getDropped());
+        summary(out, "chat_latencia_roteamento_segundos", "Da leitura da mensagem até a escrita de cada quadro gerado por ela.",
+                routingLatencyMicros.snapshot(), 1e6);
+        summary(out, "chat_fanout_grupo_membros", "Membros online que receberam cada mensagem de grupo.",
+                router.getFanoutSizes().snapshot(), 1);
+        return out.toString();
+    }
+
+    /**
+     * Resumo desde a chamada anterior: mensagens por segundo (total e os tipos mais frequentes),
+     * percentis da latência de roteamento e do fan-out, conexões, grupos e bytes por segundo.
+     * Retorna null se nada foi lido nem escrito no intervalo.
+     */
+    String intervalSummary() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastReportNanos) / 1e9);
+        long[] receivedNow = new long[TYPES.length];
+        long total = 0;
+        for (int i = 0; i < TYPES.length; i++) {
+            receivedNow[i] = received[i].sum();
+            total += receivedNow[i] - lastReceived[i];
+        }
+        Histogram.Snapshot latencyNow = routingLatencyMicros.snapshot();
+        Histogram.Snapshot fanoutNow = router.getFanoutSizes().snapshot();
+        long bytesNow = bytesWritten.sum();
+        Histogram.Snapshot latency = latencyNow.minus(lastLatency);
+        Histogram.Snapshot fanout = fanoutNow.minus(lastFanout);
+        long bytes = bytesNow - lastBytesWritten;
+        long[] previous = lastReceived;
+        lastReceived = receivedNow;
+        lastLatency = latencyNow;
+        lastFanout = fanoutNow;
+        lastBytesWritten = bytesNow;
+        lastReportNanos = now;
+        if (total == 0 && latency.count() == 0 && bytes == 0) return null;
+
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.ROOT, "%.0f msgs/s", total / seconds));
+        String top = topTypes(receivedNow, previous, seconds);
+        if (!top.isEmpty()) text.append(" (").append(top).append(')');
+        text.append(String.format(Locale.ROOT, "; roteamento p50/p99/p999 %s/%s/%s (%d quadros)",
+                micros(latency.percentile(0.5)), micros(latency.percentile(0.99)), micros(latency.percentile(0.999)), latency.count()));
+        if (fanout.count() > 0) {
+            text.append(String.format(Locale.ROOT, "; fan-out de grupo p50/p99 %d/%d membros", fanout.percentile(0.5), fanout.percentile(0.99)));
+        }
+        text.append(String.format(Locale.ROOT, "; %d conexões, %d grupos, %.1f KB/s enviados",
+                router.getClientCount(), router.getGroupCount(), bytes / 1024.0 / seconds));
+        return text.toString();
+    }
+
+    private static String topTypes(long[] now, long[] previous, double seconds) {
+        StringBuilder text = new StringBuilder();
+        boolean[] used = new boolean[now.length];
+        for (int rank = 0; rank < 3; rank++) {
+            int best = -1;
+            for (int i = 0; i < now.length; i++) {
+                if (!used[i] && now[i] - previous[i] > 0 && (best < 0 || now[i] - previous[i] > now[best] - previous[best])) best = i;
+            }
+            if (best < 0) break;
+            used[best] = true;
+            if (text.length() > 0) text.append(", ");
+            double rate = (now[best] - previous[best]) / seconds;
+            text.append(TYPES[best].name()).append(' ').append(String.format(Locale.ROOT, rate < 10 ? "%.1f" : "%.0f", rate));
+        }
+        return text.toString();
+    }
+
+    private static String micros(long value) {
+        return value < 1_000 ? value + "µs" : String.format(Locale.ROOT, "%.1fms", value / 1_000.0);
+    }
+
+    long outboundBytes() {
+        long bytes = 0;
+        for (ClientConnection connection : router.getConnections()) bytes += connection.getOutboundBytes();
+        return bytes;
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /** {@code divisor} converte para a unidade da métrica (1e6: microssegundos para segundos). */
+    private static void summary(StringBuilder out, String name, String help, Histogram.Snapshot snapshot, double divisor) {
+        header(out, name, "summary", help);
+        for (double quantile : QUANTILES) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(format(snapshot.percentile(quantile) / divisor)).append('\n');
+        }
+        out.append(name).append("_sum ").append(format(snapshot.sum() / divisor)).append('\n');
+        out.append(name).append("_count ").append(snapshot.count()).append('\n');
+        header(out, name + "_max", "gauge", "Maior valor desde a partida.");
+        out.append(name).append("_max ").append(format(snapshot.max() / divisor)).append('\n');
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+}
@@ -0,0 +1,86 @@
+package server;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Janela de logs do servidor. Só lê as linhas recentes do LogPipeline a cada LOG_VIEW_REFRESH_MS;
+ * fechar a janela desliga o servidor pelo mesmo hook de shutdown usado sem janela.
+ */
+final class ServerWindow extends JFrame {
+    private static final int LOG_VIEW_REFRESH_MS = 200;
+    private static final int LOG_VIEW_MAX_CHARS = 30000;
+
+    private final Server server;
+    private final JTextArea logArea;
+    private long logViewPosition = 0; // Só o EDT acessa
+
+    ServerWindow(Server server) {
+        this.server = server;
+        setTitle("Servidor de Chat - Logs");
+        setSize(750, 550);
+        setLocationRelativeTo(null);
+
+        logArea = new JTextArea();
+        logArea.setEditable(false);
+        logArea.setFont(new Font("Monospaced", Font.PLAIN, 13));
+        logArea.setMargin(new Insets(5,5,5,5));
+        JScrollPane scrollPane = new JScrollPane(logArea);
+        add(scrollPane, BorderLayout.CENTER);
+        new Timer(LOG_VIEW_REFRESH_MS, e -> refreshLogView()).start();
+
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                server.log("INFO", "SISTEMA_SHUTDOWN_REQ", "Requisição de desligamento do servidor...");
+                dispose();
+                System.exit(0); // O hook de shutdown chama Server.shutdownServer
+            }
+        });
+        setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
+
+        setVisible(true);
+    }
+
+    /** Define o LookAndFeel do sistema e abre a janela no EDT. */
+    static void open(Server server) {
+        try {
+            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+        } catch (Exception e) {
+            System.err.println("Não foi possível definir o LookAndFeel do sistema para o servidor: " + e.getMessage());
+        }
+        SwingUtilities.invokeLater(() -> new ServerWindow(server));
+    }
+
+    /** Mostra o erro que impediu a partida e espera o usuário fechar o diálogo. */
+    static void showFatalError(Exception e) {
+        try {
+            SwingUtilities.invokeAndWait(() ->
+                    JOptionPane.showMessageDialog(null, "Erro crítico: " + e.getMessage(), "Erro Servidor", JOptionPane.ERROR_MESSAGE));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (InvocationTargetException ite) {
+            System.err.println("Não foi possível mostrar o erro de partida: " + ite.getCause());
+        }
+    }
+
+    /** Acrescenta à janela as linhas gravadas desde a última atualização (um evento no EDT a cada LOG_VIEW_REFRESH_MS). */
+    private void refreshLogView() {
+        List<String> lines = new ArrayList<>();
+        logViewPosition = server.getLogPipeline().recentSince(logViewPosition, lines);
+        if (lines.isEmpty()) return;
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) text.append(line).append('\n');
+        logArea.append(text.toString());
+        int excess = logArea.getDocument().getLength() - LOG_VIEW_MAX_CHARS;
+        if (excess > 0) {
+            try { logArea.replaceRange("", 0, excess + LOG_VIEW_MAX_CHARS / 2); } catch (Exception ex) { /*ignore*/ }
+        }
+        logArea.setCaretPosition(logArea.getDocument().getLength());
+    }
+}
@@ -0,0 +1,131 @@
+package server;
+
+import common.MessageType;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Política para clientes que param de ler. Olha a fila de saída de cada conexão
+ * (bytes pendentes e idade do quadro mais antigo) e age em estágios:
+ *
+ *   1. DESCARTE: tráfego descartável (USER_LIST, ROSTER_DELTA, STATUS_UPDATE) deixa de ser enfileirado.
+ *   2. DEGRADADO: a sessão é marcada e continua descartando até a fila esvaziar de novo,
+ *      mesmo que oscile abaixo do limite do estágio 1.
+ *   3. DESCONEXÃO: a conexão é encerrada com closeClientSocket().
+ *
+ * O descarte é decidido a cada envio (shouldDrop); degradação, recuperação e desconexão
+ * são decididas pela verificação periódica (check), feita pelo monitor do servidor.
+ * O limite de bytes da OutboundQueue continua valendo como teto imediato.
+ */
+public final class SlowConsumerPolicy {
+
+    /** Limites de cada estágio. Idades em milissegundos. */
+    public static final class Limits {
+        final long dropBytes;
+        final long dropAgeMillis;
+        final long degradeBytes;
+        final long degradeAgeMillis;
+        final long disconnectAgeMillis;
+        final long checkIntervalMillis;
+
+        public Limits(long dropBytes, long dropAgeMillis, long degradeBytes, long degradeAgeMillis,
+                      long disconnectAgeMillis, long checkIntervalMillis) {
+            this.dropBytes = dropBytes;
+            this.dropAgeMillis = dropAgeMillis;
+            this.degradeBytes = Math.max(dropBytes, degradeBytes);
+            this.degradeAgeMillis = Math.max(dropAgeMillis, degradeAgeMillis);
+            this.disconnectAgeMillis = Math.max(this.degradeAgeMillis, disconnectAgeMillis);
+            this.checkIntervalMillis = Math.max(100, checkIntervalMillis);
+        }
+
+        public long getCheckIntervalMillis() { return checkIntervalMillis; }
+    }
+
+    private enum Stage { DROPPING, DEGRADED }
+
+    /** Estado de uma conexão que está (ou esteve há pouco) acima do estágio 1. */
+    private static final class Session {
+        volatile Stage stage = Stage.DROPPING;
+        final AtomicLong dropped = new AtomicLong();
+        volatile boolean userListDropped = false;
+    }
+
+    private final Limits limits;
+    private final ServerLog logger;
+    private final ChatRouter router;
+    private final Map<ClientConnection, Session> sessions = new ConcurrentHashMap<>();
+
+    public SlowConsumerPolicy(Limits limits, ServerLog logger, ChatRouter router) {
+        this.limits = limits;
+        this.logger = logger;
+        this.router = router;
+    }
+
+    public Limits getLimits() {
+        return limits;
+    }
+
+    static boolean isDroppable(MessageType type) {
+        return type == MessageType.USER_LIST || type == MessageType.ROSTER_DELTA || type == MessageType.STATUS_UPDATE;
+    }
+
+    /**
+     * Chamado pela conexão antes de enfileirar uma mensagem.
+     * @return true se a mensagem deve ser descartada em vez de enfileirada.
+     */
+    public boolean shouldDrop(ClientConnection connection, MessageType type) {
+        if (!isDroppable(type)) return false;
+        Session session = sessions.get(connection);
+        if (session == null) {
+            if (connection.getOutboundBytes() < limits.dropBytes && connection.getOldestOutboundAgeMillis() < limits.dropAgeMillis) {
+                return false;
+            }
+            session = sessions.computeIfAbsent(connection, c -> new Session());
+        }
+        if (type == MessageType.USER_LIST || type == MessageType.ROSTER_DELTA) {
+            session.userListDropped = true; // Na recuperação vai um snapshot novo
+        }
+        if (session.dropped.getAndIncrement() == 0) {
+            logger.log("AVISO", "CONSUMIDOR_LENTO_DESCARTE", describe(connection) + ": descartando USER_LIST/ROSTER_DELTA/STATUS_UPDATE até a fila de saída baixar.");
+        }
+        return true;
+    }
+
+    /** Verificação periódica de todas as conexões. */
+    public void check(Collection<ClientConnection> connections) {
+        sessions.keySet().removeIf(connection -> !connection.isOpen());
+        for (ClientConnection connection : connections) {
+            long bytes = connection.getOutboundBytes();
+            long ageMillis = connection.getOldestOutboundAgeMillis();
+            Session session = sessions.get(connection);
+
+            if (ageMillis >= limits.disconnectAgeMillis) {
+                logger.log("AVISO", "CONSUMIDOR_LENTO_DESCONECTADO", describe(connection) + ": quadro mais antigo há " + ageMillis + " ms ("
+                        + bytes + " bytes pendentes" + (session != null ? ", " + session.dropped.get() + " mensagens descartadas" : "") + "). Fechando conexão.");
+                sessions.remove(connection);
+                connection.closeClientSocket();
+            } else if (bytes >= limits.degradeBytes || ageMillis >= limits.degradeAgeMillis) {
+                if (session == null) {
+                    session = sessions.computeIfAbsent(connection, c -> new Session());
+                }
+                if (session.stage != Stage.DEGRADED) {
+                    session.stage = Stage.DEGRADED;
+                    logger.log("AVISO", "CONSUMIDOR_LENTO_DEGRADADO", describe(connection) + ": sessão degradada (" + bytes + " bytes pendentes, mais antigo há " + ageMillis + " ms).");
+                }
+            } else if (session != null && bytes < limits.dropBytes && ageMillis < limits.dropAgeMillis
+                    && (session.stage != Stage.DEGRADED || connection.getOutboundDepth() == 0)) {
+                sessions.remove(connection);
+                logger.log("INFO", "CONSUMIDOR_LENTO_RECUPERADO", describe(connection) + ": fila de saída normalizada; " + session.dropped.get() + " mensagens descartadas no período.");
+                if (session.userListDropped) {
+                    router.sendUserList(connection); // A lista que ele tem pode estar desatualizada
+                }
+            }
+        }
+    }
+
+    private static String describe(ClientConnection connection) {
+        return connection.getUsername() != null ? connection.getUsername() : String.valueOf(connection.getRemoteSocketAddress());
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import common.Message;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Anexo gravado no spool do servidor (ver AttachmentSpool). É compartilhado por todas as filas
+ * de saída que vão entregá-lo; cada uma segura uma referência, e o arquivo é apagado quando a
+ * última é liberada. O canal de leitura é aberto uma vez e lido só com posição explícita, então
+ * vários writers podem transferir o mesmo anexo ao mesmo tempo.
+ */
+public final class SpooledAttachment {
+
+    private final AttachmentSpool spool;
+    private final Path file;
+    private final FileChannel channel;
+    private final long size;
+    private final AtomicInteger references = new AtomicInteger(1); // A do roteamento, liberada ao fim do fan-out
+
+    SpooledAttachment(AttachmentSpool spool, Path file, FileChannel channel, long size) {
+        this.spool = spool;
+        this.file = file;
+        this.channel = channel;
+        this.size = size;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                spool.logDeleteError(file, e);
+            }
+            spool.released(size);
+        }
+    }
+
+    /**
+     * Transfere a partir de {@code position} o quanto o canal aceitar (sendfile quando o destino é um socket).
+     * @return Bytes transferidos; pode ser 0 num canal não bloqueante com o buffer TCP cheio.
+     */
+    long transferTo(long position, WritableByteChannel target) throws IOException {
+        return channel.transferTo(position, size - position, target);
+    }
+
+    /**
+     * Cópia de {@code header} com o anexo de volta em fileData, para conexões cujo codec não permite
+     * escrever o arquivo direto do disco (serialização Java, protocolo legado).
+     */
+    Message inline(Message header) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) size);
+        while (data.hasRemaining()) {
+            if (channel.read(data, data.position()) < 0) {
+                throw new IOException("Anexo em spool truncado: " + file);
+            }
+        }
+        Message msg = new Message(header.getMessageId(), header.getSender(), header.getReceiver(), header.getContent(), header.getType());
+        msg.setTimestamp(header.getTimestamp());
+        msg.setStatus(header.getStatus());
+        msg.setFileName(header.getFileName());
+        msg.setFileData(data.array());
+        return msg;
+    }
+}